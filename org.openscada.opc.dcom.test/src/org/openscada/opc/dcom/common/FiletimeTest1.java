@@ -64,6 +64,30 @@ public class FiletimeTest1
         }
     }
 
+    @Test
+    public void test4 ()
+    {
+        // 2008-08-14 09:52:43.xxx UTC
+        Assert.assertEquals ( 1218707563L, new FILETIME ( 29949427, 2139800608 ).asMillis () / 1000L );
+
+        for ( int i = 0; i < 10000; i++ )
+        {
+            final FILETIME ft = new FILETIME ( 29949427 + i, 2139800608 + i );
+            Assert.assertEquals ( ft.asBigDecimalCalendar ().getTimeInMillis (), ft.asMillis () );
+        }
+    }
+
+    @Test
+    public void test5 ()
+    {
+        final long now = System.currentTimeMillis ();
+        for ( int i = 0; i < 10000; i++ )
+        {
+            Assert.assertEquals ( now + i * 997L, FILETIME.fromMillis ( now + i * 997L ).asMillis () );
+        }
+        Assert.assertEquals ( new FILETIME ( 29949427, 2139800608 ).asMillis (), FILETIME.fromMillis ( new FILETIME ( 29949427, 2139800608 ).asMillis () ).asMillis () );
+    }
+
     @Test
     public void test3a ()
     {
@@ -0,0 +1,144 @@
+/*
+ * This file is part of the OpenSCADA project
+ * Copyright (C) 2006-2011 TH4 SYSTEMS GmbH (http://th4-systems.com)
+ *
+ * OpenSCADA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License version 3
+ * only, as published by the Free Software Foundation.
+ *
+ * OpenSCADA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License version 3 for more details
+ * (a copy is included in the LICENSE file that accompanied this code).
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * version 3 along with OpenSCADA. If not, see
+ * <http://opensource.org/licenses/lgpl-3.0.html> for a copy of the LGPLv3 License.
+ */
+
+package org.openscada.opc.dcom.da;
+
+import java.util.Arrays;
+
+import org.jinterop.dcom.core.JIArray;
+import org.jinterop.dcom.core.JIVariant;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests for {@link TypedValue}
+ */
+public class TypedValueTest
+{
+    @Test
+    public void testScalars () throws Exception
+    {
+        final TypedValue d = TypedValue.fromVariant ( new JIVariant ( 1.5 ) );
+        Assert.assertTrue ( d.isPrimitive () );
+        Assert.assertFalse ( d.isArray () );
+        Assert.assertEquals ( JIVariant.VT_R8, d.getVariantType () );
+        Assert.assertEquals ( 1.5, d.getDouble (), 0.0 );
+        Assert.assertEquals ( 1, d.getLong () );
+
+        final TypedValue i = TypedValue.fromVariant ( new JIVariant ( 42 ) );
+        Assert.assertEquals ( JIVariant.VT_I4, i.getVariantType () );
+        Assert.assertEquals ( 42, i.getLong () );
+        Assert.assertEquals ( 42.0, i.getDouble (), 0.0 );
+        Assert.assertTrue ( i.getBoolean () );
+
+        final TypedValue b = TypedValue.fromVariant ( new JIVariant ( false ) );
+        Assert.assertEquals ( JIVariant.VT_BOOL, b.getVariantType () );
+        Assert.assertFalse ( b.getBoolean () );
+        Assert.assertEquals ( 0, b.getLong () );
+
+        Assert.assertNull ( TypedValue.fromVariant ( null ) );
+    }
+
+    @Test
+    public void testOtherValues () throws Exception
+    {
+        final TypedValue s = TypedValue.fromVariant ( new JIVariant ( "text" ) );
+        Assert.assertFalse ( s.isPrimitive () );
+        Assert.assertFalse ( s.isVariantConvertible () );
+        Assert.assertNull ( s.toVariant () );
+        // the content is unknown, so other values are never equal
+        Assert.assertFalse ( s.equals ( TypedValue.fromVariant ( new JIVariant ( "text" ) ) ) );
+        Assert.assertTrue ( s.equals ( s ) );
+
+        try
+        {
+            s.getDouble ();
+            Assert.fail ( "Value is not a primitive scalar" );
+        }
+        catch ( final IllegalStateException e )
+        {
+        }
+    }
+
+    @Test
+    public void testArrays () throws Exception
+    {
+        final TypedValue d = TypedValue.fromVariant ( new JIVariant ( new JIArray ( new Double[] { 1.0, 2.5 }, true ) ) );
+        Assert.assertTrue ( d.isArray () );
+        Assert.assertTrue ( d.isPrimitive () );
+        Assert.assertTrue ( Arrays.equals ( new double[] { 1.0, 2.5 }, d.getDoubleArray () ) );
+        Assert.assertTrue ( Arrays.equals ( new long[] { 1, 2 }, d.getLongArray () ) );
+
+        final TypedValue i = TypedValue.fromVariant ( new JIVariant ( new JIArray ( new Integer[] { 3, 4 }, true ) ) );
+        Assert.assertTrue ( Arrays.equals ( new long[] { 3, 4 }, i.getLongArray () ) );
+        Assert.assertTrue ( Arrays.equals ( new double[] { 3.0, 4.0 }, i.getDoubleArray () ) );
+
+        final TypedValue b = TypedValue.fromVariant ( new JIVariant ( new JIArray ( new Boolean[] { true, false }, true ) ) );
+        Assert.assertTrue ( b.getBooleanArray ()[0] );
+        Assert.assertFalse ( b.getBooleanArray ()[1] );
+
+        try
+        {
+            d.getDouble ();
+            Assert.fail ( "Arrays are not scalars" );
+        }
+        catch ( final IllegalStateException e )
+        {
+        }
+
+        // the accessors return copies
+        d.getDoubleArray ()[0] = 100;
+        Assert.assertEquals ( 1.0, d.getDoubleArray ()[0], 0.0 );
+    }
+
+    @Test
+    public void testEquality () throws Exception
+    {
+        final TypedValue a = TypedValue.fromVariant ( new JIVariant ( 1.5 ) );
+        final TypedValue b = TypedValue.fromVariant ( new JIVariant ( 1.5 ) );
+        Assert.assertEquals ( a, b );
+        Assert.assertEquals ( a.hashCode (), b.hashCode () );
+
+        Assert.assertFalse ( a.equals ( TypedValue.fromVariant ( new JIVariant ( 2.5 ) ) ) );
+        // same number, different variant type
+        Assert.assertFalse ( TypedValue.fromVariant ( new JIVariant ( 1 ) ).equals ( TypedValue.fromVariant ( new JIVariant ( 1.0f ) ) ) );
+
+        final TypedValue array1 = TypedValue.fromVariant ( new JIVariant ( new JIArray ( new Integer[] { 1, 2 }, true ) ) );
+        final TypedValue array2 = TypedValue.fromVariant ( new JIVariant ( new JIArray ( new Integer[] { 1, 2 }, true ) ) );
+        final TypedValue array3 = TypedValue.fromVariant ( new JIVariant ( new JIArray ( new Integer[] { 1, 3 }, true ) ) );
+        Assert.assertEquals ( array1, array2 );
+        Assert.assertEquals ( array1.hashCode (), array2.hashCode () );
+        Assert.assertFalse ( array1.equals ( array3 ) );
+    }
+
+    @Test
+    public void testToVariant () throws Exception
+    {
+        final JIVariant[] variants = new JIVariant[] { new JIVariant ( 1.5 ), new JIVariant ( 2.5f ), new JIVariant ( (short)3 ), new JIVariant ( 4 ), new JIVariant ( true ), new JIVariant ( new JIArray ( new Double[] { 1.0, 2.0 }, true ) ) };
+        for ( final JIVariant variant : variants )
+        {
+            final TypedValue value = TypedValue.fromVariant ( variant );
+            Assert.assertTrue ( value.isVariantConvertible () );
+
+            final JIVariant converted = value.toVariant ();
+            Assert.assertEquals ( variant.getType (), converted.getType () );
+            Assert.assertEquals ( value, TypedValue.fromVariant ( converted ) );
+        }
+    }
+}
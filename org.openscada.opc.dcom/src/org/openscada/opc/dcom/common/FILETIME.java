@@ -27,6 +27,11 @@ import org.jinterop.dcom.core.JIStruct;
 
 public class FILETIME
 {
+    /**
+     * The difference between the FILETIME epoch (1601-01-01) and the java epoch (1970-01-01) in milliseconds
+     */
+    private static final long EPOCH_OFFSET_MILLIS = 11644473600000L;
+
     private int high = 0;
 
     private int low = 0;
@@ -114,6 +119,27 @@ public class FILETIME
         return struct;
     }
 
+    /**
+     * Create a FILETIME from milliseconds since the java epoch
+     * @param millis the time in milliseconds since 1970-01-01 UTC
+     * @return the FILETIME
+     */
+    public static FILETIME fromMillis ( final long millis )
+    {
+        final long ticks = ( millis + EPOCH_OFFSET_MILLIS ) * 10000L;
+        return new FILETIME ( (int) ( ticks >>> 32 ), (int)ticks );
+    }
+
+    public JIStruct toStruct () throws JIException
+    {
+        final JIStruct struct = new JIStruct ();
+
+        struct.addMember ( Integer.valueOf ( this.low ) );
+        struct.addMember ( Integer.valueOf ( this.high ) );
+
+        return struct;
+    }
+
     public static FILETIME fromStruct ( final JIStruct struct )
     {
         final FILETIME ft = new FILETIME ();
@@ -124,24 +150,47 @@ public class FILETIME
         return ft;
     }
 
-    public Calendar asCalendar ()
+    /**
+     * Convert the FILETIME structure directly to milliseconds since the java epoch
+     * without creating a FILETIME or Calendar instance
+     * @param struct the FILETIME structure
+     * @return the time in milliseconds since 1970-01-01 UTC
+     */
+    public static long millisFromStruct ( final JIStruct struct )
     {
-        final Calendar c = Calendar.getInstance ();
+        return toMillis ( (Integer)struct.getMember ( 1 ), (Integer)struct.getMember ( 0 ) );
+    }
 
+    private static long toMillis ( final int high, final int low )
+    {
         /*
          * The following "strange" stuff is needed since we miss a ulong type
          */
-        long i = 0xFFFFFFFFL & this.high;
+        long i = 0xFFFFFFFFL & high;
         i = i << 32;
         long j = 0xFFFFFFFFFFFFFFFFL & i;
 
-        i = 0xFFFFFFFFL & this.low;
+        i = 0xFFFFFFFFL & low;
         j += i;
         j /= 10000L;
-        j -= 11644473600000L;
+        j -= EPOCH_OFFSET_MILLIS;
+
+        return j;
+    }
 
-        c.setTimeInMillis ( j );
+    /**
+     * Get the time in milliseconds since the java epoch
+     * @return the time in milliseconds since 1970-01-01 UTC
+     */
+    public long asMillis ()
+    {
+        return toMillis ( this.high, this.low );
+    }
 
+    public Calendar asCalendar ()
+    {
+        final Calendar c = Calendar.getInstance ();
+        c.setTimeInMillis ( asMillis () );
         return c;
     }
 
@@ -159,7 +208,7 @@ public class FILETIME
         i = 0xFFFFFFFFL & this.low;
         d1 = d1.add ( new BigDecimal ( i ) );
         d1 = d1.divide ( new BigDecimal ( 10000L ) );
-        d1 = d1.subtract ( new BigDecimal ( 11644473600000L ) );
+        d1 = d1.subtract ( new BigDecimal ( EPOCH_OFFSET_MILLIS ) );
 
         c.setTimeInMillis ( d1.longValue () );
 
@@ -0,0 +1,98 @@
+/*
+ * This file is part of the OpenSCADA project
+ * Copyright (C) 2006-2011 TH4 SYSTEMS GmbH (http://th4-systems.com)
+ *
+ * OpenSCADA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License version 3
+ * only, as published by the Free Software Foundation.
+ *
+ * OpenSCADA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License version 3 for more details
+ * (a copy is included in the LICENSE file that accompanied this code).
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * version 3 along with OpenSCADA. If not, see
+ * <http://opensource.org/licenses/lgpl-3.0.html> for a copy of the LGPLv3 License.
+ */
+
+package org.openscada.opc.dcom.da;
+
+import org.jinterop.dcom.common.JIException;
+import org.jinterop.dcom.core.JIStruct;
+import org.jinterop.dcom.core.JIVariant;
+import org.openscada.opc.dcom.common.FILETIME;
+import org.openscada.opc.dcom.common.impl.Helper;
+
+/**
+ * A value with optional quality and timestamp as written by <code>IOPCItemIO::WriteVQT</code>
+ */
+public class OPCITEMVQT
+{
+    private JIVariant value;
+
+    private Short quality;
+
+    private FILETIME timestamp;
+
+    public OPCITEMVQT ()
+    {
+    }
+
+    /**
+     * Create a new value
+     * @param value the value to write
+     * @param quality the quality to write or <code>null</code> to leave the quality unspecified
+     * @param timestamp the timestamp to write or <code>null</code> to leave the timestamp unspecified
+     */
+    public OPCITEMVQT ( final JIVariant value, final Short quality, final FILETIME timestamp )
+    {
+        this.value = value;
+        this.quality = quality;
+        this.timestamp = timestamp;
+    }
+
+    public JIVariant getValue ()
+    {
+        return this.value;
+    }
+
+    public void setValue ( final JIVariant value )
+    {
+        this.value = value;
+    }
+
+    public Short getQuality ()
+    {
+        return this.quality;
+    }
+
+    public void setQuality ( final Short quality )
+    {
+        this.quality = quality;
+    }
+
+    public FILETIME getTimestamp ()
+    {
+        return this.timestamp;
+    }
+
+    public void setTimestamp ( final FILETIME timestamp )
+    {
+        this.timestamp = timestamp;
+    }
+
+    public JIStruct toStruct () throws JIException
+    {
+        final JIStruct struct = new JIStruct ();
+        struct.addMember ( Helper.fixVariant ( this.value ) );
+        struct.addMember ( Integer.valueOf ( this.quality != null ? 1 : 0 ) ); // bQualitySpecified
+        struct.addMember ( Short.valueOf ( this.quality != null ? this.quality : 0 ) );
+        struct.addMember ( Short.valueOf ( (short)0 ) ); // wReserved
+        struct.addMember ( Integer.valueOf ( this.timestamp != null ? 1 : 0 ) ); // bTimeStampSpecified
+        struct.addMember ( Integer.valueOf ( 0 ) ); // dwReserved
+        struct.addMember ( ( this.timestamp != null ? this.timestamp : new FILETIME () ).toStruct () );
+        return struct;
+    }
+}
@@ -0,0 +1,480 @@
+/*
+ * This file is part of the OpenSCADA project
+ * Copyright (C) 2006-2011 TH4 SYSTEMS GmbH (http://th4-systems.com)
+ *
+ * OpenSCADA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License version 3
+ * only, as published by the Free Software Foundation.
+ *
+ * OpenSCADA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License version 3 for more details
+ * (a copy is included in the LICENSE file that accompanied this code).
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * version 3 along with OpenSCADA. If not, see
+ * <http://opensource.org/licenses/lgpl-3.0.html> for a copy of the LGPLv3 License.
+ */
+
+package org.openscada.opc.dcom.da;
+
+import java.util.Arrays;
+
+import org.jinterop.dcom.common.JIException;
+import org.jinterop.dcom.core.IJIUnsigned;
+import org.jinterop.dcom.core.JIArray;
+import org.jinterop.dcom.core.JIVariant;
+
+/**
+ * A value decoded from a {@link JIVariant} into primitive types
+ * <p>
+ * Numeric and boolean values, and one dimensional arrays of them, are
+ * decoded into primitives. All other values are only described by their
+ * variant type and can be accessed using the original variant.
+ * </p>
+ * <p>
+ * Instances are immutable.
+ * </p>
+ */
+public final class TypedValue
+{
+    private static final int KIND_OTHER = 0;
+
+    private static final int KIND_LONG = 1;
+
+    private static final int KIND_DOUBLE = 2;
+
+    private static final int KIND_BOOLEAN = 3;
+
+    private final int variantType;
+
+    private final int kind;
+
+    private final long longValue;
+
+    private final double doubleValue;
+
+    private final Object array;
+
+    private TypedValue ( final int variantType, final int kind, final long longValue, final double doubleValue, final Object array )
+    {
+        this.variantType = variantType;
+        this.kind = kind;
+        this.longValue = longValue;
+        this.doubleValue = doubleValue;
+        this.array = array;
+    }
+
+    /**
+     * Decode the value of a variant
+     * @param variant the variant to decode, may be <code>null</code>
+     * @return the decoded value or <code>null</code> if the variant was <code>null</code>
+     * @throws JIException if the value of the variant cannot be accessed
+     */
+    public static TypedValue fromVariant ( final JIVariant variant ) throws JIException
+    {
+        if ( variant == null )
+        {
+            return null;
+        }
+
+        final int type = variant.getType () & ~JIVariant.VT_BYREF;
+
+        if ( variant.isArray () )
+        {
+            return fromArray ( type, variant.getObjectAsArray () );
+        }
+
+        final Object value = variant.getObject ();
+        if ( value instanceof Double || value instanceof Float )
+        {
+            final double d = ( (Number)value ).doubleValue ();
+            return new TypedValue ( type, KIND_DOUBLE, (long)d, d, null );
+        }
+        else if ( value instanceof Boolean )
+        {
+            final boolean b = (Boolean)value;
+            return new TypedValue ( type, KIND_BOOLEAN, b ? 1 : 0, b ? 1 : 0, null );
+        }
+        else if ( value instanceof Integer || value instanceof Short || value instanceof Long || value instanceof Byte )
+        {
+            final long l = ( (Number)value ).longValue ();
+            return new TypedValue ( type, KIND_LONG, l, l, null );
+        }
+        else if ( value instanceof IJIUnsigned )
+        {
+            final long l = ( (IJIUnsigned)value ).getValue ().longValue ();
+            return new TypedValue ( type, KIND_LONG, l, l, null );
+        }
+        else if ( value instanceof Character )
+        {
+            final long l = (byte) ( (Character)value ).charValue ();
+            return new TypedValue ( type, KIND_LONG, l, l, null );
+        }
+
+        return new TypedValue ( type, KIND_OTHER, 0, 0, null );
+    }
+
+    private static TypedValue fromArray ( final int type, final JIArray array )
+    {
+        if ( array == null || array.getDimensions () != 1 || ! ( array.getArrayInstance () instanceof Object[] ) )
+        {
+            return new TypedValue ( type, KIND_OTHER, 0, 0, null );
+        }
+
+        final Object[] values = (Object[])array.getArrayInstance ();
+        final Class<?> componentType = values.getClass ().getComponentType ();
+
+        if ( componentType == Double.class || componentType == Float.class )
+        {
+            final double[] result = new double[values.length];
+            for ( int i = 0; i < values.length; i++ )
+            {
+                result[i] = ( (Number)values[i] ).doubleValue ();
+            }
+            return new TypedValue ( type, KIND_DOUBLE, 0, 0, result );
+        }
+        else if ( componentType == Boolean.class )
+        {
+            final boolean[] result = new boolean[values.length];
+            for ( int i = 0; i < values.length; i++ )
+            {
+                result[i] = (Boolean)values[i];
+            }
+            return new TypedValue ( type, KIND_BOOLEAN, 0, 0, result );
+        }
+        else if ( componentType == Integer.class || componentType == Short.class || componentType == Long.class || componentType == Byte.class )
+        {
+            final long[] result = new long[values.length];
+            for ( int i = 0; i < values.length; i++ )
+            {
+                result[i] = ( (Number)values[i] ).longValue ();
+            }
+            return new TypedValue ( type, KIND_LONG, 0, 0, result );
+        }
+
+        return new TypedValue ( type, KIND_OTHER, 0, 0, null );
+    }
+
+    /**
+     * Get the variant type of the value
+     * @return the variant type, including {@link JIVariant#VT_ARRAY} for arrays
+     */
+    public int getVariantType ()
+    {
+        return this.variantType;
+    }
+
+    public boolean isArray ()
+    {
+        return ( this.variantType & JIVariant.VT_ARRAY ) != 0;
+    }
+
+    /**
+     * Check if the value was decoded into primitives
+     * @return <code>true</code> if the value can be accessed using the primitive
+     * accessors for its kind, <code>false</code> if the variant is required to access the value
+     */
+    public boolean isPrimitive ()
+    {
+        return this.kind != KIND_OTHER;
+    }
+
+    /**
+     * Check if the value can be converted back into an equivalent variant
+     * @return <code>true</code> if {@link #toVariant()} creates a variant of the same type
+     */
+    public boolean isVariantConvertible ()
+    {
+        switch ( this.variantType & ~JIVariant.VT_ARRAY )
+        {
+        case JIVariant.VT_R4:
+        case JIVariant.VT_R8:
+        case JIVariant.VT_I2:
+        case JIVariant.VT_I4:
+        case JIVariant.VT_BOOL:
+            return isPrimitive ();
+        case JIVariant.VT_I8:
+            return isPrimitive () && !isArray ();
+        default:
+            return false;
+        }
+    }
+
+    public double getDouble ()
+    {
+        checkScalar ();
+        return this.doubleValue;
+    }
+
+    public long getLong ()
+    {
+        checkScalar ();
+        return this.longValue;
+    }
+
+    public boolean getBoolean ()
+    {
+        checkScalar ();
+        return this.longValue != 0;
+    }
+
+    /**
+     * Get the values of a numeric array as doubles
+     * @return a copy of the values
+     */
+    public double[] getDoubleArray ()
+    {
+        checkArray ();
+        if ( this.array instanceof double[] )
+        {
+            return ( (double[])this.array ).clone ();
+        }
+
+        final long[] values = (long[])this.array;
+        final double[] result = new double[values.length];
+        for ( int i = 0; i < values.length; i++ )
+        {
+            result[i] = values[i];
+        }
+        return result;
+    }
+
+    /**
+     * Get the values of a numeric array as longs
+     * @return a copy of the values
+     */
+    public long[] getLongArray ()
+    {
+        checkArray ();
+        if ( this.array instanceof long[] )
+        {
+            return ( (long[])this.array ).clone ();
+        }
+
+        final double[] values = (double[])this.array;
+        final long[] result = new long[values.length];
+        for ( int i = 0; i < values.length; i++ )
+        {
+            result[i] = (long)values[i];
+        }
+        return result;
+    }
+
+    /**
+     * Get the values of a boolean array
+     * @return a copy of the values
+     */
+    public boolean[] getBooleanArray ()
+    {
+        if ( ! ( this.array instanceof boolean[] ) )
+        {
+            throw new IllegalStateException ( String.format ( "Value of variant type 0x%04X is not a boolean array", this.variantType ) );
+        }
+        return ( (boolean[])this.array ).clone ();
+    }
+
+    private void checkScalar ()
+    {
+        if ( this.kind == KIND_OTHER || this.array != null )
+        {
+            throw new IllegalStateException ( String.format ( "Value of variant type 0x%04X is not a primitive scalar", this.variantType ) );
+        }
+    }
+
+    private void checkArray ()
+    {
+        if ( ! ( this.array instanceof double[] ) && ! ( this.array instanceof long[] ) )
+        {
+            throw new IllegalStateException ( String.format ( "Value of variant type 0x%04X is not a numeric array", this.variantType ) );
+        }
+    }
+
+    /**
+     * Create a variant holding this value
+     * @return the new variant or <code>null</code> if the value cannot be converted
+     * @see #isVariantConvertible()
+     */
+    public JIVariant toVariant ()
+    {
+        if ( !isVariantConvertible () )
+        {
+            return null;
+        }
+
+        if ( isArray () )
+        {
+            return new JIVariant ( new JIArray ( toObjectArray (), true ) );
+        }
+
+        switch ( this.variantType )
+        {
+        case JIVariant.VT_R4:
+            return new JIVariant ( (float)this.doubleValue );
+        case JIVariant.VT_R8:
+            return new JIVariant ( this.doubleValue );
+        case JIVariant.VT_I2:
+            return new JIVariant ( (short)this.longValue );
+        case JIVariant.VT_I4:
+            return new JIVariant ( (int)this.longValue );
+        case JIVariant.VT_I8:
+            return new JIVariant ( this.longValue );
+        case JIVariant.VT_BOOL:
+            return new JIVariant ( this.longValue != 0 );
+        default:
+            return null;
+        }
+    }
+
+    private Object[] toObjectArray ()
+    {
+        switch ( this.variantType & ~JIVariant.VT_ARRAY )
+        {
+        case JIVariant.VT_R4:
+        {
+            final double[] values = (double[])this.array;
+            final Float[] result = new Float[values.length];
+            for ( int i = 0; i < values.length; i++ )
+            {
+                result[i] = (float)values[i];
+            }
+            return result;
+        }
+        case JIVariant.VT_R8:
+        {
+            final double[] values = (double[])this.array;
+            final Double[] result = new Double[values.length];
+            for ( int i = 0; i < values.length; i++ )
+            {
+                result[i] = values[i];
+            }
+            return result;
+        }
+        case JIVariant.VT_I2:
+        {
+            final long[] values = (long[])this.array;
+            final Short[] result = new Short[values.length];
+            for ( int i = 0; i < values.length; i++ )
+            {
+                result[i] = (short)values[i];
+            }
+            return result;
+        }
+        case JIVariant.VT_I4:
+        {
+            final long[] values = (long[])this.array;
+            final Integer[] result = new Integer[values.length];
+            for ( int i = 0; i < values.length; i++ )
+            {
+                result[i] = (int)values[i];
+            }
+            return result;
+        }
+        default:
+        {
+            final boolean[] values = (boolean[])this.array;
+            final Boolean[] result = new Boolean[values.length];
+            for ( int i = 0; i < values.length; i++ )
+            {
+                result[i] = values[i];
+            }
+            return result;
+        }
+        }
+    }
+
+    @Override
+    public int hashCode ()
+    {
+        final int PRIME = 31;
+        int result = 1;
+        result = PRIME * result + this.variantType;
+        result = PRIME * result + (int) ( this.longValue ^ this.longValue >>> 32 );
+        final long bits = Double.doubleToLongBits ( this.doubleValue );
+        result = PRIME * result + (int) ( bits ^ bits >>> 32 );
+        if ( this.array instanceof double[] )
+        {
+            result = PRIME * result + Arrays.hashCode ( (double[])this.array );
+        }
+        else if ( this.array instanceof long[] )
+        {
+            result = PRIME * result + Arrays.hashCode ( (long[])this.array );
+        }
+        else if ( this.array instanceof boolean[] )
+        {
+            result = PRIME * result + Arrays.hashCode ( (boolean[])this.array );
+        }
+        return result;
+    }
+
+    /**
+     * Compare two values
+     * <p>
+     * Values which were not decoded into primitives are never equal to another instance
+     * since their content is not known to this class.
+     * </p>
+     */
+    @Override
+    public boolean equals ( final Object obj )
+    {
+        if ( this == obj )
+        {
+            return true;
+        }
+        if ( obj == null )
+        {
+            return false;
+        }
+        if ( getClass () != obj.getClass () )
+        {
+            return false;
+        }
+        final TypedValue other = (TypedValue)obj;
+        if ( this.kind == KIND_OTHER || other.kind == KIND_OTHER )
+        {
+            return false;
+        }
+        if ( this.variantType != other.variantType || this.kind != other.kind )
+        {
+            return false;
+        }
+        if ( this.longValue != other.longValue )
+        {
+            return false;
+        }
+        if ( Double.doubleToLongBits ( this.doubleValue ) != Double.doubleToLongBits ( other.doubleValue ) )
+        {
+            return false;
+        }
+        if ( this.array instanceof double[] )
+        {
+            return other.array instanceof double[] && Arrays.equals ( (double[])this.array, (double[])other.array );
+        }
+        if ( this.array instanceof long[] )
+        {
+            return other.array instanceof long[] && Arrays.equals ( (long[])this.array, (long[])other.array );
+        }
+        if ( this.array instanceof boolean[] )
+        {
+            return other.array instanceof boolean[] && Arrays.equals ( (boolean[])this.array, (boolean[])other.array );
+        }
+        return other.array == null;
+    }
+
+    @Override
+    public String toString ()
+    {
+        switch ( this.kind )
+        {
+        case KIND_DOUBLE:
+            return this.array != null ? Arrays.toString ( (double[])this.array ) : Double.toString ( this.doubleValue );
+        case KIND_LONG:
+            return this.array != null ? Arrays.toString ( (long[])this.array ) : Long.toString ( this.longValue );
+        case KIND_BOOLEAN:
+            return this.array != null ? Arrays.toString ( (boolean[])this.array ) : Boolean.toString ( this.longValue != 0 );
+        default:
+            return String.format ( "[variant type 0x%04X]", this.variantType );
+        }
+    }
+}
@@ -25,11 +25,20 @@ import org.jinterop.dcom.core.JIVariant;
 
 public class ValueData
 {
-    private JIVariant _value;
+    /**
+     * The value of {@link #getTimestampMillis()} if no timestamp is set
+     */
+    public static final long NO_TIMESTAMP = Long.MIN_VALUE;
+
+    private volatile JIVariant _value;
+
+    private TypedValue _typedValue;
 
     private short _quality;
 
-    private Calendar _timestamp;
+    private long _timestampMillis = NO_TIMESTAMP;
+
+    private volatile Calendar _timestamp;
 
     public short getQuality ()
     {
@@ -41,23 +50,88 @@ public class ValueData
         this._quality = quality;
     }
 
+    /**
+     * Get the timestamp as calendar
+     * <p>
+     * The calendar is only created when it is requested for the first time. Use
+     * {@link #getTimestampMillis()} if the calendar is not needed.
+     * </p>
+     * @return the timestamp or <code>null</code> if no timestamp is set
+     */
     public Calendar getTimestamp ()
     {
-        return this._timestamp;
+        Calendar timestamp = this._timestamp;
+        if ( timestamp == null && this._timestampMillis != NO_TIMESTAMP )
+        {
+            timestamp = Calendar.getInstance ();
+            timestamp.setTimeInMillis ( this._timestampMillis );
+            this._timestamp = timestamp;
+        }
+        return timestamp;
     }
 
     public void setTimestamp ( final Calendar timestamp )
     {
         this._timestamp = timestamp;
+        this._timestampMillis = timestamp == null ? NO_TIMESTAMP : timestamp.getTimeInMillis ();
+    }
+
+    /**
+     * Get the timestamp in milliseconds since the java epoch
+     * @return the timestamp or {@link #NO_TIMESTAMP} if no timestamp is set
+     */
+    public long getTimestampMillis ()
+    {
+        return this._timestampMillis;
     }
 
+    public void setTimestampMillis ( final long timestampMillis )
+    {
+        this._timestampMillis = timestampMillis;
+        this._timestamp = null;
+    }
+
+    /**
+     * Get the value as variant
+     * <p>
+     * If only the typed value is set the variant is created from the typed value
+     * when it is requested for the first time.
+     * </p>
+     * @return the value
+     */
     public JIVariant getValue ()
     {
-        return this._value;
+        JIVariant value = this._value;
+        if ( value == null && this._typedValue != null )
+        {
+            value = this._typedValue.toVariant ();
+            this._value = value;
+        }
+        return value;
     }
 
     public void setValue ( final JIVariant value )
     {
         this._value = value;
+        this._typedValue = null;
+    }
+
+    /**
+     * Get the typed value
+     * @return the typed value or <code>null</code> if the value was set as variant
+     */
+    public TypedValue getTypedValue ()
+    {
+        return this._typedValue;
+    }
+
+    /**
+     * Set the value as typed value, replacing the variant
+     * @param typedValue the typed value which should be {@link TypedValue#isVariantConvertible()}
+     */
+    public void setTypedValue ( final TypedValue typedValue )
+    {
+        this._typedValue = typedValue;
+        this._value = null;
     }
 }
@@ -27,11 +27,14 @@ import org.jinterop.dcom.core.JIArray;
 import org.jinterop.dcom.core.JICallBuilder;
 import org.jinterop.dcom.core.JIFlags;
 import org.jinterop.dcom.core.JIPointer;
+import org.jinterop.dcom.core.JIVariant;
 import org.openscada.opc.dcom.common.Result;
 import org.openscada.opc.dcom.common.ResultSet;
 import org.openscada.opc.dcom.common.impl.BaseCOMObject;
+import org.openscada.opc.dcom.common.impl.Helper;
 import org.openscada.opc.dcom.da.Constants;
 import org.openscada.opc.dcom.da.OPCDATASOURCE;
+import org.openscada.opc.dcom.da.WriteRequest;
 
 public class OPCAsyncIO2 extends BaseCOMObject
 {
@@ -122,7 +125,60 @@ public class OPCAsyncIO2 extends BaseCOMObject
         callObject.addOutParamAsType ( Integer.class, JIFlags.FLAG_NULL );
         callObject.addOutParamAsObject ( new JIPointer ( new JIArray ( Integer.class, null, 1, true ) ), JIFlags.FLAG_NULL );
 
-        Object[] result = getCOMObject ().call ( callObject );
+        Object[] result = Helper.callRespectSFALSE ( getCOMObject (), callObject );
+
+        Integer cancelId = (Integer)result[0];
+        Integer[] errorCodes = (Integer[]) ( (JIArray) ( (JIPointer)result[1] ).getReferent () ).getArrayInstance ();
+
+        ResultSet<Integer> resultSet = new ResultSet<Integer> ();
+
+        for ( int i = 0; i < serverHandles.length; i++ )
+        {
+            resultSet.add ( new Result<Integer> ( serverHandles[i], errorCodes[i] ) );
+        }
+
+        return new AsyncResult ( resultSet, cancelId );
+    }
+
+    /**
+     * Write asynchronously
+     * <p>
+     * The results of items which were accepted by the server are delivered
+     * using {@link org.openscada.opc.dcom.da.IOPCDataCallback#writeComplete(int, int, int, ResultSet)}
+     * with the provided transaction id.
+     * </p>
+     * @param transactionId the transaction id passed to the callback
+     * @param requests the write requests
+     * @return the error codes by server handle and the cancel id of the operation
+     * @throws JIException
+     */
+    public AsyncResult write ( final int transactionId, final WriteRequest... requests ) throws JIException
+    {
+        if ( requests == null || requests.length == 0 )
+        {
+            return new AsyncResult ();
+        }
+
+        Integer[] serverHandles = new Integer[requests.length];
+        JIVariant[] values = new JIVariant[requests.length];
+        for ( int i = 0; i < requests.length; i++ )
+        {
+            serverHandles[i] = requests[i].getServerHandle ();
+            values[i] = Helper.fixVariant ( requests[i].getValue () );
+        }
+
+        JICallBuilder callObject = new JICallBuilder ( true );
+        callObject.setOpnum ( 1 );
+
+        callObject.addInParamAsInt ( requests.length, JIFlags.FLAG_NULL );
+        callObject.addInParamAsArray ( new JIArray ( serverHandles, true ), JIFlags.FLAG_NULL );
+        callObject.addInParamAsArray ( new JIArray ( values, true ), JIFlags.FLAG_NULL );
+        callObject.addInParamAsInt ( transactionId, JIFlags.FLAG_NULL );
+
+        callObject.addOutParamAsType ( Integer.class, JIFlags.FLAG_NULL );
+        callObject.addOutParamAsObject ( new JIPointer ( new JIArray ( Integer.class, null, 1, true ) ), JIFlags.FLAG_NULL );
+
+        Object[] result = Helper.callRespectSFALSE ( getCOMObject (), callObject );
 
         Integer cancelId = (Integer)result[0];
         Integer[] errorCodes = (Integer[]) ( (JIArray) ( (JIPointer)result[1] ).getReferent () ).getArrayInstance ();
@@ -39,6 +39,7 @@ import org.openscada.opc.dcom.common.ResultSet;
 import org.openscada.opc.dcom.common.impl.EventHandlerImpl;
 import org.openscada.opc.dcom.da.Constants;
 import org.openscada.opc.dcom.da.IOPCDataCallback;
+import org.openscada.opc.dcom.da.TypedValue;
 import org.openscada.opc.dcom.da.ValueData;
 
 public class OPCDataCallback extends EventHandlerImpl
@@ -47,11 +48,54 @@ public class OPCDataCallback extends EventHandlerImpl
 
     private JILocalCoClass _coClass = null;
 
+    private boolean _primitiveMode = false;
+
     public OPCDataCallback ()
     {
         super ();
     }
 
+    /**
+     * Enable or disable the primitive mode
+     * <p>
+     * In primitive mode numeric and boolean values are decoded into a {@link TypedValue}
+     * when they are received and the variant is not kept. The variant is only re-created
+     * if {@link ValueData#getValue()} is called. Values which cannot be decoded are
+     * passed on as variant.
+     * </p>
+     * @param primitiveMode <code>true</code> to enable the primitive mode
+     */
+    public void setPrimitiveMode ( final boolean primitiveMode )
+    {
+        this._primitiveMode = primitiveMode;
+    }
+
+    public boolean isPrimitiveMode ()
+    {
+        return this._primitiveMode;
+    }
+
+    private void setValue ( final ValueData vd, final JIVariant value )
+    {
+        if ( this._primitiveMode )
+        {
+            try
+            {
+                final TypedValue typedValue = TypedValue.fromVariant ( value );
+                if ( typedValue != null && typedValue.isVariantConvertible () )
+                {
+                    vd.setTypedValue ( typedValue );
+                    return;
+                }
+            }
+            catch ( final JIException e )
+            {
+                // pass on the variant
+            }
+        }
+        vd.setValue ( value );
+    }
+
     public Object[] OnDataChange ( final int transactionId, final int serverGroupHandle, final int masterQuality, final int masterErrorCode, final int count, final JIArray clientHandles, final JIArray values, final JIArray qualities, final JIArray timestamps, final JIArray errors )
     {
         IOPCDataCallback callback = this._callback;
@@ -73,8 +117,8 @@ public class OPCDataCallback extends EventHandlerImpl
         {
             ValueData vd = new ValueData ();
             vd.setQuality ( qualitiesArray[i] );
-            vd.setTimestamp ( FILETIME.fromStruct ( timestampArray[i] ).asCalendar () );
-            vd.setValue ( valuesArray[i] );
+            vd.setTimestampMillis ( FILETIME.millisFromStruct ( timestampArray[i] ) );
+            setValue ( vd, valuesArray[i] );
             result.add ( new KeyedResult<Integer, ValueData> ( itemHandles[i], vd, errorCodes[i] ) );
         }
 
@@ -112,8 +156,8 @@ public class OPCDataCallback extends EventHandlerImpl
         {
             ValueData vd = new ValueData ();
             vd.setQuality ( qualitiesArray[i] );
-            vd.setTimestamp ( FILETIME.fromStruct ( timestampArray[i] ).asCalendar () );
-            vd.setValue ( valuesArray[i] );
+            vd.setTimestampMillis ( FILETIME.millisFromStruct ( timestampArray[i] ) );
+            setValue ( vd, valuesArray[i] );
             result.add ( new KeyedResult<Integer, ValueData> ( itemHandles[i], vd, errorCodes[i] ) );
         }
 
@@ -178,10 +178,27 @@ public class OPCGroupStateMgt extends BaseCOMObject
      * @throws JIException
      */
     public EventHandler attach ( final IOPCDataCallback callback ) throws JIException
+    {
+        return attach ( callback, false );
+    }
+
+    /**
+     * Attach a callback to the group
+     * 
+     * @param callback
+     *            The callback to attach
+     * @param primitiveMode
+     *            Deliver numeric and boolean values as typed values instead of variants
+     * @return The event handler information
+     * @throws JIException
+     * @see OPCDataCallback#setPrimitiveMode(boolean)
+     */
+    public EventHandler attach ( final IOPCDataCallback callback, final boolean primitiveMode ) throws JIException
     {
         OPCDataCallback callbackObject = new OPCDataCallback ();
 
         callbackObject.setCallback ( callback );
+        callbackObject.setPrimitiveMode ( primitiveMode );
 
         // sync the callback object so that no calls get through the callback
         // until the callback information is set
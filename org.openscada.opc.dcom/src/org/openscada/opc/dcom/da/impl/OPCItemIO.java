@@ -29,10 +29,16 @@ import org.jinterop.dcom.core.JIFlags;
 import org.jinterop.dcom.core.JIPointer;
 import org.jinterop.dcom.core.JIString;
 import org.jinterop.dcom.core.JIVariant;
+import org.jinterop.dcom.core.JIStruct;
 import org.openscada.opc.dcom.common.FILETIME;
+import org.openscada.opc.dcom.common.KeyedResult;
+import org.openscada.opc.dcom.common.KeyedResultSet;
 import org.openscada.opc.dcom.common.impl.BaseCOMObject;
+import org.openscada.opc.dcom.common.impl.Helper;
 import org.openscada.opc.dcom.da.Constants;
 import org.openscada.opc.dcom.da.IORequest;
+import org.openscada.opc.dcom.da.OPCITEMVQT;
+import org.openscada.opc.dcom.da.ValueData;
 
 public class OPCItemIO extends BaseCOMObject
 {
@@ -41,11 +47,17 @@ public class OPCItemIO extends BaseCOMObject
         super ( opcItemIO.queryInterface ( Constants.IOPCItemIO_IID ) );
     }
 
-    public void read ( final IORequest[] requests ) throws JIException
+    /**
+     * Read items by their item id without adding them to a group
+     * @param requests the item ids and the max age of each value in milliseconds
+     * @return the values, qualities and timestamps by request
+     * @throws JIException
+     */
+    public KeyedResultSet<IORequest, ValueData> read ( final IORequest[] requests ) throws JIException
     {
         if ( requests.length == 0 )
         {
-            return;
+            return new KeyedResultSet<IORequest, ValueData> ();
         }
 
         JICallBuilder callObject = new JICallBuilder ( true );
@@ -64,10 +76,74 @@ public class OPCItemIO extends BaseCOMObject
         callObject.addInParamAsArray ( new JIArray ( maxAges, true ), JIFlags.FLAG_NULL );
 
         callObject.addOutParamAsObject ( new JIPointer ( new JIArray ( JIVariant.class, null, 1, true ) ), JIFlags.FLAG_NULL );
-        callObject.addOutParamAsObject ( new JIPointer ( new JIArray ( Integer.class, null, 1, true ) ), JIFlags.FLAG_NULL );
+        callObject.addOutParamAsObject ( new JIPointer ( new JIArray ( Short.class, null, 1, true ) ), JIFlags.FLAG_NULL );
         callObject.addOutParamAsObject ( new JIPointer ( new JIArray ( FILETIME.getStruct (), null, 1, true ) ), JIFlags.FLAG_NULL );
         callObject.addOutParamAsObject ( new JIPointer ( new JIArray ( Integer.class, null, 1, true ) ), JIFlags.FLAG_NULL );
 
-        getCOMObject ().call ( callObject );
+        Object[] result = Helper.callRespectSFALSE ( getCOMObject (), callObject );
+
+        JIVariant[] values = (JIVariant[]) ( (JIArray) ( (JIPointer)result[0] ).getReferent () ).getArrayInstance ();
+        Short[] qualities = (Short[]) ( (JIArray) ( (JIPointer)result[1] ).getReferent () ).getArrayInstance ();
+        JIStruct[] timestamps = (JIStruct[]) ( (JIArray) ( (JIPointer)result[2] ).getReferent () ).getArrayInstance ();
+        Integer[] errorCodes = (Integer[]) ( (JIArray) ( (JIPointer)result[3] ).getReferent () ).getArrayInstance ();
+
+        KeyedResultSet<IORequest, ValueData> results = new KeyedResultSet<IORequest, ValueData> ( requests.length );
+        for ( int i = 0; i < requests.length; i++ )
+        {
+            ValueData vd = new ValueData ();
+            vd.setValue ( values[i] );
+            vd.setQuality ( qualities[i] );
+            vd.setTimestampMillis ( FILETIME.millisFromStruct ( timestamps[i] ) );
+            results.add ( new KeyedResult<IORequest, ValueData> ( requests[i], vd, errorCodes[i] ) );
+        }
+        return results;
+    }
+
+    /**
+     * Write values, and optionally qualities and timestamps, by item id without adding
+     * the items to a group
+     * @param itemIds the item ids
+     * @param values the values, one for each item id
+     * @return the error codes by item id
+     * @throws JIException
+     */
+    public KeyedResultSet<String, OPCITEMVQT> writeVQT ( final String[] itemIds, final OPCITEMVQT[] values ) throws JIException
+    {
+        if ( itemIds.length != values.length )
+        {
+            throw new JIException ( 0, "Array sizes don't match" );
+        }
+        if ( itemIds.length == 0 )
+        {
+            return new KeyedResultSet<String, OPCITEMVQT> ();
+        }
+
+        JICallBuilder callObject = new JICallBuilder ( true );
+        callObject.setOpnum ( 1 );
+
+        JIString ids[] = new JIString[itemIds.length];
+        JIStruct structs[] = new JIStruct[values.length];
+        for ( int i = 0; i < itemIds.length; i++ )
+        {
+            ids[i] = new JIString ( itemIds[i], JIFlags.FLAG_REPRESENTATION_STRING_LPWSTR );
+            structs[i] = values[i].toStruct ();
+        }
+
+        callObject.addInParamAsInt ( itemIds.length, JIFlags.FLAG_NULL );
+        callObject.addInParamAsArray ( new JIArray ( ids, true ), JIFlags.FLAG_NULL );
+        callObject.addInParamAsArray ( new JIArray ( structs, true ), JIFlags.FLAG_NULL );
+
+        callObject.addOutParamAsObject ( new JIPointer ( new JIArray ( Integer.class, null, 1, true ) ), JIFlags.FLAG_NULL );
+
+        Object[] result = Helper.callRespectSFALSE ( getCOMObject (), callObject );
+
+        Integer[] errorCodes = (Integer[]) ( (JIArray) ( (JIPointer)result[0] ).getReferent () ).getArrayInstance ();
+
+        KeyedResultSet<String, OPCITEMVQT> results = new KeyedResultSet<String, OPCITEMVQT> ( itemIds.length );
+        for ( int i = 0; i < itemIds.length; i++ )
+        {
+            results.add ( new KeyedResult<String, OPCITEMVQT> ( itemIds[i], values[i], errorCodes[i] ) );
+        }
+        return results;
     }
 }
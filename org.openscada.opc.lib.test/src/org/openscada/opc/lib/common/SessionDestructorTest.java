@@ -0,0 +1,153 @@
+/*
+ * This file is part of the OpenSCADA project
+ * Copyright (C) 2006-2011 TH4 SYSTEMS GmbH (http://th4-systems.com)
+ *
+ * OpenSCADA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License version 3
+ * only, as published by the Free Software Foundation.
+ *
+ * OpenSCADA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License version 3 for more details
+ * (a copy is included in the LICENSE file that accompanied this code).
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * version 3 along with OpenSCADA. If not, see
+ * <http://opensource.org/licenses/lgpl-3.0.html> for a copy of the LGPLv3 License.
+ */
+
+package org.openscada.opc.lib.common;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.jinterop.dcom.core.JISession;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests for {@link SessionDestructor}
+ */
+public class SessionDestructorTest
+{
+    private static class BlockingDestructor extends SessionDestructor
+    {
+        private final CountDownLatch release = new CountDownLatch ( 1 );
+
+        private final CountDownLatch finished;
+
+        public BlockingDestructor ( final int threads, final int maxQueueSize, final long timeout, final int sessions )
+        {
+            super ( threads, maxQueueSize, timeout );
+            this.finished = new CountDownLatch ( sessions );
+        }
+
+        @Override
+        protected void destroySession ( final JISession session ) throws Exception
+        {
+            try
+            {
+                this.release.await ();
+            }
+            finally
+            {
+                this.finished.countDown ();
+            }
+        }
+    }
+
+    /**
+     * Destructions exceeding the queue are retried until they fit
+     */
+    @Test
+    public void testQueueLimit () throws Exception
+    {
+        final BlockingDestructor destructor = new BlockingDestructor ( 2, 3, 0, 8 );
+
+        for ( int i = 0; i < 8; i++ )
+        {
+            Assert.assertTrue ( destructor.destroy ( null ) );
+        }
+
+        Assert.assertEquals ( 3, destructor.getRejected () );
+        Assert.assertEquals ( 8, destructor.getPending () );
+
+        destructor.release.countDown ();
+        Assert.assertTrue ( destructor.finished.await ( 5, TimeUnit.SECONDS ) );
+
+        waitForPending ( destructor );
+        destructor.dispose ();
+        Assert.assertEquals ( 8, destructor.getDestroyed () );
+        Assert.assertEquals ( 0, destructor.getFailed () );
+        Assert.assertEquals ( 8, destructor.getSubmitted () );
+    }
+
+    /**
+     * Only as many destructions wait for a retry as fit into the queue, the others are dropped
+     */
+    @Test
+    public void testRetryBacklog () throws Exception
+    {
+        final BlockingDestructor destructor = new BlockingDestructor ( 2, 3, 0, 8 );
+
+        for ( int i = 0; i < 8; i++ )
+        {
+            Assert.assertTrue ( destructor.destroy ( null ) );
+        }
+        Assert.assertFalse ( destructor.destroy ( null ) );
+        Assert.assertFalse ( destructor.destroy ( null ) );
+
+        Assert.assertEquals ( 5, destructor.getRejected () );
+        Assert.assertEquals ( 2, destructor.getDropped () );
+        Assert.assertEquals ( 2, destructor.getFailed () );
+        Assert.assertEquals ( 8, destructor.getPending () );
+
+        destructor.release.countDown ();
+        Assert.assertTrue ( destructor.finished.await ( 5, TimeUnit.SECONDS ) );
+
+        waitForPending ( destructor );
+        destructor.dispose ();
+        Assert.assertEquals ( 8, destructor.getDestroyed () );
+        Assert.assertEquals ( 2, destructor.getFailed () );
+        Assert.assertEquals ( 10, destructor.getSubmitted () );
+    }
+
+    @Test
+    public void testDisposed () throws Exception
+    {
+        final BlockingDestructor destructor = new BlockingDestructor ( 1, 1, 0, 0 );
+        destructor.dispose ();
+
+        Assert.assertFalse ( destructor.destroy ( null ) );
+        Assert.assertEquals ( 0, destructor.getPending () );
+        Assert.assertEquals ( 0, destructor.getRejected () );
+    }
+
+    @Test
+    public void testTimeout () throws Exception
+    {
+        final BlockingDestructor destructor = new BlockingDestructor ( 1, 10, 50, 2 );
+
+        Assert.assertTrue ( destructor.destroy ( null ) );
+        Assert.assertTrue ( destructor.destroy ( null ) );
+
+        Assert.assertTrue ( destructor.finished.await ( 5, TimeUnit.SECONDS ) );
+        destructor.dispose ();
+
+        waitForPending ( destructor );
+        Assert.assertEquals ( 2, destructor.getTimeouts () );
+        Assert.assertEquals ( 2, destructor.getFailed () );
+        Assert.assertTrue ( destructor.getMaxDuration () >= 50 );
+    }
+
+    private static void waitForPending ( final SessionDestructor destructor ) throws InterruptedException
+    {
+        final long end = System.currentTimeMillis () + 5000;
+        while ( destructor.getPending () > 0 && System.currentTimeMillis () < end )
+        {
+            Thread.sleep ( 10 );
+        }
+        Assert.assertEquals ( 0, destructor.getPending () );
+    }
+}
@@ -0,0 +1,203 @@
+/*
+ * This file is part of the OpenSCADA project
+ * Copyright (C) 2006-2011 TH4 SYSTEMS GmbH (http://th4-systems.com)
+ *
+ * OpenSCADA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License version 3
+ * only, as published by the Free Software Foundation.
+ *
+ * OpenSCADA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License version 3 for more details
+ * (a copy is included in the LICENSE file that accompanied this code).
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * version 3 along with OpenSCADA. If not, see
+ * <http://opensource.org/licenses/lgpl-3.0.html> for a copy of the LGPLv3 License.
+ */
+
+package org.openscada.opc.lib.da;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.openscada.opc.lib.common.ConnectionInformation;
+
+/**
+ * Stress test for the last value cache of {@link AccessBase}
+ */
+public class AccessBaseConcurrencyTest
+{
+    private static final int ITEMS = 500;
+
+    private static final int UPDATERS = 8;
+
+    private static final int UPDATES = 200000;
+
+    private static class TestAccess extends AccessBase
+    {
+        public TestAccess ()
+        {
+            super ( new Server ( new ConnectionInformation (), null ), 0, null );
+        }
+
+        public synchronized void realize ( final Item item, final DataCallback dataCallback )
+        {
+            this.itemSet.put ( item.getId (), dataCallback );
+            attachItem ( item.getId (), item );
+        }
+
+        public synchronized void unrealize ( final Item item )
+        {
+            this.itemSet.remove ( item.getId () );
+            this.itemMap.remove ( item.getId () );
+            this.items.remove ( item );
+            this.itemCache.remove ( item );
+        }
+
+        public void update ( final Item item, final ItemState itemState )
+        {
+            updateItem ( item, itemState );
+        }
+    }
+
+    private final AtomicLong changes = new AtomicLong ();
+
+    private final DataCallback dataCallback = new DataCallback () {
+
+        public void changed ( final Item item, final ItemState itemState )
+        {
+            AccessBaseConcurrencyTest.this.changes.incrementAndGet ();
+        }
+    };
+
+    private Item[] createItems ( final TestAccess access )
+    {
+        final Item[] items = new Item[ITEMS];
+        for ( int i = 0; i < ITEMS; i++ )
+        {
+            items[i] = new Item ( null, i, i + 1, "item." + i );
+            access.realize ( items[i], this.dataCallback );
+        }
+        return items;
+    }
+
+    private Thread startUpdater ( final TestAccess access, final Item[] items, final int seed, final CountDownLatch done, final AtomicReference<Throwable> error )
+    {
+        final Thread thread = new Thread ( new Runnable () {
+
+            public void run ()
+            {
+                final Random random = new Random ( seed );
+                try
+                {
+                    for ( int i = 0; i < UPDATES; i++ )
+                    {
+                        final Item item = items[random.nextInt ( items.length )];
+                        access.update ( item, new ItemState ( random.nextInt ( 4 ), null, null, (short)192 ) );
+                    }
+                }
+                catch ( final Throwable e )
+                {
+                    error.compareAndSet ( null, e );
+                }
+                finally
+                {
+                    done.countDown ();
+                }
+            }
+        }, "Updater-" + seed );
+        thread.start ();
+        return thread;
+    }
+
+    @Test
+    public void testUpdatesWithChurn () throws Exception
+    {
+        final TestAccess access = new TestAccess ();
+        final Item[] items = createItems ( access );
+
+        final CountDownLatch done = new CountDownLatch ( UPDATERS );
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable> ();
+
+        final List<Thread> threads = new ArrayList<Thread> ();
+        for ( int i = 0; i < UPDATERS; i++ )
+        {
+            threads.add ( startUpdater ( access, items, i, done, error ) );
+        }
+
+        // add and remove items while the updaters are running
+        final Random random = new Random ();
+        long churn = 0;
+        while ( done.getCount () > 0 )
+        {
+            final Item item = items[random.nextInt ( items.length )];
+            access.unrealize ( item );
+            if ( random.nextBoolean () )
+            {
+                access.realize ( item, this.dataCallback );
+            }
+            if ( churn++ % 100 == 0 )
+            {
+                access.clear ();
+                for ( final Item i : items )
+                {
+                    access.realize ( i, this.dataCallback );
+                }
+            }
+        }
+
+        for ( final Thread thread : threads )
+        {
+            thread.join ();
+        }
+
+        if ( error.get () != null )
+        {
+            throw new AssertionError ( error.get () );
+        }
+
+        Assert.assertTrue ( "No changes were reported", this.changes.get () > 0 );
+
+        // no cache entry of a removed item may survive
+        for ( final Map.Entry<Item, ItemState> entry : access.itemCache.entrySet () )
+        {
+            Assert.assertTrue ( "Stale cache entry for " + entry.getKey ().getId (), access.items.containsKey ( entry.getKey () ) );
+        }
+    }
+
+    @Test
+    public void testUpdatesDoNotBlockOnAccessLock () throws Exception
+    {
+        final TestAccess access = new TestAccess ();
+        final Item[] items = createItems ( access );
+
+        final CountDownLatch done = new CountDownLatch ( UPDATERS );
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable> ();
+
+        synchronized ( access )
+        {
+            // the updaters must finish while the subscription management lock is held
+            for ( int i = 0; i < UPDATERS; i++ )
+            {
+                startUpdater ( access, items, i, done, error );
+            }
+            Assert.assertTrue ( "Updates blocked by the access lock", done.await ( 60, TimeUnit.SECONDS ) );
+        }
+
+        if ( error.get () != null )
+        {
+            throw new AssertionError ( error.get () );
+        }
+        Assert.assertTrue ( this.changes.get () > 0 );
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ * This file is part of the OpenSCADA project
+ * Copyright (C) 2006-2011 TH4 SYSTEMS GmbH (http://th4-systems.com)
+ *
+ * OpenSCADA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License version 3
+ * only, as published by the Free Software Foundation.
+ *
+ * OpenSCADA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License version 3 for more details
+ * (a copy is included in the LICENSE file that accompanied this code).
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * version 3 along with OpenSCADA. If not, see
+ * <http://opensource.org/licenses/lgpl-3.0.html> for a copy of the LGPLv3 License.
+ */
+
+package org.openscada.opc.lib.da;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.jinterop.dcom.common.JIException;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.openscada.opc.lib.common.ConnectionInformation;
+import org.openscada.opc.lib.common.NotConnectedException;
+
+/**
+ * Tests reading the items of an {@link AccessBase} with a maximum age
+ */
+public class AccessBaseReadTest
+{
+    private static final int CACHE_AGE = 100;
+
+    private static final String[] ITEM_IDS = new String[] { "a", "b", "c" };
+
+    private static final DataCallback CALLBACK = new DataCallback () {
+
+        public void changed ( final Item item, final ItemState itemState )
+        {
+        }
+    };
+
+    private static class TestAccess extends AccessBase
+    {
+        public TestAccess ()
+        {
+            super ( new Server ( new ConnectionInformation (), null ), 0, null );
+        }
+
+        public synchronized void realize ( final Group group ) throws Exception
+        {
+            for ( final Map.Entry<String, Item> entry : group.addItems ( ITEM_IDS ).entrySet () )
+            {
+                this.itemSet.put ( entry.getKey (), CALLBACK );
+                attachItem ( entry.getKey (), entry.getValue () );
+            }
+            this.active = true;
+        }
+
+        public synchronized void deactivate ()
+        {
+            unrealizeAll ();
+            this.active = false;
+        }
+
+        public void update ( final int errorCode )
+        {
+            final Map<Item, ItemState> states = new HashMap<Item, ItemState> ();
+            for ( final Item item : this.items.keySet () )
+            {
+                states.put ( item, new ItemState ( errorCode, null, null, (short)192 ) );
+            }
+            updateItems ( 0, 1, states );
+        }
+
+        @Override
+        protected int getCacheAge ()
+        {
+            return CACHE_AGE;
+        }
+    }
+
+    private StandInGroupStateMgt stateMgt;
+
+    private TestAccess access;
+
+    @Before
+    public void setup () throws Exception
+    {
+        this.stateMgt = new StandInGroupStateMgt ();
+        this.access = new TestAccess ();
+        this.access.realize ( this.stateMgt.createGroup ( this.access.server, 1 ) );
+    }
+
+    private void assertFromCache ( final Map<String, ItemState> result, final int errorCode )
+    {
+        Assert.assertEquals ( ITEM_IDS.length, result.size () );
+        for ( final String itemId : ITEM_IDS )
+        {
+            Assert.assertEquals ( errorCode, result.get ( itemId ).getErrorCode () );
+        }
+    }
+
+    private void assertFromServer ( final Map<String, ItemState> result ) throws JIException
+    {
+        Assert.assertEquals ( ITEM_IDS.length, result.size () );
+        for ( final String itemId : ITEM_IDS )
+        {
+            // the stand-in reports the server handle of the item as its value
+            final Item item = this.access.itemMap.get ( itemId );
+            Assert.assertEquals ( 0, result.get ( itemId ).getErrorCode () );
+            Assert.assertEquals ( item.getServerHandle (), result.get ( itemId ).getValue ().getObject () );
+        }
+    }
+
+    @Test
+    public void testHit () throws Exception
+    {
+        this.access.update ( 42 );
+
+        assertFromCache ( this.access.read ( 10000, ITEM_IDS ), 42 );
+        Assert.assertEquals ( ITEM_IDS.length, this.access.getCacheHits () );
+        Assert.assertEquals ( 0, this.access.getCacheMisses () );
+    }
+
+    /**
+     * Without any update the cached states are unknown, so the items are read from the server
+     */
+    @Test
+    public void testMissWithoutUpdate () throws Exception
+    {
+        assertFromServer ( this.access.read ( 10000, ITEM_IDS ) );
+        Assert.assertEquals ( 0, this.access.getCacheHits () );
+        Assert.assertEquals ( ITEM_IDS.length, this.access.getCacheMisses () );
+    }
+
+    /**
+     * A maximum age below the cache age can never be served from the cache
+     */
+    @Test
+    public void testMissBelowCacheAge () throws Exception
+    {
+        this.access.update ( 42 );
+
+        assertFromServer ( this.access.read ( CACHE_AGE - 1, ITEM_IDS ) );
+        Assert.assertEquals ( ITEM_IDS.length, this.access.getCacheMisses () );
+    }
+
+    /**
+     * The cached states age when no update is received, e.g. because the poll cycles fail
+     */
+    @Test
+    public void testMissAfterUpdatesStopped () throws Exception
+    {
+        this.access.update ( 42 );
+        Thread.sleep ( 2 * CACHE_AGE );
+
+        assertFromServer ( this.access.read ( 2 * CACHE_AGE, ITEM_IDS ) );
+        Assert.assertEquals ( ITEM_IDS.length, this.access.getCacheMisses () );
+
+        // the next update makes the cache fresh again
+        this.access.update ( 43 );
+        assertFromCache ( this.access.read ( 2 * CACHE_AGE, ITEM_IDS ), 43 );
+        Assert.assertEquals ( ITEM_IDS.length, this.access.getCacheHits () );
+    }
+
+    /**
+     * The cached state of a filtered item is the last reported state, not the current one
+     */
+    @Test
+    public void testFilteredItemBypassesCache () throws Exception
+    {
+        this.access.setChangeFilter ( "a", ChangeFilters.valueOnly () );
+        this.access.update ( 42 );
+
+        final Map<String, ItemState> result = this.access.read ( 10000, ITEM_IDS );
+        Assert.assertEquals ( 0, result.get ( "a" ).getErrorCode () );
+        Assert.assertEquals ( 42, result.get ( "b" ).getErrorCode () );
+        Assert.assertEquals ( 42, result.get ( "c" ).getErrorCode () );
+        Assert.assertEquals ( 2, this.access.getCacheHits () );
+        Assert.assertEquals ( 1, this.access.getCacheMisses () );
+    }
+
+    /**
+     * The groups of a stopped access are gone, so its items are read by item id
+     */
+    @Test
+    public void testInactive () throws Exception
+    {
+        this.access.update ( 42 );
+        this.access.deactivate ();
+        Assert.assertTrue ( this.access.itemMap.isEmpty () );
+
+        try
+        {
+            this.access.read ( 10000, ITEM_IDS );
+            Assert.fail ( "Reading by item id requires a connection" );
+        }
+        catch ( final NotConnectedException e )
+        {
+        }
+        Assert.assertEquals ( 0, this.access.getCacheHits () );
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * This file is part of the OpenSCADA project
+ * Copyright (C) 2006-2011 TH4 SYSTEMS GmbH (http://th4-systems.com)
+ *
+ * OpenSCADA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License version 3
+ * only, as published by the Free Software Foundation.
+ *
+ * OpenSCADA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License version 3 for more details
+ * (a copy is included in the LICENSE file that accompanied this code).
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * version 3 along with OpenSCADA. If not, see
+ * <http://opensource.org/licenses/lgpl-3.0.html> for a copy of the LGPLv3 License.
+ */
+
+package org.openscada.opc.lib.da;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import org.jinterop.dcom.common.JIException;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.openscada.opc.dcom.common.KeyedResultSet;
+import org.openscada.opc.dcom.da.OPCITEMDEF;
+import org.openscada.opc.dcom.da.OPCITEMRESULT;
+import org.openscada.opc.lib.common.ConnectionInformation;
+
+/**
+ * Tests realizing the items of an {@link AccessBase} in bulk
+ */
+public class AccessBaseRealizeTest
+{
+    private static final DataCallback CALLBACK = new DataCallback () {
+
+        public void changed ( final Item item, final ItemState itemState )
+        {
+        }
+    };
+
+    /**
+     * Fails every add operation containing the failing item and records the size of each add call
+     */
+    private static class FailingGroupStateMgt extends StandInGroupStateMgt
+    {
+        private final String failingItem;
+
+        private final List<Integer> calls = new ArrayList<Integer> ();
+
+        public FailingGroupStateMgt ( final String failingItem ) throws Exception
+        {
+            this.failingItem = failingItem;
+        }
+
+        @Override
+        protected KeyedResultSet<OPCITEMDEF, OPCITEMRESULT> add ( final OPCITEMDEF... items ) throws JIException
+        {
+            this.calls.add ( items.length );
+            for ( final OPCITEMDEF def : items )
+            {
+                if ( def.getItemID ().equals ( this.failingItem ) )
+                {
+                    throw new JIException ( 0x80004005 );
+                }
+            }
+            return super.add ( items );
+        }
+    }
+
+    private static class TestAccess extends AccessBase
+    {
+        private final Group testGroup;
+
+        public TestAccess ( final Server server, final Group group )
+        {
+            super ( server, 0, null );
+            this.testGroup = group;
+        }
+
+        public void realize ( final String... itemIds )
+        {
+            for ( final String itemId : itemIds )
+            {
+                this.itemSet.put ( itemId, CALLBACK );
+            }
+            realizeAll ();
+        }
+
+        @Override
+        protected Group selectGroup ( final String itemId )
+        {
+            return this.testGroup;
+        }
+    }
+
+    private FailingGroupStateMgt stateMgt;
+
+    private TestAccess access;
+
+    @Before
+    public void setup () throws Exception
+    {
+        final Server server = new Server ( new ConnectionInformation (), null );
+        this.stateMgt = new FailingGroupStateMgt ( "c" );
+        this.access = new TestAccess ( server, this.stateMgt.createGroup ( server, 1 ) );
+        this.access.setRealizeChunkSize ( 2 );
+    }
+
+    @Test
+    public void testChunks () throws Exception
+    {
+        this.access.realize ( "a", "b", "d", "e", "f" );
+
+        Assert.assertEquals ( new HashSet<String> ( Arrays.asList ( "a", "b", "d", "e", "f" ) ), this.access.itemMap.keySet () );
+        Assert.assertEquals ( Arrays.asList ( 2, 2, 1 ), this.stateMgt.calls );
+    }
+
+    /**
+     * A rejected chunk is realized item by item, so only the failing item is missing
+     */
+    @Test
+    public void testFailedChunkFallsBackToSingleItems () throws Exception
+    {
+        this.access.realize ( "a", "b", "c", "d", "e" );
+
+        Assert.assertEquals ( 4, this.access.itemMap.size () );
+        Assert.assertNull ( this.access.itemMap.get ( "c" ) );
+        for ( final String itemId : new String[] { "a", "b", "d", "e" } )
+        {
+            Assert.assertNotNull ( itemId, this.access.itemMap.get ( itemId ) );
+        }
+
+        // two chunks, the failed chunk, its two single items and the last chunk
+        Assert.assertEquals ( Arrays.asList ( 2, 2, 1, 1, 1 ), this.stateMgt.calls );
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * This file is part of the OpenSCADA project
+ * Copyright (C) 2006-2011 TH4 SYSTEMS GmbH (http://th4-systems.com)
+ *
+ * OpenSCADA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License version 3
+ * only, as published by the Free Software Foundation.
+ *
+ * OpenSCADA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License version 3 for more details
+ * (a copy is included in the LICENSE file that accompanied this code).
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * version 3 along with OpenSCADA. If not, see
+ * <http://opensource.org/licenses/lgpl-3.0.html> for a copy of the LGPLv3 License.
+ */
+
+package org.openscada.opc.lib.da;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class AdaptiveChunkSizerTest
+{
+    /**
+     * Simulate a server with a fixed overhead per call which fails for chunks
+     * larger than the limit
+     */
+    private static void run ( final AdaptiveChunkSizer sizer, final int limit, final int chunks )
+    {
+        for ( int i = 0; i < chunks; i++ )
+        {
+            final int size = sizer.getChunkSize ();
+            if ( size > limit )
+            {
+                sizer.recordFailure ( size );
+            }
+            else
+            {
+                sizer.recordSuccess ( size, size, 10000000L + size * 10000L );
+            }
+        }
+    }
+
+    @Test
+    public void testGrowsToLargestWorkingSize ()
+    {
+        final AdaptiveChunkSizer sizer = new AdaptiveChunkSizer ( 16, 64, 4096, 0 );
+        run ( sizer, 1000, 2000 );
+        Assert.assertEquals ( 512, sizer.getChunkSize () );
+    }
+
+    @Test
+    public void testShrinksOnFailure ()
+    {
+        final AdaptiveChunkSizer sizer = new AdaptiveChunkSizer ( 16, 4096, 4096, 0 );
+        run ( sizer, 100, 1 );
+        Assert.assertEquals ( 2048, sizer.getChunkSize () );
+        run ( sizer, 100, 2000 );
+        Assert.assertEquals ( 64, sizer.getChunkSize () );
+    }
+
+    @Test
+    public void testLatencyLimit ()
+    {
+        // chunks of 1024 items take 20.24 ms
+        final AdaptiveChunkSizer sizer = new AdaptiveChunkSizer ( 16, 64, 4096, 20 );
+        run ( sizer, Integer.MAX_VALUE, 2000 );
+        Assert.assertEquals ( 512, sizer.getChunkSize () );
+    }
+
+    @Test
+    public void testCurve ()
+    {
+        final AdaptiveChunkSizer sizer = new AdaptiveChunkSizer ( 16, 16, 100, 0 );
+        Assert.assertEquals ( 4, sizer.getLatencyCurve ().size () );
+        Assert.assertEquals ( 100, sizer.getLatencyCurve ().get ( 3 ).getChunkSize () );
+    }
+}
@@ -0,0 +1,270 @@
+/*
+ * This file is part of the OpenSCADA project
+ * Copyright (C) 2006-2011 TH4 SYSTEMS GmbH (http://th4-systems.com)
+ *
+ * OpenSCADA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License version 3
+ * only, as published by the Free Software Foundation.
+ *
+ * OpenSCADA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License version 3 for more details
+ * (a copy is included in the LICENSE file that accompanied this code).
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * version 3 along with OpenSCADA. If not, see
+ * <http://opensource.org/licenses/lgpl-3.0.html> for a copy of the LGPLv3 License.
+ */
+
+package org.openscada.opc.lib.da;
+
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.jinterop.dcom.common.JIException;
+import org.jinterop.dcom.core.IJIComObject;
+import org.jinterop.dcom.core.JIVariant;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.openscada.opc.dcom.common.EventHandler;
+import org.openscada.opc.dcom.common.KeyedResult;
+import org.openscada.opc.dcom.common.KeyedResultSet;
+import org.openscada.opc.dcom.common.Result;
+import org.openscada.opc.dcom.common.ResultSet;
+import org.openscada.opc.dcom.da.IOPCDataCallback;
+import org.openscada.opc.dcom.da.ValueData;
+import org.openscada.opc.dcom.da.impl.OPCAsyncIO2;
+import org.openscada.opc.lib.common.ConnectionInformation;
+
+/**
+ * Tests the asynchronous operations of a {@link Group} tracked by the {@link AsyncOperationTracker}
+ */
+public class AsyncOperationTrackerTest
+{
+    /**
+     * Accepts all async reads and records the cancel calls
+     */
+    private static class TestAsyncIO extends OPCAsyncIO2
+    {
+        private final TestGroupStateMgt stateMgt;
+
+        private volatile boolean callbackFirst = false;
+
+        private final List<Integer> cancelIds = new ArrayList<Integer> ();
+
+        private final List<String> cancelThreads = new ArrayList<String> ();
+
+        private final CountDownLatch cancelled = new CountDownLatch ( 1 );
+
+        public TestAsyncIO ( final TestGroupStateMgt stateMgt ) throws IllegalArgumentException, UnknownHostException, JIException
+        {
+            super ( StandInGroupStateMgt.COM_OBJECT );
+            this.stateMgt = stateMgt;
+        }
+
+        @Override
+        public AsyncResult read ( final int transactionId, final Integer... serverHandles ) throws JIException
+        {
+            if ( this.callbackFirst )
+            {
+                // the server may call back before the read call returned
+                this.stateMgt.complete ( transactionId );
+            }
+            final ResultSet<Integer> result = new ResultSet<Integer> ( serverHandles.length );
+            for ( final Integer handle : serverHandles )
+            {
+                result.add ( new Result<Integer> ( handle, 0 ) );
+            }
+            return new AsyncResult ( result, transactionId + 100 );
+        }
+
+        @Override
+        public void cancel ( final int cancelId ) throws JIException
+        {
+            synchronized ( this )
+            {
+                this.cancelIds.add ( cancelId );
+                this.cancelThreads.add ( Thread.currentThread ().getName () );
+            }
+            this.cancelled.countDown ();
+        }
+    }
+
+    private static class TestGroupStateMgt extends StandInGroupStateMgt
+    {
+        private final TestAsyncIO asyncIO;
+
+        private volatile IOPCDataCallback callback;
+
+        private final List<Item> items = new ArrayList<Item> ();
+
+        public TestGroupStateMgt () throws Exception
+        {
+            this.asyncIO = new TestAsyncIO ( this );
+        }
+
+        @Override
+        public OPCAsyncIO2 getAsyncIO2 ()
+        {
+            return this.asyncIO;
+        }
+
+        @Override
+        public EventHandler attach ( final IOPCDataCallback callback, final boolean primitiveMode )
+        {
+            this.callback = callback;
+            return new EventHandler () {
+
+                public String getIdentifier ()
+                {
+                    return "test";
+                }
+
+                public IJIComObject getObject ()
+                {
+                    return COM_OBJECT;
+                }
+
+                public void detach ()
+                {
+                    TestGroupStateMgt.this.callback = null;
+                }
+            };
+        }
+
+        /**
+         * Report the completion of a read of all items
+         * @param transactionId the transaction id
+         */
+        public void complete ( final int transactionId )
+        {
+            final KeyedResultSet<Integer, ValueData> result = new KeyedResultSet<Integer, ValueData> ();
+            for ( final Item item : this.items )
+            {
+                final ValueData data = new ValueData ();
+                data.setValue ( new JIVariant ( item.getServerHandle () ) );
+                data.setQuality ( (short)192 );
+                result.add ( new KeyedResult<Integer, ValueData> ( item.getClientHandle (), data, 0 ) );
+            }
+            this.callback.readComplete ( transactionId, 1, 0, 0, result );
+        }
+    }
+
+    private TestGroupStateMgt stateMgt;
+
+    private Group group;
+
+    private Item[] items;
+
+    @Before
+    public void setup () throws Exception
+    {
+        this.stateMgt = new TestGroupStateMgt ();
+        this.group = this.stateMgt.createGroup ( new Server ( new ConnectionInformation (), null ), 1 );
+        this.items = this.group.addItems ( "a", "b" ).values ().toArray ( new Item[2] );
+        for ( final Item item : this.items )
+        {
+            this.stateMgt.items.add ( item );
+        }
+    }
+
+    private void assertResult ( final Map<Item, ItemState> result )
+    {
+        Assert.assertEquals ( this.items.length, result.size () );
+        for ( final Item item : this.items )
+        {
+            Assert.assertEquals ( 0, result.get ( item ).getErrorCode () );
+        }
+    }
+
+    @Test
+    public void testCallbackAfterStart () throws Exception
+    {
+        final Future<Map<Item, ItemState>> future = this.group.readAsync ( this.items );
+        Assert.assertFalse ( future.isDone () );
+        Assert.assertEquals ( 1, this.group.getAsyncOperations ().getInFlight () );
+
+        this.stateMgt.complete ( ( (AsyncOperationTracker.Transaction<?>)future ).getTransactionId () );
+
+        assertResult ( future.get ( 5, TimeUnit.SECONDS ) );
+        Assert.assertEquals ( 0, this.group.getAsyncOperations ().getInFlight () );
+        Assert.assertEquals ( this.items.length, this.group.getServer ().getDataStatistics ().getReads () );
+    }
+
+    @Test
+    public void testCallbackBeforeStart () throws Exception
+    {
+        this.stateMgt.asyncIO.callbackFirst = true;
+
+        final Future<Map<Item, ItemState>> future = this.group.readAsync ( this.items );
+
+        Assert.assertTrue ( future.isDone () );
+        assertResult ( future.get () );
+        Assert.assertEquals ( 0, this.group.getAsyncOperations ().getInFlight () );
+    }
+
+    /**
+     * A timed out operation is cancelled on the server without taking the lock of the group
+     */
+    @Test
+    public void testTimeout () throws Exception
+    {
+        this.group.getAsyncOperations ().setTimeout ( 50 );
+        final Future<Map<Item, ItemState>> future = this.group.readAsync ( this.items );
+        final int transactionId = ( (AsyncOperationTracker.Transaction<?>)future ).getTransactionId ();
+
+        synchronized ( this.group )
+        {
+            try
+            {
+                future.get ( 5, TimeUnit.SECONDS );
+                Assert.fail ( "The operation must time out" );
+            }
+            catch ( final ExecutionException e )
+            {
+                Assert.assertTrue ( e.getCause () instanceof TimeoutException );
+            }
+            Assert.assertTrue ( this.stateMgt.asyncIO.cancelled.await ( 5, TimeUnit.SECONDS ) );
+        }
+
+        synchronized ( this.stateMgt.asyncIO )
+        {
+            Assert.assertEquals ( 1, this.stateMgt.asyncIO.cancelIds.size () );
+            Assert.assertEquals ( Integer.valueOf ( transactionId + 100 ), this.stateMgt.asyncIO.cancelIds.get ( 0 ) );
+            Assert.assertTrue ( this.stateMgt.asyncIO.cancelThreads.get ( 0 ).startsWith ( "UtgardAsyncCancel" ) );
+        }
+        Assert.assertEquals ( 1, this.group.getAsyncOperations ().getTimeouts () );
+        Assert.assertEquals ( 0, this.group.getAsyncOperations ().getInFlight () );
+
+        // a late completion is ignored
+        this.stateMgt.complete ( transactionId );
+    }
+
+    @Test
+    public void testRemove () throws Exception
+    {
+        final Future<Map<Item, ItemState>> future = this.group.readAsync ( this.items );
+
+        this.group.remove ();
+
+        try
+        {
+            future.get ( 5, TimeUnit.SECONDS );
+            Assert.fail ( "The operation must fail" );
+        }
+        catch ( final ExecutionException e )
+        {
+            Assert.assertTrue ( e.getCause () instanceof IllegalStateException );
+        }
+        Assert.assertEquals ( 0, this.group.getAsyncOperations ().getInFlight () );
+    }
+}
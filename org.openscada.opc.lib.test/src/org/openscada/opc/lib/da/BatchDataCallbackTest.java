@@ -0,0 +1,175 @@
+/*
+ * This file is part of the OpenSCADA project
+ * Copyright (C) 2006-2011 TH4 SYSTEMS GmbH (http://th4-systems.com)
+ *
+ * OpenSCADA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License version 3
+ * only, as published by the Free Software Foundation.
+ *
+ * OpenSCADA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License version 3 for more details
+ * (a copy is included in the LICENSE file that accompanied this code).
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * version 3 along with OpenSCADA. If not, see
+ * <http://opensource.org/licenses/lgpl-3.0.html> for a copy of the LGPLv3 License.
+ */
+
+package org.openscada.opc.lib.da;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.openscada.opc.lib.common.ConnectionInformation;
+
+/**
+ * Tests for the delivery of {@link BatchDataCallback} by {@link AccessBase}
+ */
+public class BatchDataCallbackTest
+{
+    private static class TestAccess extends AccessBase
+    {
+        public TestAccess ()
+        {
+            super ( new Server ( new ConnectionInformation (), null ), 0, null );
+        }
+
+        public synchronized void realize ( final Item item, final DataCallback dataCallback )
+        {
+            this.itemSet.put ( item.getId (), dataCallback );
+            attachItem ( item.getId (), item );
+        }
+
+        public void update ( final int transactionId, final Map<Item, ItemState> itemStates )
+        {
+            updateItems ( transactionId, 42, itemStates );
+        }
+    }
+
+    private static class RecordingBatchCallback implements BatchDataCallback
+    {
+        private final List<String> calls = new ArrayList<String> ();
+
+        private final List<String> log;
+
+        public RecordingBatchCallback ( final List<String> log )
+        {
+            this.log = log;
+        }
+
+        public void changed ( final int transactionId, final int serverGroupHandle, final Map<Item, ItemState> changes )
+        {
+            final StringBuilder sb = new StringBuilder ();
+            sb.append ( transactionId ).append ( '/' ).append ( serverGroupHandle ).append ( ':' );
+            for ( final Map.Entry<Item, ItemState> entry : changes.entrySet () )
+            {
+                sb.append ( ' ' ).append ( entry.getKey ().getId () ).append ( '=' ).append ( entry.getValue ().getErrorCode () );
+            }
+            this.calls.add ( sb.toString () );
+            this.log.add ( "batch" );
+        }
+    }
+
+    private final List<String> log = new ArrayList<String> ();
+
+    private final DataCallback dataCallback = new DataCallback () {
+
+        public void changed ( final Item item, final ItemState itemState )
+        {
+            BatchDataCallbackTest.this.log.add ( item.getId () );
+        }
+    };
+
+    private Item[] createItems ( final TestAccess access, final int count )
+    {
+        final Item[] items = new Item[count];
+        for ( int i = 0; i < count; i++ )
+        {
+            items[i] = new Item ( null, i, i + 1, "item." + i );
+            access.realize ( items[i], this.dataCallback );
+        }
+        return items;
+    }
+
+    private static Map<Item, ItemState> states ( final Item[] items, final int... values )
+    {
+        final Map<Item, ItemState> result = new LinkedHashMap<Item, ItemState> ();
+        for ( int i = 0; i < values.length; i++ )
+        {
+            result.put ( items[i], new ItemState ( values[i], null, null, (short)192 ) );
+        }
+        return result;
+    }
+
+    @Test
+    public void testChangedItemsInOneCall ()
+    {
+        final TestAccess access = new TestAccess ();
+        final Item[] items = createItems ( access, 3 );
+        final RecordingBatchCallback callback = new RecordingBatchCallback ( this.log );
+        access.addBatchCallback ( callback );
+
+        access.update ( 1, states ( items, 1, 2, 3 ) );
+        // only the second item changes
+        access.update ( 2, states ( items, 1, 5, 3 ) );
+        // nothing changes, the batch callback is not called
+        access.update ( 3, states ( items, 1, 5, 3 ) );
+
+        Assert.assertEquals ( 2, callback.calls.size () );
+        Assert.assertEquals ( "1/42: item.0=1 item.1=2 item.2=3", callback.calls.get ( 0 ) );
+        Assert.assertEquals ( "2/42: item.1=5", callback.calls.get ( 1 ) );
+    }
+
+    @Test
+    public void testDataCallbacksFirst ()
+    {
+        final TestAccess access = new TestAccess ();
+        final Item[] items = createItems ( access, 2 );
+        access.addBatchCallback ( new RecordingBatchCallback ( this.log ) );
+
+        access.update ( 1, states ( items, 1, 2 ) );
+
+        Assert.assertEquals ( "[item.0, item.1, batch]", this.log.toString () );
+    }
+
+    @Test
+    public void testFailingCallback ()
+    {
+        final TestAccess access = new TestAccess ();
+        final Item[] items = createItems ( access, 1 );
+        access.addBatchCallback ( new BatchDataCallback () {
+
+            public void changed ( final int transactionId, final int serverGroupHandle, final Map<Item, ItemState> changes )
+            {
+                throw new RuntimeException ( "Test failure" );
+            }
+        } );
+        final RecordingBatchCallback callback = new RecordingBatchCallback ( this.log );
+        access.addBatchCallback ( callback );
+
+        access.update ( 1, states ( items, 1 ) );
+
+        Assert.assertEquals ( 1, callback.calls.size () );
+    }
+
+    @Test
+    public void testUnknownItems ()
+    {
+        final TestAccess access = new TestAccess ();
+        createItems ( access, 1 );
+        final RecordingBatchCallback callback = new RecordingBatchCallback ( this.log );
+        access.addBatchCallback ( callback );
+
+        // items which are not part of the access are ignored
+        access.update ( 1, states ( new Item[] { new Item ( null, 10, 11, "other" ) }, 1 ) );
+
+        Assert.assertTrue ( callback.calls.isEmpty () );
+        Assert.assertTrue ( this.log.isEmpty () );
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * This file is part of the OpenSCADA project
+ * Copyright (C) 2006-2011 TH4 SYSTEMS GmbH (http://th4-systems.com)
+ *
+ * OpenSCADA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License version 3
+ * only, as published by the Free Software Foundation.
+ *
+ * OpenSCADA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License version 3 for more details
+ * (a copy is included in the LICENSE file that accompanied this code).
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * version 3 along with OpenSCADA. If not, see
+ * <http://opensource.org/licenses/lgpl-3.0.html> for a copy of the LGPLv3 License.
+ */
+
+package org.openscada.opc.lib.da;
+
+import java.util.concurrent.TimeUnit;
+
+import org.jinterop.dcom.core.JIVariant;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests for {@link ChangeFilters}
+ */
+public class ChangeFiltersTest
+{
+    private static ItemState state ( final double value, final long timestamp, final int quality )
+    {
+        return new ItemState ( 0, new JIVariant ( value ), timestamp, (short)quality );
+    }
+
+    private static ItemState state ( final double value, final long timestamp )
+    {
+        return state ( value, timestamp, 192 );
+    }
+
+    private static ItemState received ( final double value, final long timestamp, final long receivedMillis )
+    {
+        final ItemState state = state ( value, timestamp );
+        state.setReceivedNanos ( TimeUnit.MILLISECONDS.toNanos ( receivedMillis ) );
+        return state;
+    }
+
+    @Test
+    public void testEquality () throws Exception
+    {
+        final ChangeFilter filter = ChangeFilters.equality ();
+        final ItemState previous = state ( 1.0, 1000 );
+        previous.getTypedValue ();
+        final ItemState current = state ( 1.0, 1000 );
+        current.getTypedValue ();
+
+        Assert.assertFalse ( filter.isChanged ( previous, current ) );
+        // only the timestamp changed
+        Assert.assertTrue ( filter.isChanged ( previous, state ( 1.0, 2000 ) ) );
+    }
+
+    @Test
+    public void testValueOnly () throws Exception
+    {
+        final ChangeFilter filter = ChangeFilters.valueOnly ();
+        final ItemState previous = state ( 1.0, 1000 );
+        previous.getTypedValue ();
+
+        Assert.assertFalse ( filter.isChanged ( previous, state ( 1.0, 2000, 0 ) ) );
+        Assert.assertTrue ( filter.isChanged ( previous, state ( 1.5, 1000 ) ) );
+    }
+
+    /**
+     * States holding separate variant instances which were never decoded
+     */
+    @Test
+    public void testUndecodedVariants ()
+    {
+        Assert.assertFalse ( ChangeFilters.valueOnly ().isChanged ( state ( 1.0, 1000 ), state ( 1.0, 2000 ) ) );
+        Assert.assertTrue ( ChangeFilters.valueOnly ().isChanged ( state ( 1.0, 1000 ), state ( 1.5, 1000 ) ) );
+
+        Assert.assertFalse ( ChangeFilters.valueAndQuality ().isChanged ( state ( 1.0, 1000 ), state ( 1.0, 2000 ) ) );
+        Assert.assertTrue ( ChangeFilters.valueAndQuality ().isChanged ( state ( 1.0, 1000 ), state ( 2.0, 1000 ) ) );
+    }
+
+    @Test
+    public void testValueAndQuality () throws Exception
+    {
+        final ChangeFilter filter = ChangeFilters.valueAndQuality ();
+        final ItemState previous = state ( 1.0, 1000 );
+        previous.getTypedValue ();
+
+        Assert.assertFalse ( filter.isChanged ( previous, state ( 1.0, 2000 ) ) );
+        Assert.assertTrue ( filter.isChanged ( previous, state ( 1.0, 2000, 0 ) ) );
+        Assert.assertTrue ( filter.isChanged ( previous, state ( 2.0, 2000 ) ) );
+
+        final ItemState failed = state ( 1.0, 2000 );
+        failed.setErrorCode ( 0x80004005 );
+        Assert.assertTrue ( filter.isChanged ( previous, failed ) );
+    }
+
+    @Test
+    public void testAbsoluteDeadband ()
+    {
+        final ChangeFilter filter = ChangeFilters.absoluteDeadband ( 0.5 );
+        final ItemState previous = state ( 10.0, 1000 );
+
+        Assert.assertFalse ( filter.isChanged ( previous, state ( 10.5, 2000 ) ) );
+        Assert.assertFalse ( filter.isChanged ( previous, state ( 9.6, 2000 ) ) );
+        Assert.assertTrue ( filter.isChanged ( previous, state ( 10.6, 2000 ) ) );
+        Assert.assertTrue ( filter.isChanged ( previous, state ( 9.4, 2000 ) ) );
+        // a quality change is always reported
+        Assert.assertTrue ( filter.isChanged ( previous, state ( 10.0, 2000, 0 ) ) );
+
+        // values which are not numeric are compared for equality
+        final ItemState text = new ItemState ( 0, new JIVariant ( "a" ), 1000, (short)192 );
+        Assert.assertTrue ( filter.isChanged ( text, new ItemState ( 0, new JIVariant ( "a" ), 2000, (short)192 ) ) );
+        Assert.assertTrue ( filter.isChanged ( previous, text ) );
+
+        try
+        {
+            ChangeFilters.absoluteDeadband ( -1 );
+            Assert.fail ( "Negative deadband must be rejected" );
+        }
+        catch ( final IllegalArgumentException e )
+        {
+        }
+    }
+
+    @Test
+    public void testPercentDeadband ()
+    {
+        // 5 percent of a range of 200
+        final ChangeFilter filter = ChangeFilters.percentDeadband ( 5, -100, 100 );
+        final ItemState previous = state ( 0.0, 1000 );
+
+        Assert.assertFalse ( filter.isChanged ( previous, state ( 10.0, 2000 ) ) );
+        Assert.assertTrue ( filter.isChanged ( previous, state ( 10.5, 2000 ) ) );
+
+        try
+        {
+            ChangeFilters.percentDeadband ( 101, 0, 100 );
+            Assert.fail ( "Percent deadband above 100 must be rejected" );
+        }
+        catch ( final IllegalArgumentException e )
+        {
+        }
+    }
+
+    @Test
+    public void testHeartbeat ()
+    {
+        final ChangeFilter filter = ChangeFilters.heartbeat ( ChangeFilters.absoluteDeadband ( 1.0 ), 5000 );
+        final ItemState previous = received ( 1.0, 1000, 1000 );
+
+        Assert.assertFalse ( filter.isChanged ( previous, received ( 1.5, 1000, 5999 ) ) );
+        Assert.assertTrue ( filter.isChanged ( previous, received ( 1.5, 1000, 6000 ) ) );
+        Assert.assertTrue ( filter.isChanged ( previous, received ( 3.0, 1000, 2000 ) ) );
+
+        // the server timestamps are not used to measure the silence
+        Assert.assertFalse ( filter.isChanged ( previous, received ( 1.5, 60000, 2000 ) ) );
+        Assert.assertTrue ( filter.isChanged ( previous, received ( 1.5, ItemState.NO_TIMESTAMP, 6000 ) ) );
+    }
+}
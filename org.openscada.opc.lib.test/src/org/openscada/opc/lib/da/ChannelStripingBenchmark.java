@@ -0,0 +1,246 @@
+/*
+ * This file is part of the OpenSCADA project
+ * Copyright (C) 2006-2011 TH4 SYSTEMS GmbH (http://th4-systems.com)
+ *
+ * OpenSCADA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License version 3
+ * only, as published by the Free Software Foundation.
+ *
+ * OpenSCADA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License version 3 for more details
+ * (a copy is included in the LICENSE file that accompanied this code).
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * version 3 along with OpenSCADA. If not, see
+ * <http://opensource.org/licenses/lgpl-3.0.html> for a copy of the LGPLv3 License.
+ */
+
+package org.openscada.opc.lib.da;
+
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+import org.jinterop.dcom.common.JIException;
+import org.jinterop.dcom.core.JIComServer;
+import org.openscada.opc.dcom.common.KeyedResultSet;
+import org.openscada.opc.dcom.da.OPCDATASOURCE;
+import org.openscada.opc.dcom.da.OPCITEMDEF;
+import org.openscada.opc.dcom.da.OPCITEMRESULT;
+import org.openscada.opc.dcom.da.OPCITEMSTATE;
+import org.openscada.opc.dcom.da.impl.OPCServer;
+import org.openscada.opc.lib.common.ConnectionInformation;
+
+/**
+ * Measures the read throughput of a server with a growing number of channels.
+ * <p>
+ * The groups are added using {@link Server#addGroup(String)} and read using
+ * {@link Group#read(boolean, Item...)}. The OPC server object of each channel is an
+ * in-process stand-in which serializes all calls of its groups like a DCOM session.
+ * Every group is driven by its own thread issuing reads with a fixed latency, while
+ * one additional thread keeps adding items to the first group using slow calls.
+ * </p>
+ * <p>
+ * Optional arguments: number of groups (default 16), read latency in ms (default 2),
+ * add items latency in ms (default 50), duration per run in ms (default 2000)
+ * </p>
+ */
+public class ChannelStripingBenchmark
+{
+    /**
+     * The OPC server object of one channel, only one call of its groups runs at a time
+     */
+    private static class LatencyOPCServer extends StandInOPCServer
+    {
+        private final long readLatency;
+
+        private final long addLatency;
+
+        public LatencyOPCServer ( final long readLatency, final long addLatency ) throws IllegalArgumentException, UnknownHostException, JIException
+        {
+            this.readLatency = readLatency;
+            this.addLatency = addLatency;
+        }
+
+        private synchronized void call ( final long nanos )
+        {
+            LockSupport.parkNanos ( nanos );
+        }
+
+        @Override
+        protected StandInGroupStateMgt createGroupStateMgt () throws IllegalArgumentException, UnknownHostException, JIException
+        {
+            return new StandInGroupStateMgt () {
+
+                @Override
+                protected KeyedResultSet<OPCITEMDEF, OPCITEMRESULT> add ( final OPCITEMDEF... items ) throws JIException
+                {
+                    call ( LatencyOPCServer.this.addLatency );
+                    return super.add ( items );
+                }
+
+                @Override
+                protected KeyedResultSet<Integer, OPCITEMSTATE> read ( final OPCDATASOURCE source, final Integer... serverHandles ) throws JIException
+                {
+                    call ( LatencyOPCServer.this.readLatency );
+                    return super.read ( source, serverHandles );
+                }
+            };
+        }
+    }
+
+    private static class BenchmarkServer extends Server
+    {
+        private final long readLatency;
+
+        private final long addLatency;
+
+        public BenchmarkServer ( final int channelCount, final long readLatency, final long addLatency )
+        {
+            super ( createConnectionInformation (), null );
+            this.readLatency = readLatency;
+            this.addLatency = addLatency;
+            setChannelCount ( channelCount );
+        }
+
+        @Override
+        OPCServer createOPCServer ( final JIComServer comServer ) throws IllegalArgumentException, UnknownHostException, JIException
+        {
+            return new LatencyOPCServer ( this.readLatency, this.addLatency );
+        }
+    }
+
+    private static class Result
+    {
+        private long reads;
+
+        private final List<Long> latencies = new ArrayList<Long> ();
+
+        public synchronized void record ( final long nanos )
+        {
+            this.reads++;
+            this.latencies.add ( nanos );
+        }
+
+        public synchronized long getPercentile ( final double percentile )
+        {
+            final Long[] values = this.latencies.toArray ( new Long[this.latencies.size ()] );
+            Arrays.sort ( values );
+            if ( values.length == 0 )
+            {
+                return 0;
+            }
+            return values[Math.min ( values.length - 1, (int) ( values.length * percentile ) )];
+        }
+    }
+
+    private static ConnectionInformation createConnectionInformation ()
+    {
+        final ConnectionInformation connectionInformation = new ConnectionInformation ();
+        connectionInformation.setHost ( "localhost" );
+        connectionInformation.setClsid ( "F8582CF2-88FB-11D0-B850-00C0F0104305" );
+        return connectionInformation;
+    }
+
+    public static void main ( final String[] args ) throws Exception
+    {
+        final int groups = args.length > 0 ? Integer.parseInt ( args[0] ) : 16;
+        final long readLatency = TimeUnit.MILLISECONDS.toNanos ( args.length > 1 ? Long.parseLong ( args[1] ) : 2 );
+        final long addLatency = TimeUnit.MILLISECONDS.toNanos ( args.length > 2 ? Long.parseLong ( args[2] ) : 50 );
+        final long duration = args.length > 3 ? Long.parseLong ( args[3] ) : 2000;
+
+        System.out.println ( String.format ( "%s groups, read %s ms, add items %s ms", groups, TimeUnit.NANOSECONDS.toMillis ( readLatency ), TimeUnit.NANOSECONDS.toMillis ( addLatency ) ) );
+
+        for ( final int channelCount : new int[] { 1, 2, 4, 8 } )
+        {
+            run ( channelCount, groups, readLatency, addLatency, duration );
+        }
+    }
+
+    private static void run ( final int channelCount, final int groupCount, final long readLatency, final long addLatency, final long duration ) throws Exception
+    {
+        final BenchmarkServer server = new BenchmarkServer ( channelCount, readLatency, addLatency );
+        server.connect ();
+
+        final Group[] groups = new Group[groupCount];
+        final Item[] items = new Item[groupCount];
+        for ( int i = 0; i < groupCount; i++ )
+        {
+            groups[i] = server.addGroup ( "group" + i );
+            items[i] = groups[i].addItems ( "item" + i ).get ( "item" + i );
+        }
+        System.out.println ( String.format ( "%s channel(s): groups per channel %s", channelCount, Arrays.toString ( server.getChannelGroupCounts () ) ) );
+
+        final AtomicBoolean running = new AtomicBoolean ( true );
+        final Result result = new Result ();
+        final CountDownLatch done = new CountDownLatch ( groupCount + 1 );
+
+        for ( int i = 0; i < groupCount; i++ )
+        {
+            final Group group = groups[i];
+            final Item item = items[i];
+            new Thread ( new Runnable () {
+
+                public void run ()
+                {
+                    try
+                    {
+                        while ( running.get () )
+                        {
+                            final long start = System.nanoTime ();
+                            group.read ( true, item );
+                            result.record ( System.nanoTime () - start );
+                        }
+                    }
+                    catch ( final JIException e )
+                    {
+                        e.printStackTrace ();
+                    }
+                    finally
+                    {
+                        done.countDown ();
+                    }
+                }
+            }, "Reader-" + i ).start ();
+        }
+
+        new Thread ( new Runnable () {
+
+            public void run ()
+            {
+                try
+                {
+                    int count = 0;
+                    while ( running.get () )
+                    {
+                        final String itemId = "extra" + count++;
+                        groups[0].addItems ( itemId );
+                        groups[0].removeItem ( itemId );
+                    }
+                }
+                catch ( final Exception e )
+                {
+                    e.printStackTrace ();
+                }
+                finally
+                {
+                    done.countDown ();
+                }
+            }
+        }, "AddItems" ).start ();
+
+        Thread.sleep ( duration );
+        running.set ( false );
+        done.await ();
+        server.disconnect ();
+
+        System.out.println ( String.format ( "%s channel(s): %8.0f reads/s, p50 %5.1f ms, p99 %5.1f ms", channelCount, result.reads * 1000.0 / duration, result.getPercentile ( 0.5 ) / 1000000.0, result.getPercentile ( 0.99 ) / 1000000.0 ) );
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * This file is part of the OpenSCADA project
+ * Copyright (C) 2006-2011 TH4 SYSTEMS GmbH (http://th4-systems.com)
+ *
+ * OpenSCADA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License version 3
+ * only, as published by the Free Software Foundation.
+ *
+ * OpenSCADA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License version 3 for more details
+ * (a copy is included in the LICENSE file that accompanied this code).
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * version 3 along with OpenSCADA. If not, see
+ * <http://opensource.org/licenses/lgpl-3.0.html> for a copy of the LGPLv3 License.
+ */
+
+package org.openscada.opc.lib.da;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Compares the lookup of items by client handle using the {@link ClientHandleTable}
+ * with the lookup using a map of boxed handles.
+ * <p>
+ * Optional arguments: number of items (default 100000), number of rounds (default 20)
+ * </p>
+ */
+public class ClientHandleBenchmark
+{
+    private static final int LOOKUPS = 10000000;
+
+    public static void main ( final String[] args )
+    {
+        final int count = args.length > 0 ? Integer.parseInt ( args[0] ) : 100000;
+        final int rounds = args.length > 1 ? Integer.parseInt ( args[1] ) : 20;
+
+        final ClientHandleTable table = new ClientHandleTable ();
+        final Map<Integer, Item> map = new HashMap<Integer, Item> ();
+        final Random random = new Random ();
+
+        final int[] handles = new int[count];
+        for ( int i = 0; i < count; i++ )
+        {
+            final int tableHandle = table.allocate ();
+            final Item item = new Item ( null, i, tableHandle, "item." + i );
+            table.put ( tableHandle, item );
+            handles[i] = tableHandle;
+
+            // the old implementation used random client handles
+            map.put ( random.nextInt (), item );
+        }
+        final Integer[] mapHandles = map.keySet ().toArray ( new Integer[map.size ()] );
+        final int[] mapKeys = new int[mapHandles.length];
+        for ( int i = 0; i < mapHandles.length; i++ )
+        {
+            mapKeys[i] = mapHandles[i];
+        }
+
+        System.out.println ( String.format ( "Items: %d, lookups per round: %d", count, LOOKUPS ) );
+
+        for ( int round = 0; round < rounds; round++ )
+        {
+            final long tableTime = lookupTable ( table, handles );
+            final long mapTime = lookupMap ( map, mapKeys );
+            System.out.println ( String.format ( "Round %2d - table: %6.2f ns/lookup, map: %6.2f ns/lookup", round, (double)tableTime / LOOKUPS, (double)mapTime / LOOKUPS ) );
+        }
+    }
+
+    private static long lookupTable ( final ClientHandleTable table, final int[] handles )
+    {
+        int found = 0;
+        final long start = System.nanoTime ();
+        for ( int i = 0; i < LOOKUPS; i++ )
+        {
+            if ( table.get ( handles[i % handles.length] ) != null )
+            {
+                found++;
+            }
+        }
+        final long duration = System.nanoTime () - start;
+        check ( found );
+        return duration;
+    }
+
+    private static long lookupMap ( final Map<Integer, Item> map, final int[] handles )
+    {
+        int found = 0;
+        final long start = System.nanoTime ();
+        for ( int i = 0; i < LOOKUPS; i++ )
+        {
+            if ( map.get ( handles[i % handles.length] ) != null )
+            {
+                found++;
+            }
+        }
+        final long duration = System.nanoTime () - start;
+        check ( found );
+        return duration;
+    }
+
+    private static void check ( final int found )
+    {
+        if ( found != LOOKUPS )
+        {
+            throw new IllegalStateException ( String.format ( "Only found %d of %d items", found, LOOKUPS ) );
+        }
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * This file is part of the OpenSCADA project
+ * Copyright (C) 2006-2011 TH4 SYSTEMS GmbH (http://th4-systems.com)
+ *
+ * OpenSCADA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License version 3
+ * only, as published by the Free Software Foundation.
+ *
+ * OpenSCADA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License version 3 for more details
+ * (a copy is included in the LICENSE file that accompanied this code).
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * version 3 along with OpenSCADA. If not, see
+ * <http://opensource.org/licenses/lgpl-3.0.html> for a copy of the LGPLv3 License.
+ */
+
+package org.openscada.opc.lib.da;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ClientHandleTableTest
+{
+    @Test
+    public void testReuse ()
+    {
+        final ClientHandleTable table = new ClientHandleTable ();
+        final Item[] items = TestItems.createItems ( 2 );
+
+        final int first = table.allocate ();
+        final int second = table.allocate ();
+        Assert.assertEquals ( 1, first );
+        Assert.assertEquals ( 2, second );
+
+        table.put ( first, items[0] );
+        table.release ( first );
+        Assert.assertNull ( table.get ( first ) );
+
+        final int reused = table.allocate ();
+        Assert.assertEquals ( first, reused );
+        table.put ( reused, items[1] );
+        Assert.assertSame ( items[1], table.get ( reused ) );
+
+        Assert.assertEquals ( 3, table.allocate () );
+    }
+
+    /**
+     * A handle which was reserved but never assigned an item can be released
+     */
+    @Test
+    public void testReleaseUnassigned ()
+    {
+        final ClientHandleTable table = new ClientHandleTable ();
+
+        final int handle = table.allocate ();
+        table.release ( handle );
+
+        Assert.assertEquals ( handle, table.allocate () );
+        Assert.assertEquals ( handle + 1, table.allocate () );
+    }
+
+    /**
+     * Releasing a handle twice must not hand it out twice
+     */
+    @Test
+    public void testDoubleRelease ()
+    {
+        final ClientHandleTable table = new ClientHandleTable ();
+        final Item[] items = TestItems.createItems ( 2 );
+
+        final int handle = table.allocate ();
+        table.put ( handle, items[0] );
+        table.release ( handle );
+        table.release ( handle );
+
+        final int first = table.allocate ();
+        final int second = table.allocate ();
+        Assert.assertEquals ( handle, first );
+        Assert.assertFalse ( first == second );
+
+        table.put ( first, items[0] );
+        table.put ( second, items[1] );
+        Assert.assertSame ( items[0], table.get ( first ) );
+        Assert.assertSame ( items[1], table.get ( second ) );
+    }
+
+    @Test
+    public void testPutReleased ()
+    {
+        final ClientHandleTable table = new ClientHandleTable ();
+
+        final int handle = table.allocate ();
+        table.release ( handle );
+
+        try
+        {
+            table.put ( handle, TestItems.createItems ( 1 )[0] );
+            Assert.fail ( "Released handle must not be assignable" );
+        }
+        catch ( final IllegalArgumentException e )
+        {
+        }
+    }
+}
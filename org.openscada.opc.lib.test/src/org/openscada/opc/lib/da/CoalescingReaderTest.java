@@ -0,0 +1,172 @@
+/*
+ * This file is part of the OpenSCADA project
+ * Copyright (C) 2006-2011 TH4 SYSTEMS GmbH (http://th4-systems.com)
+ *
+ * OpenSCADA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License version 3
+ * only, as published by the Free Software Foundation.
+ *
+ * OpenSCADA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License version 3 for more details
+ * (a copy is included in the LICENSE file that accompanied this code).
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * version 3 along with OpenSCADA. If not, see
+ * <http://opensource.org/licenses/lgpl-3.0.html> for a copy of the LGPLv3 License.
+ */
+
+package org.openscada.opc.lib.da;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.jinterop.dcom.common.JIException;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests for {@link CoalescingReader}
+ */
+public class CoalescingReaderTest
+{
+    private static final int READERS = 100;
+
+    private static class TestReader extends CoalescingReader
+    {
+        private final AtomicInteger concurrent = new AtomicInteger ();
+
+        private volatile int maxConcurrent = 0;
+
+        private volatile boolean fail = false;
+
+        public TestReader ( final long windowMillis, final int maxBatchSize )
+        {
+            super ( null, windowMillis, TimeUnit.MILLISECONDS, maxBatchSize );
+        }
+
+        @Override
+        protected Map<Item, ItemState> performRead ( final boolean device, final Item[] items ) throws JIException
+        {
+            final int current = this.concurrent.incrementAndGet ();
+            this.maxConcurrent = Math.max ( this.maxConcurrent, current );
+            try
+            {
+                // simulate the RPC round trip
+                Thread.sleep ( 20 );
+            }
+            catch ( final InterruptedException e )
+            {
+                Thread.currentThread ().interrupt ();
+            }
+            finally
+            {
+                this.concurrent.decrementAndGet ();
+            }
+
+            if ( this.fail )
+            {
+                throw new JIException ( 0, "Read failed" );
+            }
+
+            final Map<Item, ItemState> result = new HashMap<Item, ItemState> ();
+            for ( final Item item : items )
+            {
+                result.put ( item, new ItemState ( item.getServerHandle (), null, 0, device ? (short)1 : (short)0 ) );
+            }
+            return result;
+        }
+    }
+
+    private Throwable readConcurrently ( final CoalescingReader reader, final Item[] items, final boolean device ) throws InterruptedException
+    {
+        final CountDownLatch start = new CountDownLatch ( 1 );
+        final CountDownLatch done = new CountDownLatch ( items.length );
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable> ();
+
+        for ( final Item item : items )
+        {
+            new Thread ( new Runnable () {
+
+                public void run ()
+                {
+                    try
+                    {
+                        start.await ();
+                        final ItemState state = reader.read ( device, item );
+                        Assert.assertEquals ( item.getServerHandle (), state.getErrorCode () );
+                        Assert.assertEquals ( device ? 1 : 0, state.getQuality ().shortValue () );
+                    }
+                    catch ( final Throwable e )
+                    {
+                        error.compareAndSet ( null, e );
+                    }
+                    finally
+                    {
+                        done.countDown ();
+                    }
+                }
+            } ).start ();
+        }
+
+        start.countDown ();
+        Assert.assertTrue ( done.await ( 30, TimeUnit.SECONDS ) );
+        return error.get ();
+    }
+
+    @Test
+    public void testCoalescing () throws Exception
+    {
+        final TestReader reader = new TestReader ( 5, 1000 );
+        Assert.assertNull ( readConcurrently ( reader, TestItems.createItems ( READERS ), false ) );
+
+        Assert.assertEquals ( READERS, reader.getReads () );
+        Assert.assertTrue ( "Too many batches: " + reader.getBatches (), reader.getBatches () < READERS / 4 );
+        Assert.assertEquals ( 1, reader.maxConcurrent );
+    }
+
+    @Test
+    public void testMaxBatchSize () throws Exception
+    {
+        final TestReader reader = new TestReader ( 50, 10 );
+        Assert.assertNull ( readConcurrently ( reader, TestItems.createItems ( READERS ), true ) );
+
+        Assert.assertTrue ( "Too few batches: " + reader.getBatches (), reader.getBatches () >= READERS / 10 );
+        Assert.assertEquals ( 1, reader.maxConcurrent );
+    }
+
+    @Test
+    public void testFullBatchSkipsWindow () throws Exception
+    {
+        // the window is far longer than the timeout of readConcurrently, so only full batches complete in time
+        final TestReader reader = new TestReader ( TimeUnit.MINUTES.toMillis ( 10 ), 10 );
+        Assert.assertNull ( readConcurrently ( reader, TestItems.createItems ( READERS ), false ) );
+
+        Assert.assertEquals ( READERS / 10, reader.getBatches () );
+    }
+
+    @Test
+    public void testNoWindow () throws Exception
+    {
+        // reads arriving while a read is in flight are still collected
+        final TestReader reader = new TestReader ( 0, 1000 );
+        Assert.assertNull ( readConcurrently ( reader, TestItems.createItems ( READERS ), false ) );
+
+        Assert.assertTrue ( "Too many batches: " + reader.getBatches (), reader.getBatches () < READERS / 4 );
+    }
+
+    @Test
+    public void testFailure () throws Exception
+    {
+        final TestReader reader = new TestReader ( 5, 1000 );
+        reader.fail = true;
+        final Throwable error = readConcurrently ( reader, TestItems.createItems ( 10 ), false );
+
+        Assert.assertTrue ( error instanceof JIException );
+    }
+}
@@ -0,0 +1,217 @@
+/*
+ * This file is part of the OpenSCADA project
+ * Copyright (C) 2006-2011 TH4 SYSTEMS GmbH (http://th4-systems.com)
+ *
+ * OpenSCADA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License version 3
+ * only, as published by the Free Software Foundation.
+ *
+ * OpenSCADA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License version 3 for more details
+ * (a copy is included in the LICENSE file that accompanied this code).
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * version 3 along with OpenSCADA. If not, see
+ * <http://opensource.org/licenses/lgpl-3.0.html> for a copy of the LGPLv3 License.
+ */
+
+package org.openscada.opc.lib.da;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.openscada.opc.lib.common.ConnectionInformation;
+
+/**
+ * Tests for {@link DataCallbackDispatcher}
+ */
+public class DataCallbackDispatcherTest
+{
+    /**
+     * Records the delivered states and blocks while delivering the state of the blocking item
+     */
+    private static class RecordingCallback implements DataCallback
+    {
+        private final List<String> delivered = new ArrayList<String> ();
+
+        private final CountDownLatch entered = new CountDownLatch ( 1 );
+
+        private final CountDownLatch release = new CountDownLatch ( 1 );
+
+        private final Item blockingItem;
+
+        public RecordingCallback ( final Item blockingItem )
+        {
+            this.blockingItem = blockingItem;
+        }
+
+        public void changed ( final Item item, final ItemState itemState )
+        {
+            if ( item == this.blockingItem )
+            {
+                this.entered.countDown ();
+                try
+                {
+                    this.release.await ();
+                }
+                catch ( final InterruptedException e )
+                {
+                    return;
+                }
+            }
+            synchronized ( this )
+            {
+                this.delivered.add ( item.getId () + "=" + itemState.getErrorCode () );
+                notifyAll ();
+            }
+        }
+
+        public synchronized List<String> await ( final int count ) throws InterruptedException
+        {
+            final long end = System.currentTimeMillis () + 5000;
+            while ( this.delivered.size () < count && System.currentTimeMillis () < end )
+            {
+                wait ( 100 );
+            }
+            return new ArrayList<String> ( this.delivered );
+        }
+    }
+
+    private static class TestAccess extends AccessBase
+    {
+        public TestAccess ()
+        {
+            super ( new Server ( new ConnectionInformation (), null ), 0, null );
+        }
+
+        public synchronized void realize ( final Item item, final DataCallback dataCallback )
+        {
+            this.itemSet.put ( item.getId (), dataCallback );
+            attachItem ( item.getId (), item );
+        }
+
+        public void update ( final Item item, final ItemState itemState )
+        {
+            updateItem ( item, itemState );
+        }
+    }
+
+    private static Item createItem ( final int index )
+    {
+        return new Item ( null, index, index + 1, "item." + index );
+    }
+
+    private static ItemState createState ( final int value )
+    {
+        return new ItemState ( value, null, null, (short)192 );
+    }
+
+    @Test
+    public void testCoalescing () throws Exception
+    {
+        final DataCallbackDispatcher dispatcher = new DataCallbackDispatcher ( 1, 10 );
+        final Item blocker = createItem ( 0 );
+        final Item item = createItem ( 1 );
+        final RecordingCallback callback = new RecordingCallback ( blocker );
+
+        Assert.assertTrue ( dispatcher.dispatch ( blocker, createState ( 0 ), callback ) );
+        Assert.assertTrue ( callback.entered.await ( 5, TimeUnit.SECONDS ) );
+
+        for ( int i = 1; i <= 3; i++ )
+        {
+            Assert.assertTrue ( dispatcher.dispatch ( item, createState ( i ), callback ) );
+        }
+        Assert.assertEquals ( 1, dispatcher.getQueueDepth () );
+        Assert.assertEquals ( 2, dispatcher.getCoalescedCount () );
+
+        callback.release.countDown ();
+        final List<String> delivered = callback.await ( 2 );
+        Assert.assertEquals ( "[item.0=0, item.1=3]", delivered.toString () );
+
+        dispatcher.dispose ();
+    }
+
+    @Test
+    public void testDrop () throws Exception
+    {
+        final DataCallbackDispatcher dispatcher = new DataCallbackDispatcher ( 1, 1 );
+        final Item blocker = createItem ( 0 );
+        final RecordingCallback callback = new RecordingCallback ( blocker );
+
+        Assert.assertTrue ( dispatcher.dispatch ( blocker, createState ( 0 ), callback ) );
+        Assert.assertTrue ( callback.entered.await ( 5, TimeUnit.SECONDS ) );
+
+        Assert.assertTrue ( dispatcher.dispatch ( createItem ( 1 ), createState ( 1 ), callback ) );
+        Assert.assertFalse ( dispatcher.dispatch ( createItem ( 2 ), createState ( 2 ), callback ) );
+        Assert.assertEquals ( 1, dispatcher.getDroppedCount () );
+
+        callback.release.countDown ();
+        Assert.assertEquals ( "[item.0=0, item.1=1]", callback.await ( 2 ).toString () );
+
+        dispatcher.dispose ();
+        Assert.assertFalse ( dispatcher.dispatch ( createItem ( 3 ), createState ( 3 ), callback ) );
+    }
+
+    @Test
+    public void testOrdering () throws Exception
+    {
+        final DataCallbackDispatcher dispatcher = new DataCallbackDispatcher ( 1, 100 );
+        final Item blocker = createItem ( 0 );
+        final RecordingCallback callback = new RecordingCallback ( blocker );
+
+        Assert.assertTrue ( dispatcher.dispatch ( blocker, createState ( 0 ), callback ) );
+        Assert.assertTrue ( callback.entered.await ( 5, TimeUnit.SECONDS ) );
+
+        final List<String> expected = new ArrayList<String> ();
+        expected.add ( "item.0=0" );
+        for ( int i = 1; i <= 10; i++ )
+        {
+            dispatcher.dispatch ( createItem ( i ), createState ( i ), callback );
+            expected.add ( "item." + i + "=" + i );
+        }
+
+        callback.release.countDown ();
+        Assert.assertEquals ( expected, callback.await ( expected.size () ) );
+
+        dispatcher.dispose ();
+    }
+
+    @Test
+    public void testDroppedStateIsNotFiltered () throws Exception
+    {
+        final DataCallbackDispatcher dispatcher = new DataCallbackDispatcher ( 1, 1 );
+        final Item blocker = createItem ( 0 );
+        final Item queued = createItem ( 1 );
+        final Item item = createItem ( 2 );
+        final RecordingCallback callback = new RecordingCallback ( blocker );
+
+        final TestAccess access = new TestAccess ();
+        access.setDispatcher ( dispatcher );
+        access.realize ( blocker, callback );
+        access.realize ( queued, callback );
+        access.realize ( item, callback );
+
+        access.update ( blocker, createState ( 0 ) );
+        Assert.assertTrue ( callback.entered.await ( 5, TimeUnit.SECONDS ) );
+        access.update ( queued, createState ( 1 ) );
+
+        // the queue is full, the update gets dropped
+        access.update ( item, createState ( 2 ) );
+        Assert.assertEquals ( 1, dispatcher.getDroppedCount () );
+
+        callback.release.countDown ();
+        Assert.assertEquals ( 2, callback.await ( 2 ).size () );
+
+        // the same state again must be delivered since the callback never saw it
+        access.update ( item, createState ( 2 ) );
+        Assert.assertEquals ( "[item.0=0, item.1=1, item.2=2]", callback.await ( 3 ).toString () );
+
+        dispatcher.dispose ();
+    }
+}
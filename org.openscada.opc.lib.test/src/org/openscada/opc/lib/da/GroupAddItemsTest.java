@@ -0,0 +1,135 @@
+/*
+ * This file is part of the OpenSCADA project
+ * Copyright (C) 2006-2011 TH4 SYSTEMS GmbH (http://th4-systems.com)
+ *
+ * OpenSCADA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License version 3
+ * only, as published by the Free Software Foundation.
+ *
+ * OpenSCADA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License version 3 for more details
+ * (a copy is included in the LICENSE file that accompanied this code).
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * version 3 along with OpenSCADA. If not, see
+ * <http://opensource.org/licenses/lgpl-3.0.html> for a copy of the LGPLv3 License.
+ */
+
+package org.openscada.opc.lib.da;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.jinterop.dcom.common.JIException;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.openscada.opc.dcom.common.KeyedResultSet;
+import org.openscada.opc.dcom.common.ResultSet;
+import org.openscada.opc.dcom.da.OPCITEMDEF;
+import org.openscada.opc.dcom.da.OPCITEMRESULT;
+import org.openscada.opc.lib.common.ConnectionInformation;
+
+/**
+ * Tests the chunked {@link Group#addItems(String...)}
+ */
+public class GroupAddItemsTest
+{
+    /**
+     * Fails every add operation containing the failing item and records the removed items
+     */
+    private static class FailingGroupStateMgt extends StandInGroupStateMgt
+    {
+        private final String failingItem;
+
+        private final List<Integer> removed = new ArrayList<Integer> ();
+
+        public FailingGroupStateMgt ( final String failingItem ) throws Exception
+        {
+            this.failingItem = failingItem;
+        }
+
+        @Override
+        protected KeyedResultSet<OPCITEMDEF, OPCITEMRESULT> add ( final OPCITEMDEF... items ) throws JIException
+        {
+            for ( final OPCITEMDEF def : items )
+            {
+                if ( def.getItemID ().equals ( this.failingItem ) )
+                {
+                    throw new JIException ( 0x80004005 );
+                }
+            }
+            return super.add ( items );
+        }
+
+        @Override
+        protected ResultSet<Integer> remove ( final Integer... serverHandles ) throws JIException
+        {
+            this.removed.addAll ( Arrays.asList ( serverHandles ) );
+            return super.remove ( serverHandles );
+        }
+    }
+
+    private FailingGroupStateMgt stateMgt;
+
+    private Group group;
+
+    @Before
+    public void setup () throws Exception
+    {
+        final Server server = new Server ( new ConnectionInformation (), null );
+        server.setAddChunkSizer ( new AdaptiveChunkSizer ( 1, 2, 2, Long.MAX_VALUE ) );
+        this.stateMgt = new FailingGroupStateMgt ( "c" );
+        this.group = this.stateMgt.createGroup ( server, 1 );
+    }
+
+    @Test
+    public void testChunks () throws Exception
+    {
+        final Map<String, Item> items = this.group.addItems ( "a", "b", "d", "e", "f" );
+
+        Assert.assertEquals ( new HashSet<String> ( Arrays.asList ( "a", "b", "d", "e", "f" ) ), items.keySet () );
+        for ( final Map.Entry<String, Item> entry : items.entrySet () )
+        {
+            Assert.assertSame ( entry.getValue (), this.group.getItemByOPCItemId ( entry.getKey () ) );
+        }
+    }
+
+    /**
+     * If a chunk fails after its retry no item of the call stays in the group, but items
+     * which were added before the call are kept
+     */
+    @Test
+    public void testFailedChunkRemovesAddedItems () throws Exception
+    {
+        final Item existing = this.group.addItem ( "a" );
+
+        try
+        {
+            this.group.addItems ( "a", "b", "c", "d" );
+            Assert.fail ( "The add operation must fail" );
+        }
+        catch ( final JIException e )
+        {
+        }
+
+        Assert.assertSame ( existing, this.group.getItemByOPCItemId ( "a" ) );
+        Assert.assertNull ( this.group.getItemByOPCItemId ( "b" ) );
+        Assert.assertNull ( this.group.getItemByOPCItemId ( "c" ) );
+        Assert.assertNull ( this.group.getItemByOPCItemId ( "d" ) );
+
+        // only "b" was added by the failed call
+        Assert.assertEquals ( 1, this.stateMgt.removed.size () );
+        Assert.assertFalse ( this.stateMgt.removed.contains ( existing.getServerHandle () ) );
+
+        // the removed item can be added again
+        final Set<String> ids = this.group.addItems ( "b", "d" ).keySet ();
+        Assert.assertEquals ( new HashSet<String> ( Arrays.asList ( "b", "d" ) ), ids );
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * This file is part of the OpenSCADA project
+ * Copyright (C) 2006-2011 TH4 SYSTEMS GmbH (http://th4-systems.com)
+ *
+ * OpenSCADA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License version 3
+ * only, as published by the Free Software Foundation.
+ *
+ * OpenSCADA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License version 3 for more details
+ * (a copy is included in the LICENSE file that accompanied this code).
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * version 3 along with OpenSCADA. If not, see
+ * <http://opensource.org/licenses/lgpl-3.0.html> for a copy of the LGPLv3 License.
+ */
+
+package org.openscada.opc.lib.da;
+
+import org.jinterop.dcom.core.JIVariant;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests for the value comparison of {@link ItemState}
+ */
+public class ItemStateTest
+{
+    private static ItemState createState ( final double value )
+    {
+        return new ItemState ( 0, new JIVariant ( value ), 1000L, (short)192 );
+    }
+
+    @Test
+    public void testVariants ()
+    {
+        final ItemState state = createState ( 1.5 );
+        Assert.assertTrue ( state.valueEquals ( state ) );
+        // distinct variants which were never decoded are compared by type and value
+        Assert.assertTrue ( createState ( 1.5 ).valueEquals ( createState ( 1.5 ) ) );
+        Assert.assertEquals ( createState ( 1.5 ), createState ( 1.5 ) );
+        Assert.assertFalse ( createState ( 1.5 ).valueEquals ( createState ( 2.5 ) ) );
+        Assert.assertFalse ( createState ( 1.5 ).valueEquals ( new ItemState ( 0, new JIVariant ( 1.5f ), 1000L, (short)192 ) ) );
+    }
+
+    @Test
+    public void testUndecodableVariants ()
+    {
+        final JIVariant value = new JIVariant ( "value" );
+        final ItemState state = new ItemState ( 0, value, 1000L, (short)192 );
+
+        // variants which cannot be decoded into primitives are only equal to the same instance
+        Assert.assertTrue ( state.valueEquals ( new ItemState ( 0, value, 1000L, (short)192 ) ) );
+        Assert.assertFalse ( state.valueEquals ( new ItemState ( 0, new JIVariant ( "value" ), 1000L, (short)192 ) ) );
+        Assert.assertFalse ( state.valueEquals ( createState ( 1.5 ) ) );
+        Assert.assertTrue ( new ItemState ().valueEquals ( new ItemState () ) );
+    }
+
+    @Test
+    public void testTypedValues () throws Exception
+    {
+        final ItemState a = createState ( 1.5 );
+        final ItemState b = createState ( 1.5 );
+        final ItemState c = createState ( 2.5 );
+        a.getTypedValue ();
+        b.getTypedValue ();
+        c.getTypedValue ();
+
+        Assert.assertEquals ( a, b );
+        Assert.assertEquals ( a.hashCode (), b.hashCode () );
+        Assert.assertFalse ( a.equals ( c ) );
+    }
+
+    @Test
+    public void testMixed () throws Exception
+    {
+        final ItemState typed = createState ( 1.5 );
+        typed.getTypedValue ();
+
+        Assert.assertTrue ( typed.valueEquals ( createState ( 1.5 ) ) );
+        Assert.assertTrue ( createState ( 1.5 ).valueEquals ( typed ) );
+        Assert.assertFalse ( typed.valueEquals ( createState ( 2.5 ) ) );
+        Assert.assertEquals ( typed.hashCode (), createState ( 1.5 ).hashCode () );
+    }
+}
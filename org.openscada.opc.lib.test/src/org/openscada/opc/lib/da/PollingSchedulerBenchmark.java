@@ -0,0 +1,284 @@
+/*
+ * This file is part of the OpenSCADA project
+ * Copyright (C) 2006-2011 TH4 SYSTEMS GmbH (http://th4-systems.com)
+ *
+ * OpenSCADA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License version 3
+ * only, as published by the Free Software Foundation.
+ *
+ * OpenSCADA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License version 3 for more details
+ * (a copy is included in the LICENSE file that accompanied this code).
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * version 3 along with OpenSCADA. If not, see
+ * <http://opensource.org/licenses/lgpl-3.0.html> for a copy of the LGPLv3 License.
+ */
+
+package org.openscada.opc.lib.da;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.jinterop.dcom.common.JIException;
+import org.openscada.opc.dcom.common.KeyedResult;
+import org.openscada.opc.dcom.common.KeyedResultSet;
+import org.openscada.opc.dcom.da.OPCDATASOURCE;
+import org.openscada.opc.dcom.da.OPCITEMDEF;
+import org.openscada.opc.dcom.da.OPCITEMRESULT;
+import org.openscada.opc.dcom.da.OPCITEMSTATE;
+import org.openscada.opc.lib.common.ConnectionInformation;
+
+/**
+ * Compares polling with one thread per {@link SyncAccess} to polling on a shared
+ * {@link PollingScheduler}.
+ * <p>
+ * The accesses poll real {@link Group} instances whose OPC interfaces are replaced
+ * by in-process stand-ins, so each cycle runs through {@link SyncAccess}, the group
+ * read and the update of the item states. Each read blocks for a fixed latency while
+ * holding the lock of its stand-in server, like a DCOM call.
+ * </p>
+ * <p>
+ * Optional arguments: number of accesses (default 1000), number of servers (default 60),
+ * period in ms (default 250), read latency in ms (default 1), scheduler threads (default 8),
+ * duration in seconds (default 5), items per access (default 10)
+ * </p>
+ */
+public class PollingSchedulerBenchmark
+{
+    private static final DataCallback NO_OP = new DataCallback ()
+    {
+        public void changed ( final Item item, final ItemState itemState )
+        {
+        }
+    };
+
+    private static class StandInServer
+    {
+        private final long latencyNanos;
+
+        public StandInServer ( final long latencyNanos )
+        {
+            this.latencyNanos = latencyNanos;
+        }
+
+        public synchronized void call ()
+        {
+            LockSupport.parkNanos ( this.latencyNanos );
+        }
+    }
+
+    /**
+     * Calls the stand-in server for every operation, reads a changing value for every item
+     * and records the deviation of the read intervals
+     */
+    private static class LatencyGroupStateMgt extends StandInGroupStateMgt
+    {
+        private final StandInServer standIn;
+
+        private final long periodNanos;
+
+        private int value;
+
+        private long lastStart = -1;
+
+        private long intervals;
+
+        private long totalDeviation;
+
+        private long maxDeviation;
+
+        public LatencyGroupStateMgt ( final StandInServer standIn, final int period ) throws IllegalArgumentException, UnknownHostException, JIException
+        {
+            this.standIn = standIn;
+            this.periodNanos = TimeUnit.MILLISECONDS.toNanos ( period );
+        }
+
+        @Override
+        protected KeyedResultSet<OPCITEMDEF, OPCITEMRESULT> add ( final OPCITEMDEF... items ) throws JIException
+        {
+            this.standIn.call ();
+            return super.add ( items );
+        }
+
+        @Override
+        protected KeyedResultSet<Integer, OPCITEMSTATE> read ( final OPCDATASOURCE source, final Integer... serverHandles ) throws JIException
+        {
+            final long now = System.nanoTime ();
+            final int value;
+            synchronized ( this )
+            {
+                if ( this.lastStart >= 0 )
+                {
+                    final long deviation = Math.abs ( now - this.lastStart - this.periodNanos );
+                    this.intervals++;
+                    this.totalDeviation += deviation;
+                    this.maxDeviation = Math.max ( this.maxDeviation, deviation );
+                }
+                this.lastStart = now;
+                value = ++this.value;
+            }
+
+            this.standIn.call ();
+
+            final KeyedResultSet<Integer, OPCITEMSTATE> result = new KeyedResultSet<Integer, OPCITEMSTATE> ( serverHandles.length );
+            for ( final Integer handle : serverHandles )
+            {
+                result.add ( new KeyedResult<Integer, OPCITEMSTATE> ( handle, createState ( value ), 0 ) );
+            }
+            return result;
+        }
+    }
+
+    private static class StandInAccess extends SyncAccess
+    {
+        private final LatencyGroupStateMgt stateMgt;
+
+        private final int itemCount;
+
+        public StandInAccess ( final Server server, final StandInServer standIn, final int period, final int itemCount ) throws Exception
+        {
+            super ( server, period );
+            this.stateMgt = new LatencyGroupStateMgt ( standIn, period );
+            this.itemCount = itemCount;
+        }
+
+        public synchronized void realize () throws Exception
+        {
+            final String[] itemIds = new String[this.itemCount];
+            for ( int i = 0; i < itemIds.length; i++ )
+            {
+                itemIds[i] = String.format ( "item.%d.%d", System.identityHashCode ( this ), i );
+                this.itemSet.put ( itemIds[i], NO_OP );
+            }
+
+            final Group group = this.stateMgt.createGroup ( this.server, System.identityHashCode ( this ) );
+            for ( final Map.Entry<String, Item> entry : group.addItems ( itemIds ).entrySet () )
+            {
+                attachItem ( entry.getKey (), entry.getValue () );
+            }
+
+            this.group = group;
+            this.groups = new Group[] { group };
+        }
+
+        public synchronized void begin ()
+        {
+            this.active = true;
+            startPolling ();
+        }
+
+        public synchronized void end ()
+        {
+            this.active = false;
+            stopPolling ();
+        }
+
+        public LatencyGroupStateMgt getStateMgt ()
+        {
+            return this.stateMgt;
+        }
+    }
+
+    public static void main ( final String[] args ) throws Exception
+    {
+        final int accessCount = args.length > 0 ? Integer.parseInt ( args[0] ) : 1000;
+        final int serverCount = args.length > 1 ? Integer.parseInt ( args[1] ) : 60;
+        final int period = args.length > 2 ? Integer.parseInt ( args[2] ) : 250;
+        final int latency = args.length > 3 ? Integer.parseInt ( args[3] ) : 1;
+        final int threads = args.length > 4 ? Integer.parseInt ( args[4] ) : 8;
+        final int duration = args.length > 5 ? Integer.parseInt ( args[5] ) : 5;
+        final int itemCount = args.length > 6 ? Integer.parseInt ( args[6] ) : 10;
+
+        System.out.println ( String.format ( "Accesses: %d, servers: %d, period: %d ms, latency: %d ms, duration: %d s, items: %d", accessCount, serverCount, period, latency, duration, itemCount ) );
+
+        run ( "thread per access", null, accessCount, serverCount, period, latency, duration, itemCount );
+
+        final PollingScheduler scheduler = new PollingScheduler ( threads );
+        try
+        {
+            run ( String.format ( "shared scheduler (%d threads)", threads ), scheduler, accessCount, serverCount, period, latency, duration, itemCount );
+        }
+        finally
+        {
+            scheduler.dispose ();
+        }
+    }
+
+    private static void run ( final String name, final PollingScheduler scheduler, final int accessCount, final int serverCount, final int period, final int latency, final int duration, final int itemCount ) throws Exception
+    {
+        final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean ();
+        final int threadsBefore = threadBean.getThreadCount ();
+        threadBean.resetPeakThreadCount ();
+
+        final List<StandInServer> standIns = new ArrayList<StandInServer> ( serverCount );
+        final List<Server> servers = new ArrayList<Server> ( serverCount );
+        for ( int i = 0; i < serverCount; i++ )
+        {
+            standIns.add ( new StandInServer ( TimeUnit.MILLISECONDS.toNanos ( latency ) ) );
+            servers.add ( new Server ( new ConnectionInformation (), null ) );
+        }
+
+        final List<StandInAccess> accesses = new ArrayList<StandInAccess> ( accessCount );
+        for ( int i = 0; i < accessCount; i++ )
+        {
+            final StandInAccess access = new StandInAccess ( servers.get ( i % serverCount ), standIns.get ( i % serverCount ), period, itemCount );
+            access.setFixedRate ( true );
+            access.setScheduler ( scheduler );
+            accesses.add ( access );
+        }
+
+        for ( final StandInAccess access : accesses )
+        {
+            access.realize ();
+        }
+        for ( final StandInAccess access : accesses )
+        {
+            access.begin ();
+        }
+
+        Thread.sleep ( TimeUnit.SECONDS.toMillis ( duration ) );
+
+        final int peakThreads = threadBean.getPeakThreadCount ();
+
+        for ( final StandInAccess access : accesses )
+        {
+            access.end ();
+        }
+
+        long cycles = 0;
+        long overruns = 0;
+        long failures = 0;
+        long intervals = 0;
+        long totalDeviation = 0;
+        long maxDeviation = 0;
+        for ( final StandInAccess access : accesses )
+        {
+            cycles += access.getStatistics ().getCycles ();
+            overruns += access.getStatistics ().getOverruns ();
+            failures += access.getStatistics ().getFailedCycles ();
+            final LatencyGroupStateMgt stateMgt = access.getStateMgt ();
+            synchronized ( stateMgt )
+            {
+                intervals += stateMgt.intervals;
+                totalDeviation += stateMgt.totalDeviation;
+                maxDeviation = Math.max ( maxDeviation, stateMgt.maxDeviation );
+            }
+        }
+
+        // the first cycle of each access runs immediately
+        final long expected = (long)accessCount * ( duration * 1000L / period + 1 );
+        System.out.println ( String.format ( "%-32s - cycles: %d of %d (%.1f%%), overruns: %d, failures: %d, interval deviation avg: %.2f ms, max: %.2f ms, threads: %d (peak %d)", name, cycles, expected, 100.0 * cycles / expected, overruns, failures, intervals == 0 ? 0.0 : totalDeviation / 1000000.0 / intervals, maxDeviation / 1000000.0, peakThreads - threadsBefore, peakThreads ) );
+
+        // let the threads of the previous run terminate
+        Thread.sleep ( period * 2 );
+    }
+}
@@ -0,0 +1,274 @@
+/*
+ * This file is part of the OpenSCADA project
+ * Copyright (C) 2006-2011 TH4 SYSTEMS GmbH (http://th4-systems.com)
+ *
+ * OpenSCADA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License version 3
+ * only, as published by the Free Software Foundation.
+ *
+ * OpenSCADA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License version 3 for more details
+ * (a copy is included in the LICENSE file that accompanied this code).
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * version 3 along with OpenSCADA. If not, see
+ * <http://opensource.org/licenses/lgpl-3.0.html> for a copy of the LGPLv3 License.
+ */
+
+package org.openscada.opc.lib.da;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.openscada.opc.lib.common.ConnectionInformation;
+
+/**
+ * Tests for {@link ReconnectPolicy}
+ */
+public class ReconnectPolicyTest
+{
+    private static class TestAttempt extends ReconnectPolicy.ConnectAttempt
+    {
+        private final ReconnectPolicy policy;
+
+        private final String name;
+
+        private final List<String> started;
+
+        private final CountDownLatch release = new CountDownLatch ( 1 );
+
+        public TestAttempt ( final ReconnectPolicy policy, final String host, final String name, final List<String> started )
+        {
+            super ( host );
+            this.policy = policy;
+            this.name = name;
+            this.started = started;
+        }
+
+        public void run ()
+        {
+            this.started.add ( this.name );
+            try
+            {
+                this.release.await ( 10, TimeUnit.SECONDS );
+            }
+            catch ( final InterruptedException e )
+            {
+                Thread.currentThread ().interrupt ();
+            }
+            finally
+            {
+                this.policy.releaseConnect ( getHost () );
+            }
+        }
+
+        @Override
+        protected void rejected ( final RejectedExecutionException e )
+        {
+        }
+    }
+
+    private static void awaitStarted ( final List<String> started, final int count ) throws InterruptedException
+    {
+        final long deadline = System.currentTimeMillis () + 10000;
+        while ( started.size () < count )
+        {
+            Assert.assertTrue ( "Attempt did not start", System.currentTimeMillis () < deadline );
+            Thread.sleep ( 10 );
+        }
+    }
+
+    @Test
+    public void testFixedDelay ()
+    {
+        final ReconnectPolicy policy = ReconnectPolicy.fixedDelay ( 5000 );
+        for ( int i = 0; i < 10; i++ )
+        {
+            Assert.assertEquals ( 5000, policy.getDelay ( i ) );
+        }
+    }
+
+    @Test
+    public void testExponentialBackoff ()
+    {
+        final ReconnectPolicy policy = new ReconnectPolicy ( 1000, 60000 );
+        policy.setJitter ( false );
+
+        Assert.assertEquals ( 1000, policy.getDelay ( 0 ) );
+        Assert.assertEquals ( 2000, policy.getDelay ( 1 ) );
+        Assert.assertEquals ( 32000, policy.getDelay ( 5 ) );
+        Assert.assertEquals ( 60000, policy.getDelay ( 6 ) );
+        Assert.assertEquals ( 60000, policy.getDelay ( 1000 ) );
+    }
+
+    @Test
+    public void testFullJitter ()
+    {
+        final ReconnectPolicy policy = new ReconnectPolicy ( 1000, 60000 );
+
+        long sum = 0;
+        for ( int i = 0; i < 10000; i++ )
+        {
+            final long delay = policy.getDelay ( 3 );
+            Assert.assertTrue ( delay >= 0 && delay <= 8000 );
+            sum += delay;
+        }
+        // the delays are spread over the whole range
+        Assert.assertEquals ( 4000, sum / 10000, 200 );
+    }
+
+    @Test
+    public void testConnectsPerHost ()
+    {
+        final ReconnectPolicy policy = new ReconnectPolicy ( 1000, 60000 );
+        policy.setMaxConnectsPerHost ( 2 );
+
+        Assert.assertTrue ( policy.acquireConnect ( "host1" ) );
+        Assert.assertTrue ( policy.acquireConnect ( "host1" ) );
+        Assert.assertFalse ( policy.acquireConnect ( "host1" ) );
+        Assert.assertTrue ( policy.acquireConnect ( "host2" ) );
+        Assert.assertEquals ( 2, policy.getActiveConnects ( "host1" ) );
+
+        policy.releaseConnect ( "host1" );
+        Assert.assertTrue ( policy.acquireConnect ( "host1" ) );
+    }
+
+    @Test
+    public void testTotalConnects ()
+    {
+        final ReconnectPolicy policy = new ReconnectPolicy ( 1000, 60000 );
+        policy.setMaxConnects ( 3 );
+        policy.setMaxConnectsPerHost ( 2 );
+
+        Assert.assertTrue ( policy.acquireConnect ( "host1" ) );
+        Assert.assertTrue ( policy.acquireConnect ( "host1" ) );
+        Assert.assertFalse ( policy.acquireConnect ( "host1" ) );
+        Assert.assertEquals ( 2, policy.getActiveConnects () );
+
+        Assert.assertTrue ( policy.acquireConnect ( "host2" ) );
+        Assert.assertFalse ( policy.acquireConnect ( "host3" ) );
+        Assert.assertEquals ( 3, policy.getActiveConnects () );
+
+        policy.releaseConnect ( "host1" );
+        Assert.assertTrue ( policy.acquireConnect ( "host3" ) );
+        Assert.assertEquals ( 1, policy.getActiveConnects ( "host1" ) );
+    }
+
+    /**
+     * Attempts held back by the total limit start in order when a slot is released
+     */
+    @Test
+    public void testWaitingConnects () throws Exception
+    {
+        final ExecutorService executor = Executors.newCachedThreadPool ();
+        final ReconnectPolicy policy = new ReconnectPolicy ( 1000, 60000 );
+        policy.setConnectExecutor ( executor );
+        policy.setMaxConnects ( 1 );
+
+        final List<String> started = Collections.synchronizedList ( new ArrayList<String> () );
+        final TestAttempt a = new TestAttempt ( policy, "host1", "a", started );
+        final TestAttempt b = new TestAttempt ( policy, "host2", "b", started );
+        final TestAttempt c = new TestAttempt ( policy, "host3", "c", started );
+
+        policy.submitConnect ( a );
+        policy.submitConnect ( b );
+        policy.submitConnect ( c );
+        awaitStarted ( started, 1 );
+        Assert.assertEquals ( 2, policy.getWaitingConnects () );
+
+        a.release.countDown ();
+        awaitStarted ( started, 2 );
+        Assert.assertEquals ( "b", started.get ( 1 ) );
+        Assert.assertEquals ( 1, policy.getWaitingConnects () );
+
+        b.release.countDown ();
+        awaitStarted ( started, 3 );
+        Assert.assertEquals ( "c", started.get ( 2 ) );
+        Assert.assertEquals ( 0, policy.getWaitingConnects () );
+
+        c.release.countDown ();
+        executor.shutdown ();
+        Assert.assertTrue ( executor.awaitTermination ( 10, TimeUnit.SECONDS ) );
+        Assert.assertEquals ( 0, policy.getActiveConnects () );
+    }
+
+    /**
+     * An attempt waiting for its host does not hold back attempts for other hosts
+     */
+    @Test
+    public void testWaitingConnectsPerHost () throws Exception
+    {
+        final ExecutorService executor = Executors.newCachedThreadPool ();
+        final ReconnectPolicy policy = new ReconnectPolicy ( 1000, 60000 );
+        policy.setConnectExecutor ( executor );
+        policy.setMaxConnectsPerHost ( 1 );
+
+        final List<String> started = Collections.synchronizedList ( new ArrayList<String> () );
+        final TestAttempt a = new TestAttempt ( policy, "host1", "a", started );
+        final TestAttempt b = new TestAttempt ( policy, "host1", "b", started );
+        final TestAttempt c = new TestAttempt ( policy, "host2", "c", started );
+
+        policy.submitConnect ( a );
+        awaitStarted ( started, 1 );
+        policy.submitConnect ( b );
+        policy.submitConnect ( c );
+        awaitStarted ( started, 2 );
+        Assert.assertEquals ( "c", started.get ( 1 ) );
+        Assert.assertEquals ( 1, policy.getWaitingConnects () );
+
+        a.release.countDown ();
+        awaitStarted ( started, 3 );
+        Assert.assertEquals ( "b", started.get ( 2 ) );
+
+        b.release.countDown ();
+        c.release.countDown ();
+        executor.shutdown ();
+        Assert.assertTrue ( executor.awaitTermination ( 10, TimeUnit.SECONDS ) );
+        Assert.assertEquals ( 0, policy.getActiveConnects () );
+    }
+
+    /**
+     * The connect attempts run on the connect executor with the connect timeout of the policy
+     */
+    @Test
+    public void testConnectAttempt () throws Exception
+    {
+        final ReconnectPolicy policy = new ReconnectPolicy ( 10, 10 );
+        Assert.assertEquals ( ReconnectPolicy.DEFAULT_CONNECT_TIMEOUT, policy.getConnectTimeout () );
+
+        final CountDownLatch connected = new CountDownLatch ( 1 );
+        final AtomicReference<String> thread = new AtomicReference<String> ();
+        final AtomicInteger timeout = new AtomicInteger ( -1 );
+        final Server server = new Server ( new ConnectionInformation (), null ) {
+
+            @Override
+            public synchronized void connect ( final int connectTimeout )
+            {
+                thread.set ( Thread.currentThread ().getName () );
+                timeout.set ( connectTimeout );
+                connected.countDown ();
+            }
+        };
+
+        final AutoReconnectController controller = new AutoReconnectController ( server, policy );
+        controller.connect ();
+
+        Assert.assertTrue ( connected.await ( 10, TimeUnit.SECONDS ) );
+        Assert.assertTrue ( thread.get (), thread.get ().startsWith ( "UtgardConnect-" ) );
+        Assert.assertEquals ( ReconnectPolicy.DEFAULT_CONNECT_TIMEOUT, timeout.get () );
+        Assert.assertEquals ( 1, controller.getAttempts () );
+        controller.disconnect ();
+    }
+}
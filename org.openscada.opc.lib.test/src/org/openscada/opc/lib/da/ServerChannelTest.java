@@ -0,0 +1,171 @@
+/*
+ * This file is part of the OpenSCADA project
+ * Copyright (C) 2006-2011 TH4 SYSTEMS GmbH (http://th4-systems.com)
+ *
+ * OpenSCADA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License version 3
+ * only, as published by the Free Software Foundation.
+ *
+ * OpenSCADA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License version 3 for more details
+ * (a copy is included in the LICENSE file that accompanied this code).
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * version 3 along with OpenSCADA. If not, see
+ * <http://opensource.org/licenses/lgpl-3.0.html> for a copy of the LGPLv3 License.
+ */
+
+package org.openscada.opc.lib.da;
+
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.jinterop.dcom.common.JIException;
+import org.jinterop.dcom.core.JIComServer;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.openscada.opc.dcom.da.impl.OPCServer;
+import org.openscada.opc.lib.common.ConnectionInformation;
+
+/**
+ * Tests distributing the groups of a {@link Server} over its channels
+ */
+public class ServerChannelTest
+{
+    /**
+     * A server whose channels use stand-in OPC server objects
+     */
+    private static class StandInServer extends Server
+    {
+        private final List<StandInOPCServer> opcServers = new ArrayList<StandInOPCServer> ();
+
+        public StandInServer ( final int channelCount ) throws Exception
+        {
+            super ( createConnectionInformation (), null );
+            setChannelCount ( channelCount );
+            connect ();
+        }
+
+        @Override
+        OPCServer createOPCServer ( final JIComServer comServer ) throws IllegalArgumentException, UnknownHostException, JIException
+        {
+            final StandInOPCServer opcServer = new StandInOPCServer ();
+            this.opcServers.add ( opcServer );
+            return opcServer;
+        }
+    }
+
+    private static ConnectionInformation createConnectionInformation ()
+    {
+        final ConnectionInformation connectionInformation = new ConnectionInformation ();
+        connectionInformation.setHost ( "localhost" );
+        connectionInformation.setClsid ( "F8582CF2-88FB-11D0-B850-00C0F0104305" );
+        return connectionInformation;
+    }
+
+    private StandInServer server;
+
+    @After
+    public void teardown ()
+    {
+        if ( this.server != null )
+        {
+            this.server.disconnect ();
+        }
+    }
+
+    private static ServerChannel createChannel ( final int groups )
+    {
+        final ServerChannel channel = new ServerChannel ( null, null, null );
+        for ( int i = 0; i < groups; i++ )
+        {
+            channel.getGroups ().put ( i, null );
+        }
+        return channel;
+    }
+
+    @Test
+    public void testSelect ()
+    {
+        final ServerChannel first = createChannel ( 2 );
+        final ServerChannel second = createChannel ( 1 );
+        final ServerChannel third = createChannel ( 1 );
+
+        // the first of the channels with the least number of groups
+        Assert.assertSame ( second, ServerChannel.select ( Arrays.asList ( first, second, third ) ) );
+        Assert.assertSame ( first, ServerChannel.select ( Arrays.asList ( first ) ) );
+        Assert.assertNull ( ServerChannel.select ( new ArrayList<ServerChannel> () ) );
+    }
+
+    @Test
+    public void testAddGroup () throws Exception
+    {
+        this.server = new StandInServer ( 3 );
+        Assert.assertEquals ( 3, this.server.opcServers.size () );
+
+        for ( int i = 0; i < 7; i++ )
+        {
+            this.server.addGroup ( "group" + i );
+        }
+
+        final int[] counts = this.server.getChannelGroupCounts ();
+        Assert.assertEquals ( 3, counts.length );
+        Assert.assertEquals ( 3, counts[0] );
+        Assert.assertEquals ( 2, counts[1] );
+        Assert.assertEquals ( 2, counts[2] );
+    }
+
+    @Test
+    public void testFindGroup () throws Exception
+    {
+        this.server = new StandInServer ( 2 );
+
+        final Group first = this.server.addGroup ( "first" );
+        final Group second = this.server.addGroup ( "second" );
+        // both groups got the same server handle from their server object
+        Assert.assertEquals ( first.getServerHandle (), second.getServerHandle () );
+
+        Assert.assertSame ( first, this.server.findGroup ( "first" ) );
+        Assert.assertSame ( second, this.server.findGroup ( "second" ) );
+
+        try
+        {
+            this.server.findGroup ( "unknown" );
+            Assert.fail ( "Group must not be found" );
+        }
+        catch ( final UnknownGroupException e )
+        {
+        }
+    }
+
+    /**
+     * Removing a group of a secondary channel must not touch the group with the same handle on the first channel
+     */
+    @Test
+    public void testRemoveGroupOnSecondaryChannel () throws Exception
+    {
+        this.server = new StandInServer ( 2 );
+
+        final Group first = this.server.addGroup ( "first" );
+        final Group second = this.server.addGroup ( "second" );
+
+        second.remove ();
+
+        Assert.assertEquals ( Arrays.asList ( second.getServerHandle () ), this.server.opcServers.get ( 1 ).getRemovedGroups () );
+        Assert.assertTrue ( this.server.opcServers.get ( 0 ).getRemovedGroups ().isEmpty () );
+
+        final int[] counts = this.server.getChannelGroupCounts ();
+        Assert.assertEquals ( 1, counts[0] );
+        Assert.assertEquals ( 0, counts[1] );
+        Assert.assertSame ( first, this.server.findGroup ( "first" ) );
+
+        // the next group goes to the channel which is empty now
+        this.server.addGroup ( "third" );
+        Assert.assertEquals ( 1, this.server.getChannelGroupCounts ()[1] );
+    }
+}
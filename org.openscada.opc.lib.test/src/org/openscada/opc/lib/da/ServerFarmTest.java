@@ -0,0 +1,109 @@
+/*
+ * This file is part of the OpenSCADA project
+ * Copyright (C) 2006-2011 TH4 SYSTEMS GmbH (http://th4-systems.com)
+ *
+ * OpenSCADA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License version 3
+ * only, as published by the Free Software Foundation.
+ *
+ * OpenSCADA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License version 3 for more details
+ * (a copy is included in the LICENSE file that accompanied this code).
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * version 3 along with OpenSCADA. If not, see
+ * <http://opensource.org/licenses/lgpl-3.0.html> for a copy of the LGPLv3 License.
+ */
+
+package org.openscada.opc.lib.da;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.openscada.opc.lib.common.ConnectionInformation;
+
+/**
+ * Tests for {@link ServerFarm}
+ */
+public class ServerFarmTest
+{
+    @Test
+    public void testConnectAttempts () throws Exception
+    {
+        final ServerFarm farm = new ServerFarm ( 2, 2, 4 );
+        farm.getReconnectPolicy ().setJitter ( false );
+        Assert.assertEquals ( ReconnectPolicy.DEFAULT_CONNECT_TIMEOUT, farm.getReconnectPolicy ().getConnectTimeout () );
+
+        final int servers = 100;
+        for ( int i = 0; i < servers; i++ )
+        {
+            // neither clsid nor progid, so every attempt fails
+            final ConnectionInformation ci = new ConnectionInformation ();
+            ci.setHost ( "host" + i );
+            farm.addServer ( ci );
+        }
+        Assert.assertEquals ( servers, farm.getServerCount () );
+        Assert.assertEquals ( servers, farm.getStateCounts ().get ( AutoReconnectState.DISABLED ).intValue () );
+
+        farm.start ();
+
+        final long end = System.currentTimeMillis () + 5000;
+        while ( farm.getFailedConnectAttempts () < servers && System.currentTimeMillis () < end )
+        {
+            Thread.sleep ( 10 );
+        }
+
+        Assert.assertTrue ( farm.getFailedConnectAttempts () >= servers );
+        Assert.assertEquals ( 0, farm.getConnectedCount () );
+        Assert.assertEquals ( 0, farm.getStateCounts ().get ( AutoReconnectState.DISABLED ).intValue () );
+        Assert.assertTrue ( countThreads ( "UtgardFarm" ) <= 2 + 4 + 2 );
+
+        final Server server = farm.getServers ().get ( 0 );
+        Assert.assertTrue ( farm.removeServer ( server ) );
+        Assert.assertFalse ( farm.removeServer ( server ) );
+        Assert.assertNull ( farm.getController ( server ) );
+
+        farm.stop ();
+        Assert.assertEquals ( servers - 1, farm.getStateCounts ().get ( AutoReconnectState.DISABLED ).intValue () );
+        Assert.assertEquals ( 0, farm.getActiveConnects () );
+        farm.dispose ();
+    }
+
+    @Test
+    public void testDataStatistics () throws Exception
+    {
+        final ServerFarm farm = new ServerFarm ( 1, 1, 1 );
+        final Server first = farm.addServer ( new ConnectionInformation () );
+        final Server second = farm.addServer ( new ConnectionInformation () );
+
+        final Group firstGroup = new StandInGroupStateMgt ().createGroup ( first, 1 );
+        firstGroup.read ( false, firstGroup.addItems ( "a", "b", "c" ).values ().toArray ( new Item[0] ) );
+        final Group secondGroup = new StandInGroupStateMgt ().createGroup ( second, 1 );
+        secondGroup.read ( false, secondGroup.addItems ( "a" ).values ().toArray ( new Item[0] ) );
+        second.getDataStatistics ().recordUpdates ( 5 );
+
+        Assert.assertEquals ( 3, farm.getDataStatistics ().get ( first ).getReads () );
+        Assert.assertEquals ( 1, farm.getDataStatistics ().get ( second ).getReads () );
+        Assert.assertEquals ( 4, farm.getReads () );
+        Assert.assertEquals ( 5, farm.getUpdates () );
+        Assert.assertEquals ( 0, farm.getWrites () );
+
+        farm.removeServer ( first );
+        Assert.assertEquals ( 1, farm.getReads () );
+        farm.dispose ();
+    }
+
+    private static int countThreads ( final String prefix )
+    {
+        int result = 0;
+        for ( final Thread thread : Thread.getAllStackTraces ().keySet () )
+        {
+            if ( thread.getName ().startsWith ( prefix ) )
+            {
+                result++;
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ * This file is part of the OpenSCADA project
+ * Copyright (C) 2006-2011 TH4 SYSTEMS GmbH (http://th4-systems.com)
+ *
+ * OpenSCADA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License version 3
+ * only, as published by the Free Software Foundation.
+ *
+ * OpenSCADA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License version 3 for more details
+ * (a copy is included in the LICENSE file that accompanied this code).
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * version 3 along with OpenSCADA. If not, see
+ * <http://opensource.org/licenses/lgpl-3.0.html> for a copy of the LGPLv3 License.
+ */
+
+package org.openscada.opc.lib.da;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jinterop.dcom.common.JIException;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.openscada.opc.dcom.da.OPCSERVERSTATUS;
+import org.openscada.opc.dcom.da.impl.OPCServer;
+import org.openscada.opc.lib.common.ConnectionInformation;
+
+/**
+ * Tests for {@link ServerStateReader}
+ */
+public class ServerStateReaderTest
+{
+    /**
+     * A server whose state call blocks until released and ignores interrupts,
+     * like a call blocked on the socket
+     */
+    private static class BlockingOPCServer extends OPCServer
+    {
+        private final CountDownLatch release = new CountDownLatch ( 1 );
+
+        private final AtomicInteger calls = new AtomicInteger ();
+
+        public BlockingOPCServer () throws Exception
+        {
+            super ( StandInGroupStateMgt.COM_OBJECT );
+        }
+
+        @Override
+        public OPCSERVERSTATUS getStatus () throws JIException
+        {
+            this.calls.incrementAndGet ();
+            boolean interrupted = false;
+            while ( true )
+            {
+                try
+                {
+                    this.release.await ();
+                    break;
+                }
+                catch ( final InterruptedException e )
+                {
+                    interrupted = true;
+                }
+            }
+            if ( interrupted )
+            {
+                Thread.currentThread ().interrupt ();
+            }
+            return new OPCSERVERSTATUS ();
+        }
+    }
+
+    private ScheduledExecutorService scheduler;
+
+    private ExecutorService executor;
+
+    @Before
+    public void setup ()
+    {
+        this.scheduler = Executors.newSingleThreadScheduledExecutor ();
+        this.executor = Executors.newCachedThreadPool ();
+    }
+
+    @After
+    public void dispose ()
+    {
+        this.scheduler.shutdownNow ();
+        this.executor.shutdownNow ();
+    }
+
+    private static void await ( final String message, final AtomicInteger value, final int expected ) throws InterruptedException
+    {
+        final long deadline = System.currentTimeMillis () + 10000;
+        while ( value.get () < expected )
+        {
+            Assert.assertTrue ( message, System.currentTimeMillis () < deadline );
+            Thread.sleep ( 10 );
+        }
+    }
+
+    @Test
+    public void testTimeoutKeepsCheckRunning () throws Exception
+    {
+        final BlockingOPCServer opcServer = new BlockingOPCServer ();
+        final Server server = new Server ( new ConnectionInformation (), this.scheduler ) {
+
+            @Override
+            List<OPCServer> getOPCServers ()
+            {
+                return Arrays.<OPCServer> asList ( opcServer );
+            }
+        };
+
+        final AtomicInteger failures = new AtomicInteger ();
+        final AtomicInteger states = new AtomicInteger ();
+        final ServerStateReader reader = new ServerStateReader ( server, this.scheduler, this.executor, 20 );
+        reader.setTimeout ( 50 );
+        reader.addListener ( new ServerStateListener () {
+
+            public void stateUpdate ( final OPCSERVERSTATUS state )
+            {
+                ( state == null ? failures : states ).incrementAndGet ();
+            }
+        } );
+        reader.start ();
+
+        await ( "Check did not time out", failures, 1 );
+        Assert.assertEquals ( 1, reader.getTimeouts () );
+
+        // the blocked call still occupies its thread, so no further checks are started
+        Thread.sleep ( 200 );
+        Assert.assertEquals ( 1, opcServer.calls.get () );
+        Assert.assertEquals ( 1, failures.get () );
+        Assert.assertTrue ( reader.getStatistics ().getOverruns () > 0 );
+
+        // the timed out check is not reported again once the call returns
+        opcServer.release.countDown ();
+        await ( "No check after the call returned", states, 1 );
+        Assert.assertEquals ( 1, failures.get () );
+        Assert.assertEquals ( 1, reader.getTimeouts () );
+        reader.stop ();
+    }
+
+    /**
+     * A failure of any channel disposes the server
+     */
+    @Test
+    public void testChannelFailure () throws Exception
+    {
+        final BlockingOPCServer channel0 = new BlockingOPCServer ();
+        channel0.release.countDown ();
+        final OPCServer channel1 = new OPCServer ( StandInGroupStateMgt.COM_OBJECT ) {
+
+            @Override
+            public OPCSERVERSTATUS getStatus () throws JIException
+            {
+                throw new JIException ( 0x80004005 );
+            }
+        };
+
+        final AtomicInteger disposed = new AtomicInteger ();
+        final Server server = new Server ( new ConnectionInformation (), this.scheduler ) {
+
+            @Override
+            List<OPCServer> getOPCServers ()
+            {
+                return Arrays.<OPCServer> asList ( channel0, channel1 );
+            }
+
+            @Override
+            public void dispose ()
+            {
+                disposed.incrementAndGet ();
+            }
+        };
+
+        final AtomicInteger failures = new AtomicInteger ();
+        final ServerStateReader reader = new ServerStateReader ( server, this.scheduler, this.executor, 20 );
+        reader.addListener ( new ServerStateListener () {
+
+            public void stateUpdate ( final OPCSERVERSTATUS state )
+            {
+                if ( state == null )
+                {
+                    failures.incrementAndGet ();
+                }
+            }
+        } );
+        reader.start ();
+
+        await ( "Failure not reported", failures, 1 );
+        reader.stop ();
+        Assert.assertTrue ( disposed.get () >= 1 );
+        Assert.assertTrue ( channel0.calls.get () >= 1 );
+        Assert.assertEquals ( 0, reader.getTimeouts () );
+    }
+}
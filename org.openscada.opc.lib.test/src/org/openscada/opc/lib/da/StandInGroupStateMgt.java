@@ -0,0 +1,176 @@
+/*
+ * This file is part of the OpenSCADA project
+ * Copyright (C) 2006-2011 TH4 SYSTEMS GmbH (http://th4-systems.com)
+ *
+ * OpenSCADA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License version 3
+ * only, as published by the Free Software Foundation.
+ *
+ * OpenSCADA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License version 3 for more details
+ * (a copy is included in the LICENSE file that accompanied this code).
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * version 3 along with OpenSCADA. If not, see
+ * <http://opensource.org/licenses/lgpl-3.0.html> for a copy of the LGPLv3 License.
+ */
+
+package org.openscada.opc.lib.da;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.UnknownHostException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jinterop.dcom.common.JIException;
+import org.jinterop.dcom.core.IJIComObject;
+import org.jinterop.dcom.core.JIVariant;
+import org.openscada.opc.dcom.common.FILETIME;
+import org.openscada.opc.dcom.common.KeyedResult;
+import org.openscada.opc.dcom.common.KeyedResultSet;
+import org.openscada.opc.dcom.common.Result;
+import org.openscada.opc.dcom.common.ResultSet;
+import org.openscada.opc.dcom.da.OPCDATASOURCE;
+import org.openscada.opc.dcom.da.OPCGroupState;
+import org.openscada.opc.dcom.da.OPCITEMDEF;
+import org.openscada.opc.dcom.da.OPCITEMRESULT;
+import org.openscada.opc.dcom.da.OPCITEMSTATE;
+import org.openscada.opc.dcom.da.impl.OPCGroupStateMgt;
+import org.openscada.opc.dcom.da.impl.OPCItemMgt;
+import org.openscada.opc.dcom.da.impl.OPCSyncIO;
+
+/**
+ * An in-process stand-in for the OPC interfaces of a group
+ * <p>
+ * Adding and removing items always succeeds, reading returns the server handle of
+ * each item as its value. Subclasses override {@link #add(OPCITEMDEF...)},
+ * {@link #remove(Integer...)} and {@link #read(OPCDATASOURCE, Integer...)} to
+ * simulate latency or failures.
+ * </p>
+ */
+class StandInGroupStateMgt extends OPCGroupStateMgt
+{
+    /**
+     * The COM object of the stand-in interfaces, it only supports <code>queryInterface</code>
+     */
+    static final IJIComObject COM_OBJECT = (IJIComObject)Proxy.newProxyInstance ( StandInGroupStateMgt.class.getClassLoader (), new Class<?>[] { IJIComObject.class }, new InvocationHandler ()
+    {
+        public Object invoke ( final Object proxy, final Method method, final Object[] args )
+        {
+            if ( "queryInterface".equals ( method.getName () ) )
+            {
+                return proxy;
+            }
+            throw new UnsupportedOperationException ( method.getName () );
+        }
+    } );
+
+    private final AtomicInteger nextHandle = new AtomicInteger ();
+
+    private final OPCGroupState state = new OPCGroupState ();
+
+    private final OPCItemMgt itemMgt;
+
+    private final OPCSyncIO syncIO;
+
+    public StandInGroupStateMgt () throws IllegalArgumentException, UnknownHostException, JIException
+    {
+        super ( COM_OBJECT );
+        this.itemMgt = new OPCItemMgt ( COM_OBJECT )
+        {
+            @Override
+            public KeyedResultSet<OPCITEMDEF, OPCITEMRESULT> add ( final OPCITEMDEF... items ) throws JIException
+            {
+                return StandInGroupStateMgt.this.add ( items );
+            }
+
+            @Override
+            public ResultSet<Integer> remove ( final Integer... serverHandles ) throws JIException
+            {
+                return StandInGroupStateMgt.this.remove ( serverHandles );
+            }
+        };
+        this.syncIO = new OPCSyncIO ( COM_OBJECT )
+        {
+            @Override
+            public KeyedResultSet<Integer, OPCITEMSTATE> read ( final OPCDATASOURCE source, final Integer... serverHandles ) throws JIException
+            {
+                return StandInGroupStateMgt.this.read ( source, serverHandles );
+            }
+        };
+    }
+
+    /**
+     * Create a group using the stand-in interfaces
+     * @param server the server of the group
+     * @param serverHandle the server handle of the group
+     * @return the new group
+     */
+    public Group createGroup ( final Server server, final int serverHandle ) throws IllegalArgumentException, UnknownHostException, JIException
+    {
+        this.state.setServerHandle ( serverHandle );
+        return new Group ( server, serverHandle, this );
+    }
+
+    @Override
+    public OPCGroupState getState ()
+    {
+        return this.state;
+    }
+
+    @Override
+    public OPCItemMgt getItemManagement ()
+    {
+        return this.itemMgt;
+    }
+
+    @Override
+    public OPCSyncIO getSyncIO ()
+    {
+        return this.syncIO;
+    }
+
+    protected KeyedResultSet<OPCITEMDEF, OPCITEMRESULT> add ( final OPCITEMDEF... items ) throws JIException
+    {
+        final KeyedResultSet<OPCITEMDEF, OPCITEMRESULT> result = new KeyedResultSet<OPCITEMDEF, OPCITEMRESULT> ( items.length );
+        for ( final OPCITEMDEF def : items )
+        {
+            final OPCITEMRESULT itemResult = new OPCITEMRESULT ();
+            itemResult.setServerHandle ( this.nextHandle.incrementAndGet () );
+            result.add ( new KeyedResult<OPCITEMDEF, OPCITEMRESULT> ( def, itemResult, 0 ) );
+        }
+        return result;
+    }
+
+    protected ResultSet<Integer> remove ( final Integer... serverHandles ) throws JIException
+    {
+        final ResultSet<Integer> result = new ResultSet<Integer> ( serverHandles.length );
+        for ( final Integer handle : serverHandles )
+        {
+            result.add ( new Result<Integer> ( handle, 0 ) );
+        }
+        return result;
+    }
+
+    protected KeyedResultSet<Integer, OPCITEMSTATE> read ( final OPCDATASOURCE source, final Integer... serverHandles ) throws JIException
+    {
+        final KeyedResultSet<Integer, OPCITEMSTATE> result = new KeyedResultSet<Integer, OPCITEMSTATE> ( serverHandles.length );
+        for ( final Integer handle : serverHandles )
+        {
+            result.add ( new KeyedResult<Integer, OPCITEMSTATE> ( handle, createState ( handle ), 0 ) );
+        }
+        return result;
+    }
+
+    protected static OPCITEMSTATE createState ( final int value )
+    {
+        final OPCITEMSTATE state = new OPCITEMSTATE ();
+        state.setValue ( new JIVariant ( value ) );
+        state.setTimestamp ( new FILETIME () );
+        state.setQuality ( (short)192 );
+        return state;
+    }
+}
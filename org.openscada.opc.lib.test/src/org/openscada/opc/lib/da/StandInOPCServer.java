@@ -0,0 +1,116 @@
+/*
+ * This file is part of the OpenSCADA project
+ * Copyright (C) 2006-2011 TH4 SYSTEMS GmbH (http://th4-systems.com)
+ *
+ * OpenSCADA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License version 3
+ * only, as published by the Free Software Foundation.
+ *
+ * OpenSCADA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License version 3 for more details
+ * (a copy is included in the LICENSE file that accompanied this code).
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * version 3 along with OpenSCADA. If not, see
+ * <http://opensource.org/licenses/lgpl-3.0.html> for a copy of the LGPLv3 License.
+ */
+
+package org.openscada.opc.lib.da;
+
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jinterop.dcom.common.JIException;
+import org.openscada.opc.dcom.da.impl.OPCGroupStateMgt;
+import org.openscada.opc.dcom.da.impl.OPCServer;
+
+/**
+ * An in-process stand-in for the OPC server object of one channel
+ * <p>
+ * Groups use the interfaces created by {@link #createGroupStateMgt()}. Their
+ * server handles are counted per instance starting at <code>1</code>, so the
+ * handles of two instances collide like those of two real server objects.
+ * </p>
+ */
+class StandInOPCServer extends OPCServer
+{
+    /**
+     * The error code of the server if a group name is unknown
+     */
+    static final int E_INVALIDARG = 0x80070057;
+
+    private final AtomicInteger nextHandle = new AtomicInteger ();
+
+    private final Map<String, OPCGroupStateMgt> groups = new LinkedHashMap<String, OPCGroupStateMgt> ();
+
+    private final List<Integer> removedGroups = new ArrayList<Integer> ();
+
+    public StandInOPCServer () throws IllegalArgumentException, UnknownHostException, JIException
+    {
+        super ( StandInGroupStateMgt.COM_OBJECT );
+    }
+
+    /**
+     * Create the interfaces of a new group
+     * @return the group interfaces
+     */
+    protected StandInGroupStateMgt createGroupStateMgt () throws IllegalArgumentException, UnknownHostException, JIException
+    {
+        return new StandInGroupStateMgt ();
+    }
+
+    @Override
+    public OPCGroupStateMgt addGroup ( final String name, final boolean active, final int updateRate, final int clientHandle, final Integer timeBias, final Float percentDeadband, final int localeID ) throws JIException, IllegalArgumentException, UnknownHostException
+    {
+        final StandInGroupStateMgt groupMgt = createGroupStateMgt ();
+        final int serverHandle = this.nextHandle.incrementAndGet ();
+        groupMgt.getState ().setServerHandle ( serverHandle );
+        groupMgt.getState ().setName ( name != null ? name : "Group" + serverHandle );
+        synchronized ( this )
+        {
+            this.groups.put ( groupMgt.getState ().getName (), groupMgt );
+        }
+        return groupMgt;
+    }
+
+    @Override
+    public synchronized OPCGroupStateMgt getGroupByName ( final String name ) throws JIException, IllegalArgumentException, UnknownHostException
+    {
+        final OPCGroupStateMgt groupMgt = this.groups.get ( name );
+        if ( groupMgt == null )
+        {
+            throw new JIException ( E_INVALIDARG );
+        }
+        return groupMgt;
+    }
+
+    @Override
+    public synchronized void removeGroup ( final int serverHandle, final boolean force ) throws JIException
+    {
+        for ( final Map.Entry<String, OPCGroupStateMgt> entry : this.groups.entrySet () )
+        {
+            if ( entry.getValue ().getState ().getServerHandle () == serverHandle )
+            {
+                this.groups.remove ( entry.getKey () );
+                this.removedGroups.add ( serverHandle );
+                return;
+            }
+        }
+        throw new JIException ( E_INVALIDARG );
+    }
+
+    /**
+     * Get the server handles of the removed groups
+     * @return the server handles in the order the groups were removed
+     */
+    public synchronized List<Integer> getRemovedGroups ()
+    {
+        return new ArrayList<Integer> ( this.removedGroups );
+    }
+}
@@ -0,0 +1,241 @@
+/*
+ * This file is part of the OpenSCADA project
+ * Copyright (C) 2006-2011 TH4 SYSTEMS GmbH (http://th4-systems.com)
+ *
+ * OpenSCADA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License version 3
+ * only, as published by the Free Software Foundation.
+ *
+ * OpenSCADA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License version 3 for more details
+ * (a copy is included in the LICENSE file that accompanied this code).
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * version 3 along with OpenSCADA. If not, see
+ * <http://opensource.org/licenses/lgpl-3.0.html> for a copy of the LGPLv3 License.
+ */
+
+package org.openscada.opc.lib.da;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.jinterop.dcom.common.JIException;
+import org.junit.Assert;
+import org.junit.Test;
+import org.openscada.opc.lib.common.ConnectionInformation;
+import org.openscada.opc.lib.da.SubscriptionManager.SubscriptionKey;
+
+/**
+ * Tests for {@link SubscriptionManager}
+ */
+public class SubscriptionManagerTest
+{
+    /**
+     * Records the item operations and fails adding the items of the failing set
+     */
+    private static class TestAccess extends AccessBase
+    {
+        private final List<String> operations = new ArrayList<String> ();
+
+        private final Set<String> failing;
+
+        public TestAccess ( final Server server, final Set<String> failing )
+        {
+            super ( server, 0, null );
+            this.failing = failing;
+        }
+
+        @Override
+        public synchronized void addItem ( final String itemId, final DataCallback dataCallback ) throws JIException, AddFailedException
+        {
+            this.operations.add ( "add:" + itemId );
+            if ( this.failing.contains ( itemId ) )
+            {
+                // like a failed realization the item was already put into the item set
+                this.itemSet.put ( itemId, dataCallback );
+                throw new AddFailedException ( Collections.singletonMap ( itemId, 0xC0040007 ), new HashMap<String, Item> () );
+            }
+            super.addItem ( itemId, dataCallback );
+        }
+
+        @Override
+        public synchronized void removeItem ( final String itemId )
+        {
+            this.operations.add ( "remove:" + itemId );
+            super.removeItem ( itemId );
+        }
+
+        public synchronized void realize ( final Item item )
+        {
+            attachItem ( item.getId (), item );
+        }
+
+        public void update ( final Item item, final ItemState itemState )
+        {
+            updateItem ( item, itemState );
+        }
+
+        public synchronized List<String> getOperations ()
+        {
+            return new ArrayList<String> ( this.operations );
+        }
+    }
+
+    private static class TestSubscriptionManager extends SubscriptionManager
+    {
+        private final Server server;
+
+        private final Set<String> failing = new HashSet<String> ();
+
+        private final Map<SubscriptionKey, TestAccess> created = new HashMap<SubscriptionKey, TestAccess> ();
+
+        public TestSubscriptionManager ( final Server server )
+        {
+            super ( server, false );
+            this.server = server;
+        }
+
+        @Override
+        protected AccessBase createAccess ( final SubscriptionKey key )
+        {
+            final TestAccess access = new TestAccess ( this.server, this.failing );
+            this.created.put ( key, access );
+            return access;
+        }
+    }
+
+    private static class RecordingCallback implements DataCallback
+    {
+        private final List<String> changes = new ArrayList<String> ();
+
+        public synchronized void changed ( final Item item, final ItemState itemState )
+        {
+            this.changes.add ( item.getId () + "=" + itemState.getErrorCode () );
+        }
+
+        public synchronized List<String> getChanges ()
+        {
+            return new ArrayList<String> ( this.changes );
+        }
+    }
+
+    private static TestSubscriptionManager createManager ()
+    {
+        final TestSubscriptionManager manager = new TestSubscriptionManager ( new Server ( new ConnectionInformation (), null ) );
+        manager.bind ();
+        return manager;
+    }
+
+    /**
+     * Subscribing an item again with the same parameters only replaces its data callback
+     */
+    @Test
+    public void testReplaceCallback () throws Exception
+    {
+        final TestSubscriptionManager manager = createManager ();
+        final RecordingCallback first = new RecordingCallback ();
+        final RecordingCallback second = new RecordingCallback ();
+
+        manager.subscribe ( "a", 100, null, first );
+        final TestAccess access = manager.created.get ( new SubscriptionKey ( 100, null ) );
+        final Item item = new Item ( null, 1, 2, "a" );
+        access.realize ( item );
+
+        manager.subscribe ( "a", 100, null, second );
+        access.update ( item, new ItemState ( 1, null, null, (short)192 ) );
+
+        Assert.assertEquals ( Collections.singletonList ( "add:a" ), access.getOperations () );
+        Assert.assertTrue ( first.getChanges ().isEmpty () );
+        Assert.assertEquals ( Collections.singletonList ( "a=1" ), second.getChanges () );
+        Assert.assertEquals ( Collections.singletonMap ( new SubscriptionKey ( 100, null ), 1 ), manager.getSubscriptionCounts () );
+    }
+
+    /**
+     * Moving an item removes the access it was the last item of
+     */
+    @Test
+    public void testMove () throws Exception
+    {
+        final TestSubscriptionManager manager = createManager ();
+
+        manager.subscribe ( "a", 100, null, new RecordingCallback () );
+        manager.subscribe ( "a", 200, null, new RecordingCallback () );
+
+        final TestAccess oldAccess = manager.created.get ( new SubscriptionKey ( 100, null ) );
+        final TestAccess newAccess = manager.created.get ( new SubscriptionKey ( 200, null ) );
+        Assert.assertFalse ( oldAccess.isBound () );
+        Assert.assertTrue ( oldAccess.getItemIds ().isEmpty () );
+        Assert.assertTrue ( newAccess.isBound () );
+        Assert.assertEquals ( Collections.singletonList ( "a" ), newAccess.getItemIds () );
+        Assert.assertEquals ( Collections.singletonMap ( new SubscriptionKey ( 200, null ), 1 ), manager.getSubscriptionCounts () );
+        Assert.assertEquals ( Collections.singleton ( new SubscriptionKey ( 200, null ) ), manager.getRevisedUpdateRates ().keySet () );
+    }
+
+    /**
+     * A failed subscription does not leave an empty access behind
+     */
+    @Test
+    public void testFailedSubscribe () throws Exception
+    {
+        final TestSubscriptionManager manager = createManager ();
+        manager.failing.add ( "a" );
+
+        try
+        {
+            manager.subscribe ( "a", 100, null, new RecordingCallback () );
+            Assert.fail ( "Subscription must fail" );
+        }
+        catch ( final AddFailedException e )
+        {
+        }
+
+        final TestAccess access = manager.created.get ( new SubscriptionKey ( 100, null ) );
+        Assert.assertFalse ( access.isBound () );
+        Assert.assertTrue ( access.getItemIds ().isEmpty () );
+        Assert.assertTrue ( manager.getSubscriptionCounts ().isEmpty () );
+        Assert.assertTrue ( manager.getRevisedUpdateRates ().isEmpty () );
+        Assert.assertEquals ( -1, manager.getRevisedUpdateRate ( "a" ) );
+    }
+
+    /**
+     * A failed move keeps the item subscribed with its previous parameters
+     */
+    @Test
+    public void testFailedMove () throws Exception
+    {
+        final TestSubscriptionManager manager = createManager ();
+
+        manager.subscribe ( "a", 100, null, new RecordingCallback () );
+        manager.subscribe ( "b", 200, null, new RecordingCallback () );
+        manager.failing.add ( "a" );
+
+        try
+        {
+            manager.subscribe ( "a", 200, null, new RecordingCallback () );
+            Assert.fail ( "Subscription must fail" );
+        }
+        catch ( final AddFailedException e )
+        {
+        }
+
+        final TestAccess oldAccess = manager.created.get ( new SubscriptionKey ( 100, null ) );
+        final TestAccess newAccess = manager.created.get ( new SubscriptionKey ( 200, null ) );
+        Assert.assertTrue ( oldAccess.isBound () );
+        Assert.assertEquals ( Collections.singletonList ( "a" ), oldAccess.getItemIds () );
+        Assert.assertTrue ( newAccess.isBound () );
+        Assert.assertEquals ( Collections.singletonList ( "b" ), newAccess.getItemIds () );
+
+        final Map<SubscriptionKey, Integer> expected = new HashMap<SubscriptionKey, Integer> ();
+        expected.put ( new SubscriptionKey ( 100, null ), 1 );
+        expected.put ( new SubscriptionKey ( 200, null ), 1 );
+        Assert.assertEquals ( expected, manager.getSubscriptionCounts () );
+    }
+}
@@ -0,0 +1,230 @@
+/*
+ * This file is part of the OpenSCADA project
+ * Copyright (C) 2006-2011 TH4 SYSTEMS GmbH (http://th4-systems.com)
+ *
+ * OpenSCADA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License version 3
+ * only, as published by the Free Software Foundation.
+ *
+ * OpenSCADA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License version 3 for more details
+ * (a copy is included in the LICENSE file that accompanied this code).
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * version 3 along with OpenSCADA. If not, see
+ * <http://opensource.org/licenses/lgpl-3.0.html> for a copy of the LGPLv3 License.
+ */
+
+package org.openscada.opc.lib.da;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jinterop.dcom.common.JIException;
+import org.junit.Assert;
+import org.junit.Test;
+import org.openscada.opc.lib.common.ConnectionInformation;
+
+/**
+ * Tests for {@link SubscriptionRestorer}
+ */
+public class SubscriptionRestorerTest
+{
+    private static class TestAccess extends AccessBase
+    {
+        private final String name;
+
+        private final List<String> started;
+
+        private final CountDownLatch gate;
+
+        public TestAccess ( final Server server, final String name, final List<String> started )
+        {
+            this ( server, name, started, new CountDownLatch ( 0 ) );
+        }
+
+        /**
+         * @param gate the latch the start of the access waits for
+         */
+        public TestAccess ( final Server server, final String name, final List<String> started, final CountDownLatch gate )
+        {
+            super ( server, 100, null );
+            this.name = name;
+            this.started = started;
+            this.gate = gate;
+        }
+
+        @Override
+        protected void start ()
+        {
+            this.started.add ( this.name );
+            try
+            {
+                Thread.sleep ( 50 );
+                this.gate.await ( 10, TimeUnit.SECONDS );
+            }
+            catch ( final InterruptedException e )
+            {
+                Thread.currentThread ().interrupt ();
+            }
+            this.active = true;
+            final Map<Item, ItemState> data = new HashMap<Item, ItemState> ();
+            data.put ( new Item ( null, 1, 1, this.name ), new ItemState () );
+            updateItems ( 0, 0, data );
+        }
+
+        @Override
+        protected void stop () throws JIException
+        {
+            this.active = false;
+        }
+
+        @Override
+        public String toString ()
+        {
+            return this.name;
+        }
+    }
+
+    private static void awaitRestore ( final SubscriptionRestorer restorer, final long restores ) throws InterruptedException
+    {
+        final long deadline = System.currentTimeMillis () + 10000;
+        while ( restorer.getRestores () < restores || restorer.getLastTimeToFullRestore () < 0 )
+        {
+            Assert.assertTrue ( "Restore did not complete", System.currentTimeMillis () < deadline );
+            Thread.sleep ( 10 );
+        }
+    }
+
+    @Test
+    public void testPriorityOrder () throws Exception
+    {
+        final Server server = new Server ( new ConnectionInformation (), null );
+        final SubscriptionRestorer restorer = new SubscriptionRestorer ( server, 1 );
+        final List<String> started = Collections.synchronizedList ( new ArrayList<String> () );
+
+        restorer.add ( new TestAccess ( server, "low", started ), 0 );
+        restorer.add ( new TestAccess ( server, "high", started ), 10 );
+        restorer.add ( new TestAccess ( server, "medium", started ), 5 );
+
+        Assert.assertEquals ( "high", restorer.getPlan ().get ( 0 ).getAccess ().toString () );
+
+        restorer.connectionStateChanged ( true );
+        awaitRestore ( restorer, 1 );
+
+        Assert.assertEquals ( 3, started.size () );
+        Assert.assertEquals ( "high", started.get ( 0 ) );
+        Assert.assertEquals ( "medium", started.get ( 1 ) );
+        Assert.assertEquals ( "low", started.get ( 2 ) );
+        Assert.assertTrue ( restorer.getLastTimeToFirstData () >= 0 );
+        Assert.assertTrue ( restorer.getLastTimeToFirstData () <= restorer.getLastTimeToFullRestore () );
+        restorer.dispose ();
+    }
+
+    @Test
+    public void testParallelRestore () throws Exception
+    {
+        final Server server = new Server ( new ConnectionInformation (), null );
+        final SubscriptionRestorer restorer = new SubscriptionRestorer ( server, 10 );
+        final List<String> started = Collections.synchronizedList ( new ArrayList<String> () );
+
+        // each start waits until all accesses are starting, which only completes if they run in parallel
+        final CountDownLatch allStarting = new CountDownLatch ( 10 );
+        final AtomicInteger starting = new AtomicInteger ();
+        final List<TestAccess> accesses = new ArrayList<TestAccess> ();
+        for ( int i = 0; i < 10; i++ )
+        {
+            final TestAccess access = new TestAccess ( server, "access" + i, started, allStarting ) {
+
+                @Override
+                protected void start ()
+                {
+                    starting.incrementAndGet ();
+                    allStarting.countDown ();
+                    super.start ();
+                }
+            };
+            accesses.add ( access );
+            restorer.add ( access, 0 );
+        }
+
+        restorer.connectionStateChanged ( true );
+        awaitRestore ( restorer, 1 );
+
+        Assert.assertEquals ( 10, started.size () );
+        Assert.assertEquals ( 0, allStarting.getCount () );
+        Assert.assertEquals ( 10, starting.get () );
+        for ( final TestAccess access : accesses )
+        {
+            Assert.assertTrue ( access.isActive () );
+        }
+
+        restorer.connectionStateChanged ( false );
+        for ( final TestAccess access : accesses )
+        {
+            Assert.assertFalse ( access.isActive () );
+        }
+
+        restorer.remove ( accesses.get ( 0 ) );
+        Assert.assertFalse ( accesses.get ( 0 ).isBound () );
+        Assert.assertEquals ( 9, restorer.getPlan ().size () );
+        restorer.dispose ();
+    }
+
+    @Test
+    public void testDisconnectDuringStart () throws Exception
+    {
+        final Server server = new Server ( new ConnectionInformation (), null );
+        final SubscriptionRestorer restorer = new SubscriptionRestorer ( server, 1 );
+        final List<String> started = Collections.synchronizedList ( new ArrayList<String> () );
+        final CountDownLatch gate = new CountDownLatch ( 1 );
+        // stopped on the disconnect and after the start completed
+        final CountDownLatch stopped = new CountDownLatch ( 2 );
+        final TestAccess access = new TestAccess ( server, "access", started, gate ) {
+
+            @Override
+            protected void stop () throws JIException
+            {
+                super.stop ();
+                stopped.countDown ();
+            }
+        };
+        restorer.add ( access, 0 );
+
+        restorer.connectionStateChanged ( true );
+        while ( started.isEmpty () )
+        {
+            Thread.sleep ( 10 );
+        }
+
+        // the access is stopped while it is not active yet and becomes active afterwards
+        restorer.connectionStateChanged ( false );
+        gate.countDown ();
+
+        Assert.assertTrue ( stopped.await ( 10, TimeUnit.SECONDS ) );
+        Assert.assertFalse ( access.isActive () );
+        restorer.dispose ();
+    }
+
+    @Test
+    public void testEmptyRestore () throws Exception
+    {
+        final Server server = new Server ( new ConnectionInformation (), null );
+        final SubscriptionRestorer restorer = new SubscriptionRestorer ( server, 1 );
+
+        restorer.connectionStateChanged ( true );
+
+        Assert.assertEquals ( 1, restorer.getRestores () );
+        Assert.assertEquals ( 0, restorer.getLastTimeToFullRestore () );
+        Assert.assertEquals ( 0, restorer.getLastRestoreFailures () );
+        restorer.dispose ();
+    }
+}
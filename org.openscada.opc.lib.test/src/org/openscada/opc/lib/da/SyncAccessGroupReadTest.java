@@ -0,0 +1,253 @@
+/*
+ * This file is part of the OpenSCADA project
+ * Copyright (C) 2006-2011 TH4 SYSTEMS GmbH (http://th4-systems.com)
+ *
+ * OpenSCADA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License version 3
+ * only, as published by the Free Software Foundation.
+ *
+ * OpenSCADA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License version 3 for more details
+ * (a copy is included in the LICENSE file that accompanied this code).
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * version 3 along with OpenSCADA. If not, see
+ * <http://opensource.org/licenses/lgpl-3.0.html> for a copy of the LGPLv3 License.
+ */
+
+package org.openscada.opc.lib.da;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.jinterop.dcom.common.JIException;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.openscada.opc.dcom.common.KeyedResultSet;
+import org.openscada.opc.dcom.da.OPCDATASOURCE;
+import org.openscada.opc.dcom.da.OPCITEMSTATE;
+import org.openscada.opc.lib.common.ConnectionInformation;
+
+/**
+ * Tests the concurrent reads of a {@link SyncAccess} using more than one group
+ */
+public class SyncAccessGroupReadTest
+{
+    private static final int GROUPS = 3;
+
+    private static final int ITEMS = 4;
+
+    /**
+     * Waits until all groups are read at the same time and records the reading threads
+     */
+    private static class ConcurrentGroupStateMgt extends StandInGroupStateMgt
+    {
+        private final CyclicBarrier barrier;
+
+        private final boolean fail;
+
+        private final List<String> threads = new ArrayList<String> ();
+
+        public ConcurrentGroupStateMgt ( final CyclicBarrier barrier, final boolean fail ) throws Exception
+        {
+            this.barrier = barrier;
+            this.fail = fail;
+        }
+
+        @Override
+        protected KeyedResultSet<Integer, OPCITEMSTATE> read ( final OPCDATASOURCE source, final Integer... serverHandles ) throws JIException
+        {
+            synchronized ( this )
+            {
+                this.threads.add ( Thread.currentThread ().getName () );
+            }
+            try
+            {
+                this.barrier.await ( 5, TimeUnit.SECONDS );
+            }
+            catch ( final Exception e )
+            {
+                throw new RuntimeException ( "Groups were not read concurrently", e );
+            }
+            if ( this.fail )
+            {
+                throw new JIException ( 0x80004005 );
+            }
+            return super.read ( source, serverHandles );
+        }
+
+        public synchronized List<String> getThreads ()
+        {
+            return new ArrayList<String> ( this.threads );
+        }
+    }
+
+    private static class TestAccess extends SyncAccess
+    {
+        private final Map<String, ItemState> states = new HashMap<String, ItemState> ();
+
+        public TestAccess () throws Exception
+        {
+            super ( new Server ( new ConnectionInformation (), null ), Integer.MAX_VALUE );
+        }
+
+        public synchronized void realize ( final StandInGroupStateMgt[] stateMgts ) throws Exception
+        {
+            final Group[] groups = new Group[stateMgts.length];
+            for ( int i = 0; i < groups.length; i++ )
+            {
+                groups[i] = stateMgts[i].createGroup ( this.server, i + 1 );
+                for ( int j = 0; j < ITEMS; j++ )
+                {
+                    final String itemId = String.format ( "group.%d.item.%d", i, j );
+                    this.itemSet.put ( itemId, new DataCallback () {
+
+                        public void changed ( final Item item, final ItemState itemState )
+                        {
+                            synchronized ( TestAccess.this )
+                            {
+                                TestAccess.this.states.put ( item.getId (), itemState );
+                            }
+                        }
+                    } );
+                    attachItem ( itemId, groups[i].addItem ( itemId ) );
+                }
+            }
+            this.group = groups[0];
+            this.groups = groups;
+        }
+
+        public synchronized void begin ()
+        {
+            this.active = true;
+            startPolling ();
+        }
+
+        public synchronized void end ()
+        {
+            this.active = false;
+            stopPolling ();
+        }
+
+        public synchronized Map<String, ItemState> getStates ()
+        {
+            return new HashMap<String, ItemState> ( this.states );
+        }
+    }
+
+    private ExecutorService executor;
+
+    private TestAccess access;
+
+    @Before
+    public void setup () throws Exception
+    {
+        this.executor = Executors.newCachedThreadPool ();
+        this.access = new TestAccess ();
+        this.access.setGroupReader ( this.executor );
+    }
+
+    @After
+    public void cleanup ()
+    {
+        this.access.end ();
+        this.executor.shutdownNow ();
+    }
+
+    private ConcurrentGroupStateMgt[] createStateMgts ( final int failingGroup ) throws Exception
+    {
+        final CyclicBarrier barrier = new CyclicBarrier ( GROUPS );
+        final ConcurrentGroupStateMgt[] stateMgts = new ConcurrentGroupStateMgt[GROUPS];
+        for ( int i = 0; i < stateMgts.length; i++ )
+        {
+            stateMgts[i] = new ConcurrentGroupStateMgt ( barrier, i == failingGroup );
+        }
+        return stateMgts;
+    }
+
+    private static void awaitCycle ( final PollingStatistics statistics ) throws InterruptedException
+    {
+        final long end = System.currentTimeMillis () + 5000;
+        while ( statistics.getCycles () + statistics.getFailedCycles () == 0 && System.currentTimeMillis () < end )
+        {
+            Thread.sleep ( 10 );
+        }
+    }
+
+    /**
+     * All groups are read at the same time, the first one by the polling thread and the
+     * others by the group reader of the access. The results are merged into one cycle.
+     */
+    @Test
+    public void testReadGroups () throws Exception
+    {
+        final ConcurrentGroupStateMgt[] stateMgts = createStateMgts ( -1 );
+        this.access.realize ( stateMgts );
+        this.access.begin ();
+        awaitCycle ( this.access.getStatistics () );
+
+        Assert.assertEquals ( 1, this.access.getStatistics ().getCycles () );
+        Assert.assertEquals ( 0, this.access.getStatistics ().getFailedCycles () );
+        Assert.assertEquals ( GROUPS * ITEMS, this.access.getStates ().size () );
+
+        Assert.assertEquals ( 1, stateMgts[0].getThreads ().size () );
+        Assert.assertTrue ( stateMgts[0].getThreads ().get ( 0 ).startsWith ( "UtgardSyncReader" ) );
+        for ( int i = 1; i < GROUPS; i++ )
+        {
+            Assert.assertEquals ( 1, stateMgts[i].getThreads ().size () );
+            Assert.assertTrue ( stateMgts[i].getThreads ().get ( 0 ).startsWith ( "pool-" ) );
+        }
+
+        final PollingStatistics[] groupStatistics = this.access.getGroupStatistics ();
+        Assert.assertEquals ( GROUPS, groupStatistics.length );
+        for ( final PollingStatistics statistics : groupStatistics )
+        {
+            Assert.assertEquals ( 1, statistics.getCycles () );
+        }
+    }
+
+    /**
+     * A failed group read fails the whole cycle and no partial result is reported
+     */
+    @Test
+    public void testReadGroupsFailure () throws Exception
+    {
+        final ConcurrentGroupStateMgt[] stateMgts = createStateMgts ( 1 );
+        this.access.realize ( stateMgts );
+        this.access.begin ();
+        awaitCycle ( this.access.getStatistics () );
+
+        Assert.assertEquals ( 0, this.access.getStatistics ().getCycles () );
+        Assert.assertEquals ( 1, this.access.getStatistics ().getFailedCycles () );
+        Assert.assertTrue ( this.access.getStates ().isEmpty () );
+
+        final PollingStatistics[] groupStatistics = this.access.getGroupStatistics ();
+        Assert.assertEquals ( 1, groupStatistics[0].getCycles () );
+        Assert.assertEquals ( 1, groupStatistics[1].getFailedCycles () );
+        Assert.assertEquals ( 1, groupStatistics[2].getCycles () );
+    }
+
+    /**
+     * Accesses without an executor share the default group reader
+     */
+    @Test
+    public void testDefaultGroupReader () throws Exception
+    {
+        final TestAccess other = new TestAccess ();
+        Assert.assertSame ( SyncAccess.getDefaultGroupReader (), other.getGroupReader () );
+        Assert.assertSame ( this.executor, this.access.getGroupReader () );
+
+        this.access.setGroupReader ( null );
+        Assert.assertSame ( SyncAccess.getDefaultGroupReader (), this.access.getGroupReader () );
+    }
+}
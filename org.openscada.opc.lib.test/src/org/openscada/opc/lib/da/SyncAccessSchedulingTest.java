@@ -0,0 +1,85 @@
+/*
+ * This file is part of the OpenSCADA project
+ * Copyright (C) 2006-2011 TH4 SYSTEMS GmbH (http://th4-systems.com)
+ *
+ * OpenSCADA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License version 3
+ * only, as published by the Free Software Foundation.
+ *
+ * OpenSCADA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License version 3 for more details
+ * (a copy is included in the LICENSE file that accompanied this code).
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * version 3 along with OpenSCADA. If not, see
+ * <http://opensource.org/licenses/lgpl-3.0.html> for a copy of the LGPLv3 License.
+ */
+
+package org.openscada.opc.lib.da;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class SyncAccessSchedulingTest
+{
+    private static final long PERIOD = 100;
+
+    @Test
+    public void testNoOverrun () throws Exception
+    {
+        final SyncAccess access = new SyncAccess ( null, (int)PERIOD );
+        access.setFixedRate ( true );
+
+        Assert.assertEquals ( 1100, access.nextDeadline ( 1000, PERIOD, 1050 ) );
+        Assert.assertEquals ( 1100, access.nextDeadline ( 1000, PERIOD, 1100 ) );
+        Assert.assertEquals ( 0, access.getStatistics ().getOverruns () );
+    }
+
+    @Test
+    public void testSkip () throws Exception
+    {
+        final SyncAccess access = new SyncAccess ( null, (int)PERIOD );
+        access.setFixedRate ( true );
+        access.setOverrunPolicy ( OverrunPolicy.SKIP );
+
+        // the cycle started at 1000 and finished at 1350, so 1100, 1200 and 1300 were missed
+        Assert.assertEquals ( 1400, access.nextDeadline ( 1000, PERIOD, 1350 ) );
+        Assert.assertEquals ( 1, access.getStatistics ().getOverruns () );
+        Assert.assertEquals ( 3, access.getStatistics ().getSkippedCycles () );
+    }
+
+    @Test
+    public void testMerge () throws Exception
+    {
+        final SyncAccess access = new SyncAccess ( null, (int)PERIOD );
+        access.setFixedRate ( true );
+        access.setOverrunPolicy ( OverrunPolicy.MERGE );
+
+        // 1100, 1200 and 1300 were missed, they are merged into one cycle at 1300
+        Assert.assertEquals ( 1300, access.nextDeadline ( 1000, PERIOD, 1350 ) );
+        Assert.assertEquals ( 1, access.getStatistics ().getOverruns () );
+        Assert.assertEquals ( 2, access.getStatistics ().getSkippedCycles () );
+
+        // the next cycle is back on the original grid
+        Assert.assertEquals ( 1400, access.nextDeadline ( 1300, PERIOD, 1360 ) );
+    }
+
+    @Test
+    public void testHistogram ()
+    {
+        final PollingStatistics statistics = new PollingStatistics ();
+        statistics.recordCycle ( 500000L );
+        statistics.recordCycle ( 15000000L );
+        statistics.recordCycle ( 10000000000L );
+
+        final long[] histogram = statistics.getHistogram ();
+        Assert.assertEquals ( PollingStatistics.getHistogramBounds ().length + 1, histogram.length );
+        Assert.assertEquals ( 1, histogram[0] );
+        Assert.assertEquals ( 1, histogram[4] );
+        Assert.assertEquals ( 1, histogram[histogram.length - 1] );
+        Assert.assertEquals ( 10000, statistics.getMaxDuration () );
+        Assert.assertEquals ( 3, statistics.getCycles () );
+    }
+}
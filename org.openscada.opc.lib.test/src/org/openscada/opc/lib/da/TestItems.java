@@ -0,0 +1,45 @@
+/*
+ * This file is part of the OpenSCADA project
+ * Copyright (C) 2006-2011 TH4 SYSTEMS GmbH (http://th4-systems.com)
+ *
+ * OpenSCADA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License version 3
+ * only, as published by the Free Software Foundation.
+ *
+ * OpenSCADA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License version 3 for more details
+ * (a copy is included in the LICENSE file that accompanied this code).
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * version 3 along with OpenSCADA. If not, see
+ * <http://opensource.org/licenses/lgpl-3.0.html> for a copy of the LGPLv3 License.
+ */
+
+package org.openscada.opc.lib.da;
+
+/**
+ * Creates items without a group for tests which do not talk to a server
+ */
+final class TestItems
+{
+    private TestItems ()
+    {
+    }
+
+    /**
+     * Create items whose server and client handle is their index
+     * @param count the number of items
+     * @return the items
+     */
+    public static Item[] createItems ( final int count )
+    {
+        final Item[] items = new Item[count];
+        for ( int i = 0; i < count; i++ )
+        {
+            items[i] = new Item ( null, i, i, "item" + i );
+        }
+        return items;
+    }
+}
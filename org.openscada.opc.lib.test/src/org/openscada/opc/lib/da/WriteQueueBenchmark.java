@@ -0,0 +1,136 @@
+/*
+ * This file is part of the OpenSCADA project
+ * Copyright (C) 2006-2011 TH4 SYSTEMS GmbH (http://th4-systems.com)
+ *
+ * OpenSCADA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License version 3
+ * only, as published by the Free Software Foundation.
+ *
+ * OpenSCADA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License version 3 for more details
+ * (a copy is included in the LICENSE file that accompanied this code).
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * version 3 along with OpenSCADA. If not, see
+ * <http://opensource.org/licenses/lgpl-3.0.html> for a copy of the LGPLv3 License.
+ */
+
+package org.openscada.opc.lib.da;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.jinterop.dcom.common.JIException;
+import org.jinterop.dcom.core.JIVariant;
+
+/**
+ * Compares one synchronous write per request to writing through a {@link WriteQueue}.
+ * <p>
+ * The writes go to an in-process stand-in for OPCSyncIO.write. Each call blocks
+ * for a fixed round trip latency plus a small latency per item, serialized like
+ * the calls on a group.
+ * </p>
+ * <p>
+ * Optional arguments: number of writes (default 20000), number of items (default 2000),
+ * call latency in ms (default 1), flush interval in ms (default 10), maximum batch size
+ * (default 500)
+ * </p>
+ */
+public class WriteQueueBenchmark
+{
+    private static class StandInGroup
+    {
+        private final long callNanos;
+
+        private long calls = 0;
+
+        private long items = 0;
+
+        public StandInGroup ( final long callNanos )
+        {
+            this.callNanos = callNanos;
+        }
+
+        public synchronized Map<Item, Integer> write ( final WriteRequest... requests )
+        {
+            this.calls++;
+            this.items += requests.length;
+            LockSupport.parkNanos ( this.callNanos + requests.length * 2000L );
+            final Map<Item, Integer> result = new HashMap<Item, Integer> ( requests.length );
+            for ( final WriteRequest request : requests )
+            {
+                result.put ( request.getItem (), 0 );
+            }
+            return result;
+        }
+    }
+
+    public static void main ( final String[] args ) throws Exception
+    {
+        final int writes = args.length > 0 ? Integer.parseInt ( args[0] ) : 20000;
+        final int itemCount = args.length > 1 ? Integer.parseInt ( args[1] ) : 2000;
+        final long latency = args.length > 2 ? Long.parseLong ( args[2] ) : 1;
+        final long flushInterval = args.length > 3 ? Long.parseLong ( args[3] ) : 10;
+        final int maxBatchSize = args.length > 4 ? Integer.parseInt ( args[4] ) : 500;
+
+        final Item[] items = new Item[itemCount];
+        for ( int i = 0; i < itemCount; i++ )
+        {
+            items[i] = new Item ( null, i, i, "item" + i );
+        }
+
+        final Random random = new Random ( 0 );
+        final WriteRequest[] requests = new WriteRequest[writes];
+        for ( int i = 0; i < writes; i++ )
+        {
+            requests[i] = new WriteRequest ( items[random.nextInt ( itemCount )], new JIVariant ( i ) );
+        }
+
+        final long callNanos = TimeUnit.MILLISECONDS.toNanos ( latency );
+
+        // direct writes
+        final StandInGroup direct = new StandInGroup ( callNanos );
+        long start = System.nanoTime ();
+        for ( final WriteRequest request : requests )
+        {
+            direct.write ( request );
+        }
+        final long directNanos = System.nanoTime () - start;
+
+        // queued writes
+        final StandInGroup queued = new StandInGroup ( callNanos );
+        final WriteQueue queue = new WriteQueue ( null, flushInterval, maxBatchSize ) {
+
+            @Override
+            protected Map<Item, Integer> doWrite ( final WriteRequest[] batch ) throws JIException
+            {
+                return queued.write ( batch );
+            }
+        };
+
+        start = System.nanoTime ();
+        final List<Future<Integer>> futures = new ArrayList<Future<Integer>> ( writes );
+        for ( final WriteRequest request : requests )
+        {
+            futures.add ( queue.write ( request ) );
+        }
+        for ( final Future<Integer> future : futures )
+        {
+            future.get ();
+        }
+        final long queuedNanos = System.nanoTime () - start;
+        queue.dispose ();
+
+        System.out.println ( String.format ( "%s writes to %s items, call latency %s ms", writes, itemCount, latency ) );
+        System.out.println ( String.format ( "direct: %8.0f writes/s, %6d calls, %6d items written", writes / ( directNanos / 1e9 ), direct.calls, direct.items ) );
+        System.out.println ( String.format ( "queued: %8.0f writes/s, %6d calls, %6d items written, %6d collapsed", writes / ( queuedNanos / 1e9 ), queued.calls, queued.items, queue.getCollapsed () ) );
+    }
+}
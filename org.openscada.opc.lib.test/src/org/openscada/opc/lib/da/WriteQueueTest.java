@@ -0,0 +1,304 @@
+/*
+ * This file is part of the OpenSCADA project
+ * Copyright (C) 2006-2011 TH4 SYSTEMS GmbH (http://th4-systems.com)
+ *
+ * OpenSCADA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License version 3
+ * only, as published by the Free Software Foundation.
+ *
+ * OpenSCADA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License version 3 for more details
+ * (a copy is included in the LICENSE file that accompanied this code).
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * version 3 along with OpenSCADA. If not, see
+ * <http://opensource.org/licenses/lgpl-3.0.html> for a copy of the LGPLv3 License.
+ */
+
+package org.openscada.opc.lib.da;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.jinterop.dcom.common.JIException;
+import org.jinterop.dcom.core.JIVariant;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests for {@link WriteQueue}
+ */
+public class WriteQueueTest
+{
+    private static class TestQueue extends WriteQueue
+    {
+        private final List<WriteRequest[]> batches = new ArrayList<WriteRequest[]> ();
+
+        private volatile boolean fail = false;
+
+        private volatile CountDownLatch entered;
+
+        private volatile CountDownLatch release;
+
+        public TestQueue ( final long flushInterval, final int maxBatchSize )
+        {
+            super ( null, flushInterval, maxBatchSize );
+        }
+
+        @Override
+        protected Map<Item, Integer> doWrite ( final WriteRequest[] requests ) throws JIException
+        {
+            synchronized ( this.batches )
+            {
+                this.batches.add ( requests );
+            }
+            if ( this.release != null )
+            {
+                this.entered.countDown ();
+                try
+                {
+                    this.release.await ();
+                }
+                catch ( final InterruptedException e )
+                {
+                    Thread.currentThread ().interrupt ();
+                }
+            }
+            if ( this.fail )
+            {
+                throw new JIException ( 0, "Write failed" );
+            }
+            final Map<Item, Integer> result = new HashMap<Item, Integer> ();
+            for ( final WriteRequest request : requests )
+            {
+                result.put ( request.getItem (), request.getItem ().getServerHandle () );
+            }
+            return result;
+        }
+
+        public List<WriteRequest[]> getBatches ()
+        {
+            synchronized ( this.batches )
+            {
+                return new ArrayList<WriteRequest[]> ( this.batches );
+            }
+        }
+    }
+
+    @Test
+    public void testBatching () throws Exception
+    {
+        final TestQueue queue = new TestQueue ( 50, 1000 );
+        final Item[] items = TestItems.createItems ( 100 );
+
+        final List<Future<Integer>> futures = new ArrayList<Future<Integer>> ();
+        for ( final Item item : items )
+        {
+            futures.add ( queue.write ( item, new JIVariant ( 1 ) ) );
+        }
+
+        for ( int i = 0; i < items.length; i++ )
+        {
+            Assert.assertEquals ( Integer.valueOf ( i ), futures.get ( i ).get ( 5, TimeUnit.SECONDS ) );
+        }
+        Assert.assertEquals ( 1, queue.getBatches ().size () );
+        Assert.assertEquals ( 100, queue.getBatches ().get ( 0 ).length );
+        Assert.assertEquals ( 1, queue.getFlushes () );
+        queue.dispose ();
+    }
+
+    @Test
+    public void testMaxBatchSize () throws Exception
+    {
+        // the interval is long enough that only the batch size triggers flushes
+        final TestQueue queue = new TestQueue ( 60000, 10 );
+        final Item[] items = TestItems.createItems ( 100 );
+
+        final List<Future<Integer>> futures = new ArrayList<Future<Integer>> ();
+        for ( final Item item : items )
+        {
+            futures.add ( queue.write ( item, new JIVariant ( 1 ) ) );
+        }
+        // a flush running concurrently to the writes may leave fewer items than the batch size pending
+        queue.flush ();
+        for ( final Future<Integer> future : futures )
+        {
+            future.get ( 5, TimeUnit.SECONDS );
+        }
+
+        for ( final WriteRequest[] batch : queue.getBatches () )
+        {
+            Assert.assertTrue ( batch.length <= 10 );
+        }
+        Assert.assertEquals ( 100, queue.getWritten () );
+        queue.dispose ();
+    }
+
+    @Test
+    public void testLastValueWins () throws Exception
+    {
+        final TestQueue queue = new TestQueue ( 60000, 1000 );
+        final Item item = TestItems.createItems ( 1 )[0];
+
+        final JIVariant last = new JIVariant ( 3 );
+        final Future<Integer> f1 = queue.write ( item, new JIVariant ( 1 ) );
+        final Future<Integer> f2 = queue.write ( item, new JIVariant ( 2 ) );
+        final Future<Integer> f3 = queue.write ( item, last );
+        Assert.assertEquals ( 1, queue.getPendingItems () );
+
+        queue.flush ();
+
+        Assert.assertEquals ( 1, queue.getBatches ().size () );
+        Assert.assertSame ( last, queue.getBatches ().get ( 0 )[0].getValue () );
+        Assert.assertEquals ( Integer.valueOf ( 0 ), f1.get () );
+        Assert.assertEquals ( Integer.valueOf ( 0 ), f2.get () );
+        Assert.assertEquals ( Integer.valueOf ( 0 ), f3.get () );
+        Assert.assertEquals ( 3, queue.getSubmitted () );
+        Assert.assertEquals ( 2, queue.getCollapsed () );
+        queue.dispose ();
+    }
+
+    @Test
+    public void testFailure () throws Exception
+    {
+        final TestQueue queue = new TestQueue ( 60000, 1000 );
+        queue.fail = true;
+        final Future<Integer> future = queue.write ( TestItems.createItems ( 1 )[0], new JIVariant ( 1 ) );
+        queue.flush ();
+
+        try
+        {
+            future.get ();
+            Assert.fail ( "Write must fail" );
+        }
+        catch ( final ExecutionException e )
+        {
+            Assert.assertTrue ( e.getCause () instanceof JIException );
+        }
+        queue.dispose ();
+    }
+
+    @Test
+    public void testDisposed () throws Exception
+    {
+        final TestQueue queue = new TestQueue ( 10, 1000 );
+        queue.dispose ();
+        try
+        {
+            queue.write ( TestItems.createItems ( 1 )[0], new JIVariant ( 1 ) );
+            Assert.fail ( "Write to disposed queue must fail" );
+        }
+        catch ( final IllegalStateException e )
+        {
+        }
+    }
+
+    @Test
+    public void testDisposedUnchanged () throws Exception
+    {
+        final TestQueue queue = new TestQueue ( 10, 1000 );
+        final Item item = TestItems.createItems ( 1 )[0];
+        queue.setSuppressUnchanged ( true );
+        queue.setKnownValue ( item, new JIVariant ( 1 ) );
+
+        Assert.assertEquals ( Integer.valueOf ( 0 ), queue.write ( item, new JIVariant ( 1 ) ).get () );
+        Assert.assertEquals ( 1, queue.getSuppressed () );
+
+        queue.dispose ();
+        try
+        {
+            queue.write ( item, new JIVariant ( 1 ) );
+            Assert.fail ( "Write to disposed queue must fail even if the value is unchanged" );
+        }
+        catch ( final IllegalStateException e )
+        {
+        }
+        Assert.assertEquals ( 1, queue.getSuppressed () );
+    }
+
+    @Test
+    public void testSuppressAfterWrite () throws Exception
+    {
+        final TestQueue queue = new TestQueue ( 60000, 1000 );
+        final Item item = TestItems.createItems ( 1 )[0];
+        queue.setSuppressUnchanged ( true );
+
+        final Future<Integer> first = queue.write ( item, new JIVariant ( 1 ) );
+        queue.flush ();
+        Assert.assertEquals ( Integer.valueOf ( 0 ), first.get () );
+
+        // the successfully written value is known now
+        final Future<Integer> unchanged = queue.write ( item, new JIVariant ( 1 ) );
+        Assert.assertTrue ( unchanged.isDone () );
+        Assert.assertEquals ( Integer.valueOf ( 0 ), unchanged.get () );
+        Assert.assertEquals ( 1, queue.getSuppressed () );
+        Assert.assertEquals ( 0, queue.getPendingItems () );
+
+        queue.write ( item, new JIVariant ( 2 ) );
+        Assert.assertEquals ( 1, queue.getPendingItems () );
+        queue.dispose ();
+    }
+
+    /**
+     * A write of the known value must not be suppressed while a write of another value is in flight
+     */
+    @Test
+    public void testNoSuppressWhileInFlight () throws Exception
+    {
+        final TestQueue queue = new TestQueue ( 60000, 1000 );
+        final Item item = TestItems.createItems ( 1 )[0];
+        queue.setSuppressUnchanged ( true );
+        queue.setKnownValue ( item, new JIVariant ( 0 ) );
+
+        queue.entered = new CountDownLatch ( 1 );
+        queue.release = new CountDownLatch ( 1 );
+
+        queue.write ( item, new JIVariant ( 1 ) );
+        final Thread flusher = new Thread ( new Runnable () {
+
+            public void run ()
+            {
+                queue.flush ();
+            }
+        } );
+        flusher.start ();
+        Assert.assertTrue ( queue.entered.await ( 5, TimeUnit.SECONDS ) );
+
+        final Future<Integer> revert = queue.write ( item, new JIVariant ( 0 ) );
+        Assert.assertFalse ( revert.isDone () );
+        Assert.assertEquals ( 0, queue.getSuppressed () );
+        Assert.assertEquals ( 1, queue.getPendingItems () );
+
+        queue.release.countDown ();
+        flusher.join ( 5000 );
+        queue.flush ();
+
+        Assert.assertEquals ( Integer.valueOf ( 0 ), revert.get ( 5, TimeUnit.SECONDS ) );
+        final List<WriteRequest[]> batches = queue.getBatches ();
+        Assert.assertEquals ( 2, batches.size () );
+        Assert.assertEquals ( 0, batches.get ( 1 )[0].getValue ().getObject () );
+        queue.dispose ();
+    }
+
+    @Test
+    public void testSharedExecutor () throws Exception
+    {
+        final TestQueue first = new TestQueue ( 10, 1000 );
+        final TestQueue second = new TestQueue ( 10, 1000 );
+        first.dispose ();
+
+        // disposing a queue does not stop the executor of the other queues
+        Assert.assertFalse ( WriteQueue.getDefaultExecutor ().isShutdown () );
+        final Future<Integer> future = second.write ( TestItems.createItems ( 1 )[0], new JIVariant ( 1 ) );
+        Assert.assertEquals ( Integer.valueOf ( 0 ), future.get ( 5, TimeUnit.SECONDS ) );
+        second.dispose ();
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ * This file is part of the OpenSCADA project
+ * Copyright (C) 2006-2011 TH4 SYSTEMS GmbH (http://th4-systems.com)
+ *
+ * OpenSCADA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License version 3
+ * only, as published by the Free Software Foundation.
+ *
+ * OpenSCADA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License version 3 for more details
+ * (a copy is included in the LICENSE file that accompanied this code).
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * version 3 along with OpenSCADA. If not, see
+ * <http://opensource.org/licenses/lgpl-3.0.html> for a copy of the LGPLv3 License.
+ */
+
+package org.openscada.opc.lib.common;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates the daemon threads of the executors of the library
+ * <p>
+ * The threads are named using a prefix and a sequence number, so that the
+ * threads of each executor can be told apart in a thread dump.
+ * </p>
+ */
+public class DaemonThreadFactory implements ThreadFactory
+{
+    private final String prefix;
+
+    private final AtomicInteger count = new AtomicInteger ();
+
+    /**
+     * Create a new thread factory
+     * @param prefix the prefix of the thread names, e.g. <code>UtgardPoller-</code>
+     */
+    public DaemonThreadFactory ( final String prefix )
+    {
+        this.prefix = prefix;
+    }
+
+    public Thread newThread ( final Runnable r )
+    {
+        final Thread t = new Thread ( r, this.prefix + this.count.incrementAndGet () );
+        t.setDaemon ( true );
+        return t;
+    }
+}
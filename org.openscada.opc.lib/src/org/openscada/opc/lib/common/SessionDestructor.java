@@ -0,0 +1,416 @@
+/*
+ * This file is part of the OpenSCADA project
+ * Copyright (C) 2006-2011 TH4 SYSTEMS GmbH (http://th4-systems.com)
+ *
+ * OpenSCADA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License version 3
+ * only, as published by the Free Software Foundation.
+ *
+ * OpenSCADA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License version 3 for more details
+ * (a copy is included in the LICENSE file that accompanied this code).
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * version 3 along with OpenSCADA. If not, see
+ * <http://opensource.org/licenses/lgpl-3.0.html> for a copy of the LGPLv3 License.
+ */
+
+package org.openscada.opc.lib.common;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jinterop.dcom.core.JISession;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Destroys DCOM sessions in the background
+ * <p>
+ * Destroying a session can take several seconds if the peer is gone. The
+ * destructions run on a fixed number of threads and the number of waiting
+ * destructions is limited. If the queue is full the destruction is retried
+ * after a short delay. A destruction is retried at most {@link #MAX_RETRIES} times
+ * and at most as many destructions wait for a retry as fit into the queue. Other
+ * destructions are dropped, their sessions are not destroyed and they count as failed.
+ * </p>
+ * <p>
+ * A destruction which takes longer than the timeout gets interrupted. The
+ * interrupt cannot abort a call blocked on the socket, so the destruction
+ * still occupies its thread until the socket timeout of the session expires.
+ * </p>
+ */
+public class SessionDestructor
+{
+    private static Logger logger = LoggerFactory.getLogger ( SessionDestructor.class );
+
+    private static final long RETRY_DELAY = 1000;
+
+    /**
+     * The number of times a rejected destruction is retried before it is dropped
+     */
+    public static final int MAX_RETRIES = 10;
+
+    private static SessionDestructor defaultDestructor;
+
+    private static ScheduledExecutorService timer;
+
+    /**
+     * Get the timer which interrupts the timed out destructions and retries
+     * the rejected destructions of all destructors
+     * @return the timer
+     */
+    private static synchronized ScheduledExecutorService getTimer ()
+    {
+        if ( timer == null )
+        {
+            final ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor ( 1, new DaemonThreadFactory ( "UtgardSessionDestructorTimer-" ) );
+            executor.setKeepAliveTime ( 60, TimeUnit.SECONDS );
+            // no thread is kept while no session is destroyed
+            executor.allowCoreThreadTimeOut ( true );
+            timer = executor;
+        }
+        return timer;
+    }
+
+    /**
+     * Get the destructor used by connections which were not assigned one
+     * @return the default destructor
+     */
+    public static synchronized SessionDestructor getDefault ()
+    {
+        if ( defaultDestructor == null )
+        {
+            defaultDestructor = new SessionDestructor ( 4, 1000, 30000 );
+        }
+        return defaultDestructor;
+    }
+
+    /**
+     * Replace the default destructor
+     * <p>
+     * The previous destructor is not disposed.
+     * </p>
+     * @param destructor the new default destructor
+     */
+    public static synchronized void setDefault ( final SessionDestructor destructor )
+    {
+        defaultDestructor = destructor;
+    }
+
+    private class Destruction implements Runnable
+    {
+        private final JISession session;
+
+        private Thread thread;
+
+        private boolean done = false;
+
+        private boolean timedOut = false;
+
+        private int retries = 0;
+
+        public Destruction ( final JISession session )
+        {
+            this.session = session;
+        }
+
+        public void run ()
+        {
+            synchronized ( this )
+            {
+                this.thread = Thread.currentThread ();
+            }
+
+            ScheduledFuture<?> timeoutJob = null;
+            if ( SessionDestructor.this.timeout > 0 )
+            {
+                timeoutJob = getTimer ().schedule ( new Runnable () {
+
+                    public void run ()
+                    {
+                        interrupt ();
+                    }
+                }, SessionDestructor.this.timeout, TimeUnit.MILLISECONDS );
+            }
+
+            final long ts = System.currentTimeMillis ();
+            try
+            {
+                logger.debug ( "Starting destruction of DCOM session" );
+                destroySession ( this.session );
+                logger.info ( "Destructed DCOM session" );
+                SessionDestructor.this.destroyed.incrementAndGet ();
+            }
+            catch ( final Throwable e )
+            {
+                logger.warn ( "Failed to destruct DCOM session", e );
+                SessionDestructor.this.failed.incrementAndGet ();
+            }
+            finally
+            {
+                if ( timeoutJob != null )
+                {
+                    timeoutJob.cancel ( false );
+                }
+                synchronized ( this )
+                {
+                    this.done = true;
+                    // clear an interrupt which arrived after the destruction finished
+                    Thread.interrupted ();
+                }
+
+                final long duration = System.currentTimeMillis () - ts;
+                recordDuration ( duration );
+                SessionDestructor.this.pending.decrementAndGet ();
+                logger.info ( String.format ( "Session destruction took %s ms", duration ) );
+            }
+        }
+
+        private synchronized void interrupt ()
+        {
+            if ( this.done || this.timedOut )
+            {
+                return;
+            }
+            logger.warn ( String.format ( "Session destruction did not complete within %s ms. Interrupting...", SessionDestructor.this.timeout ) );
+            this.timedOut = true;
+            SessionDestructor.this.timeouts.incrementAndGet ();
+            this.thread.interrupt ();
+        }
+    }
+
+    private final ThreadPoolExecutor executor;
+
+    private final long timeout;
+
+    private final int maxRetrying;
+
+    private final AtomicInteger pending = new AtomicInteger ();
+
+    private final AtomicInteger retrying = new AtomicInteger ();
+
+    private final AtomicLong submitted = new AtomicLong ();
+
+    private final AtomicLong destroyed = new AtomicLong ();
+
+    private final AtomicLong failed = new AtomicLong ();
+
+    private final AtomicLong timeouts = new AtomicLong ();
+
+    private final AtomicLong rejected = new AtomicLong ();
+
+    private final AtomicLong dropped = new AtomicLong ();
+
+    private final AtomicLong totalDuration = new AtomicLong ();
+
+    private final AtomicLong maxDuration = new AtomicLong ();
+
+    /**
+     * Create a new destructor
+     * @param threads the number of threads destroying sessions
+     * @param maxQueueSize the number of destructions which may wait for a thread, and
+     * the number of rejected destructions which may wait for a retry
+     * @param timeout the time in milliseconds after which a destruction is interrupted, 0 to wait forever.
+     * The interrupt does not free the thread while the destruction is blocked on the socket.
+     */
+    public SessionDestructor ( final int threads, final int maxQueueSize, final long timeout )
+    {
+        if ( threads <= 0 || maxQueueSize <= 0 )
+        {
+            throw new IllegalArgumentException ( "Number of threads and queue size must be positive" );
+        }
+
+        this.executor = new ThreadPoolExecutor ( threads, threads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable> ( maxQueueSize ), new DaemonThreadFactory ( "UtgardSessionDestructor-" ) );
+        this.executor.allowCoreThreadTimeOut ( true );
+
+        this.timeout = timeout;
+        this.maxRetrying = maxQueueSize;
+    }
+
+    /**
+     * Queue the destruction of a session
+     * <p>
+     * If the queue is full the destruction is retried later.
+     * </p>
+     * @param session the session to destroy
+     * @return <code>true</code> if the destruction was queued or will be retried, <code>false</code> if
+     * the destructor was disposed or too many destructions wait for a retry
+     */
+    public boolean destroy ( final JISession session )
+    {
+        this.submitted.incrementAndGet ();
+        this.pending.incrementAndGet ();
+        return submit ( new Destruction ( session ) );
+    }
+
+    private boolean submit ( final Destruction destruction )
+    {
+        try
+        {
+            this.executor.execute ( destruction );
+            return true;
+        }
+        catch ( final RejectedExecutionException e )
+        {
+            if ( this.executor.isShutdown () )
+            {
+                if ( destruction.retries > 0 )
+                {
+                    drop ( "Destructor was disposed" );
+                }
+                else
+                {
+                    this.pending.decrementAndGet ();
+                    logger.warn ( "Destructor is disposed. DCOM session is not destroyed." );
+                }
+                return false;
+            }
+
+            this.rejected.incrementAndGet ();
+            if ( destruction.retries >= MAX_RETRIES )
+            {
+                drop ( String.format ( "Unable to queue destruction of DCOM session after %s retries", destruction.retries ) );
+                return false;
+            }
+            if ( this.retrying.incrementAndGet () > this.maxRetrying )
+            {
+                this.retrying.decrementAndGet ();
+                drop ( String.format ( "Unable to queue destruction of DCOM session. %s destructions wait for a retry", this.maxRetrying ) );
+                return false;
+            }
+
+            destruction.retries++;
+            logger.debug ( String.format ( "Unable to queue destruction of DCOM session. %s destructions pending. Retrying in %s ms.", this.pending.get (), RETRY_DELAY ) );
+            getTimer ().schedule ( new Runnable () {
+
+                public void run ()
+                {
+                    SessionDestructor.this.retrying.decrementAndGet ();
+                    submit ( destruction );
+                }
+            }, RETRY_DELAY, TimeUnit.MILLISECONDS );
+            return true;
+        }
+    }
+
+    private void drop ( final String reason )
+    {
+        this.pending.decrementAndGet ();
+        this.dropped.incrementAndGet ();
+        this.failed.incrementAndGet ();
+        logger.warn ( String.format ( "%s. DCOM session is not destroyed.", reason ) );
+    }
+
+    /**
+     * Destroy the session in the calling thread
+     * @param session the session to destroy
+     * @throws Exception if the destruction fails
+     */
+    protected void destroySession ( final JISession session ) throws Exception
+    {
+        JISession.destroySession ( session );
+    }
+
+    private void recordDuration ( final long duration )
+    {
+        this.totalDuration.addAndGet ( duration );
+
+        long max;
+        do
+        {
+            max = this.maxDuration.get ();
+        } while ( duration > max && !this.maxDuration.compareAndSet ( max, duration ) );
+    }
+
+    /**
+     * Stop accepting new destructions
+     * <p>
+     * Destructions which are already queued are still executed, destructions
+     * waiting for a retry are dropped.
+     * </p>
+     */
+    public void dispose ()
+    {
+        this.executor.shutdown ();
+    }
+
+    /**
+     * Get the number of destructions which are queued or running
+     * @return the number of pending destructions
+     */
+    public int getPending ()
+    {
+        return this.pending.get ();
+    }
+
+    public long getSubmitted ()
+    {
+        return this.submitted.get ();
+    }
+
+    public long getDestroyed ()
+    {
+        return this.destroyed.get ();
+    }
+
+    public long getFailed ()
+    {
+        return this.failed.get ();
+    }
+
+    /**
+     * Get the number of destructions which were interrupted by the timeout
+     * @return the number of timed out destructions
+     */
+    public long getTimeouts ()
+    {
+        return this.timeouts.get ();
+    }
+
+    /**
+     * Get the number of times a destruction was deferred since the queue was full
+     * @return the number of rejected destructions
+     */
+    public long getRejected ()
+    {
+        return this.rejected.get ();
+    }
+
+    /**
+     * Get the number of destructions which were dropped without destroying their session
+     * <p>
+     * Dropped destructions are included in {@link #getFailed()}.
+     * </p>
+     * @return the number of dropped destructions
+     */
+    public long getDropped ()
+    {
+        return this.dropped.get ();
+    }
+
+    public long getMaxDuration ()
+    {
+        return this.maxDuration.get ();
+    }
+
+    public double getAverageDuration ()
+    {
+        // dropped destructions did not take any time
+        final long count = this.destroyed.get () + this.failed.get () - this.dropped.get ();
+        if ( count == 0 )
+        {
+            return 0.0;
+        }
+        return (double)this.totalDuration.get () / (double)count;
+    }
+}
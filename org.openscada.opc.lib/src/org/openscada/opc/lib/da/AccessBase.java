@@ -21,10 +21,16 @@ package org.openscada.opc.lib.da;
 
 import java.net.UnknownHostException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.jinterop.dcom.common.JIException;
 import org.openscada.opc.lib.common.NotConnectedException;
@@ -35,33 +41,94 @@ public abstract class AccessBase implements ServerConnectionStateListener
 {
     private static Logger logger = LoggerFactory.getLogger ( AccessBase.class );
 
+    /**
+     * The default number of items that get added to the group using one call
+     */
+    public static final int DEFAULT_REALIZE_CHUNK_SIZE = 1000;
+
+    private static final DataCallback NULL_CALLBACK = new DataCallback () {
+
+        public void changed ( final Item item, final ItemState itemState )
+        {
+        }
+    };
+
     protected Server server = null;
 
-    protected Group group = null;
+    protected volatile Group group = null;
+
+    /**
+     * All groups of the access, the first one is {@link #group}
+     */
+    protected volatile Group[] groups = new Group[0];
 
-    protected boolean active = false;
+    protected volatile boolean active = false;
 
     private final List<AccessStateListener> stateListeners = new CopyOnWriteArrayList<AccessStateListener> ();
 
+    private final List<BatchDataCallback> batchCallbacks = new CopyOnWriteArrayList<BatchDataCallback> ();
+
     private boolean bound = false;
 
     /**
      * Holds the item to callback assignment
+     * <p>
+     * The map is read by the data callbacks without holding the lock of the access.
+     * </p>
      */
-    protected Map<Item, DataCallback> items = new HashMap<Item, DataCallback> ();
+    protected Map<Item, DataCallback> items = new ConcurrentHashMap<Item, DataCallback> ();
 
     protected Map<String, Item> itemMap = new HashMap<String, Item> ();
 
-    protected Map<Item, ItemState> itemCache = new HashMap<Item, ItemState> ();
+    /**
+     * Holds the last reported value of each item
+     * <p>
+     * The cache is updated by the data callbacks without holding the lock of the access.
+     * </p>
+     */
+    protected ConcurrentMap<Item, ItemState> itemCache = new ConcurrentHashMap<Item, ItemState> ();
 
     private int period = 0;
 
+    private Float percentDeadband = null;
+
+    private volatile int revisedUpdateRate = -1;
+
     protected Map<String, DataCallback> itemSet = new HashMap<String, DataCallback> ();
 
     protected String logTag = null;
 
     protected Logger dataLogger = null;
 
+    private int realizeChunkSize = DEFAULT_REALIZE_CHUNK_SIZE;
+
+    private long lastRealizeDuration = -1;
+
+    private volatile DataCallbackDispatcher dispatcher;
+
+    private volatile ChangeFilter changeFilter = ChangeFilters.equality ();
+
+    /**
+     * Holds the change filters of single items, by item id
+     */
+    private final ConcurrentMap<String, ChangeFilter> itemChangeFilters = new ConcurrentHashMap<String, ChangeFilter> ();
+
+    private volatile SubscriptionRestorer restorer;
+
+    /**
+     * The value of {@link #lastUpdate} while the access did not receive any update
+     */
+    private static final long NO_UPDATE = Long.MIN_VALUE;
+
+    /**
+     * The time of the last poll cycle or data change notification in nanoseconds
+     */
+    private volatile long lastUpdate = NO_UPDATE;
+
+    private final AtomicLong cacheHits = new AtomicLong ();
+
+    private final AtomicLong cacheMisses = new AtomicLong ();
+
     public AccessBase ( final Server server, final int period ) throws IllegalArgumentException, UnknownHostException, NotConnectedException, JIException, DuplicateGroupException
     {
         super ();
@@ -97,6 +164,25 @@ public abstract class AccessBase implements ServerConnectionStateListener
         this.bound = true;
     }
 
+    /**
+     * Bind the access to a restorer instead of the server
+     * <p>
+     * The restorer starts and stops the access when the connection state
+     * of the server changes.
+     * </p>
+     * @param restorer the restorer
+     */
+    synchronized void bind ( final SubscriptionRestorer restorer )
+    {
+        if ( isBound () )
+        {
+            return;
+        }
+
+        this.restorer = restorer;
+        this.bound = true;
+    }
+
     public synchronized void unbind () throws JIException
     {
         if ( !isBound () )
@@ -104,7 +190,16 @@ public abstract class AccessBase implements ServerConnectionStateListener
             return;
         }
 
-        this.server.removeStateListener ( this );
+        final SubscriptionRestorer restorer = this.restorer;
+        if ( restorer != null )
+        {
+            this.restorer = null;
+            restorer.removed ( this );
+        }
+        else
+        {
+            this.server.removeStateListener ( this );
+        }
         this.bound = false;
 
         stop ();
@@ -126,6 +221,26 @@ public abstract class AccessBase implements ServerConnectionStateListener
         this.stateListeners.remove ( listener );
     }
 
+    /**
+     * Add a callback which receives all changed items of a data change
+     * notification or poll cycle with one call.
+     * <p>
+     * Batch callbacks are called by the thread which received the data
+     * change, after the data callbacks of the single items were notified or
+     * handed over to the dispatcher.
+     * </p>
+     * @param callback the callback to add
+     */
+    public void addBatchCallback ( final BatchDataCallback callback )
+    {
+        this.batchCallbacks.add ( callback );
+    }
+
+    public void removeBatchCallback ( final BatchDataCallback callback )
+    {
+        this.batchCallbacks.remove ( callback );
+    }
+
     protected void notifyStateListenersState ( final boolean state )
     {
         final List<AccessStateListener> list = new ArrayList<AccessStateListener> ( this.stateListeners );
@@ -146,11 +261,157 @@ public abstract class AccessBase implements ServerConnectionStateListener
         }
     }
 
+    /**
+     * Get the ids of all items of this access
+     * @return a copy of the item ids
+     */
+    public synchronized List<String> getItemIds ()
+    {
+        return new ArrayList<String> ( this.itemSet.keySet () );
+    }
+
     public int getPeriod ()
     {
         return this.period;
     }
 
+    public Float getPercentDeadband ()
+    {
+        return this.percentDeadband;
+    }
+
+    /**
+     * Set the percent deadband of the group
+     * <p>
+     * The deadband is applied when the group is created the next time.
+     * </p>
+     * @param percentDeadband the deadband or <code>null</code> to use the default of the server
+     */
+    public synchronized void setPercentDeadband ( final Float percentDeadband )
+    {
+        this.percentDeadband = percentDeadband;
+    }
+
+    /**
+     * Get the update rate that the server granted for the group
+     * @return the update rate in milliseconds or <code>-1</code> if the group was not created yet
+     */
+    public int getRevisedUpdateRate ()
+    {
+        return this.revisedUpdateRate;
+    }
+
+    public int getRealizeChunkSize ()
+    {
+        return this.realizeChunkSize;
+    }
+
+    /**
+     * Set the number of items that get added to the group using one call
+     * when all items get realized after the access was started.
+     * @param realizeChunkSize the number of items per call. If the value is less than
+     * or equal to zero all items will be added using one call.
+     */
+    public void setRealizeChunkSize ( final int realizeChunkSize )
+    {
+        this.realizeChunkSize = realizeChunkSize;
+    }
+
+    /**
+     * Get the time it took to realize all items the last time the access was started
+     * @return the duration in milliseconds or <code>-1</code> if the items were never realized
+     */
+    public long getLastRealizeDuration ()
+    {
+        return this.lastRealizeDuration;
+    }
+
+    public DataCallbackDispatcher getDispatcher ()
+    {
+        return this.dispatcher;
+    }
+
+    /**
+     * Set the dispatcher which delivers data changes to the data callbacks.
+     * <p>
+     * If no dispatcher is set the data callbacks are called directly by the
+     * thread which received the data change. If the dispatcher drops an update
+     * the cached state of the item is discarded, so that the next state of the
+     * item is always delivered.
+     * </p>
+     * @param dispatcher the dispatcher to use or <code>null</code> to call the data callbacks directly
+     */
+    public void setDispatcher ( final DataCallbackDispatcher dispatcher )
+    {
+        this.dispatcher = dispatcher;
+    }
+
+    public ChangeFilter getChangeFilter ()
+    {
+        return this.changeFilter;
+    }
+
+    /**
+     * Set the change filter which is used for all items without their own filter
+     * <p>
+     * The default filter is {@link ChangeFilters#equality()}.
+     * </p>
+     * @param changeFilter the change filter
+     * @see ChangeFilters
+     */
+    public void setChangeFilter ( final ChangeFilter changeFilter )
+    {
+        if ( changeFilter == null )
+        {
+            throw new IllegalArgumentException ( "Change filter must not be null" );
+        }
+        this.changeFilter = changeFilter;
+    }
+
+    /**
+     * Set the change filter of a single item
+     * @param itemId the item id
+     * @param changeFilter the change filter or <code>null</code> to use the filter of the access
+     */
+    public void setChangeFilter ( final String itemId, final ChangeFilter changeFilter )
+    {
+        if ( changeFilter == null )
+        {
+            this.itemChangeFilters.remove ( itemId );
+        }
+        else
+        {
+            this.itemChangeFilters.put ( itemId, changeFilter );
+        }
+    }
+
+    /**
+     * Add an item using its own change filter
+     * @param itemId the item to add
+     * @param dataCallback the data callback of the item
+     * @param changeFilter the change filter of the item
+     * @throws JIException
+     * @throws AddFailedException
+     */
+    public void addItem ( final String itemId, final DataCallback dataCallback, final ChangeFilter changeFilter ) throws JIException, AddFailedException
+    {
+        setChangeFilter ( itemId, changeFilter );
+        addItem ( itemId, dataCallback );
+    }
+
+    /**
+     * Add an item without a data callback. The changes of the item are only reported to
+     * the batch callbacks.
+     * @param itemId the item to add
+     * @throws JIException
+     * @throws AddFailedException
+     * @see #addBatchCallback(BatchDataCallback)
+     */
+    public void addItem ( final String itemId ) throws JIException, AddFailedException
+    {
+        addItem ( itemId, NULL_CALLBACK );
+    }
+
     public synchronized void addItem ( final String itemId, final DataCallback dataCallback ) throws JIException, AddFailedException
     {
         if ( this.itemSet.containsKey ( itemId ) )
@@ -174,6 +435,7 @@ public abstract class AccessBase implements ServerConnectionStateListener
         }
 
         this.itemSet.remove ( itemId );
+        this.itemChangeFilters.remove ( itemId );
 
         if ( isActive () )
         {
@@ -181,6 +443,33 @@ public abstract class AccessBase implements ServerConnectionStateListener
         }
     }
 
+    /**
+     * Replace the data callback of an item
+     * <p>
+     * The item stays realized, so no group operation is performed.
+     * </p>
+     * @param itemId the item id
+     * @param dataCallback the new data callback of the item
+     * @return <code>true</code> if the callback was replaced, <code>false</code> if the
+     * item is not part of the item set
+     */
+    public synchronized boolean setDataCallback ( final String itemId, final DataCallback dataCallback )
+    {
+        if ( !this.itemSet.containsKey ( itemId ) )
+        {
+            return false;
+        }
+
+        this.itemSet.put ( itemId, dataCallback );
+
+        final Item item = this.itemMap.get ( itemId );
+        if ( item != null )
+        {
+            this.items.put ( item, dataCallback );
+        }
+        return true;
+    }
+
     public void connectionStateChanged ( final boolean connected )
     {
         try
@@ -207,9 +496,42 @@ public abstract class AccessBase implements ServerConnectionStateListener
             return;
         }
 
-        logger.debug ( "Create a new group" );
-        this.group = this.server.addGroup ();
-        this.group.setActive ( true );
+        final int count = Math.max ( getGroupCount (), 1 );
+        logger.debug ( "Create {} new group(s)", count );
+
+        final int updateRate = this.period > 0 ? this.period : this.server.getDefaultUpdateRate ();
+        final Float deadband = this.percentDeadband != null ? this.percentDeadband : this.server.getDefaultPercentDeadband ();
+
+        final Group[] groups = new Group[count];
+        try
+        {
+            for ( int i = 0; i < count; i++ )
+            {
+                groups[i] = this.server.addGroup ( null, updateRate, deadband );
+                final int revisedUpdateRate = groups[i].setState ( null, true, null );
+                if ( i == 0 )
+                {
+                    this.revisedUpdateRate = revisedUpdateRate;
+                }
+            }
+        }
+        catch ( final JIException e )
+        {
+            removeGroups ( groups );
+            throw e;
+        }
+        catch ( final RuntimeException e )
+        {
+            removeGroups ( groups );
+            throw e;
+        }
+
+        if ( this.period > 0 && this.revisedUpdateRate != this.period )
+        {
+            logger.info ( String.format ( "Server revised update rate from %s ms to %s ms", this.period, this.revisedUpdateRate ) );
+        }
+        this.groups = groups;
+        this.group = groups[0];
         this.active = true;
 
         notifyStateListenersState ( true );
@@ -227,20 +549,67 @@ public abstract class AccessBase implements ServerConnectionStateListener
             return;
         }
 
-        final Item item = this.group.addItem ( itemId );
+        final Item item = selectGroup ( itemId ).addItem ( itemId );
+        attachItem ( itemId, item );
+    }
+
+    /**
+     * Get the number of groups the items of the access are distributed over
+     * @return the number of groups, by default <code>1</code>
+     */
+    protected int getGroupCount ()
+    {
+        return 1;
+    }
+
+    /**
+     * Select the group an item is added to
+     * @param itemId the item id
+     * @return the group of the item
+     */
+    protected Group selectGroup ( final String itemId )
+    {
+        final Group[] groups = this.groups;
+        if ( groups.length <= 1 )
+        {
+            return this.group;
+        }
+        return groups[ ( itemId.hashCode () & Integer.MAX_VALUE ) % groups.length];
+    }
+
+    /**
+     * Attach a realized item to the data callback of the item set
+     * @param itemId the item id
+     * @param item the realized item
+     * @return <code>true</code> if the item was attached, <code>false</code> if the
+     * item is no longer part of the item set
+     */
+    protected boolean attachItem ( final String itemId, final Item item )
+    {
+        final DataCallback dataCallback = this.itemSet.get ( itemId );
+        if ( dataCallback == null || item == null )
+        {
+            return false;
+        }
+
         this.items.put ( item, dataCallback );
         this.itemMap.put ( itemId, item );
+        return true;
     }
 
     protected void unrealizeItem ( final String itemId )
     {
         final Item item = this.itemMap.remove ( itemId );
+        if ( item == null )
+        {
+            return;
+        }
         this.items.remove ( item );
         this.itemCache.remove ( item );
 
         try
         {
-            this.group.removeItem ( itemId );
+            item.getGroup ().removeItem ( itemId );
         }
         catch ( final Throwable e )
         {
@@ -248,16 +617,99 @@ public abstract class AccessBase implements ServerConnectionStateListener
         }
     }
 
-    /*
-     * FIXME: need some perfomance boost: subscribe all in one call
+    /**
+     * Realize all items of the item set using bulk add operations
+     * <p>
+     * The items are added in chunks of {@link #getRealizeChunkSize()} items. If
+     * a chunk cannot be added at all the items of the chunk will be realized
+     * one by one.
+     * </p>
      */
     protected void realizeAll ()
     {
+        final long start = System.currentTimeMillis ();
+
+        final Map<Group, List<String>> itemIds = new LinkedHashMap<Group, List<String>> ();
         for ( final String itemId : this.itemSet.keySet () )
+        {
+            final Group group = selectGroup ( itemId );
+            List<String> list = itemIds.get ( group );
+            if ( list == null )
+            {
+                list = new ArrayList<String> ();
+                itemIds.put ( group, list );
+            }
+            list.add ( itemId );
+        }
+
+        // if the server sizes the chunks itself, pass all items at once
+        final boolean adaptive = this.server.getAddChunkSizer () != null;
+
+        int realized = 0;
+        for ( final Map.Entry<Group, List<String>> entry : itemIds.entrySet () )
+        {
+            final List<String> list = entry.getValue ();
+            final int chunkSize = this.realizeChunkSize > 0 && !adaptive ? this.realizeChunkSize : Math.max ( list.size (), 1 );
+            for ( int i = 0; i < list.size (); i += chunkSize )
+            {
+                realized += realizeItems ( entry.getKey (), list.subList ( i, Math.min ( i + chunkSize, list.size () ) ) );
+            }
+        }
+
+        this.lastRealizeDuration = System.currentTimeMillis () - start;
+        logger.info ( String.format ( "Realized %s of %s items in %s ms", realized, this.itemSet.size (), this.lastRealizeDuration ) );
+    }
+
+    /**
+     * Realize a set of items using one add operation
+     * @param group the group to add the items to
+     * @param itemIds the items to realize
+     * @return the number of items that were realized
+     */
+    protected int realizeItems ( final Group group, final Collection<String> itemIds )
+    {
+        logger.debug ( "Realizing {} items", itemIds.size () );
+
+        Map<String, Item> result;
+        try
+        {
+            result = group.addItems ( itemIds.toArray ( new String[itemIds.size ()] ) );
+        }
+        catch ( final AddFailedException e )
+        {
+            for ( final Map.Entry<String, Integer> entry : e.getErrors ().entrySet () )
+            {
+                final Integer rc = entry.getValue ();
+                logger.warn ( String.format ( "Failed to add item: %s (%08X)", entry.getKey (), rc == null ? -1 : rc ) );
+            }
+            result = e.getItems ();
+        }
+        catch ( final Exception e )
+        {
+            logger.warn ( String.format ( "Failed to realize %s items in one call. Falling back to single item mode.", itemIds.size () ), e );
+            return realizeItemsSingle ( itemIds );
+        }
+
+        int realized = 0;
+        for ( final Map.Entry<String, Item> entry : result.entrySet () )
+        {
+            if ( attachItem ( entry.getKey (), entry.getValue () ) )
+            {
+                realized++;
+            }
+        }
+        return realized;
+    }
+
+    private int realizeItemsSingle ( final Collection<String> itemIds )
+    {
+        int realized = 0;
+        for ( final String itemId : itemIds )
         {
             try
             {
                 realizeItem ( itemId );
+                realized++;
             }
             catch ( final AddFailedException e )
             {
@@ -274,19 +726,25 @@ public abstract class AccessBase implements ServerConnectionStateListener
                 logger.warn ( "Failed to realize item: " + itemId, e );
             }
         }
+        return realized;
     }
 
     protected void unrealizeAll ()
     {
         this.items.clear ();
+        this.itemMap.clear ();
         this.itemCache.clear ();
-        try
-        {
-            this.group.clear ();
-        }
-        catch ( final JIException e )
+        this.lastUpdate = NO_UPDATE;
+        for ( final Group group : this.groups )
         {
-            logger.info ( "Failed to clear group. No problem if we already lost the connection", e );
+            try
+            {
+                group.clear ();
+            }
+            catch ( final JIException e )
+            {
+                logger.info ( "Failed to clear group. No problem if we already lost the connection", e );
+            }
         }
     }
 
@@ -302,15 +760,141 @@ public abstract class AccessBase implements ServerConnectionStateListener
         this.active = false;
         notifyStateListenersState ( false );
 
-        try
+        removeGroups ( this.groups );
+        this.groups = new Group[0];
+        this.group = null;
+    }
+
+    private void removeGroups ( final Group[] groups )
+    {
+        for ( final Group group : groups )
         {
-            this.group.remove ();
+            if ( group == null )
+            {
+                continue;
+            }
+            try
+            {
+                group.remove ();
+            }
+            catch ( final Throwable t )
+            {
+                logger.warn ( "Failed to disable group. No problem if we already lost connection" );
+            }
         }
-        catch ( final Throwable t )
+    }
+
+    /**
+     * Read items, serving the values from the last value cache if they are fresh enough
+     * <p>
+     * The cached states of an active access are at most {@link #getCacheAge()}
+     * milliseconds old when the access receives a poll cycle or data change
+     * notification, and age from then on. If the time since the last update plus
+     * the cache age is within the requested maximum age, the cached state is
+     * returned without calling the server.
+     * All other items of this access are read using one read call per group,
+     * from the device if the maximum age is below the update rate of the group,
+     * from the server cache otherwise. Items which are not part of this access,
+     * and all items while the access is not active, are read by item id using
+     * {@link Server#readItems(int, String...)}, which requires an OPC DA 3.0 server.
+     * </p>
+     * <p>
+     * Items with a change filter other than {@link ChangeFilters#equality()} are
+     * never served from the cache, since their cached state is the last state
+     * reported to the data callback, which may differ from the current state
+     * within the tolerance of the filter.
+     * </p>
+     * @param maxAge the maximum age of the values in milliseconds
+     * @param itemIds the items to read
+     * @return the item states by item id
+     * @throws JIException if reading the items from the server failed
+     * @throws NotConnectedException if items had to be read by item id and the server is not connected
+     */
+    public Map<String, ItemState> read ( final int maxAge, final String... itemIds ) throws JIException, NotConnectedException
+    {
+        final Map<String, ItemState> result = new LinkedHashMap<String, ItemState> ( itemIds.length );
+        final Map<Group, List<Item>> groupReads = new LinkedHashMap<Group, List<Item>> ();
+        final List<String> unknownItems = new ArrayList<String> ();
+
+        final boolean cacheValid;
+        synchronized ( this )
         {
-            logger.warn ( "Failed to disable group. No problem if we already lost connection" );
+            final long lastUpdate = this.lastUpdate;
+            cacheValid = this.active && lastUpdate != NO_UPDATE && TimeUnit.NANOSECONDS.toMillis ( System.nanoTime () - lastUpdate ) + getCacheAge () <= maxAge;
+            for ( final String itemId : itemIds )
+            {
+                // the groups of an inactive access are removed or about to be
+                final Item item = this.active ? this.itemMap.get ( itemId ) : null;
+                if ( item == null )
+                {
+                    unknownItems.add ( itemId );
+                    continue;
+                }
+
+                final ItemState state = cacheValid && getChangeFilter ( item ) == ChangeFilters.equality () ? this.itemCache.get ( item ) : null;
+                if ( state != null )
+                {
+                    result.put ( itemId, state );
+                    continue;
+                }
+
+                List<Item> list = groupReads.get ( item.getGroup () );
+                if ( list == null )
+                {
+                    list = new ArrayList<Item> ();
+                    groupReads.put ( item.getGroup (), list );
+                }
+                list.add ( item );
+            }
         }
-        this.group = null;
+
+        this.cacheHits.addAndGet ( result.size () );
+        this.cacheMisses.addAndGet ( itemIds.length - result.size () );
+
+        // the server cache of an active group is refreshed at the update rate
+        final boolean device = maxAge < this.revisedUpdateRate;
+        for ( final Map.Entry<Group, List<Item>> entry : groupReads.entrySet () )
+        {
+            final Map<Item, ItemState> states = entry.getKey ().read ( device, entry.getValue ().toArray ( new Item[entry.getValue ().size ()] ) );
+            for ( final Map.Entry<Item, ItemState> state : states.entrySet () )
+            {
+                result.put ( state.getKey ().getId (), state.getValue () );
+            }
+        }
+
+        if ( !unknownItems.isEmpty () )
+        {
+            result.putAll ( this.server.readItems ( maxAge, unknownItems.toArray ( new String[unknownItems.size ()] ) ) );
+        }
+
+        return result;
+    }
+
+    /**
+     * Get the maximum age of the cached item states when the access is updated
+     * @return the maximum age in milliseconds
+     */
+    protected int getCacheAge ()
+    {
+        return this.revisedUpdateRate < 0 ? Integer.MAX_VALUE : this.revisedUpdateRate;
+    }
+
+    /**
+     * Get the number of items served from the last value cache by {@link #read(int, String...)}
+     * @return the number of cache hits
+     */
+    public long getCacheHits ()
+    {
+        return this.cacheHits.get ();
+    }
+
+    /**
+     * Get the number of items read from the server by {@link #read(int, String...)}
+     * @return the number of cache misses
+     */
+    public long getCacheMisses ()
+    {
+        return this.cacheMisses.get ();
     }
 
     public synchronized void clear ()
@@ -319,10 +903,101 @@ public abstract class AccessBase implements ServerConnectionStateListener
         this.items.clear ();
         this.itemMap.clear ();
         this.itemCache.clear ();
+        this.itemChangeFilters.clear ();
     }
 
+    /**
+     * Update the cached state of an item and notify the data callback if the state changed
+     * <p>
+     * This method does not acquire the lock of the access. It may be called concurrently
+     * for different items and concurrently to adding or removing items.
+     * </p>
+     * @param item the item to update
+     * @param itemState the new state of the item
+     */
     protected void updateItem ( final Item item, final ItemState itemState )
     {
+        final DataCallback dataCallback = updateCache ( item, itemState );
+        if ( dataCallback != null )
+        {
+            notifyDataCallback ( dataCallback, item, itemState );
+        }
+    }
+
+    /**
+     * Update the cached states of all items of one data change notification or poll cycle
+     * <p>
+     * The data callbacks of all changed items are notified and afterwards the
+     * batch callbacks are called once with all changed items.
+     * </p>
+     * @param transactionId the transaction id or poll cycle number
+     * @param serverGroupHandle the server handle of the group
+     * @param itemStates the new states of the items
+     */
+    protected void updateItems ( final int transactionId, final int serverGroupHandle, final Map<Item, ItemState> itemStates )
+    {
+        final SubscriptionRestorer restorer = this.restorer;
+        if ( restorer != null && !itemStates.isEmpty () )
+        {
+            restorer.dataReceived ();
+        }
+
+        final Map<Item, ItemState> changes = this.batchCallbacks.isEmpty () ? null : new LinkedHashMap<Item, ItemState> ( itemStates.size () );
+
+        for ( final Map.Entry<Item, ItemState> entry : itemStates.entrySet () )
+        {
+            final DataCallback dataCallback = updateCache ( entry.getKey (), entry.getValue () );
+            if ( dataCallback == null )
+            {
+                continue;
+            }
+
+            notifyDataCallback ( dataCallback, entry.getKey (), entry.getValue () );
+            if ( changes != null )
+            {
+                changes.put ( entry.getKey (), entry.getValue () );
+            }
+        }
+
+        // the states of all items are current now, even those which did not change
+        this.lastUpdate = System.nanoTime ();
+
+        if ( changes == null || changes.isEmpty () )
+        {
+            return;
+        }
+
+        for ( final BatchDataCallback callback : this.batchCallbacks )
+        {
+            try
+            {
+                callback.changed ( transactionId, serverGroupHandle, changes );
+            }
+            catch ( final Throwable e )
+            {
+                logger.warn ( "Batch callback failed", e );
+            }
+        }
+    }
+
+    /**
+     * Update the cache entry of an item
+     * <p>
+     * The cache entry is only replaced if the change filter of the item reports the
+     * new state as change, so that the filter always compares with the last reported state.
+     * </p>
+     * @param item the item
+     * @param itemState the new state of the item
+     * @return the data callback to notify or <code>null</code> if the state did not change
+     * or the item is not part of this access
+     */
+    private DataCallback updateCache ( final Item item, final ItemState itemState )
+    {
+        if ( item == null )
+        {
+            return null;
+        }
+
         if ( this.dataLogger != null )
         {
             this.dataLogger.debug ( "Update item: {}, {}", item.getId (), itemState );
@@ -331,23 +1006,84 @@ public abstract class AccessBase implements ServerConnectionStateListener
         final DataCallback dataCallback = this.items.get ( item );
         if ( dataCallback == null )
         {
-            return;
+            return null;
         }
 
-        final ItemState cachedState = this.itemCache.get ( item );
-        if ( cachedState == null )
+        if ( !replaceCachedState ( item, itemState ) )
         {
-            this.itemCache.put ( item, itemState );
-            dataCallback.changed ( item, itemState );
+            return null;
         }
-        else
+
+        if ( !this.items.containsKey ( item ) )
+        {
+            // the item was removed while we were updating the cache
+            this.itemCache.remove ( item, itemState );
+            return null;
+        }
+
+        return dataCallback;
+    }
+
+    private boolean replaceCachedState ( final Item item, final ItemState itemState )
+    {
+        ChangeFilter filter = null;
+
+        while ( true )
+        {
+            final ItemState cachedState = this.itemCache.get ( item );
+            if ( cachedState == null )
+            {
+                if ( this.itemCache.putIfAbsent ( item, itemState ) == null )
+                {
+                    return true;
+                }
+                continue;
+            }
+
+            if ( filter == null )
+            {
+                filter = getChangeFilter ( item );
+            }
+            if ( !filter.isChanged ( cachedState, itemState ) )
+            {
+                return false;
+            }
+
+            if ( this.itemCache.replace ( item, cachedState, itemState ) )
+            {
+                return true;
+            }
+        }
+    }
+
+    private ChangeFilter getChangeFilter ( final Item item )
+    {
+        if ( !this.itemChangeFilters.isEmpty () )
         {
-            if ( !cachedState.equals ( itemState ) )
+            final ChangeFilter filter = this.itemChangeFilters.get ( item.getId () );
+            if ( filter != null )
             {
-                this.itemCache.put ( item, itemState );
-                dataCallback.changed ( item, itemState );
+                return filter;
             }
         }
+        return this.changeFilter;
+    }
+
+    private void notifyDataCallback ( final DataCallback dataCallback, final Item item, final ItemState itemState )
+    {
+        final DataCallbackDispatcher dispatcher = this.dispatcher;
+        if ( dispatcher != null )
+        {
+            if ( !dispatcher.dispatch ( item, itemState, dataCallback ) )
+            {
+                // the data callback did not see the state, so the next state must not be filtered against it
+                this.itemCache.remove ( item, itemState );
+            }
+        }
+        else
+        {
+            dataCallback.changed ( item, itemState );
+        }
     }
 
     protected void handleError ( final Throwable e )
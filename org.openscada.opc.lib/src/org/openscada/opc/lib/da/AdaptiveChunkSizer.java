@@ -0,0 +1,341 @@
+/*
+ * This file is part of the OpenSCADA project
+ * Copyright (C) 2006-2011 TH4 SYSTEMS GmbH (http://th4-systems.com)
+ *
+ * OpenSCADA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License version 3
+ * only, as published by the Free Software Foundation.
+ *
+ * OpenSCADA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License version 3 for more details
+ * (a copy is included in the LICENSE file that accompanied this code).
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * version 3 along with OpenSCADA. If not, see
+ * <http://opensource.org/licenses/lgpl-3.0.html> for a copy of the LGPLv3 License.
+ */
+
+package org.openscada.opc.lib.da;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Finds the chunk size which gives the lowest latency per item for bulk operations
+ * <p>
+ * The sizer measures the latency of each chunk and keeps an average latency per item
+ * for every candidate chunk size. The candidates are the powers of two between the
+ * minimum and the maximum size. From time to time the next larger size is probed
+ * and the sizer moves to the neighbour with the lower latency per item. If an
+ * operation fails or a chunk takes longer than the maximum chunk latency, the chunk
+ * size is reduced and the failed size is not probed again for a while.
+ * </p>
+ * <p>
+ * An instance is used for one kind of operation on one server, see
+ * {@link Server#setReadChunkSizer(AdaptiveChunkSizer)} and {@link Server#setAddChunkSizer(AdaptiveChunkSizer)}.
+ * </p>
+ */
+public class AdaptiveChunkSizer
+{
+    /**
+     * The number of chunks after which the sizer decides to move
+     */
+    private static final int DECISION_INTERVAL = 8;
+
+    /**
+     * The number of chunks a size is not probed again after it failed
+     */
+    private static final int FAILURE_COOLDOWN = 200;
+
+    /**
+     * After this number of decisions the larger neighbour is probed again
+     */
+    private static final int REPROBE_INTERVAL = 16;
+
+    /**
+     * The weight of a new sample in the average latency
+     */
+    private static final double SAMPLE_WEIGHT = 0.2;
+
+    /**
+     * The relative improvement required to move to another size
+     */
+    private static final double MIN_IMPROVEMENT = 0.05;
+
+    /**
+     * Statistics of one chunk size
+     */
+    public static class ChunkSizeStatistics
+    {
+        private final int chunkSize;
+
+        private final long samples;
+
+        private final long failures;
+
+        private final double nanosPerItem;
+
+        public ChunkSizeStatistics ( final int chunkSize, final long samples, final long failures, final double nanosPerItem )
+        {
+            this.chunkSize = chunkSize;
+            this.samples = samples;
+            this.failures = failures;
+            this.nanosPerItem = nanosPerItem;
+        }
+
+        public int getChunkSize ()
+        {
+            return this.chunkSize;
+        }
+
+        public long getSamples ()
+        {
+            return this.samples;
+        }
+
+        public long getFailures ()
+        {
+            return this.failures;
+        }
+
+        /**
+         * Get the average latency per item
+         * @return the latency in nanoseconds or <code>NaN</code> if the size was not measured yet
+         */
+        public double getNanosPerItem ()
+        {
+            return this.nanosPerItem;
+        }
+
+        /**
+         * Get the average latency of a full chunk
+         * @return the latency in milliseconds or <code>NaN</code> if the size was not measured yet
+         */
+        public double getChunkLatency ()
+        {
+            return this.nanosPerItem * this.chunkSize / 1000000.0;
+        }
+
+        @Override
+        public String toString ()
+        {
+            return String.format ( "%s: %.3f ms/chunk, %s samples, %s failures", this.chunkSize, getChunkLatency (), this.samples, this.failures );
+        }
+    }
+
+    private static class Candidate
+    {
+        private final int size;
+
+        private long samples;
+
+        private long failures;
+
+        private double nanosPerItem = Double.NaN;
+
+        private long cooldownUntil;
+
+        public Candidate ( final int size )
+        {
+            this.size = size;
+        }
+    }
+
+    private final Candidate[] candidates;
+
+    private final long maxChunkLatencyNanos;
+
+    private int current;
+
+    private long chunks;
+
+    private int chunksSinceDecision;
+
+    private int decisions;
+
+    /**
+     * Create a new sizer
+     * @param minSize the smallest chunk size
+     * @param initialSize the chunk size to start with
+     * @param maxSize the largest chunk size
+     * @param maxChunkLatency the maximum latency of a chunk in milliseconds, larger
+     * latencies are handled like failures. <code>0</code> disables the limit.
+     */
+    public AdaptiveChunkSizer ( final int minSize, final int initialSize, final int maxSize, final long maxChunkLatency )
+    {
+        if ( minSize < 1 || maxSize < minSize )
+        {
+            throw new IllegalArgumentException ( String.format ( "Invalid chunk size range: %s - %s", minSize, maxSize ) );
+        }
+
+        final List<Candidate> candidates = new ArrayList<Candidate> ();
+        for ( long size = minSize; size < maxSize; size *= 2 )
+        {
+            candidates.add ( new Candidate ( (int)size ) );
+        }
+        candidates.add ( new Candidate ( maxSize ) );
+        this.candidates = candidates.toArray ( new Candidate[candidates.size ()] );
+
+        this.maxChunkLatencyNanos = maxChunkLatency * 1000000L;
+
+        this.current = 0;
+        while ( this.current < this.candidates.length - 1 && this.candidates[this.current].size < initialSize )
+        {
+            this.current++;
+        }
+    }
+
+    /**
+     * Create a new sizer with chunk sizes from 16 to 4096 items, starting with 512
+     * items and without a latency limit
+     */
+    public AdaptiveChunkSizer ()
+    {
+        this ( 16, 512, 4096, 0 );
+    }
+
+    /**
+     * Get the chunk size to use for the next operation
+     * @return the chunk size
+     */
+    public synchronized int getChunkSize ()
+    {
+        return this.candidates[this.current].size;
+    }
+
+    public int getMinChunkSize ()
+    {
+        return this.candidates[0].size;
+    }
+
+    /**
+     * Record a successful chunk
+     * @param chunkSize the chunk size which was in use
+     * @param items the number of items in the chunk
+     * @param nanos the latency of the chunk in nanoseconds
+     */
+    public synchronized void recordSuccess ( final int chunkSize, final int items, final long nanos )
+    {
+        final int index = indexOf ( chunkSize );
+        this.chunks++;
+
+        if ( this.maxChunkLatencyNanos > 0 && nanos > this.maxChunkLatencyNanos )
+        {
+            fail ( index );
+            return;
+        }
+
+        // partial chunks don't tell much about the chunk size
+        if ( items * 2 < chunkSize || items == 0 )
+        {
+            return;
+        }
+
+        final Candidate candidate = this.candidates[index];
+        final double sample = (double)nanos / items;
+        candidate.nanosPerItem = Double.isNaN ( candidate.nanosPerItem ) ? sample : candidate.nanosPerItem + SAMPLE_WEIGHT * ( sample - candidate.nanosPerItem );
+        candidate.samples++;
+
+        if ( index == this.current && ++this.chunksSinceDecision >= DECISION_INTERVAL )
+        {
+            decide ();
+        }
+    }
+
+    /**
+     * Record a failed chunk
+     * @param chunkSize the chunk size which was in use
+     */
+    public synchronized void recordFailure ( final int chunkSize )
+    {
+        this.chunks++;
+        fail ( indexOf ( chunkSize ) );
+    }
+
+    private void fail ( final int index )
+    {
+        final Candidate candidate = this.candidates[index];
+        candidate.failures++;
+        candidate.cooldownUntil = this.chunks + FAILURE_COOLDOWN;
+
+        if ( index <= this.current )
+        {
+            this.current = Math.max ( 0, index - 1 );
+            this.chunksSinceDecision = 0;
+        }
+    }
+
+    private void decide ()
+    {
+        this.chunksSinceDecision = 0;
+        this.decisions++;
+
+        final Candidate current = this.candidates[this.current];
+
+        if ( this.current + 1 < this.candidates.length )
+        {
+            final Candidate larger = this.candidates[this.current + 1];
+            if ( this.decisions % REPROBE_INTERVAL == 0 )
+            {
+                // forget old measurements so that the size is probed again
+                larger.nanosPerItem = Double.NaN;
+            }
+            if ( larger.cooldownUntil <= this.chunks )
+            {
+                if ( Double.isNaN ( larger.nanosPerItem ) || isBetter ( larger, current ) )
+                {
+                    this.current++;
+                    return;
+                }
+            }
+        }
+
+        if ( this.current > 0 )
+        {
+            final Candidate smaller = this.candidates[this.current - 1];
+            if ( !Double.isNaN ( smaller.nanosPerItem ) && isBetter ( smaller, current ) )
+            {
+                this.current--;
+            }
+        }
+    }
+
+    private static boolean isBetter ( final Candidate candidate, final Candidate current )
+    {
+        return candidate.nanosPerItem < current.nanosPerItem * ( 1.0 - MIN_IMPROVEMENT );
+    }
+
+    private int indexOf ( final int chunkSize )
+    {
+        for ( int i = this.candidates.length - 1; i > 0; i-- )
+        {
+            if ( this.candidates[i].size <= chunkSize )
+            {
+                return i;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Get the measured latency curve
+     * @return the statistics of all candidate chunk sizes, ordered by size
+     */
+    public synchronized List<ChunkSizeStatistics> getLatencyCurve ()
+    {
+        final List<ChunkSizeStatistics> result = new ArrayList<ChunkSizeStatistics> ( this.candidates.length );
+        for ( final Candidate candidate : this.candidates )
+        {
+            result.add ( new ChunkSizeStatistics ( candidate.size, candidate.samples, candidate.failures, candidate.nanosPerItem ) );
+        }
+        return result;
+    }
+
+    @Override
+    public synchronized String toString ()
+    {
+        return String.format ( "AdaptiveChunkSizer[current: %s, chunks: %s]", getChunkSize (), this.chunks );
+    }
+}
@@ -20,6 +20,8 @@
 package org.openscada.opc.lib.da;
 
 import java.net.UnknownHostException;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import org.jinterop.dcom.common.JIException;
 import org.openscada.opc.dcom.common.EventHandler;
@@ -42,6 +44,8 @@ public class Async20Access extends AccessBase implements IOPCDataCallback
 
     private boolean initialRefresh = false;
 
+    private boolean primitiveMode = false;
+
     public Async20Access ( final Server server, final int period, final boolean initialRefresh ) throws IllegalArgumentException, UnknownHostException, NotConnectedException, JIException, DuplicateGroupException
     {
         super ( server, period );
@@ -64,7 +68,7 @@ public class Async20Access extends AccessBase implements IOPCDataCallback
 
         super.start ();
 
-        this.eventHandler = this.group.attach ( this );
+        this.eventHandler = this.group.attach ( this, this.primitiveMode );
         if ( !this.items.isEmpty () && this.initialRefresh )
         {
             final OPCAsyncIO2 async20 = this.group.getAsyncIO20 ();
@@ -102,6 +106,26 @@ public class Async20Access extends AccessBase implements IOPCDataCallback
         super.stop ();
     }
 
+    /**
+     * Enable or disable the primitive mode for data changes
+     * <p>
+     * In primitive mode numeric and boolean values are decoded once when they are
+     * received and the item states do not keep the variant. Use the typed accessors
+     * of {@link ItemState} to access the values. The setting is applied when the
+     * access is started the next time.
+     * </p>
+     * @param primitiveMode <code>true</code> to enable the primitive mode
+     */
+    public void setPrimitiveMode ( final boolean primitiveMode )
+    {
+        this.primitiveMode = primitiveMode;
+    }
+
+    public boolean isPrimitiveMode ()
+    {
+        return this.primitiveMode;
+    }
+
     public void cancelComplete ( final int transactionId, final int serverGroupHandle )
     {
     }
@@ -116,12 +140,20 @@ public class Async20Access extends AccessBase implements IOPCDataCallback
             return;
         }
 
+        final Map<Item, ItemState> itemStates = new LinkedHashMap<Item, ItemState> ( result.size () );
         for ( final KeyedResult<Integer, ValueData> entry : result )
         {
             final Item item = group.findItemByClientHandle ( entry.getKey () );
+            if ( item == null )
+            {
+                logger.debug ( "Update for unknown client handle {}", entry.getKey () );
+                continue;
+            }
             logger.debug ( "Update for '{}'", item.getId () );
-            updateItem ( item, new ItemState ( entry.getErrorCode (), entry.getValue ().getValue (), entry.getValue ().getTimestamp (), entry.getValue ().getQuality () ) );
+            itemStates.put ( item, new ItemState ( entry.getErrorCode (), entry.getValue () ) );
         }
+
+        updateItems ( transactionId, serverGroupHandle, itemStates );
     }
 
     public void readComplete ( final int transactionId, final int serverGroupHandle, final int masterQuality, final int masterErrorCode, final KeyedResultSet<Integer, ValueData> result )
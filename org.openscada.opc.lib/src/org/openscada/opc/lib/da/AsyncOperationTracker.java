@@ -0,0 +1,531 @@
+/*
+ * This file is part of the OpenSCADA project
+ * Copyright (C) 2006-2011 TH4 SYSTEMS GmbH (http://th4-systems.com)
+ *
+ * OpenSCADA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License version 3
+ * only, as published by the Free Software Foundation.
+ *
+ * OpenSCADA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License version 3 for more details
+ * (a copy is included in the LICENSE file that accompanied this code).
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * version 3 along with OpenSCADA. If not, see
+ * <http://opensource.org/licenses/lgpl-3.0.html> for a copy of the LGPLv3 License.
+ */
+
+package org.openscada.opc.lib.da;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jinterop.dcom.common.JIException;
+import org.openscada.opc.dcom.common.KeyedResult;
+import org.openscada.opc.dcom.common.KeyedResultSet;
+import org.openscada.opc.dcom.common.Result;
+import org.openscada.opc.dcom.common.ResultSet;
+import org.openscada.opc.dcom.da.IOPCDataCallback;
+import org.openscada.opc.dcom.da.ValueData;
+import org.openscada.opc.dcom.da.impl.OPCAsyncIO2;
+import org.openscada.opc.dcom.da.impl.OPCAsyncIO2.AsyncResult;
+import org.openscada.opc.lib.common.DaemonThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Tracks the asynchronous read and write operations of a group by transaction id.
+ * <p>
+ * Each operation is represented by a future. The future gets completed when
+ * the server reports the results using <code>OnReadComplete</code> or
+ * <code>OnWriteComplete</code>. Items rejected by the server when the operation
+ * was started are reported with their error code right away. If the server does
+ * not complete the operation within the timeout the future fails with a
+ * {@link TimeoutException} and the operation is cancelled on the server.
+ * </p>
+ * <p>
+ * The timeouts of all groups run on one shared daemon thread. The cancel calls
+ * block until the server answered, so they run on a separate shared pool.
+ * </p>
+ */
+public class AsyncOperationTracker
+{
+    private static Logger logger = LoggerFactory.getLogger ( AsyncOperationTracker.class );
+
+    private static ScheduledExecutorService timer;
+
+    private static synchronized ScheduledExecutorService getTimer ()
+    {
+        if ( timer == null )
+        {
+            timer = Executors.newSingleThreadScheduledExecutor ( new DaemonThreadFactory ( "UtgardAsyncTimeout-" ) );
+        }
+        return timer;
+    }
+
+    private static ExecutorService cancelExecutor;
+
+    private static synchronized ExecutorService getCancelExecutor ()
+    {
+        if ( cancelExecutor == null )
+        {
+            final ThreadPoolExecutor executor = new ThreadPoolExecutor ( 4, 4, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable> ( 1000 ), new DaemonThreadFactory ( "UtgardAsyncCancel-" ) );
+            executor.allowCoreThreadTimeOut ( true );
+            cancelExecutor = executor;
+        }
+        return cancelExecutor;
+    }
+
+    /**
+     * An asynchronous operation
+     * @param <T> the result type per item
+     */
+    abstract class Transaction<T> extends OperationFuture<Map<Item, T>>
+    {
+        private final int transactionId;
+
+        private final Map<Item, T> results = new HashMap<Item, T> ();
+
+        private boolean started = false;
+
+        private boolean callbackReceived = false;
+
+        private int acceptedItems = 0;
+
+        private Integer cancelId;
+
+        private OPCAsyncIO2 asyncIO;
+
+        private ScheduledFuture<?> timeoutJob;
+
+        public Transaction ( final int transactionId )
+        {
+            this.transactionId = transactionId;
+        }
+
+        public int getTransactionId ()
+        {
+            return this.transactionId;
+        }
+
+        /**
+         * Create the result for an item rejected by the server
+         * @param errorCode the error code
+         * @return the item result
+         */
+        protected abstract T failed ( int errorCode );
+
+        private void started ( final OPCAsyncIO2 asyncIO, final AsyncResult asyncResult )
+        {
+            boolean done;
+            synchronized ( this.results )
+            {
+                this.started = true;
+                this.asyncIO = asyncIO;
+                this.cancelId = asyncResult.getCancelId ();
+                for ( final Result<Integer> result : asyncResult.getResult () )
+                {
+                    if ( result.isFailed () )
+                    {
+                        this.results.put ( AsyncOperationTracker.this.group.findItemByServerHandle ( result.getValue () ), failed ( result.getErrorCode () ) );
+                    }
+                    else
+                    {
+                        this.acceptedItems++;
+                    }
+                }
+                // the server does not call back if no item was accepted
+                done = this.acceptedItems == 0 || this.callbackReceived;
+            }
+            if ( done )
+            {
+                finish ();
+            }
+            else
+            {
+                scheduleTimeout ();
+            }
+        }
+
+        private void callback ( final Map<Item, T> callbackResults )
+        {
+            boolean done;
+            synchronized ( this.results )
+            {
+                this.results.putAll ( callbackResults );
+                this.callbackReceived = true;
+                done = this.started;
+            }
+            if ( done )
+            {
+                finish ();
+            }
+        }
+
+        private void finish ()
+        {
+            synchronized ( this.results )
+            {
+                complete ( new HashMap<Item, T> ( this.results ) );
+            }
+        }
+
+        private void scheduleTimeout ()
+        {
+            final long timeout = AsyncOperationTracker.this.timeout;
+            if ( timeout <= 0 )
+            {
+                return;
+            }
+            final ScheduledFuture<?> job = getTimer ().schedule ( new Runnable () {
+
+                public void run ()
+                {
+                    if ( fail ( new TimeoutException ( String.format ( "Transaction %s timed out", Transaction.this.transactionId ) ) ) )
+                    {
+                        AsyncOperationTracker.this.timeouts.incrementAndGet ();
+                        scheduleCancel ();
+                    }
+                }
+            }, timeout, TimeUnit.MILLISECONDS );
+            synchronized ( this.results )
+            {
+                this.timeoutJob = job;
+            }
+            if ( isDone () )
+            {
+                job.cancel ( false );
+            }
+        }
+
+        @Override
+        protected void cancelled ()
+        {
+            scheduleCancel ();
+        }
+
+        private void scheduleCancel ()
+        {
+            final OPCAsyncIO2 asyncIO;
+            final Integer cancelId;
+            synchronized ( this.results )
+            {
+                asyncIO = this.asyncIO;
+                cancelId = this.cancelId;
+            }
+            if ( asyncIO == null || cancelId == null )
+            {
+                return;
+            }
+            try
+            {
+                getCancelExecutor ().execute ( new Runnable () {
+
+                    public void run ()
+                    {
+                        cancelOnServer ( asyncIO, cancelId );
+                    }
+                } );
+            }
+            catch ( final RejectedExecutionException e )
+            {
+                logger.info ( String.format ( "Too many pending cancel calls. Transaction %s is not cancelled on the server.", this.transactionId ) );
+            }
+        }
+
+        private void cancelOnServer ( final OPCAsyncIO2 asyncIO, final int cancelId )
+        {
+            try
+            {
+                asyncIO.cancel ( cancelId );
+            }
+            catch ( final JIException e )
+            {
+                // the operation might have completed in the meantime
+                logger.info ( String.format ( "Failed to cancel transaction %s", this.transactionId ), e );
+            }
+        }
+
+        @Override
+        protected void completed ()
+        {
+            AsyncOperationTracker.this.transactions.remove ( this.transactionId );
+            final ScheduledFuture<?> job;
+            synchronized ( this.results )
+            {
+                job = this.timeoutJob;
+            }
+            if ( job != null )
+            {
+                job.cancel ( false );
+            }
+        }
+    }
+
+    private class ReadTransaction extends Transaction<ItemState>
+    {
+        public ReadTransaction ( final int transactionId )
+        {
+            super ( transactionId );
+        }
+
+        @Override
+        protected ItemState failed ( final int errorCode )
+        {
+            return new ItemState ( errorCode, null, ItemState.NO_TIMESTAMP, null );
+        }
+    }
+
+    private class WriteTransaction extends Transaction<Integer>
+    {
+        public WriteTransaction ( final int transactionId )
+        {
+            super ( transactionId );
+        }
+
+        @Override
+        protected Integer failed ( final int errorCode )
+        {
+            return errorCode;
+        }
+    }
+
+    /**
+     * The callback attached to the group.
+     * <p>
+     * Completions of tracked transactions are consumed, all other
+     * events are passed on to the delegate.
+     * </p>
+     */
+    class Callback implements IOPCDataCallback
+    {
+        private final IOPCDataCallback delegate;
+
+        public Callback ( final IOPCDataCallback delegate )
+        {
+            this.delegate = delegate;
+        }
+
+        public void dataChange ( final int transactionId, final int serverGroupHandle, final int masterQuality, final int masterErrorCode, final KeyedResultSet<Integer, ValueData> result )
+        {
+            getDataStatistics ().recordUpdates ( result.size () );
+            if ( this.delegate != null )
+            {
+                this.delegate.dataChange ( transactionId, serverGroupHandle, masterQuality, masterErrorCode, result );
+            }
+        }
+
+        public void readComplete ( final int transactionId, final int serverGroupHandle, final int masterQuality, final int masterErrorCode, final KeyedResultSet<Integer, ValueData> result )
+        {
+            getDataStatistics ().recordReads ( result.size () );
+            if ( !readCompleted ( transactionId, result ) && this.delegate != null )
+            {
+                this.delegate.readComplete ( transactionId, serverGroupHandle, masterQuality, masterErrorCode, result );
+            }
+        }
+
+        public void writeComplete ( final int transactionId, final int serverGroupHandle, final int masterErrorCode, final ResultSet<Integer> result )
+        {
+            getDataStatistics ().recordWrites ( result.size () );
+            if ( !writeCompleted ( transactionId, result ) && this.delegate != null )
+            {
+                this.delegate.writeComplete ( transactionId, serverGroupHandle, masterErrorCode, result );
+            }
+        }
+
+        public void cancelComplete ( final int transactionId, final int serverGroupHandle )
+        {
+            if ( this.delegate != null )
+            {
+                this.delegate.cancelComplete ( transactionId, serverGroupHandle );
+            }
+        }
+    }
+
+    private final Group group;
+
+    private final Map<Integer, Transaction<?>> transactions = new ConcurrentHashMap<Integer, Transaction<?>> ();
+
+    private final AtomicInteger nextTransactionId = new AtomicInteger ();
+
+    private volatile long timeout = 10000;
+
+    private final AtomicLong started = new AtomicLong ();
+
+    private final AtomicLong timeouts = new AtomicLong ();
+
+    AsyncOperationTracker ( final Group group )
+    {
+        this.group = group;
+    }
+
+    private DataStatistics getDataStatistics ()
+    {
+        return this.group.getServer ().getDataStatistics ();
+    }
+
+    private int nextTransactionId ()
+    {
+        while ( true )
+        {
+            final int id = this.nextTransactionId.incrementAndGet ();
+            // 0 is used by refreshes of the access classes
+            if ( id != 0 && !this.transactions.containsKey ( id ) )
+            {
+                return id;
+            }
+        }
+    }
+
+    private <T> Transaction<T> register ( final Transaction<T> transaction )
+    {
+        this.transactions.put ( transaction.getTransactionId (), transaction );
+        this.started.incrementAndGet ();
+        return transaction;
+    }
+
+    Transaction<ItemState> beginRead ()
+    {
+        return register ( new ReadTransaction ( nextTransactionId () ) );
+    }
+
+    Transaction<Integer> beginWrite ()
+    {
+        return register ( new WriteTransaction ( nextTransactionId () ) );
+    }
+
+    /**
+     * Mark the transaction as started on the server
+     * @param transaction the transaction
+     * @param asyncIO the interface the operation was started with, it is used to cancel the operation
+     * @param result the result of the call starting the operation
+     */
+    void started ( final Transaction<?> transaction, final OPCAsyncIO2 asyncIO, final AsyncResult result )
+    {
+        transaction.started ( asyncIO, result );
+    }
+
+    /**
+     * Fail a transaction which could not be started
+     * @param transaction the transaction
+     * @param error the error
+     */
+    void abort ( final Transaction<?> transaction, final Throwable error )
+    {
+        transaction.fail ( error );
+    }
+
+    /**
+     * Fail all transactions in flight
+     * <p>
+     * The operations are not cancelled on the server.
+     * </p>
+     * @param error the error
+     */
+    void abortAll ( final Throwable error )
+    {
+        for ( final Transaction<?> transaction : this.transactions.values () )
+        {
+            transaction.fail ( error );
+        }
+    }
+
+    @SuppressWarnings ( "unchecked" )
+    private boolean readCompleted ( final int transactionId, final KeyedResultSet<Integer, ValueData> result )
+    {
+        final Transaction<?> transaction = this.transactions.get ( transactionId );
+        if ( ! ( transaction instanceof ReadTransaction ) )
+        {
+            return false;
+        }
+
+        final Map<Item, ItemState> states = new HashMap<Item, ItemState> ( result.size () );
+        for ( final KeyedResult<Integer, ValueData> entry : result )
+        {
+            final Item item = this.group.findItemByClientHandle ( entry.getKey () );
+            if ( item != null )
+            {
+                states.put ( item, new ItemState ( entry.getErrorCode (), entry.getValue () ) );
+            }
+        }
+        ( (Transaction<ItemState>)transaction ).callback ( states );
+        return true;
+    }
+
+    @SuppressWarnings ( "unchecked" )
+    private boolean writeCompleted ( final int transactionId, final ResultSet<Integer> result )
+    {
+        final Transaction<?> transaction = this.transactions.get ( transactionId );
+        if ( ! ( transaction instanceof WriteTransaction ) )
+        {
+            return false;
+        }
+
+        final Map<Item, Integer> errorCodes = new HashMap<Item, Integer> ( result.size () );
+        for ( final Result<Integer> entry : result )
+        {
+            final Item item = this.group.findItemByClientHandle ( entry.getValue () );
+            if ( item != null )
+            {
+                errorCodes.put ( item, entry.getErrorCode () );
+            }
+        }
+        ( (Transaction<Integer>)transaction ).callback ( errorCodes );
+        return true;
+    }
+
+    /**
+     * Set the time the server has to complete an operation
+     * @param timeout the timeout in milliseconds, 0 to wait forever
+     */
+    public void setTimeout ( final long timeout )
+    {
+        this.timeout = timeout;
+    }
+
+    public long getTimeout ()
+    {
+        return this.timeout;
+    }
+
+    /**
+     * Get the number of operations waiting for completion by the server
+     * @return the number of operations in flight
+     */
+    public int getInFlight ()
+    {
+        return this.transactions.size ();
+    }
+
+    /**
+     * Get the number of operations started
+     * @return the number of started operations
+     */
+    public long getStarted ()
+    {
+        return this.started.get ();
+    }
+
+    /**
+     * Get the number of operations which timed out
+     * @return the number of timeouts
+     */
+    public long getTimeouts ()
+    {
+        return this.timeouts.get ();
+    }
+}
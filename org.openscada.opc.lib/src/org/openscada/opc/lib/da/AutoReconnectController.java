@@ -21,17 +21,29 @@ package org.openscada.opc.lib.da;
 
 import java.util.Set;
 import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * Keeps a server connected
+ * <p>
+ * Reconnect attempts are scheduled on the scheduler and run on the connect executor of the
+ * {@link ReconnectPolicy}, which may be shared by many controllers. The delays between
+ * attempts are provided by the policy.
+ * </p>
+ */
 public class AutoReconnectController implements ServerConnectionStateListener
 {
     private static Logger _log = LoggerFactory.getLogger ( AutoReconnectController.class );
 
     private static final int DEFAULT_DELAY = 5 * 1000;
 
-    private int _delay;
+    private volatile ReconnectPolicy _policy;
 
     private final Server _server;
 
@@ -39,7 +51,21 @@ public class AutoReconnectController implements ServerConnectionStateListener
 
     private AutoReconnectState _state = AutoReconnectState.DISABLED;
 
-    private Thread _connectTask = null;
+    private ScheduledFuture<?> _connectTask = null;
+
+    private ReconnectPolicy.ConnectAttempt _connectAttempt = null;
+
+    private int _failedAttempts = 0;
+
+    private long _disconnectedSince = -1;
+
+    private final AtomicLong _attempts = new AtomicLong ();
+
+    private final AtomicLong _failures = new AtomicLong ();
+
+    private volatile long _lastDowntime = -1;
+
+    private final AtomicLong _totalDowntime = new AtomicLong ();
 
     public AutoReconnectController ( final Server server )
     {
@@ -47,9 +73,19 @@ public class AutoReconnectController implements ServerConnectionStateListener
     }
 
     public AutoReconnectController ( final Server server, final int delay )
+    {
+        this ( server, ReconnectPolicy.fixedDelay ( delay <= 0 ? DEFAULT_DELAY : delay ) );
+    }
+
+    /**
+     * Create a new controller
+     * @param server the server to keep connected
+     * @param policy the reconnect policy, may be shared with other controllers
+     */
+    public AutoReconnectController ( final Server server, final ReconnectPolicy policy )
     {
         super ();
-        setDelay ( delay );
+        this._policy = policy;
 
         this._server = server;
         this._server.addStateListener ( this );
@@ -80,12 +116,15 @@ public class AutoReconnectController implements ServerConnectionStateListener
 
     public int getDelay ()
     {
-        return this._delay;
+        return (int)this._policy.getInitialDelay ();
     }
 
     /**
      * Set the reconnect delay. If the delay less than or equal to zero it will be
      * the default delay time.
+     * <p>
+     * This replaces the reconnect policy by a policy with a fixed delay.
+     * </p>
      * @param delay The delay to use
      */
     public void setDelay ( int delay )
@@ -94,7 +133,17 @@ public class AutoReconnectController implements ServerConnectionStateListener
         {
             delay = DEFAULT_DELAY;
         }
-        this._delay = delay;
+        this._policy = ReconnectPolicy.fixedDelay ( delay );
+    }
+
+    public ReconnectPolicy getPolicy ()
+    {
+        return this._policy;
+    }
+
+    public void setPolicy ( final ReconnectPolicy policy )
+    {
+        this._policy = policy;
     }
 
     public synchronized void connect ()
@@ -107,22 +156,43 @@ public class AutoReconnectController implements ServerConnectionStateListener
         _log.debug ( "Requesting connection" );
         notifyStateChange ( AutoReconnectState.DISCONNECTED );
 
+        this._failedAttempts = 0;
+        this._disconnectedSince = System.currentTimeMillis ();
         triggerReconnect ( false );
     }
 
-    public synchronized void disconnect ()
+    public void disconnect ()
     {
-        if ( !isRequested () )
+        synchronized ( this )
         {
-            return;
-        }
+            if ( !isRequested () )
+            {
+                return;
+            }
+
+            _log.debug ( "Un-Requesting connection" );
+
+            if ( this._connectTask != null )
+            {
+                this._connectTask.cancel ( false );
+                this._connectTask = null;
+            }
+            // an attempt which already waits for a connect slot gives it back when it is started
+            this._connectAttempt = null;
 
-        _log.debug ( "Un-Requesting connection" );
+            this._disconnectedSince = -1;
+            notifyStateChange ( AutoReconnectState.DISABLED );
+        }
 
-        notifyStateChange ( AutoReconnectState.DISABLED );
+        // the server notifies the controller while holding its lock
         this._server.disconnect ();
     }
 
+    public synchronized AutoReconnectState getState ()
+    {
+        return this._state;
+    }
+
     public boolean isRequested ()
     {
         return this._state != AutoReconnectState.DISABLED;
@@ -134,9 +204,11 @@ public class AutoReconnectController implements ServerConnectionStateListener
 
         if ( !connected )
         {
-            if ( isRequested () )
+            if ( isRequested () && this._state != AutoReconnectState.CONNECTING )
             {
                 notifyStateChange ( AutoReconnectState.DISCONNECTED );
+                this._failedAttempts = 0;
+                this._disconnectedSince = System.currentTimeMillis ();
                 triggerReconnect ( true );
             }
         }
@@ -148,6 +220,13 @@ public class AutoReconnectController implements ServerConnectionStateListener
             }
             else
             {
+                if ( this._disconnectedSince >= 0 )
+                {
+                    this._lastDowntime = System.currentTimeMillis () - this._disconnectedSince;
+                    this._totalDowntime.addAndGet ( this._lastDowntime );
+                    this._disconnectedSince = -1;
+                }
+                this._failedAttempts = 0;
                 notifyStateChange ( AutoReconnectState.CONNECTED );
             }
         }
@@ -155,76 +234,166 @@ public class AutoReconnectController implements ServerConnectionStateListener
 
     private synchronized void triggerReconnect ( final boolean wait )
     {
-        if ( this._connectTask != null )
+        triggerReconnect ( wait ? this._policy.getDelay ( this._failedAttempts ) : 0 );
+    }
+
+    private synchronized void triggerReconnect ( final long delay )
+    {
+        if ( this._connectAttempt != null )
         {
-            _log.info ( "Connect thread already running" );
+            _log.info ( "Connect attempt already scheduled" );
             return;
         }
 
-        _log.debug ( "Trigger reconnect" );
+        _log.debug ( String.format ( "Trigger reconnect in %s ms", delay ) );
+
+        if ( delay > 0 )
+        {
+            notifyStateChange ( AutoReconnectState.WAITING );
+        }
+
+        final ReconnectPolicy policy = this._policy;
+        final ReconnectPolicy.ConnectAttempt attempt = new ReconnectPolicy.ConnectAttempt ( this._server.getConnectionInformation ().getHost () ) {
 
-        this._connectTask = new Thread ( new Runnable () {
+            public void run ()
+            {
+                performReconnect ( policy, this );
+            }
+
+            @Override
+            protected void rejected ( final RejectedExecutionException e )
+            {
+                connectRejected ( this, e );
+            }
+        };
+        this._connectAttempt = attempt;
+        this._connectTask = policy.getScheduler ().schedule ( new Runnable () {
 
             public void run ()
             {
-                boolean result = false;
-                try
-                {
-                    result = performReconnect ( wait );
-                }
-                finally
-                {
-                    AutoReconnectController.this._connectTask = null;
-                    _log.debug ( String.format ( "performReconnect completed : %s", result ) );
-                    if ( !result )
-                    {
-                        triggerReconnect ( true );
-                    }
-                }
+                // the connect blocks, so it runs on the connect executor instead of the scheduler shared by the controllers
+                policy.submitConnect ( attempt );
             }
-        }, "OPCReconnectThread" );
-        this._connectTask.setDaemon ( true );
-        this._connectTask.start ();
+        }, delay, TimeUnit.MILLISECONDS );
     }
 
-    private boolean performReconnect ( final boolean wait )
+    private synchronized void connectRejected ( final ReconnectPolicy.ConnectAttempt attempt, final RejectedExecutionException e )
     {
-        try
+        _log.warn ( "Connect attempt rejected", e );
+        if ( this._connectAttempt != attempt )
         {
-            if ( wait )
-            {
-                notifyStateChange ( AutoReconnectState.WAITING );
-                _log.debug ( String.format ( "Delaying (%s)...", this._delay ) );
-                Thread.sleep ( this._delay );
-            }
+            return;
         }
-        catch ( InterruptedException e )
+
+        this._connectAttempt = null;
+        this._connectTask = null;
+        if ( isRequested () )
         {
+            triggerReconnect ( true );
+        }
+    }
+
+    private void performReconnect ( final ReconnectPolicy policy, final ReconnectPolicy.ConnectAttempt attempt )
+    {
+        final String host = attempt.getHost ();
+
+        final boolean current;
+        synchronized ( this )
+        {
+            current = this._connectAttempt == attempt && isRequested ();
+            if ( current )
+            {
+                this._connectAttempt = null;
+                this._connectTask = null;
+                notifyStateChange ( AutoReconnectState.CONNECTING );
+            }
         }
 
-        if ( !isRequested () )
+        if ( !current )
         {
             _log.debug ( "Request canceled during delay" );
-            return true;
+            // releasing the slot may start the attempts of other controllers
+            policy.releaseConnect ( host );
+            return;
         }
 
+        boolean result = false;
         try
         {
             _log.debug ( "Connecting to server" );
-            notifyStateChange ( AutoReconnectState.CONNECTING );
-            synchronized ( this )
-            {
-                this._server.connect ();
-                return true;
-            }
+            this._attempts.incrementAndGet ();
             // CONNECTED state will be set by server callback
+            this._server.connect ( policy.getConnectTimeout () );
+            result = true;
         }
         catch ( Throwable e )
         {
             _log.info ( "Re-connect failed", e );
-            notifyStateChange ( AutoReconnectState.DISCONNECTED );
-            return false;
+        }
+        finally
+        {
+            policy.releaseConnect ( host );
+        }
+
+        if ( !result )
+        {
+            this._failures.incrementAndGet ();
+            synchronized ( this )
+            {
+                if ( isRequested () )
+                {
+                    notifyStateChange ( AutoReconnectState.DISCONNECTED );
+                    this._failedAttempts++;
+                    triggerReconnect ( true );
+                }
+            }
         }
     }
 
+    /**
+     * Get the number of connect attempts
+     * @return the number of attempts
+     */
+    public long getAttempts ()
+    {
+        return this._attempts.get ();
+    }
+
+    /**
+     * Get the number of failed connect attempts
+     * @return the number of failed attempts
+     */
+    public long getFailedAttempts ()
+    {
+        return this._failures.get ();
+    }
+
+    /**
+     * Get the duration of the last completed outage, from losing the connection
+     * until it was re-established
+     * @return the downtime in milliseconds or <code>-1</code> if there was no outage yet
+     */
+    public long getLastDowntime ()
+    {
+        return this._lastDowntime;
+    }
+
+    /**
+     * Get the sum of all completed outages
+     * @return the downtime in milliseconds
+     */
+    public long getTotalDowntime ()
+    {
+        return this._totalDowntime.get ();
+    }
+
+    /**
+     * Get the duration of the current outage
+     * @return the downtime in milliseconds or <code>0</code> if the server is connected
+     * or no connection is requested
+     */
+    public synchronized long getCurrentDowntime ()
+    {
+        return this._disconnectedSince < 0 ? 0 : System.currentTimeMillis () - this._disconnectedSince;
+    }
 }
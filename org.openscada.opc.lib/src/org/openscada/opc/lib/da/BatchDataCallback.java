@@ -0,0 +1,38 @@
+/*
+ * This file is part of the OpenSCADA project
+ * Copyright (C) 2006-2011 TH4 SYSTEMS GmbH (http://th4-systems.com)
+ *
+ * OpenSCADA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License version 3
+ * only, as published by the Free Software Foundation.
+ *
+ * OpenSCADA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License version 3 for more details
+ * (a copy is included in the LICENSE file that accompanied this code).
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * version 3 along with OpenSCADA. If not, see
+ * <http://opensource.org/licenses/lgpl-3.0.html> for a copy of the LGPLv3 License.
+ */
+
+package org.openscada.opc.lib.da;
+
+import java.util.Map;
+
+/**
+ * A callback which receives all changed items of one data change
+ * notification or one poll cycle in a single call
+ */
+public interface BatchDataCallback
+{
+    /**
+     * Called once for each data change notification or poll cycle that contained changed items
+     * @param transactionId the transaction id of the data change notification or the number
+     * of the poll cycle when reading synchronously
+     * @param serverGroupHandle the server handle of the group
+     * @param changes the changed items with their new state, in the order they were received
+     */
+    void changed ( int transactionId, int serverGroupHandle, Map<Item, ItemState> changes );
+}
@@ -0,0 +1,294 @@
+/*
+ * This file is part of the OpenSCADA project
+ * Copyright (C) 2006-2011 TH4 SYSTEMS GmbH (http://th4-systems.com)
+ *
+ * OpenSCADA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License version 3
+ * only, as published by the Free Software Foundation.
+ *
+ * OpenSCADA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License version 3 for more details
+ * (a copy is included in the LICENSE file that accompanied this code).
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * version 3 along with OpenSCADA. If not, see
+ * <http://opensource.org/licenses/lgpl-3.0.html> for a copy of the LGPLv3 License.
+ */
+
+package org.openscada.opc.lib.da;
+
+import java.util.concurrent.TimeUnit;
+
+import org.jinterop.dcom.common.JIException;
+import org.jinterop.dcom.core.JIVariant;
+import org.openscada.opc.dcom.common.KeyedResult;
+import org.openscada.opc.dcom.common.KeyedResultSet;
+import org.openscada.opc.dcom.da.TypedValue;
+import org.openscada.opc.dcom.da.impl.OPCItemProperties;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Factory methods for the common change filters
+ */
+public final class ChangeFilters
+{
+    private static Logger logger = LoggerFactory.getLogger ( ChangeFilters.class );
+
+    /**
+     * The property id of the high end of the engineering unit range
+     */
+    public static final int PROPERTY_HIGH_EU = 102;
+
+    /**
+     * The property id of the low end of the engineering unit range
+     */
+    public static final int PROPERTY_LOW_EU = 103;
+
+    private static final ChangeFilter EQUALITY = new ChangeFilter () {
+
+        public boolean isChanged ( final ItemState previous, final ItemState current )
+        {
+            return !previous.equals ( current );
+        }
+    };
+
+    private static final ChangeFilter VALUE_ONLY = new ChangeFilter () {
+
+        public boolean isChanged ( final ItemState previous, final ItemState current )
+        {
+            return !previous.valueEquals ( current );
+        }
+    };
+
+    private static final ChangeFilter VALUE_AND_QUALITY = new ChangeFilter () {
+
+        public boolean isChanged ( final ItemState previous, final ItemState current )
+        {
+            return isStatusChanged ( previous, current ) || !previous.valueEquals ( current );
+        }
+    };
+
+    private ChangeFilters ()
+    {
+    }
+
+    /**
+     * Report every update which is not equal to the last reported state,
+     * including updates which only changed the timestamp
+     * @return the filter
+     */
+    public static ChangeFilter equality ()
+    {
+        return EQUALITY;
+    }
+
+    /**
+     * Report an update only if the value changed
+     * @return the filter
+     */
+    public static ChangeFilter valueOnly ()
+    {
+        return VALUE_ONLY;
+    }
+
+    /**
+     * Report an update if the value, the quality or the error code changed
+     * @return the filter
+     */
+    public static ChangeFilter valueAndQuality ()
+    {
+        return VALUE_AND_QUALITY;
+    }
+
+    /**
+     * Report an update if the quality or error code changed or if a numeric
+     * value differs from the last reported value by more than the deadband
+     * <p>
+     * Values which are not numeric scalars are reported when they changed.
+     * </p>
+     * @param deadband the absolute deadband
+     * @return the filter
+     */
+    public static ChangeFilter absoluteDeadband ( final double deadband )
+    {
+        if ( deadband < 0 )
+        {
+            throw new IllegalArgumentException ( "Deadband must not be negative" );
+        }
+
+        return new ChangeFilter () {
+
+            public boolean isChanged ( final ItemState previous, final ItemState current )
+            {
+                if ( isStatusChanged ( previous, current ) )
+                {
+                    return true;
+                }
+
+                final TypedValue previousValue = previous.decodedValue ();
+                final TypedValue currentValue = current.decodedValue ();
+                if ( isNumericScalar ( previousValue ) && isNumericScalar ( currentValue ) )
+                {
+                    return Math.abs ( currentValue.getDouble () - previousValue.getDouble () ) > deadband;
+                }
+
+                return !previous.valueEquals ( current );
+            }
+
+            @Override
+            public String toString ()
+            {
+                return String.format ( "AbsoluteDeadband[%s]", deadband );
+            }
+        };
+    }
+
+    /**
+     * Report an update if the quality or error code changed or if a numeric value differs
+     * from the last reported value by more than a percentage of the engineering unit range
+     * @param percent the deadband in percent of the range
+     * @param lowEU the low end of the range
+     * @param highEU the high end of the range
+     * @return the filter
+     */
+    public static ChangeFilter percentDeadband ( final double percent, final double lowEU, final double highEU )
+    {
+        if ( percent < 0 || percent > 100 )
+        {
+            throw new IllegalArgumentException ( "Percent deadband must be between 0 and 100" );
+        }
+        return absoluteDeadband ( Math.abs ( highEU - lowEU ) * percent / 100.0 );
+    }
+
+    /**
+     * Create a percent deadband filter using the engineering unit range of the item
+     * <p>
+     * If the server does not provide the range of the item the filter falls back to
+     * {@link #valueAndQuality()}.
+     * </p>
+     * @param server the server to read the item properties from
+     * @param itemId the id of the item
+     * @param percent the deadband in percent of the range
+     * @return the filter
+     * @throws JIException
+     */
+    public static ChangeFilter percentDeadband ( final Server server, final String itemId, final double percent ) throws JIException
+    {
+        final double[] range = readEngineeringUnitRange ( server, itemId );
+        if ( range == null )
+        {
+            logger.info ( "No engineering unit range for item '{}'. Using value and quality filter.", itemId );
+            return valueAndQuality ();
+        }
+        return percentDeadband ( percent, range[0], range[1] );
+    }
+
+    /**
+     * Read the engineering unit range of an item
+     * @param server the server to read from
+     * @param itemId the id of the item
+     * @return the low and the high end of the range or <code>null</code> if the
+     * range is not available
+     * @throws JIException
+     */
+    public static double[] readEngineeringUnitRange ( final Server server, final String itemId ) throws JIException
+    {
+        final OPCItemProperties properties = server.getItemProperties ();
+        if ( properties == null )
+        {
+            return null;
+        }
+
+        final KeyedResultSet<Integer, JIVariant> result = properties.getItemProperties ( itemId, PROPERTY_LOW_EU, PROPERTY_HIGH_EU );
+
+        Double low = null;
+        Double high = null;
+        for ( final KeyedResult<Integer, JIVariant> entry : result )
+        {
+            if ( entry.isFailed () )
+            {
+                continue;
+            }
+
+            final TypedValue value = TypedValue.fromVariant ( entry.getValue () );
+            if ( !isNumericScalar ( value ) )
+            {
+                continue;
+            }
+
+            if ( entry.getKey () == PROPERTY_LOW_EU )
+            {
+                low = value.getDouble ();
+            }
+            else if ( entry.getKey () == PROPERTY_HIGH_EU )
+            {
+                high = value.getDouble ();
+            }
+        }
+
+        if ( low == null || high == null )
+        {
+            return null;
+        }
+        return new double[] { low, high };
+    }
+
+    /**
+     * Wrap a filter so that an update is reported at least every <code>maxSilence</code>
+     * milliseconds, even if the filter does not report it as change
+     * <p>
+     * The silence is measured using the local time at which the last reported update
+     * was received, see {@link ItemState#getReceivedNanos()}, so a server which
+     * does not update the timestamp of unchanged values or whose clock is off
+     * does not affect the heartbeat.
+     * </p>
+     * @param filter the filter to wrap
+     * @param maxSilence the maximum time in milliseconds between two reported updates
+     * @return the filter
+     */
+    public static ChangeFilter heartbeat ( final ChangeFilter filter, final long maxSilence )
+    {
+        final long maxSilenceNanos = TimeUnit.MILLISECONDS.toNanos ( maxSilence );
+
+        return new ChangeFilter () {
+
+            public boolean isChanged ( final ItemState previous, final ItemState current )
+            {
+                if ( filter.isChanged ( previous, current ) )
+                {
+                    return true;
+                }
+                return current.getReceivedNanos () - previous.getReceivedNanos () >= maxSilenceNanos;
+            }
+
+            @Override
+            public String toString ()
+            {
+                return String.format ( "Heartbeat[%s, %s ms]", filter, maxSilence );
+            }
+        };
+    }
+
+    private static boolean isStatusChanged ( final ItemState previous, final ItemState current )
+    {
+        if ( previous.getErrorCode () != current.getErrorCode () )
+        {
+            return true;
+        }
+        final Short quality = previous.getQuality ();
+        return quality == null ? current.getQuality () != null : !quality.equals ( current.getQuality () );
+    }
+
+    private static boolean isNumericScalar ( final TypedValue value )
+    {
+        if ( value == null || !value.isPrimitive () || value.isArray () )
+        {
+            return false;
+        }
+        final int type = value.getVariantType ();
+        return type != JIVariant.VT_BOOL;
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * This file is part of the OpenSCADA project
+ * Copyright (C) 2006-2011 TH4 SYSTEMS GmbH (http://th4-systems.com)
+ *
+ * OpenSCADA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License version 3
+ * only, as published by the Free Software Foundation.
+ *
+ * OpenSCADA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License version 3 for more details
+ * (a copy is included in the LICENSE file that accompanied this code).
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * version 3 along with OpenSCADA. If not, see
+ * <http://opensource.org/licenses/lgpl-3.0.html> for a copy of the LGPLv3 License.
+ */
+
+package org.openscada.opc.lib.da;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A table of items indexed by their client handle
+ * <p>
+ * Client handles are allocated sequentially starting at <code>1</code>. Handles
+ * which got released are reused before new handles are allocated. Looking up
+ * an item is a plain array access which needs no locking and no boxing of the handle.
+ * Releasing a handle which is not allocated, e.g. releasing it twice, is ignored.
+ * </p>
+ */
+class ClientHandleTable
+{
+    private static final int INITIAL_CAPACITY = 64;
+
+    private volatile AtomicReferenceArray<Item> items = new AtomicReferenceArray<Item> ( INITIAL_CAPACITY );
+
+    private int nextHandle = 1;
+
+    private int[] freeHandles = new int[INITIAL_CAPACITY];
+
+    private int freeCount = 0;
+
+    private BitSet allocated = new BitSet ( INITIAL_CAPACITY );
+
+    /**
+     * Allocate a new client handle
+     * <p>
+     * The handle is reserved until it is released using {@link #release(int)}, even if no
+     * item was assigned to it.
+     * </p>
+     * @return the new client handle
+     */
+    public synchronized int allocate ()
+    {
+        if ( this.freeCount > 0 )
+        {
+            final int handle = this.freeHandles[--this.freeCount];
+            this.allocated.set ( handle );
+            return handle;
+        }
+
+        final int handle = this.nextHandle++;
+
+        final AtomicReferenceArray<Item> current = this.items;
+        if ( handle >= current.length () )
+        {
+            final AtomicReferenceArray<Item> grown = new AtomicReferenceArray<Item> ( current.length () * 2 );
+            for ( int i = 0; i < current.length (); i++ )
+            {
+                grown.set ( i, current.get ( i ) );
+            }
+            this.items = grown;
+        }
+
+        this.allocated.set ( handle );
+        return handle;
+    }
+
+    /**
+     * Assign an item to an allocated client handle
+     * @param clientHandle the client handle, must be allocated using {@link #allocate()}
+     * @param item the item
+     */
+    public synchronized void put ( final int clientHandle, final Item item )
+    {
+        if ( clientHandle <= 0 || !this.allocated.get ( clientHandle ) )
+        {
+            throw new IllegalArgumentException ( String.format ( "Client handle %d was not allocated", clientHandle ) );
+        }
+        this.items.set ( clientHandle, item );
+    }
+
+    /**
+     * Release the client handle and remove the assigned item
+     * @param clientHandle the client handle to release
+     */
+    public synchronized void release ( final int clientHandle )
+    {
+        if ( clientHandle <= 0 || !this.allocated.get ( clientHandle ) )
+        {
+            return;
+        }
+
+        this.allocated.clear ( clientHandle );
+        this.items.set ( clientHandle, null );
+
+        if ( this.freeCount == this.freeHandles.length )
+        {
+            this.freeHandles = Arrays.copyOf ( this.freeHandles, this.freeHandles.length * 2 );
+        }
+        this.freeHandles[this.freeCount++] = clientHandle;
+    }
+
+    /**
+     * Release all handles
+     */
+    public synchronized void clear ()
+    {
+        this.items = new AtomicReferenceArray<Item> ( INITIAL_CAPACITY );
+        this.nextHandle = 1;
+        this.freeHandles = new int[INITIAL_CAPACITY];
+        this.freeCount = 0;
+        this.allocated = new BitSet ( INITIAL_CAPACITY );
+    }
+
+    /**
+     * Get the item assigned to the client handle
+     * @param clientHandle the client handle
+     * @return the item or <code>null</code> if no item is assigned
+     */
+    public Item get ( final int clientHandle )
+    {
+        final AtomicReferenceArray<Item> current = this.items;
+        if ( clientHandle <= 0 || clientHandle >= current.length () )
+        {
+            return null;
+        }
+        return current.get ( clientHandle );
+    }
+}
@@ -0,0 +1,244 @@
+/*
+ * This file is part of the OpenSCADA project
+ * Copyright (C) 2006-2011 TH4 SYSTEMS GmbH (http://th4-systems.com)
+ *
+ * OpenSCADA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License version 3
+ * only, as published by the Free Software Foundation.
+ *
+ * OpenSCADA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License version 3 for more details
+ * (a copy is included in the LICENSE file that accompanied this code).
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * version 3 along with OpenSCADA. If not, see
+ * <http://opensource.org/licenses/lgpl-3.0.html> for a copy of the LGPLv3 License.
+ */
+
+package org.openscada.opc.lib.da;
+
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jinterop.dcom.common.JIException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Collects concurrent single item reads of one group into batched reads.
+ * <p>
+ * The first caller of a batch becomes its leader. The leader waits for the
+ * coalescing window and for a read of the same data source which is still in
+ * flight. Every read arriving in the meantime joins the batch. The leader then
+ * performs one {@link Group#read(boolean, Item...)} for all items of the batch
+ * and completes all callers from the shared result.
+ * </p>
+ * <p>
+ * Reads from the device and reads from the cache are collected separately.
+ * A batch is closed early once it reached the maximum batch size, its leader
+ * then stops waiting for the coalescing window.
+ * </p>
+ */
+public class CoalescingReader
+{
+    private static Logger logger = LoggerFactory.getLogger ( CoalescingReader.class );
+
+    private static class Batch
+    {
+        private final Set<Item> items = new LinkedHashSet<Item> ();
+
+        private final OperationFuture<Map<Item, ItemState>> future = new OperationFuture<Map<Item, ItemState>> ();
+    }
+
+    private static final int SOURCE_CACHE = 0;
+
+    private static final int SOURCE_DEVICE = 1;
+
+    private final Group group;
+
+    private final long windowNanos;
+
+    private final int maxBatchSize;
+
+    private final Object lock = new Object ();
+
+    private final Batch[] openBatches = new Batch[2];
+
+    private final boolean[] inFlight = new boolean[2];
+
+    private final AtomicLong reads = new AtomicLong ();
+
+    private final AtomicLong batches = new AtomicLong ();
+
+    /**
+     * Create a new coalescing reader
+     * @param group the group to read from
+     * @param window the time the leader of a batch waits for further reads
+     * @param unit the unit of the window
+     * @param maxBatchSize the maximum number of items in one batch
+     */
+    public CoalescingReader ( final Group group, final long window, final TimeUnit unit, final int maxBatchSize )
+    {
+        if ( window < 0 )
+        {
+            throw new IllegalArgumentException ( "Window must not be negative" );
+        }
+        if ( maxBatchSize < 1 )
+        {
+            throw new IllegalArgumentException ( "Maximum batch size must be at least 1" );
+        }
+        this.group = group;
+        this.windowNanos = unit.toNanos ( window );
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    /**
+     * Read a single item as part of a batch
+     * @param device <code>true</code> to read from the device, <code>false</code> to read from the cache
+     * @param item the item to read
+     * @return the item state
+     * @throws JIException if the batched read failed
+     */
+    public ItemState read ( final boolean device, final Item item ) throws JIException
+    {
+        this.reads.incrementAndGet ();
+
+        final int source = device ? SOURCE_DEVICE : SOURCE_CACHE;
+
+        final Batch batch;
+        final boolean leader;
+        synchronized ( this.lock )
+        {
+            Batch open = this.openBatches[source];
+            leader = open == null;
+            if ( leader )
+            {
+                open = new Batch ();
+                this.openBatches[source] = open;
+            }
+            open.items.add ( item );
+            if ( open.items.size () >= this.maxBatchSize )
+            {
+                // close the batch, the next read starts a new one
+                this.openBatches[source] = null;
+                this.lock.notifyAll ();
+            }
+            batch = open;
+        }
+
+        if ( leader )
+        {
+            lead ( device, source, batch );
+        }
+
+        return batch.future.await ().get ( item );
+    }
+
+    private void lead ( final boolean device, final int source, final Batch batch )
+    {
+        // the batch has callers waiting for it, so it gets performed even if the leader is interrupted
+        boolean interrupted = false;
+        if ( this.windowNanos > 0 )
+        {
+            final long deadline = System.nanoTime () + this.windowNanos;
+            synchronized ( this.lock )
+            {
+                // wait for the window unless the batch gets closed because it is full
+                long remaining = this.windowNanos;
+                while ( remaining > 0 && this.openBatches[source] == batch )
+                {
+                    try
+                    {
+                        TimeUnit.NANOSECONDS.timedWait ( this.lock, remaining );
+                    }
+                    catch ( final InterruptedException e )
+                    {
+                        interrupted = true;
+                        break;
+                    }
+                    remaining = deadline - System.nanoTime ();
+                }
+            }
+        }
+
+        final Item[] items;
+        synchronized ( this.lock )
+        {
+            while ( this.inFlight[source] )
+            {
+                try
+                {
+                    this.lock.wait ();
+                }
+                catch ( final InterruptedException e )
+                {
+                    interrupted = true;
+                }
+            }
+            this.inFlight[source] = true;
+            if ( this.openBatches[source] == batch )
+            {
+                this.openBatches[source] = null;
+            }
+            items = batch.items.toArray ( new Item[batch.items.size ()] );
+        }
+
+        try
+        {
+            this.batches.incrementAndGet ();
+            logger.debug ( String.format ( "Reading batch of %s items", items.length ) );
+            batch.future.complete ( performRead ( device, items ) );
+        }
+        catch ( final Throwable e )
+        {
+            batch.future.fail ( e );
+        }
+        finally
+        {
+            synchronized ( this.lock )
+            {
+                this.inFlight[source] = false;
+                this.lock.notifyAll ();
+            }
+            if ( interrupted )
+            {
+                Thread.currentThread ().interrupt ();
+            }
+        }
+    }
+
+    /**
+     * Perform the batched read
+     * @param device <code>true</code> to read from the device, <code>false</code> to read from the cache
+     * @param items the items of the batch
+     * @return the read result
+     * @throws JIException if the read failed
+     */
+    protected Map<Item, ItemState> performRead ( final boolean device, final Item[] items ) throws JIException
+    {
+        return this.group.read ( device, items );
+    }
+
+    /**
+     * Get the number of single item reads requested
+     * @return the number of reads
+     */
+    public long getReads ()
+    {
+        return this.reads.get ();
+    }
+
+    /**
+     * Get the number of batched reads performed
+     * @return the number of batches
+     */
+    public long getBatches ()
+    {
+        return this.batches.get ();
+    }
+}
@@ -0,0 +1,292 @@
+/*
+ * This file is part of the OpenSCADA project
+ * Copyright (C) 2006-2011 TH4 SYSTEMS GmbH (http://th4-systems.com)
+ *
+ * OpenSCADA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License version 3
+ * only, as published by the Free Software Foundation.
+ *
+ * OpenSCADA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License version 3 for more details
+ * (a copy is included in the LICENSE file that accompanied this code).
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * version 3 along with OpenSCADA. If not, see
+ * <http://opensource.org/licenses/lgpl-3.0.html> for a copy of the LGPLv3 License.
+ */
+
+package org.openscada.opc.lib.da;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Dispatches data changes to {@link DataCallback} instances using a set of worker threads
+ * <p>
+ * The dispatcher decouples the DCOM callback threads from slow data callbacks. Each
+ * item is always handled by the same worker so that the updates of one item are
+ * delivered in order. If an update of an item is still pending when the next
+ * update arrives, the pending update is replaced by the new one (latest value wins).
+ * If a worker already holds the maximum number of pending items, updates for further
+ * items are dropped and {@link #dispatch(Item, ItemState, DataCallback)} returns
+ * <code>false</code>.
+ * </p>
+ * <p>
+ * The dispatcher can be shared by several accesses using {@link AccessBase#setDispatcher(DataCallbackDispatcher)}
+ * and must be disposed using {@link #dispose()} when it is no longer needed.
+ * </p>
+ */
+public class DataCallbackDispatcher
+{
+    private static Logger logger = LoggerFactory.getLogger ( DataCallbackDispatcher.class );
+
+    public static final int DEFAULT_QUEUE_SIZE = 10000;
+
+    private static class Update
+    {
+        private final Item item;
+
+        private ItemState itemState;
+
+        private DataCallback dataCallback;
+
+        public Update ( final Item item, final ItemState itemState, final DataCallback dataCallback )
+        {
+            this.item = item;
+            this.itemState = itemState;
+            this.dataCallback = dataCallback;
+        }
+    }
+
+    private class Worker implements Runnable
+    {
+        private final Map<Item, Update> pending = new LinkedHashMap<Item, Update> ();
+
+        private final int capacity;
+
+        private boolean running = true;
+
+        public Worker ( final int capacity )
+        {
+            this.capacity = capacity;
+        }
+
+        public synchronized boolean offer ( final Item item, final ItemState itemState, final DataCallback dataCallback )
+        {
+            if ( !this.running )
+            {
+                DataCallbackDispatcher.this.dropped.incrementAndGet ();
+                return false;
+            }
+
+            final Update update = this.pending.get ( item );
+            if ( update != null )
+            {
+                update.itemState = itemState;
+                update.dataCallback = dataCallback;
+                DataCallbackDispatcher.this.coalesced.incrementAndGet ();
+                return true;
+            }
+
+            if ( this.pending.size () >= this.capacity )
+            {
+                DataCallbackDispatcher.this.dropped.incrementAndGet ();
+                return false;
+            }
+
+            this.pending.put ( item, new Update ( item, itemState, dataCallback ) );
+            notify ();
+            return true;
+        }
+
+        public synchronized int size ()
+        {
+            return this.pending.size ();
+        }
+
+        public synchronized void stop ()
+        {
+            this.running = false;
+            notify ();
+        }
+
+        private synchronized Update take () throws InterruptedException
+        {
+            while ( this.pending.isEmpty () )
+            {
+                if ( !this.running )
+                {
+                    return null;
+                }
+                wait ();
+            }
+
+            final Iterator<Update> i = this.pending.values ().iterator ();
+            final Update update = i.next ();
+            i.remove ();
+            return update;
+        }
+
+        public void run ()
+        {
+            while ( true )
+            {
+                final Update update;
+                try
+                {
+                    update = take ();
+                }
+                catch ( final InterruptedException e )
+                {
+                    return;
+                }
+
+                if ( update == null )
+                {
+                    return;
+                }
+
+                try
+                {
+                    update.dataCallback.changed ( update.item, update.itemState );
+                }
+                catch ( final Throwable e )
+                {
+                    logger.warn ( String.format ( "Data callback failed for item '%s'", update.item.getId () ), e );
+                }
+                DataCallbackDispatcher.this.delivered.incrementAndGet ();
+            }
+        }
+    }
+
+    private final Worker[] workers;
+
+    private final AtomicLong dispatched = new AtomicLong ();
+
+    private final AtomicLong delivered = new AtomicLong ();
+
+    private final AtomicLong coalesced = new AtomicLong ();
+
+    private final AtomicLong dropped = new AtomicLong ();
+
+    public DataCallbackDispatcher ()
+    {
+        this ( 1, DEFAULT_QUEUE_SIZE );
+    }
+
+    /**
+     * Create a new dispatcher
+     * @param workerCount the number of worker threads
+     * @param queueSize the maximum number of items with pending updates. The number is
+     * evenly split between the workers.
+     */
+    public DataCallbackDispatcher ( final int workerCount, final int queueSize )
+    {
+        if ( workerCount <= 0 )
+        {
+            throw new IllegalArgumentException ( "The dispatcher needs at least one worker" );
+        }
+        if ( queueSize <= 0 )
+        {
+            throw new IllegalArgumentException ( "The queue size must be greater than zero" );
+        }
+
+        final int capacity = Math.max ( 1, ( queueSize + workerCount - 1 ) / workerCount );
+
+        this.workers = new Worker[workerCount];
+        for ( int i = 0; i < workerCount; i++ )
+        {
+            this.workers[i] = new Worker ( capacity );
+
+            final Thread thread = new Thread ( this.workers[i], "UtgardDataDispatcher-" + i );
+            thread.setDaemon ( true );
+            thread.start ();
+        }
+    }
+
+    /**
+     * Queue a data change for delivery
+     * <p>
+     * This method never blocks on the data callback.
+     * </p>
+     * @param item the item that changed
+     * @param itemState the new state
+     * @param dataCallback the callback to notify
+     * @return <code>true</code> if the update will be delivered, <code>false</code> if it
+     * was dropped because the queue is full or the dispatcher was disposed
+     */
+    public boolean dispatch ( final Item item, final ItemState itemState, final DataCallback dataCallback )
+    {
+        this.dispatched.incrementAndGet ();
+        return this.workers[( item.hashCode () & 0x7FFFFFFF ) % this.workers.length].offer ( item, itemState, dataCallback );
+    }
+
+    /**
+     * Stop all workers. Pending updates are still delivered, new updates will be dropped.
+     */
+    public void dispose ()
+    {
+        for ( final Worker worker : this.workers )
+        {
+            worker.stop ();
+        }
+    }
+
+    /**
+     * Get the number of items that currently have a pending update
+     * @return the queue depth
+     */
+    public int getQueueDepth ()
+    {
+        int depth = 0;
+        for ( final Worker worker : this.workers )
+        {
+            depth += worker.size ();
+        }
+        return depth;
+    }
+
+    public int getWorkerCount ()
+    {
+        return this.workers.length;
+    }
+
+    /**
+     * @return the number of updates passed to {@link #dispatch(Item, ItemState, DataCallback)}
+     */
+    public long getDispatchedCount ()
+    {
+        return this.dispatched.get ();
+    }
+
+    /**
+     * @return the number of updates delivered to the data callbacks
+     */
+    public long getDeliveredCount ()
+    {
+        return this.delivered.get ();
+    }
+
+    /**
+     * @return the number of updates which replaced a pending update of the same item
+     */
+    public long getCoalescedCount ()
+    {
+        return this.coalesced.get ();
+    }
+
+    /**
+     * @return the number of updates dropped because the queue was full
+     */
+    public long getDroppedCount ()
+    {
+        return this.dropped.get ();
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * This file is part of the OpenSCADA project
+ * Copyright (C) 2006-2011 TH4 SYSTEMS GmbH (http://th4-systems.com)
+ *
+ * OpenSCADA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License version 3
+ * only, as published by the Free Software Foundation.
+ *
+ * OpenSCADA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License version 3 for more details
+ * (a copy is included in the LICENSE file that accompanied this code).
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * version 3 along with OpenSCADA. If not, see
+ * <http://opensource.org/licenses/lgpl-3.0.html> for a copy of the LGPLv3 License.
+ */
+
+
+package org.openscada.opc.lib.da;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters of the data path of a server
+ * <p>
+ * The counters hold the number of item values, not the number of calls.
+ * Reads include the synchronous and asynchronous group reads and the reads
+ * by item id. Updates are the values delivered by the data callbacks of the
+ * groups.
+ * </p>
+ */
+public class DataStatistics
+{
+    private final AtomicLong reads = new AtomicLong ();
+
+    private final AtomicLong updates = new AtomicLong ();
+
+    private final AtomicLong writes = new AtomicLong ();
+
+    public void recordReads ( final int count )
+    {
+        this.reads.addAndGet ( count );
+    }
+
+    public void recordUpdates ( final int count )
+    {
+        this.updates.addAndGet ( count );
+    }
+
+    public void recordWrites ( final int count )
+    {
+        this.writes.addAndGet ( count );
+    }
+
+    public long getReads ()
+    {
+        return this.reads.get ();
+    }
+
+    public long getUpdates ()
+    {
+        return this.updates.get ();
+    }
+
+    public long getWrites ()
+    {
+        return this.writes.get ();
+    }
+
+    @Override
+    public String toString ()
+    {
+        return String.format ( "Reads: %s, Updates: %s, Writes: %s", getReads (), getUpdates (), getWrites () );
+    }
+}
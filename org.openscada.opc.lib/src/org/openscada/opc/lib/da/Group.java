@@ -21,15 +21,16 @@ package org.openscada.opc.lib.da;
 
 import java.net.UnknownHostException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Random;
-import java.util.Set;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import org.jinterop.dcom.common.JIException;
+import org.jinterop.dcom.core.IJIComObject;
 import org.openscada.opc.dcom.common.EventHandler;
 import org.openscada.opc.dcom.common.KeyedResult;
 import org.openscada.opc.dcom.common.KeyedResultSet;
@@ -44,6 +45,7 @@ import org.openscada.opc.dcom.da.impl.OPCAsyncIO2;
 import org.openscada.opc.dcom.da.impl.OPCGroupStateMgt;
 import org.openscada.opc.dcom.da.impl.OPCItemMgt;
 import org.openscada.opc.dcom.da.impl.OPCSyncIO;
+import org.openscada.opc.lib.common.NotConnectedException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -51,8 +53,6 @@ public class Group
 {
     private static Logger _log = LoggerFactory.getLogger ( Group.class );
 
-    private static Random _random = new Random ();
-
     private Server _server = null;
 
     private final int _serverHandle;
@@ -67,7 +67,15 @@ public class Group
 
     private final Map<Integer, Item> _itemMap = new HashMap<Integer, Item> ();
 
-    private final Map<Integer, Item> _itemClientMap = new HashMap<Integer, Item> ();
+    private final ClientHandleTable _clientHandles = new ClientHandleTable ();
+
+    private volatile CoalescingReader _coalescingReader = null;
+
+    private final AsyncOperationTracker _asyncTracker = new AsyncOperationTracker ( this );
+
+    private int _attachedCallbacks = 0;
+
+    private EventHandler _asyncEventHandler = null;
 
     Group ( final Server server, final int serverHandle, final OPCGroupStateMgt group ) throws IllegalArgumentException, UnknownHostException, JIException
     {
@@ -84,6 +92,32 @@ public class Group
         this._group.setState ( null, state, null, null, null, null );
     }
 
+    /**
+     * Change the state of the group
+     * <p>
+     * Parameters which are <code>null</code> are not changed.
+     * </p>
+     * @param updateRate the requested update rate in milliseconds
+     * @param active the active state
+     * @param percentDeadband the percent deadband
+     * @return the update rate revised by the server
+     * @throws JIException
+     */
+    public int setState ( final Integer updateRate, final Boolean active, final Float percentDeadband ) throws JIException
+    {
+        return this._group.setState ( updateRate, active, null, percentDeadband, null, null );
+    }
+
+    /**
+     * Get the update rate of the group from the server
+     * @return the update rate revised by the server in milliseconds
+     * @throws JIException
+     */
+    public int getUpdateRate () throws JIException
+    {
+        return this._group.getState ().getUpdateRate ();
+    }
+
     /**
      * remove the group from the server
      * @throws JIException 
@@ -91,6 +125,12 @@ public class Group
      */
     public void remove () throws JIException
     {
+        synchronized ( this )
+        {
+            detachAsyncCallback ();
+        }
+        // the server will not complete the pending operations of the group
+        this._asyncTracker.abortAll ( new IllegalStateException ( "The group was removed" ) );
         this._server.removeGroup ( this, true );
     }
 
@@ -171,6 +211,63 @@ public class Group
      * @throws AddFailedException If one or more item could not be added. Item without error where added.
      */
     public synchronized Map<String, Item> addItems ( final String... items ) throws JIException, AddFailedException
+    {
+        final AdaptiveChunkSizer sizer = this._server.getAddChunkSizer ();
+        if ( sizer == null )
+        {
+            return addItemsChunk ( items );
+        }
+
+        final Map<String, Integer> existingItems = findItems ( items );
+        final Map<String, Item> addedItems = new HashMap<String, Item> ();
+        final Map<String, Integer> failedItems = new HashMap<String, Integer> ();
+
+        boolean retried = false;
+        int offset = 0;
+        while ( offset < items.length )
+        {
+            final int chunkSize = sizer.getChunkSize ();
+            final String[] chunk = Arrays.copyOfRange ( items, offset, Math.min ( offset + chunkSize, items.length ) );
+
+            final long start = System.nanoTime ();
+            try
+            {
+                addedItems.putAll ( addItemsChunk ( chunk ) );
+                sizer.recordSuccess ( chunkSize, chunk.length, System.nanoTime () - start );
+                retried = false;
+            }
+            catch ( final AddFailedException e )
+            {
+                sizer.recordSuccess ( chunkSize, chunk.length, System.nanoTime () - start );
+                addedItems.putAll ( e.getItems () );
+                failedItems.putAll ( e.getErrors () );
+                retried = false;
+            }
+            catch ( final JIException e )
+            {
+                sizer.recordFailure ( chunkSize );
+                // retry a failed chunk only once with a smaller chunk size
+                if ( retried || chunk.length <= sizer.getMinChunkSize () )
+                {
+                    // the operation failed completely, so remove the items of the previous chunks
+                    removeAddedItems ( addedItems, existingItems );
+                    throw e;
+                }
+                retried = true;
+                _log.info ( String.format ( "Failed to add chunk of %s items. Retrying with %s items per chunk.", chunk.length, sizer.getChunkSize () ), e );
+                continue;
+            }
+            offset += chunk.length;
+        }
+
+        if ( !failedItems.isEmpty () )
+        {
+            throw new AddFailedException ( failedItems, addedItems );
+        }
+        return addedItems;
+    }
+
+    private Map<String, Item> addItemsChunk ( final String... items ) throws JIException, AddFailedException
     {
         // Find which items we already have
         Map<String, Integer> handles = findItems ( items );
@@ -192,7 +289,6 @@ public class Group
         }
 
         // now fetch missing items from OPC server
-        Set<Integer> newClientHandles = new HashSet<Integer> ();
         OPCITEMDEF[] itemDef = new OPCITEMDEF[missingItems.size ()];
         for ( int i = 0; i < missingItems.size (); i++ )
         {
@@ -200,20 +296,29 @@ public class Group
             def.setItemID ( missingItems.get ( i ) );
             def.setActive ( true );
 
-            Integer clientHandle;
-            do
-            {
-                clientHandle = _random.nextInt ();
-            } while ( this._itemClientMap.containsKey ( clientHandle ) || newClientHandles.contains ( clientHandle ) );
-            newClientHandles.add ( clientHandle );
-            def.setClientHandle ( clientHandle );
+            def.setClientHandle ( this._clientHandles.allocate () );
 
             itemDef[i] = def;
         }
 
         // check the result and add new items
         Map<String, Integer> failedItems = new HashMap<String, Integer> ();
-        KeyedResultSet<OPCITEMDEF, OPCITEMRESULT> result = this._items.add ( itemDef );
+        KeyedResultSet<OPCITEMDEF, OPCITEMRESULT> result;
+        try
+        {
+            result = this._items.add ( itemDef );
+        }
+        catch ( JIException e )
+        {
+            releaseClientHandles ( itemDef );
+            throw e;
+        }
+        catch ( RuntimeException e )
+        {
+            releaseClientHandles ( itemDef );
+            throw e;
+        }
+
         int i = 0;
         for ( KeyedResult<OPCITEMDEF, OPCITEMRESULT> entry : result )
         {
@@ -225,6 +330,7 @@ public class Group
             }
             else
             {
+                this._clientHandles.release ( itemDef[i].getClientHandle () );
                 failedItems.put ( entry.getKey ().getItemID (), entry.getErrorCode () );
             }
             i++;
@@ -240,20 +346,69 @@ public class Group
         return findItems ( foundItems );
     }
 
+    /**
+     * Remove the items which were added by a failed call to {@link #addItems(String...)}
+     * @param addedItems the items returned by the successful chunks
+     * @param existingItems the server handles of the items before the call, by item id
+     */
+    private void removeAddedItems ( final Map<String, Item> addedItems, final Map<String, Integer> existingItems )
+    {
+        final List<Item> items = new ArrayList<Item> ( addedItems.size () );
+        for ( final Item item : addedItems.values () )
+        {
+            if ( existingItems.get ( item.getId () ) == null )
+            {
+                items.add ( item );
+            }
+        }
+        if ( items.isEmpty () )
+        {
+            return;
+        }
+
+        final Integer[] handles = new Integer[items.size ()];
+        for ( int i = 0; i < handles.length; i++ )
+        {
+            handles[i] = items.get ( i ).getServerHandle ();
+        }
+
+        try
+        {
+            this._items.remove ( handles );
+        }
+        catch ( final JIException e )
+        {
+            _log.warn ( String.format ( "Failed to remove %s items of a failed add operation", handles.length ), e );
+        }
+
+        for ( final Item item : items )
+        {
+            removeItem ( item );
+        }
+    }
+
+    private void releaseClientHandles ( final OPCITEMDEF[] itemDefs )
+    {
+        for ( OPCITEMDEF def : itemDefs )
+        {
+            this._clientHandles.release ( def.getClientHandle () );
+        }
+    }
+
     private synchronized void addItem ( final Item item )
     {
         _log.debug ( String.format ( "Adding item: '%s', %d", item.getId (), item.getServerHandle () ) );
 
         this._itemHandleMap.put ( item.getId (), item.getServerHandle () );
         this._itemMap.put ( item.getServerHandle (), item );
-        this._itemClientMap.put ( item.getClientHandle (), item );
+        this._clientHandles.put ( item.getClientHandle (), item );
     }
 
     private synchronized void removeItem ( final Item item )
     {
         this._itemHandleMap.remove ( item.getId () );
         this._itemMap.remove ( item.getServerHandle () );
-        this._itemClientMap.remove ( item.getClientHandle () );
+        this._clientHandles.release ( item.getClientHandle () );
     }
 
     protected Item getItemByOPCItemId ( final String opcItemId )
@@ -350,6 +505,7 @@ public class Group
         }
 
         ResultSet<org.openscada.opc.dcom.da.WriteRequest> resultSet = this._syncIO.write ( wr );
+        this._server.getDataStatistics ().recordWrites ( wr.length );
 
         Map<Item, Integer> result = new HashMap<Item, Integer> ();
         for ( int i = 0; i < requests.length; i++ )
@@ -362,16 +518,58 @@ public class Group
     }
 
     public synchronized Map<Item, ItemState> read ( final boolean device, final Item... items ) throws JIException
+    {
+        final AdaptiveChunkSizer sizer = this._server.getReadChunkSizer ();
+        if ( sizer == null )
+        {
+            return readChunk ( device, items );
+        }
+
+        final Map<Item, ItemState> data = new HashMap<Item, ItemState> ( items.length );
+
+        boolean retried = false;
+        int offset = 0;
+        while ( offset < items.length )
+        {
+            final int chunkSize = sizer.getChunkSize ();
+            final Item[] chunk = Arrays.copyOfRange ( items, offset, Math.min ( offset + chunkSize, items.length ) );
+
+            final long start = System.nanoTime ();
+            try
+            {
+                data.putAll ( readChunk ( device, chunk ) );
+                sizer.recordSuccess ( chunkSize, chunk.length, System.nanoTime () - start );
+                retried = false;
+            }
+            catch ( final JIException e )
+            {
+                sizer.recordFailure ( chunkSize );
+                // retry a failed chunk only once with a smaller chunk size
+                if ( retried || chunk.length <= sizer.getMinChunkSize () )
+                {
+                    throw e;
+                }
+                retried = true;
+                _log.info ( String.format ( "Failed to read chunk of %s items. Retrying with %s items per chunk.", chunk.length, sizer.getChunkSize () ), e );
+                continue;
+            }
+            offset += chunk.length;
+        }
+        return data;
+    }
+
+    private Map<Item, ItemState> readChunk ( final boolean device, final Item... items ) throws JIException
     {
         Integer[] handles = getServerHandles ( items );
 
         KeyedResultSet<Integer, OPCITEMSTATE> states = this._syncIO.read ( device ? OPCDATASOURCE.OPC_DS_DEVICE : OPCDATASOURCE.OPC_DS_CACHE, handles );
+        this._server.getDataStatistics ().recordReads ( handles.length );
 
         Map<Item, ItemState> data = new HashMap<Item, ItemState> ();
         for ( KeyedResult<Integer, OPCITEMSTATE> entry : states )
         {
             Item item = this._itemMap.get ( entry.getKey () );
-            ItemState state = new ItemState ( entry.getErrorCode (), entry.getValue ().getValue (), entry.getValue ().getTimestamp ().asCalendar (), entry.getValue ().getQuality () );
+            ItemState state = new ItemState ( entry.getErrorCode (), entry.getValue ().getValue (), entry.getValue ().getTimestamp ().asMillis (), entry.getValue ().getQuality () );
             data.put ( item, state );
         }
         return data;
@@ -382,6 +580,37 @@ public class Group
         return this._server;
     }
 
+    /**
+     * Enable or disable coalescing of single item reads
+     * <p>
+     * If enabled, concurrent calls to {@link Item#read(boolean)} of this group
+     * are collected into batched reads. See {@link CoalescingReader}.
+     * </p>
+     * @param enabled <code>true</code> to enable read coalescing
+     * @param windowMillis the time in milliseconds a batch waits for further reads, may be 0
+     * @param maxBatchSize the maximum number of items read in one batch
+     */
+    public void setReadCoalescing ( final boolean enabled, final long windowMillis, final int maxBatchSize )
+    {
+        if ( enabled )
+        {
+            this._coalescingReader = new CoalescingReader ( this, windowMillis, TimeUnit.MILLISECONDS, maxBatchSize );
+        }
+        else
+        {
+            this._coalescingReader = null;
+        }
+    }
+
+    /**
+     * Get the coalescing reader of this group
+     * @return the coalescing reader or <code>null</code> if read coalescing is disabled
+     */
+    public CoalescingReader getCoalescingReader ()
+    {
+        return this._coalescingReader;
+    }
+
     public synchronized void clear () throws JIException
     {
         Integer[] handles = this._itemMap.keySet ().toArray ( new Integer[0] );
@@ -394,7 +623,7 @@ public class Group
             // in any case clear our maps
             this._itemHandleMap.clear ();
             this._itemMap.clear ();
-            this._itemClientMap.clear ();
+            this._clientHandles.clear ();
         }
     }
 
@@ -405,12 +634,189 @@ public class Group
 
     public synchronized EventHandler attach ( final IOPCDataCallback dataCallback ) throws JIException
     {
-        return this._group.attach ( dataCallback );
+        return attach ( dataCallback, false );
+    }
+
+    /**
+     * Attach a data callback to the group
+     * @param dataCallback the callback
+     * @param primitiveMode deliver numeric and boolean values as typed values instead of variants
+     * @return the event handler
+     * @throws JIException
+     */
+    public synchronized EventHandler attach ( final IOPCDataCallback dataCallback, final boolean primitiveMode ) throws JIException
+    {
+        // replace the callback attached for async operations only
+        detachAsyncCallback ();
+
+        final EventHandler handler = this._group.attach ( this._asyncTracker.new Callback ( dataCallback ), primitiveMode );
+        this._attachedCallbacks++;
+
+        return new EventHandler () {
+
+            private boolean detached = false;
+
+            public String getIdentifier ()
+            {
+                return handler.getIdentifier ();
+            }
+
+            public IJIComObject getObject ()
+            {
+                return handler.getObject ();
+            }
+
+            public void detach () throws JIException
+            {
+                try
+                {
+                    handler.detach ();
+                }
+                finally
+                {
+                    synchronized ( Group.this )
+                    {
+                        if ( !this.detached )
+                        {
+                            this.detached = true;
+                            Group.this._attachedCallbacks--;
+                        }
+                    }
+                }
+            }
+        };
+    }
+
+    private void detachAsyncCallback ()
+    {
+        if ( this._asyncEventHandler == null )
+        {
+            return;
+        }
+        try
+        {
+            this._asyncEventHandler.detach ();
+        }
+        catch ( final JIException e )
+        {
+            _log.info ( "Failed to detach callback for async operations", e );
+        }
+        this._asyncEventHandler = null;
+    }
+
+    private void ensureCallback () throws JIException
+    {
+        if ( this._attachedCallbacks == 0 && this._asyncEventHandler == null )
+        {
+            this._asyncEventHandler = this._group.attach ( this._asyncTracker.new Callback ( null ) );
+        }
+    }
+
+    private OPCAsyncIO2 requireAsyncIO20 () throws NotConnectedException
+    {
+        final OPCAsyncIO2 asyncIO = this._group.getAsyncIO2 ();
+        if ( asyncIO == null )
+        {
+            throw new NotConnectedException ();
+        }
+        return asyncIO;
+    }
+
+    /**
+     * Read items asynchronously using IOPCAsyncIO2
+     * <p>
+     * The future is completed when the server reports the result using
+     * <code>OnReadComplete</code>. Items which are rejected when the operation is
+     * started are part of the result with their error code. If no data callback
+     * is attached to the group a callback for the async operations is attached.
+     * Cancelling the future cancels the operation on the server. The future fails
+     * if the group is removed before the server completed the operation.
+     * </p>
+     * @param items the items to read
+     * @return the future item states
+     * @throws JIException if the read could not be started
+     * @throws NotConnectedException if the group is not connected
+     */
+    public synchronized Future<Map<Item, ItemState>> readAsync ( final Item... items ) throws JIException, NotConnectedException
+    {
+        final OPCAsyncIO2 asyncIO = requireAsyncIO20 ();
+        ensureCallback ();
+
+        final AsyncOperationTracker.Transaction<ItemState> transaction = this._asyncTracker.beginRead ();
+        try
+        {
+            this._asyncTracker.started ( transaction, asyncIO, asyncIO.read ( transaction.getTransactionId (), getServerHandles ( items ) ) );
+        }
+        catch ( final JIException e )
+        {
+            this._asyncTracker.abort ( transaction, e );
+            throw e;
+        }
+        return transaction;
+    }
+
+    /**
+     * Write items asynchronously using IOPCAsyncIO2
+     * <p>
+     * The future is completed with the error codes reported by the server
+     * using <code>OnWriteComplete</code>. See {@link #readAsync(Item...)}.
+     * </p>
+     * @param requests the write requests
+     * @return the future error codes
+     * @throws JIException if the write could not be started
+     * @throws NotConnectedException if the group is not connected
+     */
+    public synchronized Future<Map<Item, Integer>> writeAsync ( final WriteRequest... requests ) throws JIException, NotConnectedException
+    {
+        final OPCAsyncIO2 asyncIO = requireAsyncIO20 ();
+        ensureCallback ();
+
+        final Item[] items = new Item[requests.length];
+        for ( int i = 0; i < requests.length; i++ )
+        {
+            items[i] = requests[i].getItem ();
+        }
+        final Integer[] handles = getServerHandles ( items );
+
+        final org.openscada.opc.dcom.da.WriteRequest[] wr = new org.openscada.opc.dcom.da.WriteRequest[requests.length];
+        for ( int i = 0; i < requests.length; i++ )
+        {
+            wr[i] = new org.openscada.opc.dcom.da.WriteRequest ( handles[i], requests[i].getValue () );
+        }
+
+        final AsyncOperationTracker.Transaction<Integer> transaction = this._asyncTracker.beginWrite ();
+        try
+        {
+            this._asyncTracker.started ( transaction, asyncIO, asyncIO.write ( transaction.getTransactionId (), wr ) );
+        }
+        catch ( final JIException e )
+        {
+            this._asyncTracker.abort ( transaction, e );
+            throw e;
+        }
+        return transaction;
+    }
+
+    /**
+     * Get the tracker of the async operations of this group
+     * <p>
+     * The tracker provides the timeout setting and statistics.
+     * </p>
+     * @return the tracker
+     */
+    public AsyncOperationTracker getAsyncOperations ()
+    {
+        return this._asyncTracker;
+    }
+
+    synchronized Item findItemByServerHandle ( final int serverHandle )
+    {
+        return this._itemMap.get ( serverHandle );
     }
 
     public Item findItemByClientHandle ( final int clientHandle )
     {
-        return this._itemClientMap.get ( clientHandle );
+        return this._clientHandles.get ( clientHandle );
     }
 
     public int getServerHandle ()
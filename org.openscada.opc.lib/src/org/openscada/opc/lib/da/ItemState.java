@@ -21,27 +21,75 @@ package org.openscada.opc.lib.da;
 
 import java.util.Calendar;
 
+import org.jinterop.dcom.common.JIException;
 import org.jinterop.dcom.core.JIVariant;
+import org.openscada.opc.dcom.da.TypedValue;
+import org.openscada.opc.dcom.da.ValueData;
 
 public class ItemState
 {
+    /**
+     * The value of {@link #getTimestampMillis()} if no timestamp is set
+     */
+    public static final long NO_TIMESTAMP = Long.MIN_VALUE;
+
     private int _errorCode = 0;
 
-    private JIVariant _value = null;
+    private volatile JIVariant _value = null;
+
+    private volatile TypedValue _typedValue = null;
+
+    private long _timestampMillis = NO_TIMESTAMP;
 
-    private Calendar _timestamp = null;
+    private volatile Calendar _timestamp = null;
 
     private Short _quality = null;
 
+    private long _receivedNanos = System.nanoTime ();
+
     public ItemState ( final int errorCode, final JIVariant value, final Calendar timestamp, final Short quality )
     {
         super ();
         this._errorCode = errorCode;
         this._value = value;
-        this._timestamp = timestamp;
+        setTimestamp ( timestamp );
+        this._quality = quality;
+    }
+
+    /**
+     * Create a new item state
+     * @param errorCode the error code
+     * @param value the value
+     * @param timestampMillis the timestamp in milliseconds since the java epoch or {@link #NO_TIMESTAMP}
+     * @param quality the quality
+     */
+    public ItemState ( final int errorCode, final JIVariant value, final long timestampMillis, final Short quality )
+    {
+        super ();
+        this._errorCode = errorCode;
+        this._value = value;
+        this._timestampMillis = timestampMillis;
         this._quality = quality;
     }
 
+    /**
+     * Create a new item state from the data received from the server
+     * @param errorCode the error code
+     * @param valueData the value, timestamp and quality
+     */
+    public ItemState ( final int errorCode, final ValueData valueData )
+    {
+        super ();
+        this._errorCode = errorCode;
+        this._typedValue = valueData.getTypedValue ();
+        if ( this._typedValue == null )
+        {
+            this._value = valueData.getValue ();
+        }
+        this._timestampMillis = valueData.getTimestampMillis ();
+        this._quality = valueData.getQuality ();
+    }
+
     public ItemState ()
     {
         super ();
@@ -50,7 +98,7 @@ public class ItemState
     @Override
     public String toString ()
     {
-        return String.format ( "Value: %s, Timestamp: %tc, Quality: %s, ErrorCode: %08x", this._value, this._timestamp, this._quality, this._errorCode );
+        return String.format ( "Value: %s, Timestamp: %tc, Quality: %s, ErrorCode: %08x", this._value != null ? this._value : this._typedValue, this._timestampMillis == NO_TIMESTAMP ? null : this._timestampMillis, this._quality, this._errorCode );
     }
 
     public Short getQuality ()
@@ -63,24 +111,194 @@ public class ItemState
         this._quality = quality;
     }
 
+    /**
+     * Get the timestamp as calendar
+     * <p>
+     * The calendar is only created when it is requested for the first time. Use
+     * {@link #getTimestampMillis()} if the calendar is not needed.
+     * </p>
+     * @return the timestamp or <code>null</code> if no timestamp is set
+     */
     public Calendar getTimestamp ()
     {
-        return this._timestamp;
+        Calendar timestamp = this._timestamp;
+        if ( timestamp == null && this._timestampMillis != NO_TIMESTAMP )
+        {
+            timestamp = Calendar.getInstance ();
+            timestamp.setTimeInMillis ( this._timestampMillis );
+            this._timestamp = timestamp;
+        }
+        return timestamp;
     }
 
     public void setTimestamp ( final Calendar timestamp )
     {
         this._timestamp = timestamp;
+        this._timestampMillis = timestamp == null ? NO_TIMESTAMP : timestamp.getTimeInMillis ();
     }
 
+    /**
+     * Get the timestamp in milliseconds since the java epoch
+     * @return the timestamp or {@link #NO_TIMESTAMP} if no timestamp is set
+     */
+    public long getTimestampMillis ()
+    {
+        return this._timestampMillis;
+    }
+
+    /**
+     * Get the local time at which the state was received
+     * <p>
+     * The time is taken from {@link System#nanoTime()} when the state is created and
+     * is not part of the comparison of states. Unlike the timestamp it does not
+     * depend on the clock of the server.
+     * </p>
+     * @return the receive time in nanoseconds, only comparable to other values of {@link System#nanoTime()}
+     */
+    public long getReceivedNanos ()
+    {
+        return this._receivedNanos;
+    }
+
+    void setReceivedNanos ( final long receivedNanos )
+    {
+        this._receivedNanos = receivedNanos;
+    }
+
+    public void setTimestampMillis ( final long timestampMillis )
+    {
+        this._timestampMillis = timestampMillis;
+        this._timestamp = null;
+    }
+
+    /**
+     * Get the value as variant
+     * <p>
+     * If the value was received in primitive mode the variant is created
+     * when it is requested for the first time.
+     * </p>
+     * @return the value
+     */
     public JIVariant getValue ()
     {
-        return this._value;
+        JIVariant value = this._value;
+        if ( value == null && this._typedValue != null )
+        {
+            value = this._typedValue.toVariant ();
+            this._value = value;
+        }
+        return value;
     }
 
     public void setValue ( final JIVariant value )
     {
         this._value = value;
+        this._typedValue = null;
+    }
+
+    /**
+     * Get the typed value
+     * <p>
+     * The value is decoded when it is requested for the first time and cached afterwards.
+     * </p>
+     * @return the typed value or <code>null</code> if there is no value
+     * @throws JIException if the variant cannot be decoded
+     */
+    public TypedValue getTypedValue () throws JIException
+    {
+        TypedValue typedValue = this._typedValue;
+        if ( typedValue == null && this._value != null )
+        {
+            typedValue = TypedValue.fromVariant ( this._value );
+            this._typedValue = typedValue;
+        }
+        return typedValue;
+    }
+
+    /**
+     * Get the variant type of the value
+     * @return the variant type or {@link JIVariant#VT_EMPTY} if there is no value
+     * @throws JIException
+     */
+    public int getVariantType () throws JIException
+    {
+        final TypedValue typedValue = getTypedValue ();
+        return typedValue == null ? JIVariant.VT_EMPTY : typedValue.getVariantType ();
+    }
+
+    /**
+     * Get the value as double
+     * @return the value
+     * @throws JIException
+     * @throws IllegalStateException if the value is not a numeric or boolean scalar
+     */
+    public double getDouble () throws JIException
+    {
+        return requireTypedValue ().getDouble ();
+    }
+
+    /**
+     * Get the value as long
+     * @return the value
+     * @throws JIException
+     * @throws IllegalStateException if the value is not a numeric or boolean scalar
+     */
+    public long getLong () throws JIException
+    {
+        return requireTypedValue ().getLong ();
+    }
+
+    /**
+     * Get the value as boolean
+     * @return the value, <code>true</code> for non-zero numeric values
+     * @throws JIException
+     * @throws IllegalStateException if the value is not a numeric or boolean scalar
+     */
+    public boolean getBoolean () throws JIException
+    {
+        return requireTypedValue ().getBoolean ();
+    }
+
+    public double[] getDoubleArray () throws JIException
+    {
+        return requireTypedValue ().getDoubleArray ();
+    }
+
+    public long[] getLongArray () throws JIException
+    {
+        return requireTypedValue ().getLongArray ();
+    }
+
+    public boolean[] getBooleanArray () throws JIException
+    {
+        return requireTypedValue ().getBooleanArray ();
+    }
+
+    private TypedValue requireTypedValue () throws JIException
+    {
+        final TypedValue typedValue = getTypedValue ();
+        if ( typedValue == null )
+        {
+            throw new IllegalStateException ( "Item state has no value" );
+        }
+        return typedValue;
+    }
+
+    /**
+     * Get the value decoded into primitives
+     * @return the decoded value or <code>null</code> if there is no value or it cannot be decoded into primitives
+     */
+    TypedValue decodedValue ()
+    {
+        try
+        {
+            final TypedValue typedValue = getTypedValue ();
+            return typedValue != null && typedValue.isPrimitive () ? typedValue : null;
+        }
+        catch ( final JIException e )
+        {
+            return null;
+        }
     }
 
     public int getErrorCode ()
@@ -100,8 +318,8 @@ public class ItemState
         int result = 1;
         result = PRIME * result + this._errorCode;
         result = PRIME * result + ( this._quality == null ? 0 : this._quality.hashCode () );
-        result = PRIME * result + ( this._timestamp == null ? 0 : this._timestamp.hashCode () );
-        result = PRIME * result + ( this._value == null ? 0 : this._value.hashCode () );
+        result = PRIME * result + (int) ( this._timestampMillis ^ this._timestampMillis >>> 32 );
+        // the value is not part of the hash code since a state holding a variant may be equal to one holding a typed value
         return result;
     }
 
@@ -136,25 +354,48 @@ public class ItemState
         {
             return false;
         }
-        if ( this._timestamp == null )
+        if ( this._timestampMillis != other._timestampMillis )
         {
-            if ( other._timestamp != null )
-            {
-                return false;
-            }
+            return false;
+        }
+        return valueEquals ( other );
+    }
+
+    /**
+     * Compare only the values of two item states
+     * <p>
+     * Values which can be decoded into primitives are compared by their type and
+     * value, decoding them if necessary. Variants which cannot be decoded do not
+     * implement <code>equals</code> and are only equal to the same instance.
+     * </p>
+     * @param other the other item state
+     * @return <code>true</code> if both values are equal
+     */
+    public boolean valueEquals ( final ItemState other )
+    {
+        final TypedValue decoded = decodedValue ();
+        final TypedValue otherDecoded = other.decodedValue ();
+        if ( decoded != null || otherDecoded != null )
+        {
+            return decoded != null && decoded.equals ( otherDecoded );
         }
-        else if ( !this._timestamp.equals ( other._timestamp ) )
+
+        if ( this._value == null && other._value == null )
         {
-            return false;
+            // neither state holds a variant, compare the typed values which cannot be decoded
+            return this._typedValue == other._typedValue;
         }
-        if ( this._value == null )
+
+        final JIVariant value = this._value;
+        final JIVariant otherValue = other._value;
+        if ( value == null )
         {
-            if ( other._value != null )
+            if ( otherValue != null )
             {
                 return false;
             }
         }
-        else if ( !this._value.equals ( other._value ) )
+        else if ( !value.equals ( otherValue ) )
         {
             return false;
         }
@@ -0,0 +1,224 @@
+/*
+ * This file is part of the OpenSCADA project
+ * Copyright (C) 2006-2011 TH4 SYSTEMS GmbH (http://th4-systems.com)
+ *
+ * OpenSCADA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License version 3
+ * only, as published by the Free Software Foundation.
+ *
+ * OpenSCADA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License version 3 for more details
+ * (a copy is included in the LICENSE file that accompanied this code).
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * version 3 along with OpenSCADA. If not, see
+ * <http://opensource.org/licenses/lgpl-3.0.html> for a copy of the LGPLv3 License.
+ */
+
+package org.openscada.opc.lib.da;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.jinterop.dcom.common.JIException;
+
+/**
+ * A future which gets completed by the party that actually performs the
+ * operation.
+ * <p>
+ * In contrast to a {@link java.util.concurrent.FutureTask} the operation is not
+ * bound to a single thread. The result may be set by a thread collecting
+ * several operations into one call or by a DCOM callback.
+ * </p>
+ * @param <T> the result type
+ */
+public class OperationFuture<T> implements Future<T>
+{
+    /**
+     * The error code used when waiting for the result was interrupted (E_ABORT)
+     */
+    public static final int E_ABORT = 0x80004004;
+
+    private T result;
+
+    private Throwable error;
+
+    private boolean done = false;
+
+    private boolean cancelled = false;
+
+    /**
+     * Complete the operation successfully
+     * @param result the result
+     * @return <code>true</code> if the operation was completed by this call,
+     * <code>false</code> if it was already completed or cancelled
+     */
+    public boolean complete ( final T result )
+    {
+        synchronized ( this )
+        {
+            if ( this.done )
+            {
+                return false;
+            }
+            this.result = result;
+            this.done = true;
+            notifyAll ();
+        }
+        completed ();
+        return true;
+    }
+
+    /**
+     * Complete the operation with an error
+     * @param error the error
+     * @return <code>true</code> if the operation was completed by this call,
+     * <code>false</code> if it was already completed or cancelled
+     */
+    public boolean fail ( final Throwable error )
+    {
+        synchronized ( this )
+        {
+            if ( this.done )
+            {
+                return false;
+            }
+            this.error = error;
+            this.done = true;
+            notifyAll ();
+        }
+        completed ();
+        return true;
+    }
+
+    public boolean cancel ( final boolean mayInterruptIfRunning )
+    {
+        synchronized ( this )
+        {
+            if ( this.done )
+            {
+                return false;
+            }
+            this.cancelled = true;
+            this.done = true;
+            notifyAll ();
+        }
+        cancelled ();
+        completed ();
+        return true;
+    }
+
+    /**
+     * Called after the operation was cancelled
+     * <p>
+     * May be overridden to abort the operation on the server side.
+     * </p>
+     */
+    protected void cancelled ()
+    {
+    }
+
+    /**
+     * Called once after the operation was completed in any way
+     */
+    protected void completed ()
+    {
+    }
+
+    public synchronized boolean isCancelled ()
+    {
+        return this.cancelled;
+    }
+
+    public synchronized boolean isDone ()
+    {
+        return this.done;
+    }
+
+    public synchronized T get () throws InterruptedException, ExecutionException
+    {
+        while ( !this.done )
+        {
+            wait ();
+        }
+        return getResult ();
+    }
+
+    public synchronized T get ( final long timeout, final TimeUnit unit ) throws InterruptedException, ExecutionException, TimeoutException
+    {
+        final long deadline = System.nanoTime () + unit.toNanos ( timeout );
+        while ( !this.done )
+        {
+            final long remaining = deadline - System.nanoTime ();
+            if ( remaining <= 0 )
+            {
+                throw new TimeoutException ();
+            }
+            TimeUnit.NANOSECONDS.timedWait ( this, remaining );
+        }
+        return getResult ();
+    }
+
+    /**
+     * Wait for the result and unwrap the error of the operation
+     * <p>
+     * This is a convenience method for the synchronous API, which only
+     * declares {@link JIException}. Other errors are wrapped into a
+     * {@link JIException}. If the waiting thread gets interrupted the interrupt
+     * flag is restored and a {@link JIException} with {@link #E_ABORT} is thrown.
+     * </p>
+     * @return the result of the operation
+     * @throws JIException the error of the operation
+     */
+    public T await () throws JIException
+    {
+        try
+        {
+            return get ();
+        }
+        catch ( final InterruptedException e )
+        {
+            Thread.currentThread ().interrupt ();
+            throw new JIException ( E_ABORT, e );
+        }
+        catch ( final CancellationException e )
+        {
+            throw new JIException ( E_ABORT, e );
+        }
+        catch ( final ExecutionException e )
+        {
+            final Throwable cause = e.getCause ();
+            if ( cause instanceof JIException )
+            {
+                throw (JIException)cause;
+            }
+            if ( cause instanceof RuntimeException )
+            {
+                throw (RuntimeException)cause;
+            }
+            if ( cause instanceof Error )
+            {
+                throw (Error)cause;
+            }
+            throw new JIException ( 0, cause );
+        }
+    }
+
+    private T getResult () throws ExecutionException
+    {
+        if ( this.cancelled )
+        {
+            throw new CancellationException ();
+        }
+        if ( this.error != null )
+        {
+            throw new ExecutionException ( this.error );
+        }
+        return this.result;
+    }
+}
@@ -0,0 +1,228 @@
+/*
+ * This file is part of the OpenSCADA project
+ * Copyright (C) 2006-2011 TH4 SYSTEMS GmbH (http://th4-systems.com)
+ *
+ * OpenSCADA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License version 3
+ * only, as published by the Free Software Foundation.
+ *
+ * OpenSCADA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License version 3 for more details
+ * (a copy is included in the LICENSE file that accompanied this code).
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * version 3 along with OpenSCADA. If not, see
+ * <http://opensource.org/licenses/lgpl-3.0.html> for a copy of the LGPLv3 License.
+ */
+
+package org.openscada.opc.lib.da;
+
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openscada.opc.lib.common.DaemonThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A scheduler which runs the poll cycles of many accesses on a bounded set of threads
+ * <p>
+ * Tasks are scheduled with a serialization key, normally the {@link Server} of the
+ * access. Tasks with the same key never run concurrently, they are queued and executed
+ * one after the other. So each server is polled by at most one thread at a time while
+ * different servers are polled in parallel.
+ * </p>
+ * <p>
+ * The scheduler can be shared by several accesses using {@link SyncAccess#setScheduler(PollingScheduler)}
+ * and must be disposed using {@link #dispose()} when it is no longer needed, unless an
+ * external executor was provided.
+ * </p>
+ */
+public class PollingScheduler
+{
+    private static Logger logger = LoggerFactory.getLogger ( PollingScheduler.class );
+
+    private class SerialQueue implements Runnable
+    {
+        private final LinkedList<Runnable> tasks = new LinkedList<Runnable> ();
+
+        private boolean running = false;
+
+        public void add ( final Runnable task )
+        {
+            synchronized ( this )
+            {
+                this.tasks.add ( task );
+                PollingScheduler.this.queued.incrementAndGet ();
+                if ( this.running )
+                {
+                    return;
+                }
+                this.running = true;
+            }
+
+            try
+            {
+                PollingScheduler.this.executor.execute ( this );
+            }
+            catch ( final RejectedExecutionException e )
+            {
+                synchronized ( this )
+                {
+                    PollingScheduler.this.queued.addAndGet ( -this.tasks.size () );
+                    this.tasks.clear ();
+                    this.running = false;
+                }
+                logger.debug ( "Scheduler was shut down" );
+            }
+        }
+
+        public void run ()
+        {
+            final Runnable task;
+            synchronized ( this )
+            {
+                task = this.tasks.poll ();
+                if ( task == null )
+                {
+                    this.running = false;
+                    return;
+                }
+            }
+
+            PollingScheduler.this.queued.decrementAndGet ();
+            try
+            {
+                task.run ();
+            }
+            catch ( final Throwable e )
+            {
+                logger.warn ( "Poll task failed", e );
+            }
+            PollingScheduler.this.executed.incrementAndGet ();
+
+            synchronized ( this )
+            {
+                if ( this.tasks.isEmpty () )
+                {
+                    this.running = false;
+                    return;
+                }
+            }
+
+            // give other queues a chance to run before we continue
+            try
+            {
+                PollingScheduler.this.executor.execute ( this );
+            }
+            catch ( final RejectedExecutionException e )
+            {
+                synchronized ( this )
+                {
+                    this.running = false;
+                }
+            }
+        }
+    }
+
+    private final ScheduledExecutorService executor;
+
+    private final boolean ownExecutor;
+
+    private final Map<Object, SerialQueue> queues = new WeakHashMap<Object, SerialQueue> ();
+
+    private final AtomicLong executed = new AtomicLong ();
+
+    private final AtomicInteger queued = new AtomicInteger ();
+
+    /**
+     * Create a new scheduler with its own pool of threads
+     * @param threads the number of threads
+     */
+    public PollingScheduler ( final int threads )
+    {
+        this.executor = new ScheduledThreadPoolExecutor ( threads, new DaemonThreadFactory ( "UtgardPoller-" ) );
+        this.ownExecutor = true;
+    }
+
+    /**
+     * Create a new scheduler using an existing executor
+     * <p>
+     * The executor is not shut down when the scheduler is disposed.
+     * </p>
+     * @param executor the executor to use
+     */
+    public PollingScheduler ( final ScheduledExecutorService executor )
+    {
+        this.executor = executor;
+        this.ownExecutor = false;
+    }
+
+    /**
+     * Run a task after a delay. The task is run after all tasks with the same
+     * serialization key which are already waiting.
+     * @param key the serialization key
+     * @param task the task to run
+     * @param delay the delay
+     * @param unit the unit of the delay
+     * @return the future of the delay, can be used to cancel the task before it is queued
+     */
+    public ScheduledFuture<?> schedule ( final Object key, final Runnable task, final long delay, final TimeUnit unit )
+    {
+        final SerialQueue queue = getQueue ( key );
+        return this.executor.schedule ( new Runnable () {
+
+            public void run ()
+            {
+                queue.add ( task );
+            }
+        }, delay, unit );
+    }
+
+    private SerialQueue getQueue ( final Object key )
+    {
+        synchronized ( this.queues )
+        {
+            SerialQueue queue = this.queues.get ( key );
+            if ( queue == null )
+            {
+                queue = new SerialQueue ();
+                this.queues.put ( key, queue );
+            }
+            return queue;
+        }
+    }
+
+    /**
+     * Get the number of tasks which are due but wait for their serialization key
+     * @return the number of queued tasks
+     */
+    public int getQueuedTasks ()
+    {
+        return this.queued.get ();
+    }
+
+    public long getExecutedTasks ()
+    {
+        return this.executed.get ();
+    }
+
+    public void dispose ()
+    {
+        if ( this.ownExecutor )
+        {
+            this.executor.shutdown ();
+        }
+    }
+}
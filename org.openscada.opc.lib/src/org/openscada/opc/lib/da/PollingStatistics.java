@@ -0,0 +1,166 @@
+/*
+ * This file is part of the OpenSCADA project
+ * Copyright (C) 2006-2011 TH4 SYSTEMS GmbH (http://th4-systems.com)
+ *
+ * OpenSCADA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License version 3
+ * only, as published by the Free Software Foundation.
+ *
+ * OpenSCADA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License version 3 for more details
+ * (a copy is included in the LICENSE file that accompanied this code).
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * version 3 along with OpenSCADA. If not, see
+ * <http://opensource.org/licenses/lgpl-3.0.html> for a copy of the LGPLv3 License.
+ */
+
+package org.openscada.opc.lib.da;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters of a polling access
+ * <p>
+ * The cycle durations are recorded in a histogram with the upper bounds
+ * defined by {@link #getHistogramBounds()}. The last bucket counts all
+ * durations above the largest bound.
+ * </p>
+ */
+public class PollingStatistics
+{
+    private static final long[] HISTOGRAM_BOUNDS = new long[] { 1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000 };
+
+    private final AtomicLong cycles = new AtomicLong ();
+
+    private final AtomicLong overruns = new AtomicLong ();
+
+    private final AtomicLong skippedCycles = new AtomicLong ();
+
+    private final AtomicLong failedCycles = new AtomicLong ();
+
+    private final AtomicLong totalDuration = new AtomicLong ();
+
+    private final AtomicLong maxDuration = new AtomicLong ();
+
+    private volatile long lastDuration = -1;
+
+    private final AtomicLongArray histogram = new AtomicLongArray ( HISTOGRAM_BOUNDS.length + 1 );
+
+    /**
+     * Record a finished cycle
+     * @param durationNanos the duration of the cycle in nanoseconds
+     */
+    public void recordCycle ( final long durationNanos )
+    {
+        final long duration = durationNanos / 1000000L;
+
+        this.cycles.incrementAndGet ();
+        this.totalDuration.addAndGet ( duration );
+        this.lastDuration = duration;
+
+        long max;
+        do
+        {
+            max = this.maxDuration.get ();
+        } while ( duration > max && !this.maxDuration.compareAndSet ( max, duration ) );
+
+        int bucket = 0;
+        while ( bucket < HISTOGRAM_BOUNDS.length && duration >= HISTOGRAM_BOUNDS[bucket] )
+        {
+            bucket++;
+        }
+        this.histogram.incrementAndGet ( bucket );
+    }
+
+    public void recordFailure ()
+    {
+        this.failedCycles.incrementAndGet ();
+    }
+
+    /**
+     * Record a cycle which did not finish before the next deadline
+     * @param skipped the number of cycles that were skipped because of the overrun
+     */
+    public void recordOverrun ( final long skipped )
+    {
+        this.overruns.incrementAndGet ();
+        this.skippedCycles.addAndGet ( skipped );
+    }
+
+    public long getCycles ()
+    {
+        return this.cycles.get ();
+    }
+
+    public long getOverruns ()
+    {
+        return this.overruns.get ();
+    }
+
+    public long getSkippedCycles ()
+    {
+        return this.skippedCycles.get ();
+    }
+
+    public long getFailedCycles ()
+    {
+        return this.failedCycles.get ();
+    }
+
+    /**
+     * Get the duration of the last cycle
+     * @return the duration in milliseconds or <code>-1</code> if no cycle finished yet
+     */
+    public long getLastDuration ()
+    {
+        return this.lastDuration;
+    }
+
+    public long getMaxDuration ()
+    {
+        return this.maxDuration.get ();
+    }
+
+    /**
+     * Get the average duration of all cycles
+     * @return the average duration in milliseconds or <code>0</code> if no cycle finished yet
+     */
+    public double getAverageDuration ()
+    {
+        final long cycles = this.cycles.get ();
+        return cycles == 0 ? 0 : (double)this.totalDuration.get () / cycles;
+    }
+
+    /**
+     * Get the upper bounds (exclusive) of the histogram buckets in milliseconds
+     * @return the bounds
+     */
+    public static long[] getHistogramBounds ()
+    {
+        return HISTOGRAM_BOUNDS.clone ();
+    }
+
+    /**
+     * Get the cycle duration histogram
+     * @return the number of cycles per bucket, one entry more than {@link #getHistogramBounds()}
+     */
+    public long[] getHistogram ()
+    {
+        final long[] result = new long[this.histogram.length ()];
+        for ( int i = 0; i < result.length; i++ )
+        {
+            result[i] = this.histogram.get ( i );
+        }
+        return result;
+    }
+
+    @Override
+    public String toString ()
+    {
+        return String.format ( "Cycles: %s, Failed: %s, Overruns: %s, Skipped: %s, Avg: %.1f ms, Max: %s ms", getCycles (), getFailedCycles (), getOverruns (), getSkippedCycles (), getAverageDuration (), getMaxDuration () );
+    }
+}
@@ -0,0 +1,501 @@
+/*
+ * This file is part of the OpenSCADA project
+ * Copyright (C) 2006-2011 TH4 SYSTEMS GmbH (http://th4-systems.com)
+ *
+ * OpenSCADA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License version 3
+ * only, as published by the Free Software Foundation.
+ *
+ * OpenSCADA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License version 3 for more details
+ * (a copy is included in the LICENSE file that accompanied this code).
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * version 3 along with OpenSCADA. If not, see
+ * <http://opensource.org/licenses/lgpl-3.0.html> for a copy of the LGPLv3 License.
+ */
+
+package org.openscada.opc.lib.da;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openscada.opc.lib.common.DaemonThreadFactory;
+
+/**
+ * The reconnect policy of {@link AutoReconnectController} instances.
+ * <p>
+ * A policy may be shared by many controllers. All reconnect attempts of
+ * these controllers are scheduled on the scheduler of the policy and run on
+ * its connect executor, so the number of threads does not depend on the number
+ * of servers and blocking connects do not delay the scheduling.
+ * </p>
+ * <p>
+ * The delay before an attempt grows exponentially with the number of failed
+ * attempts, starting at the initial delay and limited by the maximum delay.
+ * With full jitter the actual delay is chosen randomly between zero and the
+ * computed delay, so that controllers losing their connection at the same
+ * time do not reconnect in lockstep. The number of concurrent connect
+ * attempts per host and in total can be limited. Attempts held back by these
+ * limits wait in the order of their arrival and are started as soon as a
+ * running attempt releases its slot.
+ * </p>
+ */
+public class ReconnectPolicy
+{
+    /**
+     * A connect attempt which runs on the connect executor once it got a connect slot
+     * <p>
+     * The attempt must give the slot back using {@link ReconnectPolicy#releaseConnect(String)}.
+     * </p>
+     */
+    static abstract class ConnectAttempt implements Runnable
+    {
+        private final String host;
+
+        public ConnectAttempt ( final String host )
+        {
+            this.host = host;
+        }
+
+        public String getHost ()
+        {
+            return this.host;
+        }
+
+        /**
+         * Called if the connect executor rejected the attempt
+         * <p>
+         * The slot of the attempt is already released.
+         * </p>
+         * @param e the rejection
+         */
+        protected abstract void rejected ( RejectedExecutionException e );
+    }
+
+    /**
+     * The default connect timeout in milliseconds
+     */
+    public static final int DEFAULT_CONNECT_TIMEOUT = 10 * 1000;
+
+    private static ScheduledExecutorService defaultScheduler;
+
+    private static ExecutorService defaultConnectExecutor;
+
+    /**
+     * Get the scheduler used by policies which were created without a scheduler
+     * @return the default scheduler
+     */
+    public static synchronized ScheduledExecutorService getDefaultScheduler ()
+    {
+        if ( defaultScheduler == null )
+        {
+            defaultScheduler = Executors.newScheduledThreadPool ( 4, new DaemonThreadFactory ( "UtgardReconnect-" ) );
+        }
+        return defaultScheduler;
+    }
+
+    /**
+     * Get the executor which runs the connect attempts of policies without a connect executor
+     * <p>
+     * Every controller has at most one pending connect attempt, so the queue of
+     * the executor is bounded by the number of controllers.
+     * </p>
+     * @return the default connect executor
+     */
+    public static synchronized ExecutorService getDefaultConnectExecutor ()
+    {
+        if ( defaultConnectExecutor == null )
+        {
+            final ThreadPoolExecutor executor = new ThreadPoolExecutor ( 16, 16, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable> (), new DaemonThreadFactory ( "UtgardConnect-" ) );
+            // no threads are kept while all servers are connected
+            executor.allowCoreThreadTimeOut ( true );
+            defaultConnectExecutor = executor;
+        }
+        return defaultConnectExecutor;
+    }
+
+    private final ScheduledExecutorService scheduler;
+
+    private volatile ExecutorService connectExecutor;
+
+    private volatile long initialDelay;
+
+    private volatile long maxDelay;
+
+    private volatile double multiplier = 2.0;
+
+    private volatile boolean jitter = true;
+
+    private volatile int connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+
+    private volatile int maxConnectsPerHost = 0;
+
+    private volatile int maxConnects = 0;
+
+    private final AtomicInteger totalConnects = new AtomicInteger ();
+
+    private final ConcurrentMap<String, AtomicInteger> activeConnects = new ConcurrentHashMap<String, AtomicInteger> ();
+
+    private final LinkedList<ConnectAttempt> waitingConnects = new LinkedList<ConnectAttempt> ();
+
+    private final Random random = new Random ();
+
+    /**
+     * Create a policy with exponential backoff and full jitter
+     * @param scheduler the scheduler running the reconnect attempts
+     * @param initialDelay the delay before the first attempt in milliseconds
+     * @param maxDelay the maximum delay in milliseconds
+     */
+    public ReconnectPolicy ( final ScheduledExecutorService scheduler, final long initialDelay, final long maxDelay )
+    {
+        if ( initialDelay <= 0 || maxDelay < initialDelay )
+        {
+            throw new IllegalArgumentException ( "Delays must be positive and the maximum delay must not be less than the initial delay" );
+        }
+        this.scheduler = scheduler;
+        this.initialDelay = initialDelay;
+        this.maxDelay = maxDelay;
+    }
+
+    /**
+     * Create a policy with exponential backoff and full jitter using the default scheduler
+     * @param initialDelay the delay before the first attempt in milliseconds
+     * @param maxDelay the maximum delay in milliseconds
+     */
+    public ReconnectPolicy ( final long initialDelay, final long maxDelay )
+    {
+        this ( getDefaultScheduler (), initialDelay, maxDelay );
+    }
+
+    /**
+     * Create a policy with a fixed delay and without jitter using the default scheduler
+     * @param delay the delay between attempts in milliseconds
+     * @return the new policy
+     */
+    public static ReconnectPolicy fixedDelay ( final long delay )
+    {
+        final ReconnectPolicy policy = new ReconnectPolicy ( delay, delay );
+        policy.setMultiplier ( 1.0 );
+        policy.setJitter ( false );
+        return policy;
+    }
+
+    public ScheduledExecutorService getScheduler ()
+    {
+        return this.scheduler;
+    }
+
+    /**
+     * Get the executor running the connect attempts
+     * @return the executor, {@link #getDefaultConnectExecutor()} if none was set
+     */
+    public ExecutorService getConnectExecutor ()
+    {
+        final ExecutorService connectExecutor = this.connectExecutor;
+        return connectExecutor != null ? connectExecutor : getDefaultConnectExecutor ();
+    }
+
+    /**
+     * Set the executor running the connect attempts
+     * @param connectExecutor the executor or <code>null</code> to use {@link #getDefaultConnectExecutor()}
+     */
+    public void setConnectExecutor ( final ExecutorService connectExecutor )
+    {
+        this.connectExecutor = connectExecutor;
+    }
+
+    /**
+     * Get the delay before a reconnect attempt
+     * @param failedAttempts the number of attempts which failed since the connection was lost
+     * @return the delay in milliseconds
+     */
+    public long getDelay ( final int failedAttempts )
+    {
+        double delay = this.initialDelay;
+        for ( int i = 0; i < failedAttempts && delay < this.maxDelay; i++ )
+        {
+            delay *= this.multiplier;
+        }
+        final long limit = (long)Math.min ( delay, this.maxDelay );
+
+        if ( !this.jitter )
+        {
+            return limit;
+        }
+        synchronized ( this.random )
+        {
+            return (long) ( this.random.nextDouble () * limit );
+        }
+    }
+
+    /**
+     * Start a connect attempt once a connect slot for its host is available
+     * <p>
+     * If a slot is available the attempt is started right away, otherwise it
+     * waits until a running attempt releases its slot.
+     * </p>
+     * @param attempt the attempt
+     */
+    void submitConnect ( final ConnectAttempt attempt )
+    {
+        synchronized ( this.waitingConnects )
+        {
+            if ( !acquireConnect ( attempt.getHost () ) )
+            {
+                this.waitingConnects.add ( attempt );
+                return;
+            }
+        }
+        execute ( attempt );
+    }
+
+    private void execute ( final ConnectAttempt attempt )
+    {
+        try
+        {
+            getConnectExecutor ().execute ( attempt );
+        }
+        catch ( final RejectedExecutionException e )
+        {
+            releaseConnect ( attempt.getHost () );
+            attempt.rejected ( e );
+        }
+    }
+
+    /**
+     * Try to acquire a connect slot for a host
+     * @param host the host
+     * @return <code>true</code> if the connect attempt may start, <code>false</code> if
+     * the maximum number of concurrent connect attempts to the host is reached
+     */
+    boolean acquireConnect ( final String host )
+    {
+        while ( true )
+        {
+            final int current = this.totalConnects.get ();
+            final int max = this.maxConnects;
+            if ( max > 0 && current >= max )
+            {
+                return false;
+            }
+            if ( this.totalConnects.compareAndSet ( current, current + 1 ) )
+            {
+                break;
+            }
+        }
+
+        if ( !acquireHostConnect ( host ) )
+        {
+            this.totalConnects.decrementAndGet ();
+            return false;
+        }
+        return true;
+    }
+
+    private boolean acquireHostConnect ( final String host )
+    {
+        final String key = host == null ? "" : host;
+        AtomicInteger count = this.activeConnects.get ( key );
+        if ( count == null )
+        {
+            final AtomicInteger newCount = new AtomicInteger ();
+            count = this.activeConnects.putIfAbsent ( key, newCount );
+            if ( count == null )
+            {
+                count = newCount;
+            }
+        }
+
+        while ( true )
+        {
+            final int current = count.get ();
+            final int max = this.maxConnectsPerHost;
+            if ( max > 0 && current >= max )
+            {
+                return false;
+            }
+            if ( count.compareAndSet ( current, current + 1 ) )
+            {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Release the connect slot of a host and start the waiting attempts which may run now
+     * @param host the host
+     */
+    void releaseConnect ( final String host )
+    {
+        final List<ConnectAttempt> granted = new ArrayList<ConnectAttempt> ();
+        synchronized ( this.waitingConnects )
+        {
+            final AtomicInteger count = this.activeConnects.get ( host == null ? "" : host );
+            if ( count != null )
+            {
+                count.decrementAndGet ();
+            }
+            this.totalConnects.decrementAndGet ();
+
+            // attempts for a host at its limit do not block attempts for other hosts
+            final Iterator<ConnectAttempt> i = this.waitingConnects.iterator ();
+            while ( i.hasNext () )
+            {
+                final ConnectAttempt attempt = i.next ();
+                if ( acquireConnect ( attempt.getHost () ) )
+                {
+                    i.remove ();
+                    granted.add ( attempt );
+                }
+                else if ( this.maxConnects > 0 && this.totalConnects.get () >= this.maxConnects )
+                {
+                    break;
+                }
+            }
+        }
+
+        for ( final ConnectAttempt attempt : granted )
+        {
+            execute ( attempt );
+        }
+    }
+
+    /**
+     * Get the number of connect attempts waiting for a connect slot
+     * @return the number of waiting attempts
+     */
+    public int getWaitingConnects ()
+    {
+        synchronized ( this.waitingConnects )
+        {
+            return this.waitingConnects.size ();
+        }
+    }
+
+    /**
+     * Get the number of connect attempts currently running for all hosts
+     * @return the number of running connect attempts
+     */
+    public int getActiveConnects ()
+    {
+        return this.totalConnects.get ();
+    }
+
+    /**
+     * Get the number of connect attempts currently running for a host
+     * @param host the host
+     * @return the number of running connect attempts
+     */
+    public int getActiveConnects ( final String host )
+    {
+        final AtomicInteger count = this.activeConnects.get ( host == null ? "" : host );
+        return count == null ? 0 : count.get ();
+    }
+
+    public long getInitialDelay ()
+    {
+        return this.initialDelay;
+    }
+
+    public long getMaxDelay ()
+    {
+        return this.maxDelay;
+    }
+
+    public double getMultiplier ()
+    {
+        return this.multiplier;
+    }
+
+    /**
+     * Set the factor the delay grows with on each failed attempt
+     * @param multiplier the multiplier, at least 1
+     */
+    public void setMultiplier ( final double multiplier )
+    {
+        if ( multiplier < 1.0 )
+        {
+            throw new IllegalArgumentException ( "Multiplier must be at least 1" );
+        }
+        this.multiplier = multiplier;
+    }
+
+    public boolean isJitter ()
+    {
+        return this.jitter;
+    }
+
+    /**
+     * Enable or disable full jitter
+     * @param jitter <code>true</code> to pick the delay randomly between zero and the computed delay
+     */
+    public void setJitter ( final boolean jitter )
+    {
+        this.jitter = jitter;
+    }
+
+    public int getConnectTimeout ()
+    {
+        return this.connectTimeout;
+    }
+
+    /**
+     * Set the timeout of connect attempts
+     * <p>
+     * The timeout is passed to {@link Server#connect(int)}, which uses it as
+     * socket timeout of the DCOM session while the connection is established.
+     * </p>
+     * @param connectTimeout the timeout in milliseconds, 0 to use the socket timeout of the server
+     */
+    public void setConnectTimeout ( final int connectTimeout )
+    {
+        this.connectTimeout = connectTimeout;
+    }
+
+    public int getMaxConnectsPerHost ()
+    {
+        return this.maxConnectsPerHost;
+    }
+
+    /**
+     * Limit the number of concurrent connect attempts per host
+     * @param maxConnectsPerHost the maximum number of attempts, 0 for no limit
+     */
+    public void setMaxConnectsPerHost ( final int maxConnectsPerHost )
+    {
+        this.maxConnectsPerHost = maxConnectsPerHost;
+    }
+
+    public int getMaxConnects ()
+    {
+        return this.maxConnects;
+    }
+
+    /**
+     * Limit the number of concurrent connect attempts of all hosts
+     * <p>
+     * Attempts held back by this limit wait until a running attempt completes.
+     * </p>
+     * @param maxConnects the maximum number of attempts, 0 for no limit
+     */
+    public void setMaxConnects ( final int maxConnects )
+    {
+        this.maxConnects = maxConnects;
+    }
+}
@@ -22,6 +22,7 @@ package org.openscada.opc.lib.da;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.CopyOnWriteArrayList;
@@ -32,14 +33,22 @@ import org.jinterop.dcom.core.JIClsid;
 import org.jinterop.dcom.core.JIComServer;
 import org.jinterop.dcom.core.JIProgId;
 import org.jinterop.dcom.core.JISession;
+import org.openscada.opc.dcom.common.KeyedResult;
+import org.openscada.opc.dcom.common.KeyedResultSet;
+import org.openscada.opc.dcom.da.IORequest;
+import org.openscada.opc.dcom.da.OPCITEMVQT;
 import org.openscada.opc.dcom.da.OPCNAMESPACETYPE;
 import org.openscada.opc.dcom.da.OPCSERVERSTATUS;
+import org.openscada.opc.dcom.da.ValueData;
 import org.openscada.opc.dcom.da.impl.OPCBrowseServerAddressSpace;
 import org.openscada.opc.dcom.da.impl.OPCGroupStateMgt;
+import org.openscada.opc.dcom.da.impl.OPCItemIO;
+import org.openscada.opc.dcom.da.impl.OPCItemProperties;
 import org.openscada.opc.dcom.da.impl.OPCServer;
 import org.openscada.opc.lib.common.AlreadyConnectedException;
 import org.openscada.opc.lib.common.ConnectionInformation;
 import org.openscada.opc.lib.common.NotConnectedException;
+import org.openscada.opc.lib.common.SessionDestructor;
 import org.openscada.opc.lib.da.browser.FlatBrowser;
 import org.openscada.opc.lib.da.browser.TreeBrowser;
 import org.slf4j.Logger;
@@ -49,13 +58,17 @@ public class Server
 {
     private static Logger logger = LoggerFactory.getLogger ( Server.class );
 
+    private static final int E_NOINTERFACE = 0x80004002;
+
     private final ConnectionInformation connectionInformation;
 
     private JISession session;
 
     private JIComServer comServer;
 
-    private OPCServer server;
+    private volatile OPCServer server;
+
+    private OPCItemIO itemIO;
 
     private boolean defaultActive = true;
 
@@ -71,10 +84,24 @@ public class Server
 
     private final Map<Integer, Group> groups = new HashMap<Integer, Group> ();
 
+    private final List<ServerChannel> channels = new ArrayList<ServerChannel> ();
+
+    private volatile int channelCount = 1;
+
     private final List<ServerConnectionStateListener> stateListeners = new CopyOnWriteArrayList<ServerConnectionStateListener> ();
 
     private final ScheduledExecutorService scheduler;
 
+    private volatile AdaptiveChunkSizer readChunkSizer;
+
+    private volatile AdaptiveChunkSizer addChunkSizer;
+
+    private volatile Integer socketTimeout;
+
+    private volatile SessionDestructor sessionDestructor;
+
+    private final DataStatistics dataStatistics = new DataStatistics ();
+
     public Server ( final ConnectionInformation connectionInformation, final ScheduledExecutorService scheduler )
     {
         super ();
@@ -93,42 +120,155 @@ public class Server
         return this.scheduler;
     }
 
+    public AdaptiveChunkSizer getReadChunkSizer ()
+    {
+        return this.readChunkSizer;
+    }
+
+    /**
+     * Set the sizer which splits synchronous reads of the groups into chunks
+     * @param readChunkSizer the sizer or <code>null</code> to read all items with one call
+     */
+    public void setReadChunkSizer ( final AdaptiveChunkSizer readChunkSizer )
+    {
+        this.readChunkSizer = readChunkSizer;
+    }
+
+    public AdaptiveChunkSizer getAddChunkSizer ()
+    {
+        return this.addChunkSizer;
+    }
+
+    /**
+     * Set the sizer which splits adding items to the groups into chunks
+     * @param addChunkSizer the sizer or <code>null</code> to add all items with one call
+     */
+    public void setAddChunkSizer ( final AdaptiveChunkSizer addChunkSizer )
+    {
+        this.addChunkSizer = addChunkSizer;
+    }
+
+    /**
+     * Get the counters of the values read, received and written by the groups of the server
+     * @return the statistics
+     */
+    public DataStatistics getDataStatistics ()
+    {
+        return this.dataStatistics;
+    }
+
+    public ConnectionInformation getConnectionInformation ()
+    {
+        return this.connectionInformation;
+    }
+
+    public Integer getSocketTimeout ()
+    {
+        return this.socketTimeout;
+    }
+
+    /**
+     * Set the socket timeout of the DCOM session
+     * <p>
+     * The timeout bounds every blocking call of the connection, including
+     * establishing the connection unless a shorter connect timeout is given
+     * to {@link #connect(int)}. It is applied on the next connect.
+     * </p>
+     * @param socketTimeout the timeout in milliseconds, 0 for no timeout or <code>null</code>
+     * to use the system property <code>rpc.socketTimeout</code>
+     */
+    public void setSocketTimeout ( final Integer socketTimeout )
+    {
+        this.socketTimeout = socketTimeout;
+    }
+
+    /**
+     * Get the destructor which destroys the DCOM session after the connection is closed
+     * @return the destructor of the server or the default destructor if none is set
+     */
+    public SessionDestructor getSessionDestructor ()
+    {
+        final SessionDestructor sessionDestructor = this.sessionDestructor;
+        return sessionDestructor != null ? sessionDestructor : SessionDestructor.getDefault ();
+    }
+
+    /**
+     * Set the destructor which destroys the DCOM session after the connection is closed
+     * @param sessionDestructor the destructor or <code>null</code> to use the default destructor
+     */
+    public void setSessionDestructor ( final SessionDestructor sessionDestructor )
+    {
+        this.sessionDestructor = sessionDestructor;
+    }
+
+    private JISession createSession ()
+    {
+        return JISession.createSession ( this.connectionInformation.getDomain (), this.connectionInformation.getUser (), this.connectionInformation.getPassword () );
+    }
+
     protected synchronized boolean isConnected ()
     {
         return this.session != null;
     }
 
-    public synchronized void connect () throws IllegalArgumentException, UnknownHostException, JIException, AlreadyConnectedException
+    public void connect () throws IllegalArgumentException, UnknownHostException, JIException, AlreadyConnectedException
+    {
+        connect ( 0 );
+    }
+
+    /**
+     * Connect to the server with a timeout for establishing the connection
+     * <p>
+     * A blocking DCOM call cannot be aborted, so the connect timeout is used as socket
+     * timeout of the DCOM sessions until the connection is established. Afterwards the
+     * socket timeout of the server applies. A connect timeout which is longer than
+     * the socket timeout is ignored.
+     * </p>
+     * @param connectTimeout the connect timeout in milliseconds, 0 to use the socket timeout
+     */
+    public synchronized void connect ( final int connectTimeout ) throws IllegalArgumentException, UnknownHostException, JIException, AlreadyConnectedException
     {
         if ( isConnected () )
         {
             throw new AlreadyConnectedException ();
         }
 
-        final int socketTimeout = Integer.getInteger ( "rpc.socketTimeout", 0 );
+        final int socketTimeout = this.socketTimeout != null ? this.socketTimeout : Integer.getInteger ( "rpc.socketTimeout", 0 );
         logger.info ( String.format ( "Socket timeout: %s ", socketTimeout ) );
+        final int timeout = connectTimeout > 0 && ( socketTimeout <= 0 || connectTimeout < socketTimeout ) ? connectTimeout : socketTimeout;
 
         try
         {
-            if ( this.connectionInformation.getClsid () != null )
+            if ( this.connectionInformation.getClsid () == null && this.connectionInformation.getProgId () == null )
             {
-                this.session = JISession.createSession ( this.connectionInformation.getDomain (), this.connectionInformation.getUser (), this.connectionInformation.getPassword () );
-                this.session.setGlobalSocketTimeout ( socketTimeout );
-                this.comServer = new JIComServer ( JIClsid.valueOf ( this.connectionInformation.getClsid () ), this.connectionInformation.getHost (), this.session );
+                throw new IllegalArgumentException ( "Neither clsid nor progid is valid!" );
             }
-            else if ( this.connectionInformation.getProgId () != null )
+
+            this.session = createSession ();
+            this.session.setGlobalSocketTimeout ( timeout );
+            this.comServer = createComServer ( this.session );
+
+            this.server = createOPCServer ( this.comServer );
+            this.errorMessageResolver = new ErrorMessageResolver ( this.server.getCommon (), this.defaultLocaleID );
+            this.channels.add ( new ServerChannel ( this.session, this.comServer, this.server, this.groups ) );
+
+            final int channelCount = this.channelCount;
+            for ( int i = 1; i < channelCount; i++ )
             {
-                this.session = JISession.createSession ( this.connectionInformation.getDomain (), this.connectionInformation.getUser (), this.connectionInformation.getPassword () );
-                this.session.setGlobalSocketTimeout ( socketTimeout );
-                this.comServer = new JIComServer ( JIProgId.valueOf ( this.connectionInformation.getProgId () ), this.connectionInformation.getHost (), this.session );
+                this.channels.add ( openChannel ( timeout ) );
             }
-            else
+            if ( channelCount > 1 )
             {
-                throw new IllegalArgumentException ( "Neither clsid nor progid is valid!" );
+                logger.info ( String.format ( "Opened %s channels", channelCount ) );
             }
 
-            this.server = new OPCServer ( this.comServer.createInstance () );
-            this.errorMessageResolver = new ErrorMessageResolver ( this.server.getCommon (), this.defaultLocaleID );
+            if ( timeout != socketTimeout )
+            {
+                for ( final ServerChannel channel : this.channels )
+                {
+                    channel.getSession ().setGlobalSocketTimeout ( socketTimeout );
+                }
+            }
         }
         catch ( final UnknownHostException e )
         {
@@ -152,6 +292,56 @@ public class Server
         notifyConnectionStateChange ( true );
     }
 
+    private JIComServer createComServer ( final JISession session ) throws IllegalArgumentException, UnknownHostException, JIException
+    {
+        if ( this.connectionInformation.getClsid () != null )
+        {
+            return new JIComServer ( JIClsid.valueOf ( this.connectionInformation.getClsid () ), this.connectionInformation.getHost (), session );
+        }
+        else
+        {
+            return new JIComServer ( JIProgId.valueOf ( this.connectionInformation.getProgId () ), this.connectionInformation.getHost (), session );
+        }
+    }
+
+    /**
+     * Create the OPC server object of a channel
+     * @param comServer the COM server of the channel
+     * @return the OPC server object
+     */
+    OPCServer createOPCServer ( final JIComServer comServer ) throws IllegalArgumentException, UnknownHostException, JIException
+    {
+        return new OPCServer ( comServer.createInstance () );
+    }
+
+    private ServerChannel openChannel ( final int socketTimeout ) throws IllegalArgumentException, UnknownHostException, JIException
+    {
+        final JISession session = createSession ();
+        ServerChannel channel = null;
+        try
+        {
+            session.setGlobalSocketTimeout ( socketTimeout );
+            final JIComServer comServer = createComServer ( session );
+            channel = new ServerChannel ( session, comServer, createOPCServer ( comServer ) );
+            return channel;
+        }
+        finally
+        {
+            if ( channel == null )
+            {
+                destroySession ( session );
+            }
+        }
+    }
+
+    private void destroySession ( final JISession session )
+    {
+        if ( getSessionDestructor ().destroy ( session ) )
+        {
+            logger.info ( "Destroying DCOM session... queued" );
+        }
+    }
+
     /**
      * cleanup after the connection is closed
      */
@@ -159,37 +349,24 @@ public class Server
     {
         logger.info ( "Destroying DCOM session..." );
         final JISession destructSession = this.session;
-        final Thread destructor = new Thread ( new Runnable () {
-
-            @Override
-            public void run ()
+        if ( destructSession != null )
+        {
+            destroySession ( destructSession );
+        }
+        for ( final ServerChannel channel : this.channels )
+        {
+            if ( channel.getSession () != destructSession )
             {
-                final long ts = System.currentTimeMillis ();
-                try
-                {
-                    logger.debug ( "Starting destruction of DCOM session" );
-                    JISession.destroySession ( destructSession );
-                    logger.info ( "Destructed DCOM session" );
-                }
-                catch ( final Throwable e )
-                {
-                    logger.warn ( "Failed to destruct DCOM session", e );
-                }
-                finally
-                {
-                    logger.info ( String.format ( "Session destruction took %s ms", System.currentTimeMillis () - ts ) );
-                }
+                destroySession ( channel.getSession () );
             }
-        }, "UtgardSessionDestructor" );
-        destructor.setName ( "OPCSessionDestructor" );
-        destructor.setDaemon ( true );
-        destructor.start ();
-        logger.info ( "Destroying DCOM session... forked" );
+        }
+        this.channels.clear ();
 
         this.errorMessageResolver = null;
         this.session = null;
         this.comServer = null;
         this.server = null;
+        this.itemIO = null;
 
         this.groups.clear ();
     }
@@ -224,20 +401,67 @@ public class Server
     }
 
     protected synchronized Group getGroup ( final OPCGroupStateMgt groupMgt ) throws JIException, IllegalArgumentException, UnknownHostException
+    {
+        return getGroup ( this.groups, groupMgt );
+    }
+
+    private Group getGroup ( final Map<Integer, Group> groups, final OPCGroupStateMgt groupMgt ) throws JIException, IllegalArgumentException, UnknownHostException
     {
         final Integer serverHandle = groupMgt.getState ().getServerHandle ();
-        if ( this.groups.containsKey ( serverHandle ) )
+        if ( groups.containsKey ( serverHandle ) )
         {
-            return this.groups.get ( serverHandle );
+            return groups.get ( serverHandle );
         }
         else
         {
             final Group group = new Group ( this, serverHandle, groupMgt );
-            this.groups.put ( serverHandle, group );
+            groups.put ( serverHandle, group );
             return group;
         }
     }
 
+    public int getChannelCount ()
+    {
+        return this.channelCount;
+    }
+
+    /**
+     * Set the number of DCOM connections to the server
+     * <p>
+     * Each channel uses its own session and its own instance of the OPC server
+     * object. New groups are added to the channel with the least number of groups,
+     * so that calls of groups on different channels run in parallel. Browsing,
+     * item properties and the server state always use the first channel. The
+     * number is applied on the next connect.
+     * </p>
+     * <p>
+     * Note that the OPC server sees each channel as a separate client.
+     * </p>
+     * @param channelCount the number of channels, at least one
+     */
+    public void setChannelCount ( final int channelCount )
+    {
+        if ( channelCount < 1 )
+        {
+            throw new IllegalArgumentException ( "At least one channel is required" );
+        }
+        this.channelCount = channelCount;
+    }
+
+    /**
+     * Get the number of groups on each channel
+     * @return the number of groups per channel, empty if the server is not connected
+     */
+    public synchronized int[] getChannelGroupCounts ()
+    {
+        final int[] result = new int[this.channels.size ()];
+        for ( int i = 0; i < result.length; i++ )
+        {
+            result[i] = this.channels.get ( i ).getGroups ().size ();
+        }
+        return result;
+    }
+
     /**
      * Add a new named group to the server
      * @param name The name of the group to use. Must be unique or <code>null</code> so that the server creates a unique name.
@@ -248,7 +472,24 @@ public class Server
      * @throws JIException
      * @throws DuplicateGroupException If a group with this name already exists
      */
-    public synchronized Group addGroup ( final String name ) throws NotConnectedException, IllegalArgumentException, UnknownHostException, JIException, DuplicateGroupException
+    public Group addGroup ( final String name ) throws NotConnectedException, IllegalArgumentException, UnknownHostException, JIException, DuplicateGroupException
+    {
+        return addGroup ( name, this.defaultUpdateRate, this.defaultPercentDeadband );
+    }
+
+    /**
+     * Add a new named group to the server using a specific update rate and deadband
+     * @param name The name of the group to use. Must be unique or <code>null</code> so that the server creates a unique name.
+     * @param updateRate The requested update rate in milliseconds
+     * @param percentDeadband The percent deadband of the group or <code>null</code> to use the server default
+     * @return The new group
+     * @throws NotConnectedException If the server is not connected using {@link Server#connect()}
+     * @throws IllegalArgumentException
+     * @throws UnknownHostException
+     * @throws JIException
+     * @throws DuplicateGroupException If a group with this name already exists
+     */
+    public synchronized Group addGroup ( final String name, final int updateRate, final Float percentDeadband ) throws NotConnectedException, IllegalArgumentException, UnknownHostException, JIException, DuplicateGroupException
     {
         if ( !isConnected () )
         {
@@ -257,8 +498,9 @@ public class Server
 
         try
         {
-            final OPCGroupStateMgt groupMgt = this.server.addGroup ( name, this.defaultActive, this.defaultUpdateRate, 0, this.defaultTimeBias, this.defaultPercentDeadband, this.defaultLocaleID );
-            return getGroup ( groupMgt );
+            final ServerChannel channel = ServerChannel.select ( this.channels );
+            final OPCGroupStateMgt groupMgt = channel.getServer ().addGroup ( name, this.defaultActive, updateRate, 0, this.defaultTimeBias, percentDeadband, this.defaultLocaleID );
+            return getGroup ( channel.getGroups (), groupMgt );
         }
         catch ( final JIException e )
         {
@@ -307,21 +549,36 @@ public class Server
             throw new NotConnectedException ();
         }
 
-        try
+        final List<ServerChannel> channels;
+        synchronized ( this )
         {
-            final OPCGroupStateMgt groupMgt = this.server.getGroupByName ( name );
-            return getGroup ( groupMgt );
+            channels = new ArrayList<ServerChannel> ( this.channels );
         }
-        catch ( final JIException e )
+
+        for ( final ServerChannel channel : channels )
         {
-            switch ( e.getErrorCode () )
+            try
             {
-            case 0x80070057:
-                throw new UnknownGroupException ( name );
-            default:
-                throw e;
+                final OPCGroupStateMgt groupMgt = channel.getServer ().getGroupByName ( name );
+                synchronized ( this )
+                {
+                    return getGroup ( channel.getGroups (), groupMgt );
+                }
+            }
+            catch ( final JIException e )
+            {
+                switch ( e.getErrorCode () )
+                {
+                case 0x80070057:
+                    // try the next channel
+                    break;
+                default:
+                    throw e;
+                }
             }
         }
+
+        throw new UnknownGroupException ( name );
     }
 
     public int getDefaultLocaleID ()
@@ -410,6 +667,98 @@ public class Server
         return new TreeBrowser ( browser );
     }
 
+    /**
+     * Get the item properties service
+     * @return The item properties service or <code>null</code> if the functionality is not supported
+     */
+    public OPCItemProperties getItemProperties ()
+    {
+        return this.server.getItemPropertiesService ();
+    }
+
+    private synchronized OPCItemIO getItemIO () throws NotConnectedException, JIException
+    {
+        if ( !isConnected () )
+        {
+            throw new NotConnectedException ();
+        }
+        if ( this.itemIO == null )
+        {
+            this.itemIO = this.server.getItemIOService ();
+            if ( this.itemIO == null )
+            {
+                // IOPCItemIO is only available on OPC DA 3.0 servers
+                throw new JIException ( E_NOINTERFACE, "IOPCItemIO is not supported by the server" );
+            }
+        }
+        return this.itemIO;
+    }
+
+    /**
+     * Read items by their item id without adding them to a group
+     * <p>
+     * All items are read using one <code>IOPCItemIO::Read</code> call. This
+     * requires an OPC DA 3.0 server.
+     * </p>
+     * @param maxAge the maximum age of the values in milliseconds, 0 to read from the device
+     * @param itemIds the item ids
+     * @return the item states by item id, failed items have their error code set
+     * @throws NotConnectedException if the server is not connected
+     * @throws JIException if the call failed or the server does not support IOPCItemIO
+     */
+    public Map<String, ItemState> readItems ( final int maxAge, final String... itemIds ) throws NotConnectedException, JIException
+    {
+        final IORequest[] requests = new IORequest[itemIds.length];
+        for ( int i = 0; i < itemIds.length; i++ )
+        {
+            requests[i] = new IORequest ( itemIds[i], maxAge );
+        }
+
+        final KeyedResultSet<IORequest, ValueData> results = getItemIO ().read ( requests );
+        this.dataStatistics.recordReads ( itemIds.length );
+
+        final Map<String, ItemState> states = new LinkedHashMap<String, ItemState> ( results.size () );
+        for ( final KeyedResult<IORequest, ValueData> result : results )
+        {
+            states.put ( result.getKey ().getItemID (), new ItemState ( result.getErrorCode (), result.getValue () ) );
+        }
+        return states;
+    }
+
+    /**
+     * Write items by their item id without adding them to a group
+     * <p>
+     * All items are written using one <code>IOPCItemIO::WriteVQT</code> call. This
+     * requires an OPC DA 3.0 server.
+     * </p>
+     * @param values the values, and optionally qualities and timestamps, by item id
+     * @return the error codes by item id
+     * @throws NotConnectedException if the server is not connected
+     * @throws JIException if the call failed or the server does not support IOPCItemIO
+     */
+    public Map<String, Integer> writeItems ( final Map<String, OPCITEMVQT> values ) throws NotConnectedException, JIException
+    {
+        final String[] itemIds = new String[values.size ()];
+        final OPCITEMVQT[] vqts = new OPCITEMVQT[values.size ()];
+        int i = 0;
+        for ( final Map.Entry<String, OPCITEMVQT> entry : values.entrySet () )
+        {
+            itemIds[i] = entry.getKey ();
+            vqts[i] = entry.getValue ();
+            i++;
+        }
+
+        final KeyedResultSet<String, OPCITEMVQT> results = getItemIO ().writeVQT ( itemIds, vqts );
+        this.dataStatistics.recordWrites ( itemIds.length );
+
+        final Map<String, Integer> errorCodes = new LinkedHashMap<String, Integer> ( results.size () );
+        for ( final KeyedResult<String, OPCITEMVQT> result : results )
+        {
+            errorCodes.put ( result.getKey (), result.getErrorCode () );
+        }
+        return errorCodes;
+    }
+
     public synchronized String getErrorMessage ( final int errorCode )
     {
         if ( this.errorMessageResolver == null )
@@ -452,7 +801,26 @@ public class Server
 
     public OPCSERVERSTATUS getServerState ( final int timeout ) throws Throwable
     {
-        return new ServerStateOperation ( this.server ).getServerState ( timeout );
+        return new ServerStateOperation ( getOPCServer () ).getServerState ( timeout );
+    }
+
+    OPCServer getOPCServer ()
+    {
+        return this.server;
+    }
+
+    /**
+     * Get the OPC server objects of all channels
+     * @return the server objects, empty if the server is not connected
+     */
+    synchronized List<OPCServer> getOPCServers ()
+    {
+        final List<OPCServer> servers = new ArrayList<OPCServer> ( this.channels.size () );
+        for ( final ServerChannel channel : this.channels )
+        {
+            servers.add ( channel.getServer () );
+        }
+        return servers;
     }
 
     public OPCSERVERSTATUS getServerState ()
@@ -471,10 +839,29 @@ public class Server
 
     public void removeGroup ( final Group group, final boolean force ) throws JIException
     {
-        if ( this.groups.containsKey ( group.getServerHandle () ) )
+        final ServerChannel channel = findChannel ( group );
+        if ( channel != null )
         {
-            this.server.removeGroup ( group.getServerHandle (), force );
-            this.groups.remove ( group.getServerHandle () );
+            channel.getServer ().removeGroup ( group.getServerHandle (), force );
+            synchronized ( this )
+            {
+                if ( channel.getGroups ().get ( group.getServerHandle () ) == group )
+                {
+                    channel.getGroups ().remove ( group.getServerHandle () );
+                }
+            }
+        }
+    }
+
+    private synchronized ServerChannel findChannel ( final Group group )
+    {
+        for ( final ServerChannel channel : this.channels )
+        {
+            if ( channel.getGroups ().get ( group.getServerHandle () ) == group )
+            {
+                return channel;
+            }
         }
+        return null;
     }
 }
@@ -0,0 +1,98 @@
+/*
+ * This file is part of the OpenSCADA project
+ * Copyright (C) 2006-2011 TH4 SYSTEMS GmbH (http://th4-systems.com)
+ *
+ * OpenSCADA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License version 3
+ * only, as published by the Free Software Foundation.
+ *
+ * OpenSCADA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License version 3 for more details
+ * (a copy is included in the LICENSE file that accompanied this code).
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * version 3 along with OpenSCADA. If not, see
+ * <http://opensource.org/licenses/lgpl-3.0.html> for a copy of the LGPLv3 License.
+ */
+
+package org.openscada.opc.lib.da;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.jinterop.dcom.core.JIComServer;
+import org.jinterop.dcom.core.JISession;
+import org.openscada.opc.dcom.da.impl.OPCServer;
+
+/**
+ * One DCOM connection of a {@link Server}
+ * <p>
+ * Each channel has its own session and its own instance of the OPC server
+ * object, so calls on different channels do not wait for each other. The
+ * groups are tracked per channel since the server handles of two instances
+ * may collide.
+ * </p>
+ */
+class ServerChannel
+{
+    private final JISession session;
+
+    private final JIComServer comServer;
+
+    private final OPCServer server;
+
+    private final Map<Integer, Group> groups;
+
+    public ServerChannel ( final JISession session, final JIComServer comServer, final OPCServer server )
+    {
+        this ( session, comServer, server, new HashMap<Integer, Group> () );
+    }
+
+    public ServerChannel ( final JISession session, final JIComServer comServer, final OPCServer server, final Map<Integer, Group> groups )
+    {
+        this.session = session;
+        this.comServer = comServer;
+        this.server = server;
+        this.groups = groups;
+    }
+
+    public JISession getSession ()
+    {
+        return this.session;
+    }
+
+    public JIComServer getComServer ()
+    {
+        return this.comServer;
+    }
+
+    public OPCServer getServer ()
+    {
+        return this.server;
+    }
+
+    public Map<Integer, Group> getGroups ()
+    {
+        return this.groups;
+    }
+
+    /**
+     * Select the channel with the least number of groups
+     * @param channels the channels to choose from
+     * @return the selected channel or <code>null</code> if there are no channels
+     */
+    public static ServerChannel select ( final Iterable<ServerChannel> channels )
+    {
+        ServerChannel selected = null;
+        for ( final ServerChannel channel : channels )
+        {
+            if ( selected == null || channel.groups.size () < selected.groups.size () )
+            {
+                selected = channel;
+            }
+        }
+        return selected;
+    }
+}
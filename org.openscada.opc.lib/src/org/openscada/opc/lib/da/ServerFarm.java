@@ -0,0 +1,572 @@
+/*
+ * This file is part of the OpenSCADA project
+ * Copyright (C) 2006-2011 TH4 SYSTEMS GmbH (http://th4-systems.com)
+ *
+ * OpenSCADA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License version 3
+ * only, as published by the Free Software Foundation.
+ *
+ * OpenSCADA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License version 3 for more details
+ * (a copy is included in the LICENSE file that accompanied this code).
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * version 3 along with OpenSCADA. If not, see
+ * <http://opensource.org/licenses/lgpl-3.0.html> for a copy of the LGPLv3 License.
+ */
+
+package org.openscada.opc.lib.da;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.openscada.opc.lib.common.ConnectionInformation;
+import org.openscada.opc.lib.common.DaemonThreadFactory;
+import org.openscada.opc.lib.common.SessionDestructor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Manages a large number of server connections using shared resources
+ * <p>
+ * All servers of the farm share one scheduler, one {@link ReconnectPolicy},
+ * one pool running the state checks and one {@link SessionDestructor}. Each
+ * server gets an {@link AutoReconnectController} and a {@link ServerStateReader}.
+ * The connect attempts run on a pool of their own with one thread for each of
+ * the configured number of concurrent attempts, so that blocking connects do
+ * not delay the state checks. Attempts exceeding that number wait until a running
+ * attempt completes. Each attempt is bounded by the connect timeout.
+ * </p>
+ * <p>
+ * The number of threads created by the farm does not depend on the number of
+ * servers. Threads created by the DCOM library for each session are not
+ * covered by this.
+ * </p>
+ */
+public class ServerFarm
+{
+    private static Logger logger = LoggerFactory.getLogger ( ServerFarm.class );
+
+    private static class Member
+    {
+        private final Server server;
+
+        private final AutoReconnectController controller;
+
+        private final ServerStateReader stateReader;
+
+        public Member ( final Server server, final AutoReconnectController controller, final ServerStateReader stateReader )
+        {
+            this.server = server;
+            this.controller = controller;
+            this.stateReader = stateReader;
+        }
+
+        public void start ()
+        {
+            this.controller.connect ();
+            this.stateReader.start ();
+        }
+
+        public void stop ()
+        {
+            this.stateReader.stop ();
+            this.controller.disconnect ();
+        }
+    }
+
+    private final ScheduledExecutorService scheduler;
+
+    private final ThreadPoolExecutor stateExecutor;
+
+    private final ThreadPoolExecutor connectExecutor;
+
+    private final ReconnectPolicy policy;
+
+    private final SessionDestructor sessionDestructor;
+
+    private final Map<Server, Member> members = new LinkedHashMap<Server, Member> ();
+
+    private boolean started = false;
+
+    private volatile long stateInterval = 1000;
+
+    private volatile int stateTimeout = 2500;
+
+    public ServerFarm ()
+    {
+        this ( 4, 4, 8 );
+    }
+
+    /**
+     * Create a new farm
+     * @param schedulerThreads the number of threads of the scheduler
+     * @param stateThreads the number of threads reading the server states
+     * @param maxConnects the maximum number of concurrent connect attempts
+     */
+    public ServerFarm ( final int schedulerThreads, final int stateThreads, final int maxConnects )
+    {
+        if ( schedulerThreads <= 0 || stateThreads <= 0 || maxConnects <= 0 )
+        {
+            throw new IllegalArgumentException ( "Number of threads and connect attempts must be positive" );
+        }
+
+        this.scheduler = Executors.newScheduledThreadPool ( schedulerThreads, new DaemonThreadFactory ( "UtgardFarmScheduler-" ) );
+
+        this.stateExecutor = new ThreadPoolExecutor ( stateThreads, stateThreads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable> (), new DaemonThreadFactory ( "UtgardFarmServerState-" ) );
+        this.stateExecutor.allowCoreThreadTimeOut ( true );
+
+        // attempts are only submitted once they got one of the slots, so no attempt waits in the queue
+        this.connectExecutor = new ThreadPoolExecutor ( maxConnects, maxConnects, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable> (), new DaemonThreadFactory ( "UtgardFarmConnect-" ) );
+        this.connectExecutor.allowCoreThreadTimeOut ( true );
+
+        this.policy = new ReconnectPolicy ( this.scheduler, 1000, 60000 );
+        this.policy.setMaxConnects ( maxConnects );
+        this.policy.setConnectExecutor ( this.connectExecutor );
+        // a connect to an unreachable host must not hold its slot for the whole socket timeout
+        this.policy.setConnectTimeout ( ReconnectPolicy.DEFAULT_CONNECT_TIMEOUT );
+
+        this.sessionDestructor = new SessionDestructor ( 2, 1000, 30000 );
+    }
+
+    /**
+     * Add a server to the farm
+     * <p>
+     * If the farm is already started the server gets connected right away.
+     * </p>
+     * @param connectionInformation the connection information of the server
+     * @return the new server
+     */
+    public Server addServer ( final ConnectionInformation connectionInformation )
+    {
+        final Server server = new Server ( connectionInformation, this.scheduler );
+        server.setSessionDestructor ( this.sessionDestructor );
+
+        final AutoReconnectController controller = new AutoReconnectController ( server, this.policy );
+        final ServerStateReader stateReader = new ServerStateReader ( server, this.scheduler, this.stateExecutor, this.stateInterval );
+        stateReader.setTimeout ( this.stateTimeout );
+
+        final Member member = new Member ( server, controller, stateReader );
+
+        final boolean start;
+        synchronized ( this )
+        {
+            this.members.put ( server, member );
+            start = this.started;
+        }
+
+        if ( start )
+        {
+            member.start ();
+        }
+        return server;
+    }
+
+    /**
+     * Disconnect a server and remove it from the farm
+     * @param server the server to remove
+     * @return <code>true</code> if the server was part of the farm
+     */
+    public boolean removeServer ( final Server server )
+    {
+        final Member member;
+        final boolean stop;
+        synchronized ( this )
+        {
+            member = this.members.remove ( server );
+            stop = this.started;
+        }
+
+        if ( member == null )
+        {
+            return false;
+        }
+
+        if ( stop )
+        {
+            member.stop ();
+        }
+        server.removeStateListener ( member.controller );
+        return true;
+    }
+
+    /**
+     * Start connecting all servers of the farm
+     * <p>
+     * The connect attempts are started in parallel, limited by the maximum
+     * number of concurrent connect attempts.
+     * </p>
+     */
+    public void start ()
+    {
+        final List<Member> members;
+        synchronized ( this )
+        {
+            if ( this.started )
+            {
+                return;
+            }
+            this.started = true;
+            members = new ArrayList<Member> ( this.members.values () );
+        }
+
+        logger.info ( String.format ( "Starting %s servers", members.size () ) );
+
+        for ( final Member member : members )
+        {
+            member.start ();
+        }
+    }
+
+    /**
+     * Disconnect all servers of the farm
+     */
+    public void stop ()
+    {
+        final List<Member> members;
+        synchronized ( this )
+        {
+            if ( !this.started )
+            {
+                return;
+            }
+            this.started = false;
+            members = new ArrayList<Member> ( this.members.values () );
+        }
+
+        logger.info ( String.format ( "Stopping %s servers", members.size () ) );
+
+        for ( final Member member : members )
+        {
+            member.stop ();
+        }
+    }
+
+    /**
+     * Stop the farm and release its threads
+     * <p>
+     * Sessions which are still queued for destruction are destroyed before
+     * the destruction threads terminate.
+     * </p>
+     */
+    public void dispose ()
+    {
+        stop ();
+
+        this.scheduler.shutdown ();
+        this.stateExecutor.shutdown ();
+        this.connectExecutor.shutdown ();
+        this.sessionDestructor.dispose ();
+    }
+
+    public synchronized List<Server> getServers ()
+    {
+        return new ArrayList<Server> ( this.members.keySet () );
+    }
+
+    public synchronized AutoReconnectController getController ( final Server server )
+    {
+        final Member member = this.members.get ( server );
+        return member == null ? null : member.controller;
+    }
+
+    public synchronized ServerStateReader getStateReader ( final Server server )
+    {
+        final Member member = this.members.get ( server );
+        return member == null ? null : member.stateReader;
+    }
+
+    /**
+     * Get the data path counters of the servers of the farm
+     * @return the counters by server
+     */
+    public synchronized Map<Server, DataStatistics> getDataStatistics ()
+    {
+        final Map<Server, DataStatistics> result = new LinkedHashMap<Server, DataStatistics> ();
+        for ( final Server server : this.members.keySet () )
+        {
+            result.put ( server, server.getDataStatistics () );
+        }
+        return result;
+    }
+
+    private synchronized List<Member> getMembers ()
+    {
+        return new ArrayList<Member> ( this.members.values () );
+    }
+
+    public ScheduledExecutorService getScheduler ()
+    {
+        return this.scheduler;
+    }
+
+    public ReconnectPolicy getReconnectPolicy ()
+    {
+        return this.policy;
+    }
+
+    public SessionDestructor getSessionDestructor ()
+    {
+        return this.sessionDestructor;
+    }
+
+    public long getStateInterval ()
+    {
+        return this.stateInterval;
+    }
+
+    /**
+     * Set the interval of the server state checks for servers added afterwards
+     * @param stateInterval the interval in milliseconds
+     */
+    public void setStateInterval ( final long stateInterval )
+    {
+        if ( stateInterval <= 0 )
+        {
+            throw new IllegalArgumentException ( "Interval must be positive" );
+        }
+        this.stateInterval = stateInterval;
+    }
+
+    public int getStateTimeout ()
+    {
+        return this.stateTimeout;
+    }
+
+    /**
+     * Set the timeout of the server state checks for servers added afterwards
+     * @param stateTimeout the timeout in milliseconds
+     */
+    public void setStateTimeout ( final int stateTimeout )
+    {
+        if ( stateTimeout <= 0 )
+        {
+            throw new IllegalArgumentException ( "Timeout must be positive" );
+        }
+        this.stateTimeout = stateTimeout;
+    }
+
+    public int getServerCount ()
+    {
+        return getMembers ().size ();
+    }
+
+    /**
+     * Get the number of servers in each connection state
+     * @return the number of servers per state
+     */
+    public Map<AutoReconnectState, Integer> getStateCounts ()
+    {
+        final Map<AutoReconnectState, Integer> result = new EnumMap<AutoReconnectState, Integer> ( AutoReconnectState.class );
+        for ( final AutoReconnectState state : AutoReconnectState.values () )
+        {
+            result.put ( state, 0 );
+        }
+        for ( final Member member : getMembers () )
+        {
+            final AutoReconnectState state = member.controller.getState ();
+            result.put ( state, result.get ( state ) + 1 );
+        }
+        return result;
+    }
+
+    public int getConnectedCount ()
+    {
+        return getStateCounts ().get ( AutoReconnectState.CONNECTED );
+    }
+
+    /**
+     * Get the number of connect attempts of all servers
+     * @return the number of connect attempts
+     */
+    public long getConnectAttempts ()
+    {
+        long result = 0;
+        for ( final Member member : getMembers () )
+        {
+            result += member.controller.getAttempts ();
+        }
+        return result;
+    }
+
+    /**
+     * Get the number of failed connect attempts of all servers
+     * @return the number of failed connect attempts
+     */
+    public long getFailedConnectAttempts ()
+    {
+        long result = 0;
+        for ( final Member member : getMembers () )
+        {
+            result += member.controller.getFailedAttempts ();
+        }
+        return result;
+    }
+
+    /**
+     * Get the number of connect attempts which are currently running
+     * @return the number of running connect attempts
+     */
+    public int getActiveConnects ()
+    {
+        return this.policy.getActiveConnects ();
+    }
+
+    /**
+     * Get the sum of the downtimes of all servers, including the current downtimes
+     * @return the downtime in milliseconds
+     */
+    public long getTotalDowntime ()
+    {
+        long result = 0;
+        for ( final Member member : getMembers () )
+        {
+            result += member.controller.getTotalDowntime () + member.controller.getCurrentDowntime ();
+        }
+        return result;
+    }
+
+    /**
+     * Get the number of successful server state checks of all servers
+     * @return the number of successful checks
+     */
+    public long getStateChecks ()
+    {
+        long result = 0;
+        for ( final Member member : getMembers () )
+        {
+            result += member.stateReader.getStatistics ().getCycles ();
+        }
+        return result;
+    }
+
+    /**
+     * Get the number of failed server state checks of all servers, including the timed out checks
+     * @return the number of failed checks
+     */
+    public long getFailedStateChecks ()
+    {
+        long result = 0;
+        for ( final Member member : getMembers () )
+        {
+            result += member.stateReader.getStatistics ().getFailedCycles ();
+        }
+        return result;
+    }
+
+    /**
+     * Get the number of timed out server state checks of all servers
+     * @return the number of timed out checks
+     */
+    public long getStateCheckTimeouts ()
+    {
+        long result = 0;
+        for ( final Member member : getMembers () )
+        {
+            result += member.stateReader.getTimeouts ();
+        }
+        return result;
+    }
+
+    /**
+     * Get the average latency of the successful server state checks of all servers
+     * @return the average latency in milliseconds
+     */
+    public double getAverageStateLatency ()
+    {
+        long cycles = 0;
+        double total = 0;
+        for ( final Member member : getMembers () )
+        {
+            final PollingStatistics statistics = member.stateReader.getStatistics ();
+            final long memberCycles = statistics.getCycles ();
+            cycles += memberCycles;
+            total += statistics.getAverageDuration () * memberCycles;
+        }
+        return cycles == 0 ? 0.0 : total / cycles;
+    }
+
+    /**
+     * Get the maximum latency of the server state checks of all servers
+     * @return the maximum latency in milliseconds
+     */
+    public long getMaxStateLatency ()
+    {
+        long result = 0;
+        for ( final Member member : getMembers () )
+        {
+            result = Math.max ( result, member.stateReader.getStatistics ().getMaxDuration () );
+        }
+        return result;
+    }
+
+    /**
+     * Get the number of item values read from all servers
+     * @return the number of values read
+     */
+    public long getReads ()
+    {
+        long result = 0;
+        for ( final Member member : getMembers () )
+        {
+            result += member.server.getDataStatistics ().getReads ();
+        }
+        return result;
+    }
+
+    /**
+     * Get the number of item values received by the data callbacks of all servers
+     * @return the number of values received
+     */
+    public long getUpdates ()
+    {
+        long result = 0;
+        for ( final Member member : getMembers () )
+        {
+            result += member.server.getDataStatistics ().getUpdates ();
+        }
+        return result;
+    }
+
+    /**
+     * Get the number of item values written to all servers
+     * @return the number of values written
+     */
+    public long getWrites ()
+    {
+        long result = 0;
+        for ( final Member member : getMembers () )
+        {
+            result += member.server.getDataStatistics ().getWrites ();
+        }
+        return result;
+    }
+
+    /**
+     * Get the number of server state checks which are queued or running
+     * @return the number of pending checks
+     */
+    public int getPendingStateChecks ()
+    {
+        return this.stateExecutor.getQueue ().size () + this.stateExecutor.getActiveCount ();
+    }
+
+    /**
+     * Get the number of sessions which are queued or being destroyed
+     * @return the number of pending destructions
+     */
+    public int getPendingDestructions ()
+    {
+        return this.sessionDestructor.getPending ();
+    }
+}
@@ -19,13 +19,30 @@
 
 package org.openscada.opc.lib.da;
 
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
 import org.openscada.opc.dcom.da.OPCSERVERSTATUS;
 import org.openscada.opc.dcom.da.impl.OPCServer;
+import org.openscada.opc.lib.common.DaemonThreadFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * A server state operation which can be interruped
+ * <p>
+ * The operation is executed on a bounded thread pool which is shared by all
+ * operations created without an explicit executor. Threads of the default
+ * pool are only created on demand and terminate after one minute of idle time,
+ * so that periodic state checks do not create new threads. The queue of the
+ * default pool is bounded as well, operations exceeding it are rejected with a
+ * {@link java.util.concurrent.RejectedExecutionException}.
+ * </p>
  * @author Jens Reimann
  *
  */
@@ -33,6 +50,36 @@ public class ServerStateOperation implements Runnable
 {
     private static Logger _log = LoggerFactory.getLogger ( ServerStateOperation.class );
 
+    private static ExecutorService defaultExecutor;
+
+    /**
+     * Get the executor used by operations which were created without an executor
+     * @return the default executor
+     */
+    public static synchronized ExecutorService getDefaultExecutor ()
+    {
+        if ( defaultExecutor == null )
+        {
+            final int threads = Math.max ( 4, Runtime.getRuntime ().availableProcessors () );
+            final ThreadPoolExecutor executor = new ThreadPoolExecutor ( threads, threads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable> ( 1000 ), new DaemonThreadFactory ( "OPCServerStateReader-" ) );
+            executor.allowCoreThreadTimeOut ( true );
+            defaultExecutor = executor;
+        }
+        return defaultExecutor;
+    }
+
+    /**
+     * Replace the default executor
+     * <p>
+     * The previous executor is not shut down.
+     * </p>
+     * @param executor the new default executor
+     */
+    public static synchronized void setDefaultExecutor ( final ExecutorService executor )
+    {
+        defaultExecutor = executor;
+    }
+
     public OPCSERVERSTATUS _serverStatus = null;
 
     public OPCServer _server;
@@ -43,10 +90,23 @@ public class ServerStateOperation implements Runnable
 
     public boolean _running = false;
 
+    private final ExecutorService _executor;
+
     public ServerStateOperation ( final OPCServer server )
+    {
+        this ( server, getDefaultExecutor () );
+    }
+
+    /**
+     * Create a new state operation
+     * @param server the server to query
+     * @param executor the executor running the call to the server
+     */
+    public ServerStateOperation ( final OPCServer server, final ExecutorService executor )
     {
         super ();
         this._server = server;
+        this._executor = executor;
     }
 
     /**
@@ -98,18 +158,16 @@ public class ServerStateOperation implements Runnable
             return null;
         }
 
-        Thread t = new Thread ( this, "OPCServerStateReader" );
-
-        synchronized ( this._lock )
+        final Future<?> future = this._executor.submit ( this );
+        try
         {
-            t.start ();
-            this._lock.wait ( timeout );
-            if ( this._running )
-            {
-                _log.warn ( "State operation still running. Interrupting..." );
-                t.interrupt ();
-                throw new InterruptedException ( "Interrupted getting server state" );
-            }
+            future.get ( timeout, TimeUnit.MILLISECONDS );
+        }
+        catch ( final TimeoutException e )
+        {
+            _log.warn ( "State operation still running. Interrupting..." );
+            future.cancel ( true );
+            throw new InterruptedException ( "Interrupted getting server state" );
         }
         if ( this._error != null )
         {
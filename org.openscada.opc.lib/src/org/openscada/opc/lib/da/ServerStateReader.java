@@ -22,14 +22,37 @@ package org.openscada.opc.lib.da;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.openscada.opc.dcom.da.OPCSERVERSTATUS;
+import org.openscada.opc.dcom.da.impl.OPCServer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * Periodically reads the state of a server
+ * <p>
+ * The scheduler only triggers the checks. The call to the server is executed
+ * on the executor of the reader, which defaults to
+ * {@link ServerStateOperation#getDefaultExecutor()}, and is cancelled by the
+ * scheduler if it does not complete within the timeout. A check reads the state
+ * of every channel of the server (see {@link Server#setChannelCount(int)}) one
+ * after the other and reports the state of the first channel. A failure of any
+ * channel or a timed out check disposes the server and reports a <code>null</code>
+ * state to the listeners.
+ * </p>
+ * <p>
+ * A check is skipped while the previous one is still running. This includes a
+ * timed out check, since the interrupt cannot abort a call blocked on the socket.
+ * So at most one thread of the executor is occupied by each reader.
+ * </p>
+ */
 public class ServerStateReader
 {
     private static Logger _log = LoggerFactory.getLogger ( ServerStateReader.class );
@@ -42,6 +65,20 @@ public class ServerStateReader
 
     private ScheduledFuture<?> _job = null;
 
+    private volatile ExecutorService _executor = ServerStateOperation.getDefaultExecutor ();
+
+    private volatile long _interval = 1000;
+
+    private volatile int _timeout = 2500;
+
+    private FutureTask<?> _pending;
+
+    private ScheduledFuture<?> _pendingTimeout;
+
+    private final PollingStatistics _statistics = new PollingStatistics ();
+
+    private final AtomicLong _timeouts = new AtomicLong ();
+
     public ServerStateReader ( final Server server )
     {
         super ();
@@ -62,6 +99,20 @@ public class ServerStateReader
         this._scheduler = scheduler;
     }
 
+    /**
+     * Create a new server state reader
+     * @param server the server to check
+     * @param scheduler the scheduler triggering the checks and the timeouts
+     * @param executor the executor running the calls to the server
+     * @param interval the interval between two checks in milliseconds
+     */
+    public ServerStateReader ( final Server server, final ScheduledExecutorService scheduler, final ExecutorService executor, final long interval )
+    {
+        this ( server, scheduler );
+        setExecutor ( executor );
+        setInterval ( interval );
+    }
+
     public synchronized void start ()
     {
         if ( this._job != null )
@@ -75,7 +126,7 @@ public class ServerStateReader
             {
                 once ();
             }
-        }, 1000, 1000, TimeUnit.MILLISECONDS );
+        }, this._interval, this._interval, TimeUnit.MILLISECONDS );
     }
 
     public synchronized void stop ()
@@ -86,10 +137,159 @@ public class ServerStateReader
 
     protected void once ()
     {
-        _log.debug ( "Reading server state" );
+        final List<OPCServer> servers = this._server.getOPCServers ();
+        if ( servers.isEmpty () )
+        {
+            _log.debug ( "No connection to server. Skipping..." );
+            notifyListeners ( null );
+            return;
+        }
+
+        _log.debug ( String.format ( "Reading server state of %s channels", servers.size () ) );
+
+        final List<ServerStateOperation> operations = new ArrayList<ServerStateOperation> ( servers.size () );
+        for ( final OPCServer server : servers )
+        {
+            operations.add ( new ServerStateOperation ( server ) );
+        }
+        final Runnable probe = new Runnable () {
+
+            public void run ()
+            {
+                for ( final ServerStateOperation operation : operations )
+                {
+                    operation.run ();
+                    if ( operation._error != null )
+                    {
+                        return;
+                    }
+                }
+            }
+        };
+        final long start = System.nanoTime ();
+        final FutureTask<Object> task = new FutureTask<Object> ( probe, null ) {
+
+            @Override
+            public void run ()
+            {
+                try
+                {
+                    super.run ();
+                }
+                finally
+                {
+                    // a cancelled task completes when the call to the server returns
+                    completed ( this, operations, start );
+                }
+            }
+        };
+
+        synchronized ( this )
+        {
+            if ( this._pending != null )
+            {
+                _log.debug ( "Previous state check still running. Skipping..." );
+                this._statistics.recordOverrun ( 1 );
+                return;
+            }
+            this._pending = task;
+        }
+
+        try
+        {
+            this._executor.execute ( task );
+        }
+        catch ( final RejectedExecutionException e )
+        {
+            _log.warn ( "State check rejected. Skipping...", e );
+            synchronized ( this )
+            {
+                this._pending = null;
+            }
+            this._statistics.recordOverrun ( 1 );
+            return;
+        }
+
+        final ScheduledFuture<?> timeout = this._scheduler.schedule ( new Runnable () {
+
+            public void run ()
+            {
+                if ( task.cancel ( true ) )
+                {
+                    timedOut ();
+                }
+            }
+        }, this._timeout, TimeUnit.MILLISECONDS );
+
+        synchronized ( this )
+        {
+            if ( this._pending == task )
+            {
+                this._pendingTimeout = timeout;
+                return;
+            }
+        }
+        timeout.cancel ( false );
+    }
+
+    private void timedOut ()
+    {
+        _log.warn ( String.format ( "State check did not complete within %s ms", this._timeout ) );
+
+        this._timeouts.incrementAndGet ();
+        this._statistics.recordFailure ();
+        _log.info ( "Server connection failed: state check timed out" );
+        this._server.dispose ();
+
+        notifyListeners ( null );
+    }
+
+    private void completed ( final FutureTask<?> task, final List<ServerStateOperation> operations, final long start )
+    {
+        synchronized ( this )
+        {
+            if ( this._pending != task )
+            {
+                return;
+            }
+            this._pending = null;
+            if ( this._pendingTimeout != null )
+            {
+                this._pendingTimeout.cancel ( false );
+                this._pendingTimeout = null;
+            }
+        }
+
+        if ( task.isCancelled () )
+        {
+            // already reported by the timeout
+            return;
+        }
+
+        Throwable error = null;
+        for ( int i = 0; i < operations.size () && error == null; i++ )
+        {
+            error = operations.get ( i )._error;
+        }
+
+        OPCSERVERSTATUS state = null;
+        if ( error != null )
+        {
+            this._statistics.recordFailure ();
+            _log.info ( "Server connection failed", error );
+            this._server.dispose ();
+        }
+        else
+        {
+            this._statistics.recordCycle ( System.nanoTime () - start );
+            state = operations.get ( 0 )._serverStatus;
+        }
 
-        final OPCSERVERSTATUS state = this._server.getServerState ();
+        notifyListeners ( state );
+    }
 
+    private void notifyListeners ( final OPCSERVERSTATUS state )
+    {
         for ( final ServerStateListener listener : new ArrayList<ServerStateListener> ( this._listeners ) )
         {
             listener.stateUpdate ( state );
@@ -105,4 +305,79 @@ public class ServerStateReader
     {
         this._listeners.remove ( listener );
     }
+
+    public ExecutorService getExecutor ()
+    {
+        return this._executor;
+    }
+
+    /**
+     * Set the executor running the calls to the server
+     * @param executor the executor, <code>null</code> selects the default executor
+     */
+    public void setExecutor ( final ExecutorService executor )
+    {
+        this._executor = executor != null ? executor : ServerStateOperation.getDefaultExecutor ();
+    }
+
+    public long getInterval ()
+    {
+        return this._interval;
+    }
+
+    /**
+     * Set the interval between two state checks
+     * <p>
+     * The new interval is used the next time the reader is started.
+     * </p>
+     * @param interval the interval in milliseconds
+     */
+    public void setInterval ( final long interval )
+    {
+        if ( interval <= 0 )
+        {
+            throw new IllegalArgumentException ( "Interval must be positive" );
+        }
+        this._interval = interval;
+    }
+
+    public int getTimeout ()
+    {
+        return this._timeout;
+    }
+
+    /**
+     * Set the time after which a running state check is cancelled
+     * @param timeout the timeout in milliseconds
+     */
+    public void setTimeout ( final int timeout )
+    {
+        if ( timeout <= 0 )
+        {
+            throw new IllegalArgumentException ( "Timeout must be positive" );
+        }
+        this._timeout = timeout;
+    }
+
+    /**
+     * Get the statistics of the state checks
+     * <p>
+     * Each successful check is recorded as a cycle with its latency, failed and
+     * timed out checks as failures and skipped checks as overruns.
+     * </p>
+     * @return the statistics
+     */
+    public PollingStatistics getStatistics ()
+    {
+        return this._statistics;
+    }
+
+    /**
+     * Get the number of state checks which were cancelled by the timeout
+     * @return the number of timed out checks
+     */
+    public long getTimeouts ()
+    {
+        return this._timeouts.get ();
+    }
 }
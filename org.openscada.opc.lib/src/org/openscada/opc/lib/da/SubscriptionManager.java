@@ -0,0 +1,358 @@
+/*
+ * This file is part of the OpenSCADA project
+ * Copyright (C) 2006-2011 TH4 SYSTEMS GmbH (http://th4-systems.com)
+ *
+ * OpenSCADA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License version 3
+ * only, as published by the Free Software Foundation.
+ *
+ * OpenSCADA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License version 3 for more details
+ * (a copy is included in the LICENSE file that accompanied this code).
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * version 3 along with OpenSCADA. If not, see
+ * <http://opensource.org/licenses/lgpl-3.0.html> for a copy of the LGPLv3 License.
+ */
+
+package org.openscada.opc.lib.da;
+
+import java.net.UnknownHostException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.jinterop.dcom.common.JIException;
+import org.openscada.opc.lib.common.NotConnectedException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Manages subscriptions of items with individual update rates and deadbands
+ * <p>
+ * The items are partitioned into one {@link Async20Access}, and so one OPC group,
+ * per combination of update rate and percent deadband. Accesses are created
+ * when the first item of a combination is subscribed and removed when the last
+ * item is unsubscribed. Subscribing an item again with different parameters moves
+ * it to the matching access.
+ * </p>
+ */
+public class SubscriptionManager
+{
+    private static Logger logger = LoggerFactory.getLogger ( SubscriptionManager.class );
+
+    /**
+     * The update rate and deadband of a group of subscriptions
+     */
+    public static final class SubscriptionKey
+    {
+        private final int updateRate;
+
+        private final Float percentDeadband;
+
+        public SubscriptionKey ( final int updateRate, final Float percentDeadband )
+        {
+            this.updateRate = updateRate;
+            this.percentDeadband = percentDeadband;
+        }
+
+        public int getUpdateRate ()
+        {
+            return this.updateRate;
+        }
+
+        public Float getPercentDeadband ()
+        {
+            return this.percentDeadband;
+        }
+
+        @Override
+        public int hashCode ()
+        {
+            final int PRIME = 31;
+            int result = 1;
+            result = PRIME * result + this.updateRate;
+            result = PRIME * result + ( this.percentDeadband == null ? 0 : this.percentDeadband.hashCode () );
+            return result;
+        }
+
+        @Override
+        public boolean equals ( final Object obj )
+        {
+            if ( this == obj )
+            {
+                return true;
+            }
+            if ( obj == null )
+            {
+                return false;
+            }
+            if ( getClass () != obj.getClass () )
+            {
+                return false;
+            }
+            final SubscriptionKey other = (SubscriptionKey)obj;
+            if ( this.updateRate != other.updateRate )
+            {
+                return false;
+            }
+            if ( this.percentDeadband == null )
+            {
+                return other.percentDeadband == null;
+            }
+            return this.percentDeadband.equals ( other.percentDeadband );
+        }
+
+        @Override
+        public String toString ()
+        {
+            return String.format ( "%s ms/%s %%", this.updateRate, this.percentDeadband );
+        }
+    }
+
+    private final Server server;
+
+    private final boolean initialRefresh;
+
+    private final Map<SubscriptionKey, AccessBase> accesses = new HashMap<SubscriptionKey, AccessBase> ();
+
+    private final Map<String, SubscriptionKey> subscriptions = new HashMap<String, SubscriptionKey> ();
+
+    private final Map<SubscriptionKey, Integer> subscriptionCounts = new HashMap<SubscriptionKey, Integer> ();
+
+    private DataCallbackDispatcher dispatcher;
+
+    private boolean bound = false;
+
+    public SubscriptionManager ( final Server server, final boolean initialRefresh )
+    {
+        this.server = server;
+        this.initialRefresh = initialRefresh;
+    }
+
+    /**
+     * Set the dispatcher which is used by all accesses of the subscription manager
+     * @param dispatcher the dispatcher or <code>null</code> to call the data callbacks directly
+     */
+    public synchronized void setDispatcher ( final DataCallbackDispatcher dispatcher )
+    {
+        this.dispatcher = dispatcher;
+        for ( final AccessBase access : this.accesses.values () )
+        {
+            access.setDispatcher ( dispatcher );
+        }
+    }
+
+    /**
+     * Subscribe an item
+     * <p>
+     * If the item is already subscribed with a different update rate or deadband it is
+     * moved to the access matching the new parameters.
+     * </p>
+     * @param itemId the item to subscribe
+     * @param updateRate the requested update rate in milliseconds
+     * @param percentDeadband the percent deadband or <code>null</code> to use the server default
+     * @param dataCallback the callback receiving the changes of the item
+     * @throws JIException
+     * @throws AddFailedException
+     * @throws DuplicateGroupException
+     * @throws NotConnectedException
+     * @throws UnknownHostException
+     * @throws IllegalArgumentException
+     */
+    public synchronized void subscribe ( final String itemId, final int updateRate, final Float percentDeadband, final DataCallback dataCallback ) throws JIException, AddFailedException, IllegalArgumentException, UnknownHostException, NotConnectedException, DuplicateGroupException
+    {
+        final SubscriptionKey key = new SubscriptionKey ( updateRate, percentDeadband );
+
+        final SubscriptionKey currentKey = this.subscriptions.get ( itemId );
+        if ( key.equals ( currentKey ) )
+        {
+            // only replace the data callback, the item stays realized
+            this.accesses.get ( key ).setDataCallback ( itemId, dataCallback );
+            return;
+        }
+
+        // add the item to the new access first so that a failure leaves the current subscription intact
+        final AccessBase access = getAccess ( key );
+        boolean added = false;
+        try
+        {
+            access.addItem ( itemId, dataCallback );
+            added = true;
+        }
+        finally
+        {
+            if ( !added )
+            {
+                logger.info ( "Failed to subscribe item '{}' with {}", itemId, key );
+                access.removeItem ( itemId );
+                if ( !this.subscriptionCounts.containsKey ( key ) )
+                {
+                    releaseAccess ( key, access );
+                }
+            }
+        }
+
+        if ( currentKey != null )
+        {
+            logger.debug ( "Moving item '{}' from {} to {}", new Object[] { itemId, currentKey, key } );
+            unsubscribe ( itemId );
+        }
+
+        this.subscriptions.put ( itemId, key );
+        final Integer count = this.subscriptionCounts.get ( key );
+        this.subscriptionCounts.put ( key, count == null ? 1 : count + 1 );
+    }
+
+    /**
+     * Unsubscribe an item
+     * @param itemId the item to unsubscribe
+     */
+    public synchronized void unsubscribe ( final String itemId )
+    {
+        final SubscriptionKey key = this.subscriptions.remove ( itemId );
+        if ( key == null )
+        {
+            return;
+        }
+
+        final AccessBase access = this.accesses.get ( key );
+        if ( access == null )
+        {
+            return;
+        }
+        access.removeItem ( itemId );
+
+        final int count = this.subscriptionCounts.get ( key ) - 1;
+        if ( count > 0 )
+        {
+            this.subscriptionCounts.put ( key, count );
+            return;
+        }
+
+        this.subscriptionCounts.remove ( key );
+        releaseAccess ( key, access );
+    }
+
+    private void releaseAccess ( final SubscriptionKey key, final AccessBase access )
+    {
+        logger.debug ( "Removing access for {}", key );
+        this.accesses.remove ( key );
+        try
+        {
+            access.unbind ();
+        }
+        catch ( final JIException e )
+        {
+            logger.warn ( String.format ( "Failed to unbind access for %s", key ), e );
+        }
+    }
+
+    private AccessBase getAccess ( final SubscriptionKey key ) throws IllegalArgumentException, UnknownHostException, NotConnectedException, JIException, DuplicateGroupException
+    {
+        AccessBase access = this.accesses.get ( key );
+        if ( access != null )
+        {
+            return access;
+        }
+
+        logger.debug ( "Creating access for {}", key );
+        access = createAccess ( key );
+        access.setPercentDeadband ( key.getPercentDeadband () );
+        access.setDispatcher ( this.dispatcher );
+        this.accesses.put ( key, access );
+
+        if ( this.bound )
+        {
+            access.bind ();
+        }
+        return access;
+    }
+
+    /**
+     * Create the access of a combination of update rate and deadband
+     * @param key the update rate and deadband
+     * @return the new access
+     */
+    protected AccessBase createAccess ( final SubscriptionKey key ) throws IllegalArgumentException, UnknownHostException, NotConnectedException, JIException, DuplicateGroupException
+    {
+        return new Async20Access ( this.server, key.getUpdateRate (), this.initialRefresh, null );
+    }
+
+    public synchronized boolean isBound ()
+    {
+        return this.bound;
+    }
+
+    /**
+     * Bind all accesses to the server so that they are started when the server is connected
+     */
+    public synchronized void bind ()
+    {
+        if ( this.bound )
+        {
+            return;
+        }
+
+        this.bound = true;
+        for ( final AccessBase access : this.accesses.values () )
+        {
+            access.bind ();
+        }
+    }
+
+    public synchronized void unbind () throws JIException
+    {
+        if ( !this.bound )
+        {
+            return;
+        }
+
+        this.bound = false;
+        for ( final AccessBase access : this.accesses.values () )
+        {
+            access.unbind ();
+        }
+    }
+
+    /**
+     * Get the update rate the server granted for the group of an item
+     * @param itemId the item
+     * @return the revised update rate in milliseconds or <code>-1</code> if the item is
+     * not subscribed or its group was not created yet
+     */
+    public synchronized int getRevisedUpdateRate ( final String itemId )
+    {
+        final SubscriptionKey key = this.subscriptions.get ( itemId );
+        if ( key == null )
+        {
+            return -1;
+        }
+        return this.accesses.get ( key ).getRevisedUpdateRate ();
+    }
+
+    /**
+     * Get the revised update rates of all groups
+     * @return the revised update rate by requested update rate and deadband, <code>-1</code>
+     * for groups which were not created yet
+     */
+    public synchronized Map<SubscriptionKey, Integer> getRevisedUpdateRates ()
+    {
+        final Map<SubscriptionKey, Integer> result = new HashMap<SubscriptionKey, Integer> ( this.accesses.size () );
+        for ( final Map.Entry<SubscriptionKey, AccessBase> entry : this.accesses.entrySet () )
+        {
+            result.put ( entry.getKey (), entry.getValue ().getRevisedUpdateRate () );
+        }
+        return result;
+    }
+
+    /**
+     * Get the number of subscribed items by update rate and deadband
+     * @return the number of items of each group
+     */
+    public synchronized Map<SubscriptionKey, Integer> getSubscriptionCounts ()
+    {
+        return new HashMap<SubscriptionKey, Integer> ( this.subscriptionCounts );
+    }
+}
@@ -0,0 +1,455 @@
+/*
+ * This file is part of the OpenSCADA project
+ * Copyright (C) 2006-2011 TH4 SYSTEMS GmbH (http://th4-systems.com)
+ *
+ * OpenSCADA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License version 3
+ * only, as published by the Free Software Foundation.
+ *
+ * OpenSCADA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License version 3 for more details
+ * (a copy is included in the LICENSE file that accompanied this code).
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * version 3 along with OpenSCADA. If not, see
+ * <http://opensource.org/licenses/lgpl-3.0.html> for a copy of the LGPLv3 License.
+ */
+
+package org.openscada.opc.lib.da;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jinterop.dcom.common.JIException;
+import org.openscada.opc.lib.common.DaemonThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Restores the subscriptions of several accesses of one server after a reconnect.
+ * <p>
+ * Accesses added to the restorer are bound to the restorer instead of the server.
+ * When the server connects, the restorer starts all accesses in parallel on a
+ * bounded pool. The accesses are started in order of their priority, so the
+ * groups of accesses with a higher priority are created and deliver data first.
+ * Each access creates its groups and adds its items in bulk as configured.
+ * </p>
+ * <p>
+ * The restorer measures the time from the connect to the first data received by
+ * any of its accesses and to the completion of the restore of all accesses.
+ * </p>
+ */
+public class SubscriptionRestorer implements ServerConnectionStateListener
+{
+    private static Logger logger = LoggerFactory.getLogger ( SubscriptionRestorer.class );
+
+    /**
+     * The captured subscription of one access
+     * <p>
+     * The entry holds no requested data types. {@link Group} always adds items
+     * requesting their canonical data type, so re-adding the item ids restores
+     * the same data types.
+     * </p>
+     */
+    public static class PlanEntry
+    {
+        private final AccessBase access;
+
+        private final int priority;
+
+        private final int period;
+
+        private final Float percentDeadband;
+
+        private final List<String> itemIds;
+
+        public PlanEntry ( final AccessBase access, final int priority, final int period, final Float percentDeadband, final List<String> itemIds )
+        {
+            this.access = access;
+            this.priority = priority;
+            this.period = period;
+            this.percentDeadband = percentDeadband;
+            this.itemIds = itemIds;
+        }
+
+        public AccessBase getAccess ()
+        {
+            return this.access;
+        }
+
+        public int getPriority ()
+        {
+            return this.priority;
+        }
+
+        public int getPeriod ()
+        {
+            return this.period;
+        }
+
+        public Float getPercentDeadband ()
+        {
+            return this.percentDeadband;
+        }
+
+        public List<String> getItemIds ()
+        {
+            return this.itemIds;
+        }
+
+        @Override
+        public String toString ()
+        {
+            return String.format ( "%s - priority: %s, period: %s, deadband: %s, items: %s", this.access, this.priority, this.period, this.percentDeadband, this.itemIds.size () );
+        }
+    }
+
+    private static final Comparator<Map.Entry<AccessBase, Integer>> PRIORITY_ORDER = new Comparator<Map.Entry<AccessBase, Integer>> () {
+
+        public int compare ( final Map.Entry<AccessBase, Integer> o1, final Map.Entry<AccessBase, Integer> o2 )
+        {
+            return o2.getValue ().compareTo ( o1.getValue () );
+        }
+    };
+
+    private final Server server;
+
+    private final Map<AccessBase, Integer> accesses = new LinkedHashMap<AccessBase, Integer> ();
+
+    private final ThreadPoolExecutor executor;
+
+    private boolean connected = false;
+
+    private int generation = 0;
+
+    private long restoreStart;
+
+    private final AtomicInteger pendingStarts = new AtomicInteger ();
+
+    private volatile boolean firstDataPending = false;
+
+    private final AtomicLong restores = new AtomicLong ();
+
+    private volatile long lastTimeToFirstData = -1;
+
+    private volatile long lastTimeToFullRestore = -1;
+
+    private volatile int lastRestoreFailures = 0;
+
+    private final AtomicInteger restoreFailures = new AtomicInteger ();
+
+    /**
+     * Create a new restorer and register it with the server
+     * @param server the server
+     * @param threads the number of accesses which are started in parallel
+     */
+    public SubscriptionRestorer ( final Server server, final int threads )
+    {
+        this.server = server;
+        this.executor = new ThreadPoolExecutor ( threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable> (), new DaemonThreadFactory ( "UtgardRestorer-" ) );
+        // no threads are kept while there is nothing to restore
+        this.executor.allowCoreThreadTimeOut ( true );
+
+        this.server.addStateListener ( this );
+    }
+
+    /**
+     * Add an access to the restorer
+     * <p>
+     * The access gets bound to the restorer. If the server is connected the
+     * access is started right away.
+     * </p>
+     * @param access the access, which must not be bound yet
+     * @param priority the priority, accesses with higher priority are restored first
+     */
+    public synchronized void add ( final AccessBase access, final int priority )
+    {
+        if ( access.isBound () )
+        {
+            throw new IllegalStateException ( "Access is already bound" );
+        }
+        this.accesses.put ( access, priority );
+        access.bind ( this );
+        if ( this.connected )
+        {
+            submitStart ( access, this.generation, false );
+        }
+    }
+
+    /**
+     * Remove an access from the restorer and stop it
+     * @param access the access
+     * @throws JIException if stopping the access failed
+     */
+    public void remove ( final AccessBase access ) throws JIException
+    {
+        access.unbind ();
+    }
+
+    synchronized void removed ( final AccessBase access )
+    {
+        this.accesses.remove ( access );
+    }
+
+    /**
+     * Capture the current subscription plan
+     * @return the subscriptions of all accesses in the order they are restored
+     */
+    public List<PlanEntry> getPlan ()
+    {
+        final List<Map.Entry<AccessBase, Integer>> entries;
+        synchronized ( this )
+        {
+            entries = sortedAccesses ();
+        }
+        final List<PlanEntry> plan = new ArrayList<PlanEntry> ( entries.size () );
+        for ( final Map.Entry<AccessBase, Integer> entry : entries )
+        {
+            final AccessBase access = entry.getKey ();
+            plan.add ( new PlanEntry ( access, entry.getValue (), access.getPeriod (), access.getPercentDeadband (), access.getItemIds () ) );
+        }
+        return plan;
+    }
+
+    private List<Map.Entry<AccessBase, Integer>> sortedAccesses ()
+    {
+        final List<Map.Entry<AccessBase, Integer>> entries = new ArrayList<Map.Entry<AccessBase, Integer>> ( this.accesses.entrySet () );
+        // the sort is stable, accesses of the same priority keep the order they were added in
+        Collections.sort ( entries, PRIORITY_ORDER );
+        return entries;
+    }
+
+    public void connectionStateChanged ( final boolean connected )
+    {
+        if ( connected )
+        {
+            restore ();
+        }
+        else
+        {
+            stopAll ();
+        }
+    }
+
+    private synchronized void restore ()
+    {
+        if ( this.connected )
+        {
+            return;
+        }
+        this.connected = true;
+        this.generation++;
+
+        final List<Map.Entry<AccessBase, Integer>> entries = sortedAccesses ();
+        logger.info ( String.format ( "Restoring %s accesses", entries.size () ) );
+
+        this.restoreStart = System.nanoTime ();
+        this.restoreFailures.set ( 0 );
+        this.pendingStarts.set ( entries.size () );
+        this.firstDataPending = !entries.isEmpty ();
+        this.restores.incrementAndGet ();
+
+        if ( entries.isEmpty () )
+        {
+            this.lastTimeToFullRestore = 0;
+            this.lastRestoreFailures = 0;
+            return;
+        }
+
+        for ( final Map.Entry<AccessBase, Integer> entry : entries )
+        {
+            submitStart ( entry.getKey (), this.generation, true );
+        }
+    }
+
+    private void submitStart ( final AccessBase access, final int generation, final boolean restore )
+    {
+        this.executor.execute ( new Runnable () {
+
+            public void run ()
+            {
+                start ( access, generation, restore );
+            }
+        } );
+    }
+
+    private void start ( final AccessBase access, final int generation, final boolean restore )
+    {
+        try
+        {
+            synchronized ( this )
+            {
+                if ( generation != this.generation || !this.connected || !this.accesses.containsKey ( access ) )
+                {
+                    return;
+                }
+            }
+            access.start ();
+            stopIfStale ( access );
+        }
+        catch ( final Throwable e )
+        {
+            logger.error ( "Failed to restore access", e );
+            if ( restore )
+            {
+                this.restoreFailures.incrementAndGet ();
+            }
+        }
+        finally
+        {
+            if ( restore )
+            {
+                startCompleted ( generation );
+            }
+        }
+    }
+
+    /**
+     * Stop an access which was started after the server disconnected or the
+     * access was removed
+     * <p>
+     * The disconnect may happen while the access is starting, so stopping all
+     * accesses on the disconnect does not catch it.
+     * </p>
+     */
+    private void stopIfStale ( final AccessBase access ) throws JIException
+    {
+        synchronized ( this )
+        {
+            if ( this.connected && this.accesses.containsKey ( access ) )
+            {
+                return;
+            }
+        }
+
+        access.stop ();
+
+        synchronized ( this )
+        {
+            // the server may have connected again while the access was stopped
+            if ( this.connected && this.accesses.containsKey ( access ) )
+            {
+                submitStart ( access, this.generation, false );
+            }
+        }
+    }
+
+    private synchronized void startCompleted ( final int generation )
+    {
+        if ( generation != this.generation || this.pendingStarts.decrementAndGet () != 0 )
+        {
+            return;
+        }
+        this.lastTimeToFullRestore = TimeUnit.NANOSECONDS.toMillis ( System.nanoTime () - this.restoreStart );
+        this.lastRestoreFailures = this.restoreFailures.get ();
+        logger.info ( String.format ( "Restored %s accesses in %s ms (%s failed)", this.accesses.size (), this.lastTimeToFullRestore, this.lastRestoreFailures ) );
+    }
+
+    /**
+     * Called by the accesses when they received data
+     */
+    void dataReceived ()
+    {
+        if ( !this.firstDataPending )
+        {
+            return;
+        }
+        synchronized ( this )
+        {
+            if ( !this.firstDataPending )
+            {
+                return;
+            }
+            this.firstDataPending = false;
+            this.lastTimeToFirstData = TimeUnit.NANOSECONDS.toMillis ( System.nanoTime () - this.restoreStart );
+        }
+        logger.info ( String.format ( "First data after %s ms", this.lastTimeToFirstData ) );
+    }
+
+    private void stopAll ()
+    {
+        final List<AccessBase> accesses;
+        synchronized ( this )
+        {
+            if ( !this.connected )
+            {
+                return;
+            }
+            this.connected = false;
+            this.generation++;
+            this.firstDataPending = false;
+            accesses = new ArrayList<AccessBase> ( this.accesses.keySet () );
+        }
+
+        for ( final AccessBase access : accesses )
+        {
+            try
+            {
+                access.stop ();
+            }
+            catch ( final Exception e )
+            {
+                logger.error ( "Failed to stop access", e );
+            }
+        }
+    }
+
+    /**
+     * Unregister from the server and stop the restore threads
+     * <p>
+     * The accesses stay bound to the restorer and need to be removed separately.
+     * </p>
+     */
+    public void dispose ()
+    {
+        this.server.removeStateListener ( this );
+        this.executor.shutdown ();
+    }
+
+    /**
+     * Get the number of restores performed
+     * @return the number of restores
+     */
+    public long getRestores ()
+    {
+        return this.restores.get ();
+    }
+
+    /**
+     * Get the time from the last connect to the first data received by any access
+     * @return the time in milliseconds or <code>-1</code> if no data was received yet
+     */
+    public long getLastTimeToFirstData ()
+    {
+        return this.lastTimeToFirstData;
+    }
+
+    /**
+     * Get the time from the last connect until all accesses were restored
+     * @return the time in milliseconds or <code>-1</code> if no restore was completed yet
+     */
+    public long getLastTimeToFullRestore ()
+    {
+        return this.lastTimeToFullRestore;
+    }
+
+    /**
+     * Get the number of accesses which failed to start during the last restore
+     * @return the number of failed accesses
+     */
+    public int getLastRestoreFailures ()
+    {
+        return this.lastRestoreFailures;
+    }
+}
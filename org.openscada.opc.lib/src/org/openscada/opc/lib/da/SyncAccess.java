@@ -20,9 +20,21 @@
 package org.openscada.opc.lib.da;
 
 import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import org.jinterop.dcom.common.JIException;
+import org.openscada.opc.lib.common.DaemonThreadFactory;
 import org.openscada.opc.lib.common.NotConnectedException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -31,10 +43,125 @@ public class SyncAccess extends AccessBase implements Runnable
 {
     private static Logger logger = LoggerFactory.getLogger ( SyncAccess.class );
 
+    private static ExecutorService defaultGroupReader;
+
+    /**
+     * Get the executor which reads the groups of all accesses that have no executor set
+     * <p>
+     * The executor is created on first use. Its threads are daemon threads which terminate
+     * when idle. If all threads are busy the polling thread reads the group itself.
+     * </p>
+     * @return the default executor
+     */
+    public static synchronized ExecutorService getDefaultGroupReader ()
+    {
+        if ( defaultGroupReader == null )
+        {
+            final int threads = Math.max ( 8, Runtime.getRuntime ().availableProcessors () * 2 );
+            defaultGroupReader = new ThreadPoolExecutor ( 0, threads, 60, TimeUnit.SECONDS, new SynchronousQueue<Runnable> (), new DaemonThreadFactory ( "UtgardGroupReader-" ), new ThreadPoolExecutor.CallerRunsPolicy () );
+        }
+        return defaultGroupReader;
+    }
+
+    /**
+     * Replace the default executor of the group reads
+     * <p>
+     * The previous executor is not shut down.
+     * </p>
+     * @param executor the new default executor or <code>null</code> to create a new one on demand
+     */
+    public static synchronized void setDefaultGroupReader ( final ExecutorService executor )
+    {
+        defaultGroupReader = executor;
+    }
+
     private Thread runner = null;
 
     private Throwable lastError = null;
 
+    private int cycle = 0;
+
+    private volatile boolean fixedRate = false;
+
+    private volatile OverrunPolicy overrunPolicy = OverrunPolicy.SKIP;
+
+    private final PollingStatistics statistics = new PollingStatistics ();
+
+    private volatile PollingScheduler scheduler;
+
+    private volatile ScheduledCycle scheduledCycle;
+
+    private int groupCount = 1;
+
+    private volatile PollingStatistics[] groupStatistics = new PollingStatistics[0];
+
+    private volatile ExecutorService groupReader;
+
+    /**
+     * A poll cycle running on the polling scheduler which schedules its successor
+     */
+    private class ScheduledCycle implements Runnable
+    {
+        private final PollingScheduler scheduler;
+
+        private final long periodNanos = TimeUnit.MILLISECONDS.toNanos ( getPeriod () );
+
+        private long deadline = System.nanoTime ();
+
+        private volatile ScheduledFuture<?> future;
+
+        public ScheduledCycle ( final PollingScheduler scheduler )
+        {
+            this.scheduler = scheduler;
+        }
+
+        public void schedule ( final long delayNanos )
+        {
+            this.future = this.scheduler.schedule ( getPollingKey (), this, Math.max ( delayNanos, 0 ), TimeUnit.NANOSECONDS );
+        }
+
+        public void cancel ()
+        {
+            final ScheduledFuture<?> future = this.future;
+            if ( future != null )
+            {
+                future.cancel ( false );
+            }
+        }
+
+        private boolean isCurrent ()
+        {
+            return SyncAccess.this.active && SyncAccess.this.scheduledCycle == this;
+        }
+
+        public void run ()
+        {
+            if ( !isCurrent () )
+            {
+                return;
+            }
+
+            runCycle ();
+            final long end = System.nanoTime ();
+
+            long delay;
+            if ( SyncAccess.this.fixedRate )
+            {
+                this.deadline = nextDeadline ( this.deadline, this.periodNanos, end );
+                delay = this.deadline - end;
+            }
+            else
+            {
+                delay = this.periodNanos;
+            }
+
+            if ( isCurrent () )
+            {
+                schedule ( delay );
+            }
+        }
+    }
+
     public SyncAccess ( final Server server, final int period ) throws IllegalArgumentException, UnknownHostException, NotConnectedException, JIException, DuplicateGroupException
     {
         super ( server, period );
@@ -45,34 +172,218 @@ public class SyncAccess extends AccessBase implements Runnable
         super ( server, period, logTag );
     }
 
+    public boolean isFixedRate ()
+    {
+        return this.fixedRate;
+    }
+
+    /**
+     * Enable or disable the fixed rate mode
+     * <p>
+     * By default the access waits for the period after each read, so the effective
+     * period is the period plus the duration of the read. In fixed rate mode the reads
+     * are started at absolute deadlines which are one period apart. If a read takes
+     * longer than one period the {@link OverrunPolicy} decides how to continue.
+     * </p>
+     * @param fixedRate <code>true</code> to enable the fixed rate mode
+     */
+    public void setFixedRate ( final boolean fixedRate )
+    {
+        this.fixedRate = fixedRate;
+    }
+
+    public OverrunPolicy getOverrunPolicy ()
+    {
+        return this.overrunPolicy;
+    }
+
+    public void setOverrunPolicy ( final OverrunPolicy overrunPolicy )
+    {
+        this.overrunPolicy = overrunPolicy;
+    }
+
+    /**
+     * Get the number of groups the items are distributed over
+     * @return the number of groups
+     */
+    @Override
+    public synchronized int getGroupCount ()
+    {
+        return this.groupCount;
+    }
+
+    /**
+     * Set the number of groups the items are distributed over
+     * <p>
+     * If more than one group is used the groups are read concurrently and the results
+     * are merged into one poll cycle before the callbacks are notified. The setting
+     * is applied when the access is started the next time.
+     * </p>
+     * @param groupCount the number of groups
+     */
+    public synchronized void setGroupCount ( final int groupCount )
+    {
+        if ( groupCount < 1 )
+        {
+            throw new IllegalArgumentException ( "The access needs at least one group" );
+        }
+        this.groupCount = groupCount;
+    }
+
+    /**
+     * Get the counters of the reads of each group
+     * @return the statistics of each group, in the order of the groups
+     */
+    public PollingStatistics[] getGroupStatistics ()
+    {
+        return this.groupStatistics.clone ();
+    }
+
+    /**
+     * Get the executor which reads the groups concurrently
+     * @return the executor, {@link #getDefaultGroupReader()} if none was set
+     */
+    public ExecutorService getGroupReader ()
+    {
+        final ExecutorService groupReader = this.groupReader;
+        return groupReader != null ? groupReader : getDefaultGroupReader ();
+    }
+
+    /**
+     * Set the executor which reads the groups concurrently
+     * <p>
+     * The executor is only used if more than one group is used, see {@link #setGroupCount(int)}.
+     * It is not shut down by the access.
+     * </p>
+     * @param groupReader the executor or <code>null</code> to use {@link #getDefaultGroupReader()}
+     */
+    public void setGroupReader ( final ExecutorService groupReader )
+    {
+        this.groupReader = groupReader;
+    }
+
+    public PollingScheduler getScheduler ()
+    {
+        return this.scheduler;
+    }
+
+    /**
+     * Set the scheduler which runs the poll cycles
+     * <p>
+     * If no scheduler is set each access polls using its own thread. The
+     * scheduler is used when the access is started the next time.
+     * </p>
+     * @param scheduler the scheduler or <code>null</code> to use a thread for this access
+     */
+    public void setScheduler ( final PollingScheduler scheduler )
+    {
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Get the key which serializes the poll cycles on the polling scheduler
+     * @return the key, by default the server of the access
+     */
+    protected Object getPollingKey ()
+    {
+        return this.server;
+    }
+
+    /**
+     * Get the counters of the poll cycles
+     * @return the statistics of this access
+     */
+    public PollingStatistics getStatistics ()
+    {
+        return this.statistics;
+    }
+
     public void run ()
     {
+        final long periodNanos = TimeUnit.MILLISECONDS.toNanos ( getPeriod () );
+        long deadline = System.nanoTime ();
+
         while ( this.active )
         {
-            try
+            runCycle ();
+            final long end = System.nanoTime ();
+
+            long delay;
+            if ( this.fixedRate )
             {
-                runOnce ();
-                if ( this.lastError != null )
-                {
-                    this.lastError = null;
-                    handleError ( null );
-                }
+                deadline = nextDeadline ( deadline, periodNanos, end );
+                delay = deadline - end;
             }
-            catch ( Throwable e )
+            else
             {
-                logger.error ( "Sync read failed", e );
-                handleError ( e );
-                this.server.disconnect ();
+                delay = periodNanos;
             }
 
-            try
+            if ( delay > 0 )
             {
-                Thread.sleep ( getPeriod () );
+                try
+                {
+                    TimeUnit.NANOSECONDS.sleep ( delay );
+                }
+                catch ( InterruptedException e )
+                {
+                }
             }
-            catch ( InterruptedException e )
+        }
+    }
+
+    /**
+     * Run one poll cycle and handle errors
+     */
+    protected void runCycle ()
+    {
+        final long start = System.nanoTime ();
+        try
+        {
+            runOnce ();
+            this.statistics.recordCycle ( System.nanoTime () - start );
+            if ( this.lastError != null )
             {
+                this.lastError = null;
+                handleError ( null );
             }
         }
+        catch ( Throwable e )
+        {
+            this.statistics.recordFailure ();
+            logger.error ( "Sync read failed", e );
+            handleError ( e );
+            this.server.disconnect ();
+        }
+    }
+
+    /**
+     * Calculate the next deadline of the fixed rate mode
+     * @param deadline the deadline of the cycle that just finished
+     * @param periodNanos the period in nanoseconds
+     * @param now the current time in nanoseconds
+     * @return the deadline of the next cycle
+     */
+    long nextDeadline ( final long deadline, final long periodNanos, final long now )
+    {
+        final long next = deadline + periodNanos;
+        if ( periodNanos <= 0 || next - now >= 0 )
+        {
+            return next;
+        }
+
+        // the cycle overran one or more deadlines
+        final long missed = ( now - next ) / periodNanos + 1;
+        switch ( this.overrunPolicy )
+        {
+        case MERGE:
+            // run once immediately for all missed deadlines
+            this.statistics.recordOverrun ( missed - 1 );
+            return next + ( missed - 1 ) * periodNanos;
+        default:
+            this.statistics.recordOverrun ( missed );
+            return next + missed * periodNanos;
+        }
     }
 
     protected void runOnce () throws JIException
@@ -83,30 +394,183 @@ public class SyncAccess extends AccessBase implements Runnable
         }
 
         Map<Item, ItemState> result;
+        final int serverGroupHandle;
 
         // lock only this section since we could get into a deadlock otherwise
         // calling updateItem
         synchronized ( this )
         {
             Item[] items = this.items.keySet ().toArray ( new Item[this.items.size ()] );
-            result = this.group.read ( false, items );
+            if ( this.groups.length > 1 )
+            {
+                result = readGroups ( items );
+            }
+            else
+            {
+                result = this.group.read ( false, items );
+            }
+            serverGroupHandle = this.group.getServerHandle ();
+        }
+
+        updateItems ( ++this.cycle, serverGroupHandle, result );
+
+    }
+
+    /**
+     * Read the items of all groups concurrently
+     * @param items the items to read
+     * @return the merged result of all groups
+     * @throws JIException if one of the reads failed
+     */
+    private Map<Item, ItemState> readGroups ( final Item[] items ) throws JIException
+    {
+        final Group[] groups = this.groups;
+        final PollingStatistics[] statistics = this.groupStatistics;
+
+        final Map<Group, List<Item>> groupItems = new HashMap<Group, List<Item>> ( groups.length );
+        for ( final Item item : items )
+        {
+            List<Item> list = groupItems.get ( item.getGroup () );
+            if ( list == null )
+            {
+                list = new ArrayList<Item> ();
+                groupItems.put ( item.getGroup (), list );
+            }
+            list.add ( item );
+        }
+
+        // read all groups but the first one in the background
+        final ExecutorService groupReader = getGroupReader ();
+        final List<Future<Map<Item, ItemState>>> futures = new ArrayList<Future<Map<Item, ItemState>>> ( groups.length - 1 );
+        for ( int i = 1; i < groups.length; i++ )
+        {
+            final Group group = groups[i];
+            final List<Item> list = groupItems.get ( group );
+            if ( list == null )
+            {
+                continue;
+            }
+            final PollingStatistics groupStatistics = statistics[i];
+            futures.add ( groupReader.submit ( new Callable<Map<Item, ItemState>> () {
+
+                public Map<Item, ItemState> call () throws Exception
+                {
+                    return readGroup ( group, list, groupStatistics );
+                }
+            } ) );
+        }
+
+        final Map<Item, ItemState> result = new HashMap<Item, ItemState> ( items.length );
+
+        Throwable error = null;
+        try
+        {
+            final List<Item> list = groupItems.get ( groups[0] );
+            if ( list != null )
+            {
+                result.putAll ( readGroup ( groups[0], list, statistics[0] ) );
+            }
+        }
+        catch ( final JIException e )
+        {
+            error = e;
         }
 
-        for ( Map.Entry<Item, ItemState> entry : result.entrySet () )
+        for ( final Future<Map<Item, ItemState>> future : futures )
         {
-            updateItem ( entry.getKey (), entry.getValue () );
+            try
+            {
+                result.putAll ( future.get () );
+            }
+            catch ( final ExecutionException e )
+            {
+                if ( error == null )
+                {
+                    error = e.getCause ();
+                }
+            }
+            catch ( final InterruptedException e )
+            {
+                Thread.currentThread ().interrupt ();
+                if ( error == null )
+                {
+                    error = e;
+                }
+            }
         }
 
+        if ( error instanceof JIException )
+        {
+            throw (JIException)error;
+        }
+        else if ( error instanceof RuntimeException )
+        {
+            throw (RuntimeException)error;
+        }
+        else if ( error != null )
+        {
+            throw new RuntimeException ( "Failed to read groups", error );
+        }
+        return result;
+    }
+
+    private Map<Item, ItemState> readGroup ( final Group group, final List<Item> items, final PollingStatistics statistics ) throws JIException
+    {
+        final long start = System.nanoTime ();
+        try
+        {
+            final Map<Item, ItemState> result = group.read ( false, items.toArray ( new Item[items.size ()] ) );
+            statistics.recordCycle ( System.nanoTime () - start );
+            return result;
+        }
+        catch ( final JIException e )
+        {
+            statistics.recordFailure ();
+            throw e;
+        }
     }
 
     @Override
     protected synchronized void start () throws JIException, IllegalArgumentException, UnknownHostException, NotConnectedException, DuplicateGroupException
     {
         super.start ();
+        startPolling ();
+    }
+
+    /**
+     * Start the poll cycles, either on the polling scheduler or on a new thread
+     */
+    protected synchronized void startPolling ()
+    {
+        final PollingStatistics[] groupStatistics = new PollingStatistics[this.groups.length];
+        for ( int i = 0; i < groupStatistics.length; i++ )
+        {
+            groupStatistics[i] = new PollingStatistics ();
+        }
+        this.groupStatistics = groupStatistics;
 
-        this.runner = new Thread ( this, "UtgardSyncReader" );
-        this.runner.setDaemon ( true );
-        this.runner.start ();
+        final PollingScheduler scheduler = this.scheduler;
+        if ( scheduler != null )
+        {
+            this.scheduledCycle = new ScheduledCycle ( scheduler );
+            this.scheduledCycle.schedule ( 0 );
+        }
+        else
+        {
+            this.runner = new Thread ( this, "UtgardSyncReader" );
+            this.runner.setDaemon ( true );
+            this.runner.start ();
+        }
+    }
+
+    protected synchronized void stopPolling ()
+    {
+        if ( this.scheduledCycle != null )
+        {
+            this.scheduledCycle.cancel ();
+            this.scheduledCycle = null;
+        }
+        this.runner = null;
     }
 
     @Override
@@ -114,7 +578,7 @@ public class SyncAccess extends AccessBase implements Runnable
     {
         super.stop ();
 
-        this.runner = null;
+        stopPolling ();
         this.items.clear ();
     }
 }
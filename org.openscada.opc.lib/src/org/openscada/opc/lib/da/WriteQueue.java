@@ -0,0 +1,546 @@
+/*
+ * This file is part of the OpenSCADA project
+ * Copyright (C) 2006-2011 TH4 SYSTEMS GmbH (http://th4-systems.com)
+ *
+ * OpenSCADA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License version 3
+ * only, as published by the Free Software Foundation.
+ *
+ * OpenSCADA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License version 3 for more details
+ * (a copy is included in the LICENSE file that accompanied this code).
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * version 3 along with OpenSCADA. If not, see
+ * <http://opensource.org/licenses/lgpl-3.0.html> for a copy of the LGPLv3 License.
+ */
+
+package org.openscada.opc.lib.da;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jinterop.dcom.common.JIException;
+import org.jinterop.dcom.core.JIVariant;
+import org.openscada.opc.dcom.da.TypedValue;
+import org.openscada.opc.lib.common.DaemonThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A queue batching writes to the items of one group.
+ * <p>
+ * Writes are collected and written using one {@link Group#write(WriteRequest...)}
+ * call per flush. A flush happens after the flush interval passed since the first
+ * pending write or as soon as the number of pending items reaches the maximum
+ * batch size.
+ * </p>
+ * <p>
+ * Repeated writes to the same item which are still pending are collapsed, only
+ * the latest value is written. The futures of all collapsed requests are
+ * completed with the result of the write which was actually performed.
+ * Optionally writes of a value equal to the last known value of the item are
+ * suppressed and completed with <code>S_OK</code>. The last known value is
+ * the last value written successfully or a value provided by
+ * {@link #setKnownValue(Item, JIVariant)}. Only values which can be decoded
+ * by {@link TypedValue} are compared. A write is never suppressed while another
+ * write to the same item is pending or being written.
+ * </p>
+ */
+public class WriteQueue
+{
+    private static Logger logger = LoggerFactory.getLogger ( WriteQueue.class );
+
+    private static final int S_OK = 0;
+
+    private static ScheduledExecutorService defaultExecutor;
+
+    /**
+     * Get the executor which flushes all queues created without an executor
+     * <p>
+     * The executor is created on first use. Its daemon threads terminate when idle.
+     * </p>
+     * @return the default executor
+     */
+    public static synchronized ScheduledExecutorService getDefaultExecutor ()
+    {
+        if ( defaultExecutor == null )
+        {
+            final int threads = Math.max ( 4, Runtime.getRuntime ().availableProcessors () );
+            final ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor ( threads, new DaemonThreadFactory ( "UtgardWriteQueue-" ) );
+            executor.setKeepAliveTime ( 60, TimeUnit.SECONDS );
+            executor.allowCoreThreadTimeOut ( true );
+            defaultExecutor = executor;
+        }
+        return defaultExecutor;
+    }
+
+    /**
+     * Replace the default executor of the write queues
+     * <p>
+     * The previous executor is not shut down. Existing queues keep their executor.
+     * </p>
+     * @param executor the new default executor or <code>null</code> to create a new one on demand
+     */
+    public static synchronized void setDefaultExecutor ( final ScheduledExecutorService executor )
+    {
+        defaultExecutor = executor;
+    }
+
+    private static class PendingWrite
+    {
+        private JIVariant value;
+
+        private final List<OperationFuture<Integer>> futures = new ArrayList<OperationFuture<Integer>> ( 1 );
+
+        public PendingWrite ( final JIVariant value )
+        {
+            this.value = value;
+        }
+    }
+
+    private final Group group;
+
+    private final long flushIntervalNanos;
+
+    private final int maxBatchSize;
+
+    private final ScheduledExecutorService executor;
+
+    private final Object flushLock = new Object ();
+
+    private Map<Item, PendingWrite> pending = new LinkedHashMap<Item, PendingWrite> ();
+
+    /**
+     * The items of the batch which is currently being written
+     */
+    private final Set<Item> inFlight = new HashSet<Item> ();
+
+    private boolean flushScheduled = false;
+
+    private boolean disposed = false;
+
+    private volatile boolean suppressUnchanged = false;
+
+    private final Map<Item, TypedValue> knownValues = new ConcurrentHashMap<Item, TypedValue> ();
+
+    private final AtomicLong submitted = new AtomicLong ();
+
+    private final AtomicLong collapsed = new AtomicLong ();
+
+    private final AtomicLong suppressed = new AtomicLong ();
+
+    private final AtomicLong written = new AtomicLong ();
+
+    private final AtomicLong flushes = new AtomicLong ();
+
+    private final Runnable flushTask = new Runnable () {
+
+        public void run ()
+        {
+            flush ();
+        }
+    };
+
+    /**
+     * Create a new write queue flushing on the default executor
+     * @param group the group to write to
+     * @param flushInterval the time in milliseconds writes are collected before they are flushed
+     * @param maxBatchSize the number of pending items which triggers an immediate flush
+     * @see #getDefaultExecutor()
+     */
+    public WriteQueue ( final Group group, final long flushInterval, final int maxBatchSize )
+    {
+        this ( group, getDefaultExecutor (), flushInterval, maxBatchSize );
+    }
+
+    /**
+     * Create a new write queue using a shared executor for flushing
+     * @param group the group to write to
+     * @param executor the executor performing the flushes
+     * @param flushInterval the time in milliseconds writes are collected before they are flushed
+     * @param maxBatchSize the number of pending items which triggers an immediate flush
+     */
+    public WriteQueue ( final Group group, final ScheduledExecutorService executor, final long flushInterval, final int maxBatchSize )
+    {
+        if ( flushInterval < 0 )
+        {
+            throw new IllegalArgumentException ( "Flush interval must not be negative" );
+        }
+        if ( maxBatchSize < 1 )
+        {
+            throw new IllegalArgumentException ( "Maximum batch size must be at least 1" );
+        }
+        this.group = group;
+        this.executor = executor;
+        this.flushIntervalNanos = TimeUnit.MILLISECONDS.toNanos ( flushInterval );
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    /**
+     * Queue a write
+     * @param item the item to write
+     * @param value the value to write
+     * @return the future result, the HRESULT of the write operation
+     */
+    public Future<Integer> write ( final Item item, final JIVariant value )
+    {
+        return write ( new WriteRequest ( item, value ) );
+    }
+
+    /**
+     * Queue a write
+     * @param request the write request
+     * @return the future result, the HRESULT of the write operation
+     */
+    public Future<Integer> write ( final WriteRequest request )
+    {
+        this.submitted.incrementAndGet ();
+
+        final OperationFuture<Integer> future = new OperationFuture<Integer> ();
+
+        if ( this.suppressUnchanged && isKnownValue ( request.getItem (), request.getValue () ) )
+        {
+            synchronized ( this )
+            {
+                checkDisposed ();
+                // a pending or running write of another value must not be overtaken
+                if ( !this.pending.containsKey ( request.getItem () ) && !this.inFlight.contains ( request.getItem () ) )
+                {
+                    this.suppressed.incrementAndGet ();
+                    future.complete ( S_OK );
+                    return future;
+                }
+            }
+        }
+
+        boolean flushNow = false;
+        synchronized ( this )
+        {
+            checkDisposed ();
+
+            PendingWrite write = this.pending.get ( request.getItem () );
+            if ( write == null )
+            {
+                write = new PendingWrite ( request.getValue () );
+                this.pending.put ( request.getItem (), write );
+            }
+            else
+            {
+                // last value wins
+                write.value = request.getValue ();
+                this.collapsed.incrementAndGet ();
+            }
+            write.futures.add ( future );
+
+            if ( this.pending.size () >= this.maxBatchSize )
+            {
+                flushNow = true;
+            }
+            else if ( !this.flushScheduled )
+            {
+                this.flushScheduled = true;
+                this.executor.schedule ( this.flushTask, this.flushIntervalNanos, TimeUnit.NANOSECONDS );
+            }
+        }
+
+        if ( flushNow )
+        {
+            this.executor.execute ( this.flushTask );
+        }
+
+        return future;
+    }
+
+    private void checkDisposed ()
+    {
+        if ( this.disposed )
+        {
+            throw new IllegalStateException ( "Write queue is disposed" );
+        }
+    }
+
+    /**
+     * Write all pending requests
+     * <p>
+     * Flushes are serialized. This method blocks until the pending
+     * requests have been written.
+     * </p>
+     */
+    public void flush ()
+    {
+        synchronized ( this.flushLock )
+        {
+            while ( true )
+            {
+                final Map<Item, PendingWrite> batch = takeBatch ();
+                if ( batch == null )
+                {
+                    return;
+                }
+                writeBatch ( batch );
+            }
+        }
+    }
+
+    private synchronized Map<Item, PendingWrite> takeBatch ()
+    {
+        this.flushScheduled = false;
+        if ( this.pending.isEmpty () )
+        {
+            return null;
+        }
+        if ( this.pending.size () <= this.maxBatchSize )
+        {
+            final Map<Item, PendingWrite> batch = this.pending;
+            this.pending = new LinkedHashMap<Item, PendingWrite> ();
+            this.inFlight.addAll ( batch.keySet () );
+            return batch;
+        }
+
+        final Map<Item, PendingWrite> batch = new LinkedHashMap<Item, PendingWrite> ( this.maxBatchSize );
+        final Iterator<Map.Entry<Item, PendingWrite>> i = this.pending.entrySet ().iterator ();
+        while ( i.hasNext () && batch.size () < this.maxBatchSize )
+        {
+            final Map.Entry<Item, PendingWrite> entry = i.next ();
+            batch.put ( entry.getKey (), entry.getValue () );
+            i.remove ();
+        }
+        this.inFlight.addAll ( batch.keySet () );
+        return batch;
+    }
+
+    private synchronized void batchCompleted ( final Map<Item, PendingWrite> batch )
+    {
+        this.inFlight.removeAll ( batch.keySet () );
+    }
+
+    private void writeBatch ( final Map<Item, PendingWrite> batch )
+    {
+        final WriteRequest[] requests = new WriteRequest[batch.size ()];
+        int i = 0;
+        for ( final Map.Entry<Item, PendingWrite> entry : batch.entrySet () )
+        {
+            requests[i++] = new WriteRequest ( entry.getKey (), entry.getValue ().value );
+        }
+
+        this.flushes.incrementAndGet ();
+        this.written.addAndGet ( requests.length );
+
+        final Map<Item, Integer> result;
+        try
+        {
+            result = doWrite ( requests );
+        }
+        catch ( final Throwable e )
+        {
+            logger.info ( String.format ( "Failed to write batch of %s items", requests.length ), e );
+            for ( final Item item : batch.keySet () )
+            {
+                this.knownValues.remove ( item );
+            }
+            batchCompleted ( batch );
+            for ( final PendingWrite write : batch.values () )
+            {
+                for ( final OperationFuture<Integer> future : write.futures )
+                {
+                    future.fail ( e );
+                }
+            }
+            return;
+        }
+
+        for ( final Map.Entry<Item, PendingWrite> entry : batch.entrySet () )
+        {
+            final Integer errorCode = result.get ( entry.getKey () );
+            if ( errorCode != null && errorCode == S_OK )
+            {
+                rememberValue ( entry.getKey (), entry.getValue ().value );
+            }
+            else
+            {
+                this.knownValues.remove ( entry.getKey () );
+            }
+        }
+
+        // the known values are updated before further writes of these items may be suppressed
+        batchCompleted ( batch );
+
+        for ( final Map.Entry<Item, PendingWrite> entry : batch.entrySet () )
+        {
+            final Integer errorCode = result.get ( entry.getKey () );
+            for ( final OperationFuture<Integer> future : entry.getValue ().futures )
+            {
+                future.complete ( errorCode );
+            }
+        }
+    }
+
+    /**
+     * Perform the batched write
+     * @param requests the requests of the batch, one per item
+     * @return the error codes by item
+     * @throws JIException if the write failed
+     */
+    protected Map<Item, Integer> doWrite ( final WriteRequest[] requests ) throws JIException
+    {
+        return this.group.write ( requests );
+    }
+
+    /**
+     * Set the last known value of an item
+     * <p>
+     * This can be used to feed values received by subscriptions into the
+     * suppression of unchanged writes.
+     * </p>
+     * @param item the item
+     * @param value the current value, <code>null</code> to forget the value
+     */
+    public void setKnownValue ( final Item item, final JIVariant value )
+    {
+        if ( value == null )
+        {
+            this.knownValues.remove ( item );
+        }
+        else
+        {
+            rememberValue ( item, value );
+        }
+    }
+
+    private void rememberValue ( final Item item, final JIVariant value )
+    {
+        if ( !this.suppressUnchanged )
+        {
+            return;
+        }
+        try
+        {
+            final TypedValue typedValue = TypedValue.fromVariant ( value );
+            if ( typedValue != null && typedValue.isPrimitive () )
+            {
+                this.knownValues.put ( item, typedValue );
+                return;
+            }
+        }
+        catch ( final JIException e )
+        {
+            logger.debug ( "Failed to decode written value", e );
+        }
+        this.knownValues.remove ( item );
+    }
+
+    private boolean isKnownValue ( final Item item, final JIVariant value )
+    {
+        final TypedValue knownValue = this.knownValues.get ( item );
+        if ( knownValue == null || value == null )
+        {
+            return false;
+        }
+        try
+        {
+            return knownValue.equals ( TypedValue.fromVariant ( value ) );
+        }
+        catch ( final JIException e )
+        {
+            return false;
+        }
+    }
+
+    /**
+     * Enable or disable suppression of writes equal to the last known value
+     * @param suppressUnchanged <code>true</code> to suppress unchanged writes
+     */
+    public void setSuppressUnchanged ( final boolean suppressUnchanged )
+    {
+        this.suppressUnchanged = suppressUnchanged;
+        if ( !suppressUnchanged )
+        {
+            this.knownValues.clear ();
+        }
+    }
+
+    public boolean isSuppressUnchanged ()
+    {
+        return this.suppressUnchanged;
+    }
+
+    /**
+     * Flush all pending writes and stop the queue
+     * <p>
+     * The executor is not shut down.
+     * </p>
+     */
+    public void dispose ()
+    {
+        synchronized ( this )
+        {
+            this.disposed = true;
+        }
+        flush ();
+    }
+
+    public synchronized int getPendingItems ()
+    {
+        return this.pending.size ();
+    }
+
+    /**
+     * Get the number of write requests submitted to the queue
+     * @return the number of submitted requests
+     */
+    public long getSubmitted ()
+    {
+        return this.submitted.get ();
+    }
+
+    /**
+     * Get the number of write requests which were replaced by a later write to the same item
+     * @return the number of collapsed requests
+     */
+    public long getCollapsed ()
+    {
+        return this.collapsed.get ();
+    }
+
+    /**
+     * Get the number of write requests suppressed since the value was unchanged
+     * @return the number of suppressed requests
+     */
+    public long getSuppressed ()
+    {
+        return this.suppressed.get ();
+    }
+
+    /**
+     * Get the number of item writes sent to the server
+     * @return the number of written items
+     */
+    public long getWritten ()
+    {
+        return this.written.get ();
+    }
+
+    /**
+     * Get the number of batched write calls
+     * @return the number of flushes
+     */
+    public long getFlushes ()
+    {
+        return this.flushes.get ();
+    }
+}